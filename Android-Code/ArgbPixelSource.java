@@ -0,0 +1,43 @@
+package com.dktes.medileaf;
+
+public final class ArgbPixelSource implements PixelSource {
+
+    // A pixel source over a plain int[] of ARGB pixels, stored row after row
+    // It can be pointed at another array with set(), so the same object serves every frame
+
+    private int[] pixels;
+    private int width;
+    private int height;
+
+    public ArgbPixelSource(int[] pixels, int width, int height) {
+        set(pixels, width, height);
+    }
+
+    public void set(int[] pixels, int width, int height) {
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("Expected " + width * height + " pixels, got " + pixels.length);
+        }
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRow(int y, int[] row) {
+        System.arraycopy(pixels, y * width, row, 0, width);
+    }
+}
@@ -0,0 +1,178 @@
+package com.dktes.medileaf;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.Locale;
+
+public final class BatchClassifier<S> {
+
+    // The batch classifier classifies many images (a gallery folder, a survey dataset...) with few model runs
+    // Images are preprocessed one after the other into a single input buffer of shape [N, 150, 150, 3]
+    // and every N images are sent to the model in one run. The results are streamed back image per image
+    // It does not depend on Android: a JVM harness only has to provide an InferenceEngine, its LabelTable and an InputWriter
+    // One batch classifier owns its buffers, so it must not be used by two threads at the same time
+
+    public interface InputWriter<S> {
+        // Preprocesses 'source' and writes exactly one image into 'target', starting at its current position
+        void write(S source, ByteBuffer target) throws Exception;
+    }
+
+    public interface Listener<S> {
+        // 'prediction' is reused for the next image, so it is only valid during this call
+        // Images the model is not sure about are reported as unknown, so they can be skipped or set aside for review
+        void onResult(S source, int position, Prediction prediction);
+
+        void onError(S source, int position, Exception error);
+    }
+
+    public static final class Report {
+        private final int images;
+        private final int failed;
+        private final int unknown;
+        private final int batches;
+        private final long elapsedNanos;
+
+        Report(int images, int failed, int unknown, int batches, long elapsedNanos) {
+            this.images = images;
+            this.failed = failed;
+            this.unknown = unknown;
+            this.batches = batches;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getImages() {
+            return images;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        // Classified images that were rejected as unknown leaves, they are included in getImages()
+        public int getUnknown() {
+            return unknown;
+        }
+
+        public int getBatches() {
+            return batches;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getImagesPerSecond() {
+            return elapsedNanos == 0 ? 0 : images * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d images (%d failed, %d unknown) in %d batches, %.1f images/s",
+                    images, failed, unknown, batches, getImagesPerSecond());
+        }
+    }
+
+    private final InferenceEngine engine;
+    private final InputWriter<S> writer;
+    private final int batchSize;
+
+    // Everything below is allocated once and reused for every batch
+    private final ByteBuffer input;
+    private final float[] output;
+    private final float[] probabilities;
+    private final Prediction prediction;
+    private final RejectionPolicy policy;
+    private final Object[] batchSources;
+    private final int[] batchPositions;
+
+    public BatchClassifier(InferenceEngine engine, LabelTable labels, InputWriter<S> writer, int batchSize, int k) {
+        this(engine, labels, writer, batchSize, k, RejectionPolicy.DEFAULT);
+    }
+
+    public BatchClassifier(InferenceEngine engine, LabelTable labels, InputWriter<S> writer, int batchSize, int k,
+                           RejectionPolicy policy) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1, got " + batchSize);
+        }
+        this.engine = engine;
+        this.writer = writer;
+        this.batchSize = batchSize;
+        int classes = engine.getClassCount();
+        this.input = ByteBuffer.allocateDirect(batchSize * engine.getInputBytesPerImage()).order(ByteOrder.nativeOrder());
+        this.output = new float[batchSize * classes];
+        this.probabilities = new float[classes];
+        this.prediction = new Prediction(labels, k);
+        this.policy = policy;
+        this.batchSources = new Object[batchSize];
+        this.batchPositions = new int[batchSize];
+    }
+
+    public Report classify(Iterable<S> sources, Listener<S> listener) {
+        long start = System.nanoTime();
+        int images = 0, failed = 0, unknown = 0, batches = 0;
+        int bytesPerImage = engine.getInputBytesPerImage();
+
+        Iterator<S> iterator = sources.iterator();
+        int position = 0;
+        while (iterator.hasNext()) {
+            // Fill the batch. An image that cannot be decoded is reported and does not take a place in the batch
+            int filled = 0;
+            input.clear();
+            while (filled < batchSize && iterator.hasNext()) {
+                S source = iterator.next();
+                int current = position++;
+                input.position(filled * bytesPerImage);
+                try {
+                    writer.write(source, input);
+                } catch (Exception e) {
+                    failed++;
+                    listener.onError(source, current, e);
+                    continue;
+                }
+                batchSources[filled] = source;
+                batchPositions[filled] = current;
+                filled++;
+            }
+            if (filled == 0) {
+                continue;
+            }
+
+            try {
+                engine.run(input, filled, output);
+                batches++;
+            } catch (Exception e) {
+                for (int i = 0; i < filled; i++) {
+                    failed++;
+                    listener.onError(source(i), batchPositions[i], e);
+                }
+                clearSources(filled);
+                continue;
+            }
+
+            for (int i = 0; i < filled; i++) {
+                System.arraycopy(output, i * probabilities.length, probabilities, 0, probabilities.length);
+                prediction.update(probabilities, probabilities.length, policy);
+                images++;
+                if (prediction.isUnknown()) {
+                    unknown++;
+                }
+                listener.onResult(source(i), batchPositions[i], prediction);
+            }
+            clearSources(filled);
+        }
+        return new Report(images, failed, unknown, batches, System.nanoTime() - start);
+    }
+
+    @SuppressWarnings("unchecked")
+    private S source(int index) {
+        return (S) batchSources[index];
+    }
+
+    private void clearSources(int filled) {
+        // Do not keep the images of the last batch alive
+        for (int i = 0; i < filled; i++) {
+            batchSources[i] = null;
+        }
+    }
+}
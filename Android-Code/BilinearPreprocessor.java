@@ -0,0 +1,175 @@
+package com.dktes.medileaf;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public final class BilinearPreprocessor implements Preprocessor {
+
+    // This preprocessor resizes an image with bilinear filtering and converts it to float RGB in a single pass
+    // The result is written straight into one direct buffer that is allocated once, in the layout the model expects:
+    // row after row, pixel after pixel, three float32 values (red, green, blue) in the range of 0 to 255
+    // For a quantized model the three values are stored as one byte each instead, using the input format of the model
+    //
+    // Only two rows of the source are needed at a time, so they are read into two reusable int[] rows.
+    // The horizontal coordinates are computed once per source width. When images of the same size keep coming
+    // (camera frames, a batch of photos from the same phone) nothing is allocated at all
+
+    private static final int CHANNELS = 3;
+
+    private final int outputWidth;
+    private final int outputHeight;
+    private final TensorFormat format;
+    private final ByteBuffer buffer;
+
+    // The two source rows the current output row is interpolated from, and which rows of the source they hold
+    private int[] upperRow = new int[0];
+    private int[] lowerRow = new int[0];
+    private int upperY = -1;
+    private int lowerY = -1;
+
+    // For every output column: the left and right source column and the weight of the right one
+    private final int[] leftX;
+    private final int[] rightX;
+    private final float[] weightX;
+    private int tableWidth = -1;
+
+    public BilinearPreprocessor(int outputWidth, int outputHeight) {
+        this(outputWidth, outputHeight, TensorFormat.FLOAT32);
+    }
+
+    public BilinearPreprocessor(int outputWidth, int outputHeight, TensorFormat format) {
+        this.outputWidth = outputWidth;
+        this.outputHeight = outputHeight;
+        this.format = format;
+        this.buffer = ByteBuffer.allocateDirect(getBytesPerImage()).order(ByteOrder.nativeOrder());
+        this.leftX = new int[outputWidth];
+        this.rightX = new int[outputWidth];
+        this.weightX = new float[outputWidth];
+    }
+
+    @Override
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    @Override
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    @Override
+    public int getBytesPerImage() {
+        return outputWidth * outputHeight * CHANNELS * format.getBytesPerValue();
+    }
+
+    @Override
+    public ByteBuffer process(PixelSource source) {
+        buffer.clear();
+        processInto(source, buffer);
+        buffer.rewind();
+        return buffer;
+    }
+
+    @Override
+    public void processInto(PixelSource source, ByteBuffer target) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        prepare(width);
+
+        boolean quantized = format.isQuantized();
+        // Interpolated pixel values stay within 0 to 255, so for a plain uint8 input rounding is all that is needed
+        boolean raw = format.isRawBytes();
+        int base = target.position();
+        float scaleY = (float) height / outputHeight;
+        int at = base;
+        for (int y = 0; y < outputHeight; y++) {
+            // Map the center of the output pixel back to the source (half pixel centers, like most resize ops)
+            float sourceY = Math.max(0f, (y + 0.5f) * scaleY - 0.5f);
+            int top = Math.min((int) sourceY, height - 1);
+            int bottom = Math.min(top + 1, height - 1);
+            float wy = sourceY - top;
+            loadRows(source, top, bottom);
+
+            int[] upper = upperRow;
+            int[] lower = lowerRow;
+            for (int x = 0; x < outputWidth; x++) {
+                int left = leftX[x];
+                int right = rightX[x];
+                float wx = weightX[x];
+                int p00 = upper[left], p01 = upper[right];
+                int p10 = lower[left], p11 = lower[right];
+                float red = interpolate(p00 >> 16 & 0xFF, p01 >> 16 & 0xFF, p10 >> 16 & 0xFF, p11 >> 16 & 0xFF, wx, wy);
+                float green = interpolate(p00 >> 8 & 0xFF, p01 >> 8 & 0xFF, p10 >> 8 & 0xFF, p11 >> 8 & 0xFF, wx, wy);
+                float blue = interpolate(p00 & 0xFF, p01 & 0xFF, p10 & 0xFF, p11 & 0xFF, wx, wy);
+                if (raw) {
+                    target.put(at, (byte) (int) (red + 0.5f));
+                    target.put(at + 1, (byte) (int) (green + 0.5f));
+                    target.put(at + 2, (byte) (int) (blue + 0.5f));
+                    at += CHANNELS;
+                } else if (quantized) {
+                    target.put(at, (byte) format.quantize(red));
+                    target.put(at + 1, (byte) format.quantize(green));
+                    target.put(at + 2, (byte) format.quantize(blue));
+                    at += CHANNELS;
+                } else {
+                    target.putFloat(at, red);
+                    target.putFloat(at + 4, green);
+                    target.putFloat(at + 8, blue);
+                    at += CHANNELS * 4;
+                }
+            }
+        }
+        target.position(at);
+
+        // The rows belong to this source only
+        upperY = -1;
+        lowerY = -1;
+    }
+
+    private static float interpolate(int c00, int c01, int c10, int c11, float wx, float wy) {
+        float upper = c00 + (c01 - c00) * wx;
+        float lower = c10 + (c11 - c10) * wx;
+        return upper + (lower - upper) * wy;
+    }
+
+    private void prepare(int width) {
+        if (upperRow.length < width) {
+            upperRow = new int[width];
+            lowerRow = new int[width];
+        }
+        if (tableWidth == width) {
+            return;
+        }
+        float scaleX = (float) width / outputWidth;
+        for (int x = 0; x < outputWidth; x++) {
+            float sourceX = Math.max(0f, (x + 0.5f) * scaleX - 0.5f);
+            int left = Math.min((int) sourceX, width - 1);
+            leftX[x] = left;
+            rightX[x] = Math.min(left + 1, width - 1);
+            weightX[x] = sourceX - left;
+        }
+        tableWidth = width;
+    }
+
+    private void loadRows(PixelSource source, int top, int bottom) {
+        // When we move down by one row, the old lower row becomes the new upper row and does not need to be read again
+        if (top == lowerY) {
+            int[] swap = upperRow;
+            upperRow = lowerRow;
+            lowerRow = swap;
+            upperY = top;
+            lowerY = -1;
+        } else if (top != upperY) {
+            source.readRow(top, upperRow);
+            upperY = top;
+        }
+        if (bottom != lowerY) {
+            if (bottom == upperY) {
+                System.arraycopy(upperRow, 0, lowerRow, 0, tableWidth);
+            } else {
+                source.readRow(bottom, lowerRow);
+            }
+            lowerY = bottom;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.dktes.medileaf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+final class BinaryCatalog implements LeafStore, Leaf.TextSource {
+
+    // This class reads the catalog written by CatalogCompiler straight from a memory-mapped file
+    // Nothing is parsed when the catalog is opened: a leaf is decoded from its fixed-width record when it is asked for,
+    // and its description and usage only when a screen reads them. The operating system loads the pages we touch
+
+    private final MappedByteBuffer buffer;
+    private final long sourceChecksum;
+    private final int recordCount;
+    private final int slots;
+    private final int recordsOffset;
+    private final int hashOffset;
+    private final int stringsOffset;
+    private final int stringsLength;
+
+    private BinaryCatalog(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < CatalogCompiler.HEADER_SIZE || buffer.getInt(0) != CatalogCompiler.MAGIC) {
+            throw new IOException("Not a MediLeaf catalog");
+        }
+        if (buffer.getInt(4) != CatalogCompiler.VERSION) {
+            throw new IOException("Unsupported catalog version " + buffer.getInt(4));
+        }
+        this.sourceChecksum = buffer.getLong(8);
+        this.recordCount = buffer.getInt(16);
+        this.slots = buffer.getInt(20);
+        this.recordsOffset = buffer.getInt(24);
+        this.hashOffset = buffer.getInt(28);
+        this.stringsOffset = buffer.getInt(32);
+        this.stringsLength = buffer.getInt(36);
+
+        // A truncated or corrupted file must be rejected here, not when a screen reads a leaf
+        long expectedSize = (long) stringsOffset + stringsLength;
+        if (recordCount < 0 || Integer.bitCount(slots) != 1
+                || recordsOffset != CatalogCompiler.HEADER_SIZE
+                || hashOffset != recordsOffset + recordCount * CatalogCompiler.RECORD_SIZE
+                || stringsOffset != hashOffset + slots * 4
+                || expectedSize != buffer.capacity()) {
+            throw new IOException("Catalog file is corrupted");
+        }
+    }
+
+    static BinaryCatalog open(File file) throws IOException {
+        // The mapping stays valid after the file is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            return new BinaryCatalog(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    static BinaryCatalog openIfCurrent(File file, long sourceChecksum) {
+        // Returns null when the file is missing, broken, or was compiled from another data.json
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            BinaryCatalog catalog = open(file);
+            return catalog.sourceChecksum == sourceChecksum ? catalog : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    long getSourceChecksum() {
+        return sourceChecksum;
+    }
+
+    @Override
+    public int size() {
+        return recordCount;
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        // The whole file is mapped. Its pages can be dropped by the system, but they count while the mapping exists
+        return buffer.capacity();
+    }
+
+    @Override
+    public Leaf get(int record) {
+        if (record < 0 || record >= recordCount) {
+            throw new IndexOutOfBoundsException("record " + record + " of " + recordCount);
+        }
+        int base = recordsOffset + record * CatalogCompiler.RECORD_SIZE;
+        return new Leaf(
+                field(base, CatalogCompiler.FIELD_LEAF_NAME),
+                field(base, CatalogCompiler.FIELD_SCIENTIFIC_NAME),
+                field(base, CatalogCompiler.FIELD_ORIGIN),
+                field(base, CatalogCompiler.FIELD_FEATURE),
+                this,
+                reference(base, CatalogCompiler.FIELD_DESCRIPTION),
+                reference(base, CatalogCompiler.FIELD_USAGE));
+    }
+
+    @Override
+    public int indexOfName(String leafName) {
+        if (leafName == null) {
+            return -1;
+        }
+        // Probe the hash table and compare the UTF-8 bytes in place, without decoding the stored names
+        byte[] wanted = leafName.getBytes(StandardCharsets.UTF_8);
+        int slot = mix(leafName.hashCode()) & (slots - 1);
+        for (int probes = 0; probes < slots; probes++) {
+            int entry = buffer.getInt(hashOffset + slot * 4);
+            if (entry == 0) {
+                return -1;
+            }
+            int record = entry - 1;
+            int base = recordsOffset + record * CatalogCompiler.RECORD_SIZE + CatalogCompiler.FIELD_LEAF_NAME * 8;
+            if (equalsAt(buffer.getInt(base), buffer.getInt(base + 4), wanted)) {
+                return record;
+            }
+            slot = (slot + 1) & (slots - 1);
+        }
+        return -1;
+    }
+
+    @Override
+    public String readText(long reference) {
+        int offset = (int) (reference >>> 32);
+        int length = (int) reference;
+        return decode(offset, length);
+    }
+
+    static int mix(int hash) {
+        // String.hashCode() has weak low bits for similar names, so they are spread before masking
+        return hash ^ (hash >>> 16);
+    }
+
+    private String field(int base, int field) {
+        int at = base + field * 8;
+        return decode(buffer.getInt(at), buffer.getInt(at + 4));
+    }
+
+    private long reference(int base, int field) {
+        int at = base + field * 8;
+        int length = buffer.getInt(at + 4);
+        if (length < 0) {
+            return -1;
+        }
+        return ((long) buffer.getInt(at) << 32) | length;
+    }
+
+    private String decode(int offset, int length) {
+        if (length < 0) {
+            return null;
+        }
+        if (offset < 0 || offset + length > stringsLength) {
+            throw new IllegalStateException("Catalog text out of bounds");
+        }
+        // duplicate() gives every caller its own position, so texts can be read from several threads
+        ByteBuffer view = buffer.duplicate();
+        view.position(stringsOffset + offset);
+        byte[] bytes = new byte[length];
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean equalsAt(int offset, int length, byte[] wanted) {
+        if (length != wanted.length) {
+            return false;
+        }
+        int start = stringsOffset + offset;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(start + i) != wanted[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
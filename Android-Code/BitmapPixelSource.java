@@ -0,0 +1,34 @@
+package com.dktes.medileaf;
+
+import android.graphics.Bitmap;
+
+public final class BitmapPixelSource implements PixelSource {
+
+    // A pixel source over an Android bitmap. Rows are copied with getPixels() into the caller's row array,
+    // so the whole bitmap is never copied into a second int[]
+
+    private Bitmap bitmap;
+
+    public BitmapPixelSource(Bitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    public void set(Bitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    @Override
+    public int getWidth() {
+        return bitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return bitmap.getHeight();
+    }
+
+    @Override
+    public void readRow(int y, int[] row) {
+        bitmap.getPixels(row, 0, bitmap.getWidth(), 0, y, bitmap.getWidth(), 1);
+    }
+}
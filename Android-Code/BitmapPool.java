@@ -0,0 +1,67 @@
+package com.dktes.medileaf;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+final class BitmapPool {
+
+    // Bitmaps that are not shown anymore, kept so the next image can be decoded into one of them
+    // (BitmapFactory.Options.inBitmap) instead of allocating a few MB for every result screen
+    // Since Android 4.4 any mutable bitmap with at least as many bytes as the new image can be reused
+    // The pool holds at most 'maxBytes', the oldest bitmaps are dropped first
+
+    private final long maxBytes;
+    private final List<Bitmap> bitmaps = new ArrayList<>();
+    private long bytes;
+
+    BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized Bitmap take(int width, int height) {
+        // The smallest bitmap that can hold an ARGB image of this size, or null. It is removed from the pool
+        long needed = (long) width * height * 4;
+        int best = -1;
+        for (int i = 0; i < bitmaps.size(); i++) {
+            int size = bitmaps.get(i).getAllocationByteCount();
+            if (size >= needed && (best < 0 || size < bitmaps.get(best).getAllocationByteCount())) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        Bitmap bitmap = bitmaps.remove(best);
+        bytes -= bitmap.getAllocationByteCount();
+        return bitmap;
+    }
+
+    synchronized void put(Bitmap bitmap) {
+        // Only give bitmaps that no view shows anymore: the next decode overwrites their pixels
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getAllocationByteCount() > maxBytes) {
+            return;
+        }
+        bitmaps.add(bitmap);
+        bytes += bitmap.getAllocationByteCount();
+        while (bytes > maxBytes) {
+            Bitmap oldest = bitmaps.remove(0);
+            bytes -= oldest.getAllocationByteCount();
+            oldest.recycle();
+        }
+    }
+
+    synchronized void clear() {
+        for (Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+        bitmaps.clear();
+        bytes = 0;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+}
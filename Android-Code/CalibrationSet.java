@@ -0,0 +1,98 @@
+package com.dktes.medileaf;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public final class CalibrationSet {
+
+    // A small set of labelled images, bundled with the app, used to check that a model variant is still accurate
+    // The images are stored at the input size of the model, as 8-bit RGB, so no image decoder is needed to read them:
+    //   int magic "MLCB", int version, int count, int width, int height
+    //   count times: int label index, width * height * 3 bytes of RGB
+    // The file is written by the CalibrationSetBuilder tool of the benchmark module
+
+    static final int MAGIC = 0x4D4C4342; // "MLCB"
+    static final int VERSION = 1;
+
+    private final int width;
+    private final int height;
+    private final int[] labels;
+    private final int[][] pixels;
+
+    public CalibrationSet(int width, int height, int[] labels, int[][] pixels) {
+        this.width = width;
+        this.height = height;
+        this.labels = labels;
+        this.pixels = pixels;
+    }
+
+    public static CalibrationSet read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a calibration set");
+        }
+        int count = in.readInt();
+        int width = in.readInt();
+        int height = in.readInt();
+        if (count < 0 || width <= 0 || height <= 0) {
+            throw new IOException("Broken calibration set header");
+        }
+        int[] labels = new int[count];
+        int[][] pixels = new int[count][width * height];
+        byte[] rgb = new byte[width * height * 3];
+        for (int i = 0; i < count; i++) {
+            labels[i] = in.readInt();
+            in.readFully(rgb);
+            int[] argb = pixels[i];
+            for (int p = 0, at = 0; p < argb.length; p++, at += 3) {
+                argb[p] = 0xFF000000 | (rgb[at] & 0xFF) << 16 | (rgb[at + 1] & 0xFF) << 8 | (rgb[at + 2] & 0xFF);
+            }
+        }
+        return new CalibrationSet(width, height, labels, pixels);
+    }
+
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(labels.length);
+        out.writeInt(width);
+        out.writeInt(height);
+        byte[] rgb = new byte[width * height * 3];
+        for (int i = 0; i < labels.length; i++) {
+            out.writeInt(labels[i]);
+            int[] argb = pixels[i];
+            for (int p = 0, at = 0; p < argb.length; p++, at += 3) {
+                rgb[at] = (byte) (argb[p] >> 16);
+                rgb[at + 1] = (byte) (argb[p] >> 8);
+                rgb[at + 2] = (byte) argb[p];
+            }
+            out.write(rgb);
+        }
+        out.flush();
+    }
+
+    public int size() {
+        return labels.length;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLabel(int sample) {
+        return labels[sample];
+    }
+
+    // ARGB pixels of a sample, row after row
+    public int[] getPixels(int sample) {
+        return pixels[sample];
+    }
+}
@@ -0,0 +1,199 @@
+package com.dktes.medileaf;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class Camera2FrameSource implements FrameSource {
+
+    // Streams preview frames of the back camera through the camera2 API
+    // The camera writes YUV_420_888 images into an ImageReader. For each image we take a free frame of the pool,
+    // copy the three planes into it and close the image at once, so the camera never waits for the classifier.
+    // When no frame is free the image is skipped: the classifier is busy anyway and would only drop it later
+    // The caller must hold the CAMERA permission before calling start()
+
+    private static final String TAG = "Camera2FrameSource";
+
+    // 640x480 is supported for YUV output by every camera2 device and is plenty for a 150x150 model input
+    private static final int FRAME_WIDTH = 640;
+    private static final int FRAME_HEIGHT = 480;
+
+    private final CameraManager cameraManager;
+    private final Surface previewSurface;
+    private final YuvFramePool pool = new YuvFramePool(3);
+
+    private HandlerThread cameraThread;
+    private Handler cameraHandler;
+    private ImageReader imageReader;
+    private CameraDevice camera;
+    private CameraCaptureSession session;
+    private int sensorOrientation;
+
+    // previewSurface may be null, then frames are classified without a preview on screen
+    public Camera2FrameSource(Context context, Surface previewSurface) {
+        this.cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        this.previewSurface = previewSurface;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public synchronized void start(Listener listener) throws IOException {
+        if (cameraThread != null) {
+            return;
+        }
+        String cameraId;
+        try {
+            cameraId = findBackCamera();
+        } catch (CameraAccessException e) {
+            throw new IOException("Cannot read the camera list", e);
+        }
+
+        cameraThread = new HandlerThread("camera-frames");
+        cameraThread.start();
+        cameraHandler = new Handler(cameraThread.getLooper());
+
+        imageReader = ImageReader.newInstance(FRAME_WIDTH, FRAME_HEIGHT, ImageFormat.YUV_420_888, 2);
+        imageReader.setOnImageAvailableListener(reader -> onImage(reader, listener), cameraHandler);
+
+        try {
+            cameraManager.openCamera(cameraId, new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(CameraDevice device) {
+                    synchronized (Camera2FrameSource.this) {
+                        camera = device;
+                        if (cameraThread == null) {
+                            // stopped while the camera was opening
+                            device.close();
+                            camera = null;
+                            return;
+                        }
+                        createSession(device);
+                    }
+                }
+
+                @Override
+                public void onDisconnected(CameraDevice device) {
+                    device.close();
+                }
+
+                @Override
+                public void onError(CameraDevice device, int error) {
+                    Log.e(TAG, "Camera error " + error);
+                    device.close();
+                }
+            }, cameraHandler);
+        } catch (CameraAccessException | SecurityException e) {
+            stop();
+            throw new IOException("Cannot open the camera", e);
+        }
+    }
+
+    private String findBackCamera() throws CameraAccessException, IOException {
+        for (String id : cameraManager.getCameraIdList()) {
+            CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(id);
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraMetadata.LENS_FACING_BACK) {
+                Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+                sensorOrientation = orientation == null ? 0 : orientation;
+                return id;
+            }
+        }
+        throw new IOException("This device has no back camera");
+    }
+
+    private void createSession(CameraDevice device) {
+        List<Surface> targets = new ArrayList<>();
+        targets.add(imageReader.getSurface());
+        if (previewSurface != null) {
+            targets.add(previewSurface);
+        }
+        try {
+            device.createCaptureSession(targets, new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(CameraCaptureSession configured) {
+                    synchronized (Camera2FrameSource.this) {
+                        if (camera == null) {
+                            configured.close();
+                            return;
+                        }
+                        session = configured;
+                        try {
+                            CaptureRequest.Builder request = device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                            for (Surface target : targets) {
+                                request.addTarget(target);
+                            }
+                            configured.setRepeatingRequest(request.build(), null, cameraHandler);
+                        } catch (CameraAccessException e) {
+                            Log.e(TAG, "Cannot start the preview", e);
+                        }
+                    }
+                }
+
+                @Override
+                public void onConfigureFailed(CameraCaptureSession failed) {
+                    Log.e(TAG, "Cannot configure the camera session");
+                }
+            }, cameraHandler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Cannot create the camera session", e);
+        }
+    }
+
+    private void onImage(ImageReader reader, Listener listener) {
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        try {
+            YuvFrame frame = pool.poll();
+            if (frame == null) {
+                return;
+            }
+            Image.Plane[] planes = image.getPlanes();
+            frame.copyPlanes(planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                    image.getWidth(), image.getHeight(), sensorOrientation, image.getTimestamp());
+            listener.onFrame(frame);
+        } finally {
+            image.close();
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (camera != null) {
+            camera.close();
+            camera = null;
+        }
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+        if (cameraThread != null) {
+            cameraThread.quitSafely();
+            cameraThread = null;
+            cameraHandler = null;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.dktes.medileaf;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public final class CatalogCompiler {
+
+    /****
+     * * * * NOTE * * * *
+     * This class turns data.json into the binary catalog read by BinaryCatalog. The layout of the file is:
+     *
+     *   header   magic, version, checksum of data.json, number of records, number of hash slots,
+     *            offsets of the records, of the hash index and of the string table
+     *   records  one fixed-width record per leaf: (offset, length) of each of its six fields in the string table
+     *   hash     open-addressing table on the leaf name, each slot holds record + 1 (0 means empty)
+     *   strings  UTF-8 bytes of every distinct text, without separators
+     *
+     * It runs on the first start of the app (or whenever data.json changes), and it can also be run at build time
+     * with: java com.dktes.medileaf.CatalogCompiler data.json catalog.bin
+     * * * * * ** * * * *
+     * ****/
+
+    static final int MAGIC = 0x4D4C4354; // "MLCT"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 40;
+
+    // The fields of a record, in the order they are stored
+    static final int FIELD_LEAF_NAME = 0;
+    static final int FIELD_SCIENTIFIC_NAME = 1;
+    static final int FIELD_DESCRIPTION = 2;
+    static final int FIELD_USAGE = 3;
+    static final int FIELD_ORIGIN = 4;
+    static final int FIELD_FEATURE = 5;
+    static final int FIELD_COUNT = 6;
+    static final int RECORD_SIZE = FIELD_COUNT * 8;
+
+    private CatalogCompiler() {
+    }
+
+    public static long checksum(byte[] json) {
+        CRC32 crc = new CRC32();
+        crc.update(json, 0, json.length);
+        return crc.getValue();
+    }
+
+    public static void compile(byte[] json, File target) throws IOException {
+        Leaf[] leaves = JsonLeafSource.read(json);
+        write(leaves, checksum(json), target);
+    }
+
+    static void write(Leaf[] leaves, long sourceChecksum, File target) throws IOException {
+        // Build the string table. Texts that occur more than once (like the origin "India") are stored only once
+        StringTable strings = new StringTable();
+        int[] fields = new int[leaves.length * FIELD_COUNT * 2];
+        for (int i = 0; i < leaves.length; i++) {
+            Leaf leaf = leaves[i];
+            int base = i * FIELD_COUNT * 2;
+            strings.add(leaf.getLeafName(), fields, base + FIELD_LEAF_NAME * 2);
+            strings.add(leaf.getScientificName(), fields, base + FIELD_SCIENTIFIC_NAME * 2);
+            strings.add(leaf.getDescription(), fields, base + FIELD_DESCRIPTION * 2);
+            strings.add(leaf.getUsage(), fields, base + FIELD_USAGE * 2);
+            strings.add(leaf.getOrigin(), fields, base + FIELD_ORIGIN * 2);
+            strings.add(leaf.getFeature(), fields, base + FIELD_FEATURE * 2);
+        }
+
+        // The hash index is kept at most half full, so a lookup needs very few probes
+        int slots = Integer.highestOneBit(Math.max(2, leaves.length * 2 - 1)) << 1;
+        int[] hash = new int[slots];
+        for (int i = 0; i < leaves.length; i++) {
+            String name = leaves[i].getLeafName();
+            if (name == null) {
+                continue;
+            }
+            int slot = BinaryCatalog.mix(name.hashCode()) & (slots - 1);
+            while (hash[slot] != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            hash[slot] = i + 1;
+        }
+
+        int recordsOffset = HEADER_SIZE;
+        int hashOffset = recordsOffset + leaves.length * RECORD_SIZE;
+        int stringsOffset = hashOffset + slots * 4;
+
+        // The file is written next to the target and renamed at the end, so a reader never sees a half written catalog
+        File temp = new File(target.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceChecksum);
+            out.writeInt(leaves.length);
+            out.writeInt(slots);
+            out.writeInt(recordsOffset);
+            out.writeInt(hashOffset);
+            out.writeInt(stringsOffset);
+            out.writeInt(strings.length);
+            for (int value : fields) {
+                out.writeInt(value);
+            }
+            for (int value : hash) {
+                out.writeInt(value);
+            }
+            out.write(strings.bytes, 0, strings.length);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Cannot move the compiled catalog to " + target);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: CatalogCompiler <data.json> <catalog.bin>");
+            System.exit(2);
+        }
+        byte[] json;
+        try (InputStream in = new FileInputStream(args[0])) {
+            json = JsonLeafSource.readFully(in);
+        }
+        compile(json, new File(args[1]));
+    }
+
+    private static final class StringTable {
+        private final Map<String, Integer> offsets = new HashMap<>();
+        private byte[] bytes = new byte[4096];
+        private int length;
+
+        void add(String text, int[] fields, int at) {
+            // A missing field is stored with the length -1, so that it reads back as null and not as an empty text
+            if (text == null) {
+                fields[at] = 0;
+                fields[at + 1] = -1;
+                return;
+            }
+            byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+            Integer offset = offsets.get(text);
+            if (offset == null) {
+                offset = length;
+                ensureCapacity(length + encoded.length);
+                System.arraycopy(encoded, 0, bytes, length, encoded.length);
+                length += encoded.length;
+                offsets.put(text, offset);
+            }
+            fields[at] = offset;
+            fields[at + 1] = encoded.length;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                byte[] grown = new byte[Math.max(capacity, bytes.length * 2)];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.dktes.medileaf;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class ClassificationExecutor<S, R> implements Closeable {
+
+    // This executor runs classifications away from the UI thread
+    // - the work runs on a dedicated inference thread (or a small pool of them, at most one per core)
+    // - only a few requests can wait in the queue, when it is full the oldest waiting request is dropped
+    // - a new request cancels the previous ones, because the user only cares about the image they captured last
+    // - the result is delivered through 'callbackExecutor', which is the main thread in the app
+
+    public interface Task<S, R> {
+        R run(S source) throws Exception;
+    }
+
+    public interface Callback<R> {
+        void onResult(R result);
+
+        void onError(Throwable error);
+    }
+
+    private final Task<S, R> task;
+    private final Executor callbackExecutor;
+    private final ThreadPoolExecutor executor;
+
+    // The newest request. Results of older requests are never delivered
+    private volatile Job latest;
+
+    public ClassificationExecutor(Task<S, R> task, Executor callbackExecutor) {
+        this(task, callbackExecutor, 1, 2);
+    }
+
+    public ClassificationExecutor(Task<S, R> task, Executor callbackExecutor, int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("threads and queueCapacity must be at least 1");
+        }
+        // Inference is CPU bound, using more threads than cores only adds switching
+        threads = Math.min(threads, Runtime.getRuntime().availableProcessors());
+        this.task = task;
+        this.callbackExecutor = callbackExecutor;
+        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                queue, new InferenceThreadFactory(), new DropOldest());
+    }
+
+    public Future<R> submit(S source, Callback<R> callback) {
+        // The request the user made before this one is not interesting anymore
+        Job previous = latest;
+        if (previous != null) {
+            previous.cancel(true);
+        }
+        // Cancelled requests that are still waiting are taken out of the queue to make room
+        executor.purge();
+        Job job = new Job(() -> task.run(source), callback);
+        latest = job;
+        executor.execute(job);
+        return job;
+    }
+
+    public void cancelAll() {
+        Job previous = latest;
+        if (previous != null) {
+            previous.cancel(true);
+        }
+        for (Runnable waiting : executor.getQueue().toArray(new Runnable[0])) {
+            ((Future<?>) waiting).cancel(true);
+        }
+        executor.purge();
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public void close() {
+        cancelAll();
+        executor.shutdownNow();
+    }
+
+    private final class Job extends FutureTask<R> {
+        private final Callback<R> callback;
+
+        Job(Callable<R> callable, Callback<R> callback) {
+            super(callable);
+            this.callback = callback;
+        }
+
+        @Override
+        protected void done() {
+            // Called on the inference thread when the job finishes, fails or is cancelled
+            if (isCancelled() || callback == null) {
+                return;
+            }
+            R result;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                deliver(() -> callback.onError(e.getCause()));
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            deliver(() -> callback.onResult(result));
+        }
+
+        private void deliver(Runnable delivery) {
+            callbackExecutor.execute(() -> {
+                // A result that arrives after a newer request was made is stale, so it is dropped
+                if (latest == this && !isCancelled()) {
+                    delivery.run();
+                }
+            });
+        }
+    }
+
+    private static final class DropOldest implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable job, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                ((Future<?>) job).cancel(false);
+                return;
+            }
+            // The queue is full: cancel the oldest waiting request and make room for the new one
+            Runnable oldest = executor.getQueue().poll();
+            if (oldest != null) {
+                ((Future<?>) oldest).cancel(false);
+            }
+            if (!executor.getQueue().offer(job)) {
+                ((Future<?>) job).cancel(false);
+            }
+        }
+    }
+
+    private static final class InferenceThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "classifier-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.dktes.medileaf;
+
+import java.util.concurrent.CancellationException;
+
+public final class ClassificationPipeline<S, D, T> {
+
+    // The classification of an image happens in four stages:
+    //   decode      turns the source (an intent, a file, a frame...) into an image
+    //   preprocess  turns the image into the input of the model
+    //   infer       runs the model and returns its prediction
+    //   lookup      finds the leaf of the best class in the catalog, unless the prediction was rejected as unknown
+    // Every stage is a plain function, so each of them can be replaced or tested on a JVM without Android
+    // Between two stages we check whether the classification was cancelled, so a stale request stops early
+
+    public interface Stage<I, O> {
+        O apply(I input) throws Exception;
+    }
+
+    public static final class Result {
+        private final Prediction prediction;
+        private final Leaf leaf;
+
+        public Result(Prediction prediction, Leaf leaf) {
+            this.prediction = prediction;
+            this.leaf = leaf;
+        }
+
+        // null when the leaf is unknown
+        public String getLeafName() {
+            return prediction.getLabel();
+        }
+
+        public Prediction getPrediction() {
+            return prediction;
+        }
+
+        // null when the leaf is unknown or when the catalog has no leaf for this name
+        public Leaf getLeaf() {
+            return leaf;
+        }
+    }
+
+    private final Stage<S, D> decode;
+    private final Stage<D, T> preprocess;
+    private final Stage<T, Prediction> infer;
+    private final Stage<String, Leaf> lookup;
+
+    public ClassificationPipeline(Stage<S, D> decode, Stage<D, T> preprocess,
+                                  Stage<T, Prediction> infer, Stage<String, Leaf> lookup) {
+        this.decode = decode;
+        this.preprocess = preprocess;
+        this.infer = infer;
+        this.lookup = lookup;
+    }
+
+    public Result run(S source) throws Exception {
+        D image = decode.apply(source);
+        if (image == null) {
+            throw new IllegalArgumentException("The image could not be decoded");
+        }
+        checkCancelled();
+        T input = preprocess.apply(image);
+        checkCancelled();
+        // The prediction stays with the result after the classifier moved on, so the infer stage must return its own copy
+        Prediction prediction = infer.apply(input);
+        checkCancelled();
+        String leafName = prediction.getLabel();
+        Leaf leaf = leafName == null ? null : lookup.apply(leafName);
+        return new Result(prediction, leaf);
+    }
+
+    private static void checkCancelled() {
+        // A cancelled classification interrupts the thread running it
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Classification was cancelled");
+        }
+    }
+}
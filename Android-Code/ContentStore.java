@@ -0,0 +1,120 @@
+package com.dktes.medileaf;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public final class ContentStore {
+
+    // The content store decides where the catalog, the labels, the model and the reference images are read from:
+    // the files of the installed content pack when there is one, otherwise the assets bundled in the APK
+    // Installing a newer pack (see PackInstaller) notifies the listeners, which drop what they loaded from the
+    // old files. The ModelRegistry and the LeafCatalog then load the new content on their next use, without a restart
+
+    public static final String CATALOG = "data.json";
+    public static final String LABELS = "labels.txt";
+    public static final String MODEL = "medinet.tflite";
+    // The EmbeddingIndex over the reference images, optional
+    public static final String REFERENCES = "references.ivf";
+
+    private static final String DIRECTORY = "content";
+    private static final String TAG = "ContentStore";
+
+    public interface Listener {
+        // Called on the thread that installed the pack
+        void onContentChanged(int version);
+    }
+
+    private static ContentStore instance;
+
+    // We keep the application context only, holding an activity here would leak it
+    private final Context context;
+    private final PackInstaller installer;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private ContentStore(Context context) {
+        this.context = context.getApplicationContext();
+        this.installer = new PackInstaller(new File(this.context.getFilesDir(), DIRECTORY), this::readBundled);
+    }
+
+    public static synchronized ContentStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new ContentStore(context);
+        }
+        return instance;
+    }
+
+    // 0 while the bundled content is used
+    public int getVersion() {
+        return installer.getInstalledVersion();
+    }
+
+    // The installed file, or null when the bundled asset is used
+    public File getInstalledFile(String name) {
+        return installer.getInstalledFile(name);
+    }
+
+    public InputStream open(String name) throws IOException {
+        File file = installer.getInstalledFile(name);
+        return file != null ? new FileInputStream(file) : context.getAssets().open(name);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public int update(PackSource source, PackInstaller.Validator validator) throws IOException {
+        // Installs the newest packs of the source. The listeners are told once, after the last one
+        // A pack is only installed when the app can use it: the catalog must parse, and 'validator' checks the rest
+        // (the ModelRegistry checks that the model loads and that the labels fit its output)
+        int before = installer.getInstalledVersion();
+        int after = installer.update(source, directory -> {
+            File catalog = new File(directory, CATALOG);
+            if (catalog.isFile()) {
+                try (InputStream in = new FileInputStream(catalog)) {
+                    JsonLeafSource.read(in);
+                }
+            }
+            if (validator != null) {
+                validator.validate(directory);
+            }
+        });
+        if (after != before) {
+            Log.i(TAG, "Content updated from version " + before + " to " + after);
+            for (Listener listener : listeners) {
+                listener.onContentChanged(after);
+            }
+        }
+        return after;
+    }
+
+    private ByteBuffer readBundled(String name) throws IOException {
+        // The base of a delta when no pack is installed yet
+        // The model is stored uncompressed in the APK, so it is mapped like the ModelRegistry does, the rest is read
+        if (MODEL.equals(name)) {
+            try (AssetFileDescriptor fileDescriptor = context.getAssets().openFd(name);
+                 FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor())) {
+                return inputStream.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        fileDescriptor.getStartOffset(), fileDescriptor.getDeclaredLength());
+            }
+        }
+        try (InputStream in = context.getAssets().open(name)) {
+            return ByteBuffer.wrap(JsonLeafSource.readFully(in));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.dktes.medileaf;
+
+public final class DecodePlan {
+
+    // A decode plan tells a decoder how to turn a big photo into a small bitmap that is still big enough for the model:
+    // - sampleSize: only every n-th pixel is decoded (a power of two, because decoders handle those natively)
+    // - region: the part of the stored image to decode, either everything or a centered crop
+    // - orientation: the EXIF orientation the decoder has to apply afterwards
+    // The plan is pure arithmetic, so the sizing rules can be tested on a JVM
+
+    private final int sampleSize;
+    private final int regionLeft;
+    private final int regionTop;
+    private final int regionWidth;
+    private final int regionHeight;
+    private final int orientation;
+    private final boolean fullImage;
+
+    private DecodePlan(int sampleSize, int regionLeft, int regionTop, int regionWidth, int regionHeight,
+                       int orientation, boolean fullImage) {
+        this.sampleSize = sampleSize;
+        this.regionLeft = regionLeft;
+        this.regionTop = regionTop;
+        this.regionWidth = regionWidth;
+        this.regionHeight = regionHeight;
+        this.orientation = orientation;
+        this.fullImage = fullImage;
+    }
+
+    public static DecodePlan forTarget(ImageBounds bounds, int targetWidth, int targetHeight,
+                                       boolean cropToAspect, boolean applyOrientation) {
+        int orientation = applyOrientation ? bounds.getOrientation() : ImageBounds.ORIENTATION_NORMAL;
+
+        // The target is given as it appears on screen. When the stored image is turned by 90 degrees,
+        // its stored width has to cover the target height and the other way round
+        boolean transposed = applyOrientation && bounds.isTransposed();
+        int wantedWidth = transposed ? targetHeight : targetWidth;
+        int wantedHeight = transposed ? targetWidth : targetHeight;
+
+        int width = bounds.getWidth();
+        int height = bounds.getHeight();
+        int left = 0, top = 0, regionWidth = width, regionHeight = height;
+        if (cropToAspect && wantedWidth > 0 && wantedHeight > 0) {
+            // Keep the largest centered region with the aspect ratio of the target
+            long scaledWidth = (long) height * wantedWidth / wantedHeight;
+            if (scaledWidth <= width) {
+                regionWidth = (int) Math.max(1, scaledWidth);
+            } else {
+                regionHeight = (int) Math.max(1, (long) width * wantedHeight / wantedWidth);
+            }
+            left = (width - regionWidth) / 2;
+            top = (height - regionHeight) / 2;
+        }
+
+        int sampleSize = sampleSize(regionWidth, regionHeight, wantedWidth, wantedHeight);
+        boolean fullImage = regionWidth == width && regionHeight == height;
+        return new DecodePlan(sampleSize, left, top, regionWidth, regionHeight, orientation, fullImage);
+    }
+
+    static int sampleSize(int width, int height, int targetWidth, int targetHeight) {
+        // The largest power of two that keeps both sides at least as big as the target
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    public int getRegionLeft() {
+        return regionLeft;
+    }
+
+    public int getRegionTop() {
+        return regionTop;
+    }
+
+    public int getRegionWidth() {
+        return regionWidth;
+    }
+
+    public int getRegionHeight() {
+        return regionHeight;
+    }
+
+    public int getOrientation() {
+        return orientation;
+    }
+
+    public boolean isFullImage() {
+        return fullImage;
+    }
+
+    // Size of the decoded bitmap, before the orientation is applied
+    public int getDecodedWidth() {
+        return (regionWidth + sampleSize - 1) / sampleSize;
+    }
+
+    public int getDecodedHeight() {
+        return (regionHeight + sampleSize - 1) / sampleSize;
+    }
+}
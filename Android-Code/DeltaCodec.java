@@ -0,0 +1,193 @@
+package com.dktes.medileaf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+public final class DeltaCodec {
+
+    /****
+     * * * * NOTE * * * *
+     * A binary patch that rebuilds a new file from the installed one, so an update only ships what changed:
+     * a corrected description in data.json costs a few bytes, a fine-tuned model only the weights that moved.
+     *
+     *   int magic "MLDL", long base length, long target length
+     *   then operations until END:
+     *     COPY  varint offset, varint length   the bytes come from the base file
+     *     ADD   varint length, bytes           the bytes come from the patch
+     *
+     * encode() finds the copies like rsync does: the base is cut into blocks of 16 bytes, every block is put
+     * into a hash table, and at every position of the target we look up the hash of the next 16 bytes.
+     * A match is checked byte by byte and then extended in both directions as far as the bytes are equal.
+     *
+     * apply() reads the base through a ByteBuffer (a mapped file or a bundled asset) and streams the target out,
+     * so a large model is never held in memory twice
+     * * * * * ** * * * *
+     * ****/
+
+    static final int MAGIC = 0x4D4C444C; // "MLDL"
+    private static final int END = 0;
+    private static final int COPY = 1;
+    private static final int ADD = 2;
+    private static final int BLOCK = 16;
+
+    private DeltaCodec() {
+    }
+
+    public static byte[] encode(byte[] base, byte[] target) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, target.length / 8));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeLong(base.length);
+        out.writeLong(target.length);
+
+        // The table holds the offset + 1 of a base block for every hash, 0 means empty. When two blocks have the
+        // same slot the later one wins, which only costs a missed match
+        int blocks = base.length / BLOCK;
+        int slots = Integer.highestOneBit(Math.max(16, blocks * 2 - 1)) << 1;
+        int[] table = new int[slots];
+        for (int block = 0; block < blocks; block++) {
+            table[hash(base, block * BLOCK) & (slots - 1)] = block * BLOCK + 1;
+        }
+
+        int pending = 0;
+        int i = 0;
+        while (blocks > 0 && i + BLOCK <= target.length) {
+            int candidate = table[hash(target, i) & (slots - 1)] - 1;
+            if (candidate < 0 || !equal(base, candidate, target, i, BLOCK)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int from = candidate;
+            while (start > pending && from > 0 && base[from - 1] == target[start - 1]) {
+                start--;
+                from--;
+            }
+            int end = i + BLOCK;
+            int fromEnd = candidate + BLOCK;
+            while (end < target.length && fromEnd < base.length && base[fromEnd] == target[end]) {
+                end++;
+                fromEnd++;
+            }
+            writeAdd(out, target, pending, start);
+            out.writeByte(COPY);
+            writeVarint(out, from);
+            writeVarint(out, end - start);
+            i = end;
+            pending = end;
+        }
+        writeAdd(out, target, pending, target.length);
+        out.writeByte(END);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static long apply(ByteBuffer base, InputStream patch, OutputStream target) throws IOException {
+        // Returns the number of bytes written. The caller checks them against the hash of the manifest
+        DataInputStream in = new DataInputStream(patch);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a delta patch");
+        }
+        long baseLength = in.readLong();
+        long targetLength = in.readLong();
+        ByteBuffer source = base.duplicate();
+        source.clear();
+        if (source.remaining() != baseLength) {
+            throw new IOException("The patch expects a base of " + baseLength + " bytes, found " + source.remaining());
+        }
+
+        byte[] chunk = new byte[64 * 1024];
+        long written = 0;
+        while (true) {
+            int operation = in.readByte();
+            if (operation == END) {
+                break;
+            }
+            long length;
+            if (operation == COPY) {
+                long offset = readVarint(in);
+                length = readVarint(in);
+                if (offset < 0 || length < 0 || offset + length > baseLength) {
+                    throw new IOException("Broken patch, copy of " + length + " bytes at " + offset);
+                }
+                source.limit((int) (offset + length)).position((int) offset);
+                while (source.hasRemaining()) {
+                    int count = Math.min(chunk.length, source.remaining());
+                    source.get(chunk, 0, count);
+                    target.write(chunk, 0, count);
+                }
+                source.clear();
+            } else if (operation == ADD) {
+                length = readVarint(in);
+                long left = length;
+                while (left > 0) {
+                    int count = (int) Math.min(chunk.length, left);
+                    in.readFully(chunk, 0, count);
+                    target.write(chunk, 0, count);
+                    left -= count;
+                }
+            } else {
+                throw new IOException("Broken patch, unknown operation " + operation);
+            }
+            written += length;
+            if (written > targetLength) {
+                throw new IOException("Broken patch, it writes more than " + targetLength + " bytes");
+            }
+        }
+        if (written != targetLength) {
+            throw new IOException("Broken patch, " + written + " bytes written instead of " + targetLength);
+        }
+        return written;
+    }
+
+    private static void writeAdd(DataOutputStream out, byte[] target, int from, int to) throws IOException {
+        if (to > from) {
+            out.writeByte(ADD);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            h = h * 31 + data[offset + i];
+        }
+        return h ^ h >>> 15;
+    }
+
+    private static boolean equal(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        // Seven bits per byte, the high bit tells that more bytes follow
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Broken patch, varint too long");
+    }
+}
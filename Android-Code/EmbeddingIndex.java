@@ -0,0 +1,281 @@
+package com.dktes.medileaf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+public final class EmbeddingIndex {
+
+    /****
+     * * * * NOTE * * * *
+     * An approximate nearest-neighbour index over the embeddings of reference images (see
+     * InferenceEngine.getEmbeddingSize()). Given the embedding of a photo, it finds the reference images that look
+     * the most alike, which shows "similar leaves" and tells whether a prediction agrees with the references.
+     *
+     * Comparing a query with 100 000 references one by one is 6.4 million multiplications, too slow for every photo.
+     * The index is an IVF-PQ (inverted file with product quantization):
+     *   - The references are split into lists around 'lists' centroids (k-means). A query is only compared with the
+     *     references of the few lists whose centroids are the closest to it (the probes), a small part of the index.
+     *   - Inside a list, a reference is not stored as 64 floats but as the difference to its centroid, cut into
+     *     'subspaces' parts of a few values. Every part is replaced by the number (one byte) of the closest of
+     *     256 typical parts of that subspace (the codebook). A reference is then only 'subspaces' bytes.
+     *   - For every probed list the query builds a table with its distance to each of the 256 typical parts of
+     *     each subspace. The distance to a reference is then one table lookup per byte of its code, added up.
+     * The distances are approximations, a larger number of probes finds more of the true neighbours but takes
+     * longer (see AnnBenchmark for recall against latency).
+     *
+     * The embeddings are normalized to a length of 1 before they are indexed or searched, so the squared distance
+     * is 2 - 2 * cosine similarity: the brightness of the photo does not change the neighbours.
+     *
+     * File format (big endian, written by EmbeddingIndexBuilder):
+     *   int magic "MLIV", int format version, int dimension, int lists, int subspaces, int count
+     *   float[lists * dimension]               the centroids of the lists
+     *   float[subspaces * 256 * subDimension]  the codebooks
+     *   int[lists + 1]                         where every list starts, the references are sorted by list
+     *   int[count]                             the id of every reference image (the app uses its label index)
+     *   byte[count * subspaces]                the codes
+     *
+     * The file is memory mapped: the ids and the codes (the bulk of the file) are read from the mapping
+     * and never copied to the heap, only the centroids and the codebooks (a few hundred KB) are
+     * * * * * ** * * * *
+     * ****/
+
+    static final int MAGIC = 0x4D4C4956; // "MLIV"
+    static final int FORMAT_VERSION = 1;
+    static final int CODEBOOK_SIZE = 256;
+    static final int HEADER_BYTES = 6 * 4;
+
+    private final int dimension;
+    private final int lists;
+    private final int subspaces;
+    private final int subDimension;
+    private final int count;
+    private final float[] centroids;
+    private final float[] codebooks;
+    private final int[] listStart;
+    private final IntBuffer ids;
+    private final ByteBuffer codes;
+
+    private EmbeddingIndex(ByteBuffer buffer) throws IOException {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        in.clear();
+        if (in.remaining() < HEADER_BYTES || in.getInt() != MAGIC) {
+            throw new IOException("Not an embedding index");
+        }
+        int format = in.getInt();
+        if (format != FORMAT_VERSION) {
+            throw new IOException("Unsupported embedding index format " + format);
+        }
+        dimension = in.getInt();
+        lists = in.getInt();
+        subspaces = in.getInt();
+        count = in.getInt();
+        if (dimension <= 0 || lists <= 0 || subspaces <= 0 || dimension % subspaces != 0 || count < 0) {
+            throw new IOException("Broken embedding index header");
+        }
+        subDimension = dimension / subspaces;
+        long expected = HEADER_BYTES + 4L * lists * dimension + 4L * subspaces * CODEBOOK_SIZE * subDimension
+                + 4L * (lists + 1) + 4L * count + (long) count * subspaces;
+        if (in.capacity() != expected) {
+            throw new IOException("Broken embedding index, " + in.capacity() + " bytes instead of " + expected);
+        }
+
+        centroids = new float[lists * dimension];
+        in.asFloatBuffer().get(centroids);
+        in.position(in.position() + 4 * centroids.length);
+        // The file stores the typical parts one after the other, in memory every value of a part gets its own row
+        // of 256: building the table of a query then runs over long rows, which the JIT turns into vector code
+        float[] stored = new float[subspaces * CODEBOOK_SIZE * subDimension];
+        in.asFloatBuffer().get(stored);
+        in.position(in.position() + 4 * stored.length);
+        codebooks = new float[stored.length];
+        for (int subspace = 0; subspace < subspaces; subspace++) {
+            for (int c = 0; c < CODEBOOK_SIZE; c++) {
+                for (int i = 0; i < subDimension; i++) {
+                    codebooks[(subspace * subDimension + i) * CODEBOOK_SIZE + c]
+                            = stored[(subspace * CODEBOOK_SIZE + c) * subDimension + i];
+                }
+            }
+        }
+        listStart = new int[lists + 1];
+        in.asIntBuffer().get(listStart);
+        in.position(in.position() + 4 * listStart.length);
+        for (int list = 0; list < lists; list++) {
+            if (listStart[list] > listStart[list + 1]) {
+                throw new IOException("Broken embedding index, list " + list + " ends before it starts");
+            }
+        }
+        if (listStart[0] != 0 || listStart[lists] != count) {
+            throw new IOException("Broken embedding index, the lists do not cover the references");
+        }
+
+        ByteBuffer idBytes = in.slice().order(ByteOrder.BIG_ENDIAN);
+        idBytes.limit(4 * count);
+        ids = idBytes.asIntBuffer();
+        in.position(in.position() + 4 * count);
+        codes = in.slice();
+    }
+
+    public static EmbeddingIndex open(File file) throws IOException {
+        return read(PackInstaller.map(file));
+    }
+
+    public static EmbeddingIndex read(ByteBuffer buffer) throws IOException {
+        // 'buffer' is usually a mapped file (or a mapped asset), it must not change while the index is used
+        return new EmbeddingIndex(buffer);
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getListCount() {
+        return lists;
+    }
+
+    public int getSubspaceCount() {
+        return subspaces;
+    }
+
+    public int idAt(int reference) {
+        return ids.get(reference);
+    }
+
+    public Searcher newSearcher() {
+        return new Searcher();
+    }
+
+    static void normalize(float[] source, int offset, float[] target, int targetOffset, int dimension) {
+        double sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            float value = source[offset + i];
+            sum += value * value;
+        }
+        // An embedding of zeros stays zeros, it has no direction to compare
+        float scale = sum > 0 ? (float) (1 / Math.sqrt(sum)) : 0f;
+        for (int i = 0; i < dimension; i++) {
+            target[targetOffset + i] = source[offset + i] * scale;
+        }
+    }
+
+    public final class Searcher {
+
+        // Holds the arrays of one search, so a query allocates nothing. One searcher per thread
+
+        private final float[] query = new float[dimension];
+        private final float[] residual = new float[dimension];
+        private final float[] table = new float[subspaces * CODEBOOK_SIZE];
+        private TopK probes = new TopK(1);
+        private TopK nearest = new TopK(1);
+        private final ByteBuffer codeView = codes.duplicate();
+        // Grows to the longest list probed so far
+        private byte[] listCodes = new byte[0];
+
+        private Searcher() {
+        }
+
+        public int search(float[] embedding, int k, int probeCount, int[] idsOut, float[] distancesOut) {
+            // Writes the id and the (approximate) squared distance of the k nearest references into the
+            // arrays, the nearest first. Returns how many were found, fewer than k only for a very small index
+            if (embedding.length < dimension) {
+                throw new IllegalArgumentException("the embedding has " + embedding.length + " values, expected " + dimension);
+            }
+            normalize(embedding, 0, query, 0, dimension);
+
+            // The lists whose centroids are the closest. TopK keeps the highest scores, so distances are negated
+            int probeLimit = Math.max(1, Math.min(probeCount, lists));
+            if (probes.capacity() != probeLimit) {
+                probes = new TopK(probeLimit);
+            }
+            probes.clear();
+            for (int list = 0; list < lists; list++) {
+                if (listStart[list] != listStart[list + 1]) {
+                    probes.offer(list, -squaredDistance(query, centroids, list * dimension, dimension));
+                }
+            }
+            probes.finish();
+
+            int kLimit = Math.max(1, k);
+            if (nearest.capacity() != kLimit) {
+                nearest = new TopK(kLimit);
+            }
+            nearest.clear();
+            for (int rank = 0; rank < probes.size(); rank++) {
+                int list = probes.indexAt(rank);
+                buildTable(list);
+                scan(listStart[list], listStart[list + 1]);
+            }
+            nearest.finish();
+
+            int found = Math.min(nearest.size(), k);
+            for (int rank = 0; rank < found; rank++) {
+                idsOut[rank] = ids.get(nearest.indexAt(rank));
+                distancesOut[rank] = -nearest.scoreAt(rank);
+            }
+            return found;
+        }
+
+        private void buildTable(int list) {
+            // table[s * 256 + c] = squared distance between part s of (query - centroid) and typical part c
+            int centroid = list * dimension;
+            for (int i = 0; i < dimension; i++) {
+                residual[i] = query[i] - centroids[centroid + i];
+            }
+            for (int subspace = 0; subspace < subspaces; subspace++) {
+                int row = subspace * CODEBOOK_SIZE;
+                for (int c = 0; c < CODEBOOK_SIZE; c++) {
+                    table[row + c] = 0f;
+                }
+                for (int i = 0; i < subDimension; i++) {
+                    float value = residual[subspace * subDimension + i];
+                    int values = (subspace * subDimension + i) * CODEBOOK_SIZE;
+                    for (int c = 0; c < CODEBOOK_SIZE; c++) {
+                        float difference = value - codebooks[values + c];
+                        table[row + c] += difference * difference;
+                    }
+                }
+            }
+        }
+
+        private void scan(int from, int to) {
+            // The codes of the list are copied out of the mapping in one go, the loop then only reads arrays
+            // A reference is skipped as soon as its partial distance cannot beat the k-th nearest anymore
+            int length = (to - from) * subspaces;
+            if (listCodes.length < length) {
+                listCodes = new byte[length];
+            }
+            codeView.limit(to * subspaces).position(from * subspaces);
+            codeView.get(listCodes, 0, length);
+            codeView.clear();
+
+            float[] lookup = table;
+            byte[] list = listCodes;
+            int position = 0;
+            for (int reference = from; reference < to; reference++, position += subspaces) {
+                float limit = -nearest.getThreshold();
+                float distance = 0f;
+                for (int subspace = 0, row = 0; subspace < subspaces && distance < limit; subspace++, row += CODEBOOK_SIZE) {
+                    distance += lookup[row + (list[position + subspace] & 0xFF)];
+                }
+                if (distance < limit) {
+                    nearest.offer(reference, -distance);
+                }
+            }
+        }
+    }
+
+    static float squaredDistance(float[] a, float[] b, int bOffset, int dimension) {
+        float sum = 0f;
+        for (int i = 0; i < dimension; i++) {
+            float difference = a[i] - b[bOffset + i];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,311 @@
+package com.dktes.medileaf;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public final class EmbeddingIndexBuilder {
+
+    /****
+     * * * * NOTE * * * *
+     * Builds the file of an EmbeddingIndex from the embeddings of the reference images:
+     *   1. k-means on a sample of the embeddings gives the centroids of the lists
+     *   2. every embedding is assigned to its closest centroid, the difference to it is its residual
+     *   3. k-means on the residuals, separately for every subspace, gives the 256 typical parts of each codebook
+     *   4. every residual is encoded as the numbers of its closest typical parts
+     *
+     * Almost all the time goes into finding the closest centroid of many points, and every point is independent
+     * of the others. So each of these steps is cut into chunks of points that run on all the cores at once, and
+     * the codebooks of the subspaces are trained in parallel. The result does not depend on the number of threads:
+     * a chunk only writes its own points, and the sums of k-means are added up per chunk in a fixed order.
+     *
+     * It is pure Java: the index is built on a computer (or on the phone after a content pack brought new
+     * reference embeddings) and written to a file that the app maps
+     * * * * * ** * * * *
+     * ****/
+
+    private static final int CHUNK = 1024;
+    private static final int ITERATIONS = 8;
+    // k-means only needs a sample, the centroids barely move with more points
+    private static final int TRAINING_SIZE = 16 * 1024;
+    private static final long SEED = 42;
+
+    //   lists      about the square root of the number of references: more lists make each list shorter,
+    //              but a search then needs more probes to find the same neighbours
+    //   subspaces  bytes per reference, must divide the dimension. More subspaces are more precise and larger
+    //   threads    usually the number of cores
+    private final int lists;
+    private final int subspaces;
+    private final int threads;
+
+    public EmbeddingIndexBuilder(int lists, int subspaces, int threads) {
+        if (lists < 1 || subspaces < 1 || threads < 1) {
+            throw new IllegalArgumentException("lists, subspaces and threads must be at least 1");
+        }
+        this.lists = lists;
+        this.subspaces = subspaces;
+        this.threads = threads;
+    }
+
+    public void build(float[] embeddings, int[] ids, int count, int dimension, File output) throws IOException {
+        // 'embeddings' holds count * dimension values, the embedding of reference i starts at i * dimension
+        // 'ids' holds what a search returns for every reference image, the app stores its label index
+        if (dimension % subspaces != 0) {
+            throw new IllegalArgumentException(subspaces + " subspaces do not divide the dimension " + dimension);
+        }
+        if (count < 1 || embeddings.length < count * dimension || ids.length < count) {
+            throw new IllegalArgumentException("not enough embeddings or ids for " + count + " references");
+        }
+        int listCount = Math.min(lists, count);
+        int subDimension = dimension / subspaces;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            float[] points = new float[count * dimension];
+            for (int i = 0; i < count; i++) {
+                EmbeddingIndex.normalize(embeddings, i * dimension, points, i * dimension, dimension);
+            }
+            Random random = new Random(SEED);
+
+            // 1. and 2. The lists
+            int[] sample = sample(count, random);
+            float[] centroids = kMeans(executor, points, sample, dimension, 0, dimension, listCount, random);
+            int[] assignment = new int[count];
+            assign(executor, points, count, dimension, 0, dimension, centroids, listCount, assignment);
+            float[] residuals = new float[count * dimension];
+            for (int i = 0; i < count; i++) {
+                int point = i * dimension;
+                int centroid = assignment[i] * dimension;
+                for (int d = 0; d < dimension; d++) {
+                    residuals[point + d] = points[point + d] - centroids[centroid + d];
+                }
+            }
+
+            // 3. The codebooks, one subspace per task. Every subspace gets its own random generator,
+            // so the codebooks are the same whatever order the tasks run in
+            float[] codebooks = new float[subspaces * EmbeddingIndex.CODEBOOK_SIZE * subDimension];
+            List<Future<?>> tasks = new ArrayList<>(subspaces);
+            for (int s = 0; s < subspaces; s++) {
+                int subspace = s;
+                long subspaceSeed = random.nextLong();
+                tasks.add(executor.submit(() -> {
+                    float[] codebook = kMeans(null, residuals, sample, dimension, subspace * subDimension,
+                            subDimension, EmbeddingIndex.CODEBOOK_SIZE, new Random(subspaceSeed));
+                    System.arraycopy(codebook, 0, codebooks,
+                            subspace * EmbeddingIndex.CODEBOOK_SIZE * subDimension, codebook.length);
+                    return null;
+                }));
+            }
+            await(tasks);
+
+            // 4. The codes, then the references are sorted by list (a counting sort, stable)
+            byte[] codes = new byte[count * subspaces];
+            encode(executor, residuals, count, dimension, subDimension, codebooks, codes);
+            int[] listStart = new int[listCount + 1];
+            for (int i = 0; i < count; i++) {
+                listStart[assignment[i] + 1]++;
+            }
+            for (int list = 0; list < listCount; list++) {
+                listStart[list + 1] += listStart[list];
+            }
+            int[] next = listStart.clone();
+            int[] order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[next[assignment[i]]++] = i;
+            }
+
+            write(output, dimension, listCount, count, centroids, codebooks, listStart, order, ids, codes);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static int[] sample(int count, Random random) {
+        // A random subset of the references (Fisher-Yates on the first positions only)
+        int size = Math.min(count, TRAINING_SIZE);
+        int[] all = new int[count];
+        for (int i = 0; i < count; i++) {
+            all[i] = i;
+        }
+        for (int i = 0; i < size; i++) {
+            int j = i + random.nextInt(count - i);
+            int swap = all[i];
+            all[i] = all[j];
+            all[j] = swap;
+        }
+        int[] sample = new int[size];
+        System.arraycopy(all, 0, sample, 0, size);
+        return sample;
+    }
+
+    private static float[] kMeans(ExecutorService executor, float[] points, int[] sample, int stride, int offset,
+                                  int dimension, int k, Random random) throws IOException {
+        // Lloyd's algorithm on the values offset..offset+dimension of the sampled points
+        // Runs in parallel chunks when an executor is given, otherwise on the calling thread
+        int n = sample.length;
+        float[] centers = new float[k * dimension];
+        for (int c = 0; c < k; c++) {
+            // Starts from random points. With fewer points than centers, some centers are the same point
+            int point = sample[c < n ? c : random.nextInt(n)] * stride + offset;
+            System.arraycopy(points, point, centers, c * dimension, dimension);
+        }
+        int chunks = (n + CHUNK - 1) / CHUNK;
+        double[][] sums = new double[chunks][];
+        int[][] sizes = new int[chunks][];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            List<Future<?>> tasks = new ArrayList<>(chunks);
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int current = chunk;
+                Runnable step = () -> {
+                    double[] sum = new double[k * dimension];
+                    int[] size = new int[k];
+                    int end = Math.min(n, (current + 1) * CHUNK);
+                    for (int i = current * CHUNK; i < end; i++) {
+                        int point = sample[i] * stride + offset;
+                        int best = closest(points, point, centers, k, dimension);
+                        size[best]++;
+                        for (int d = 0; d < dimension; d++) {
+                            sum[best * dimension + d] += points[point + d];
+                        }
+                    }
+                    sums[current] = sum;
+                    sizes[current] = size;
+                };
+                if (executor == null) {
+                    step.run();
+                } else {
+                    tasks.add(executor.submit(step));
+                }
+            }
+            await(tasks);
+
+            // The new centers are the means of their points, a center without points jumps to a random point
+            double[] total = new double[k * dimension];
+            int[] totalSize = new int[k];
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                for (int i = 0; i < total.length; i++) {
+                    total[i] += sums[chunk][i];
+                }
+                for (int c = 0; c < k; c++) {
+                    totalSize[c] += sizes[chunk][c];
+                }
+            }
+            for (int c = 0; c < k; c++) {
+                if (totalSize[c] == 0) {
+                    int point = sample[random.nextInt(n)] * stride + offset;
+                    System.arraycopy(points, point, centers, c * dimension, dimension);
+                    continue;
+                }
+                for (int d = 0; d < dimension; d++) {
+                    centers[c * dimension + d] = (float) (total[c * dimension + d] / totalSize[c]);
+                }
+            }
+        }
+        return centers;
+    }
+
+    private static void assign(ExecutorService executor, float[] points, int count, int stride, int offset,
+                               int dimension, float[] centers, int k, int[] assignment) throws IOException {
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int from = 0; from < count; from += CHUNK) {
+            int start = from;
+            tasks.add(executor.submit(() -> {
+                int end = Math.min(count, start + CHUNK);
+                for (int i = start; i < end; i++) {
+                    assignment[i] = closest(points, i * stride + offset, centers, k, dimension);
+                }
+            }));
+        }
+        await(tasks);
+    }
+
+    private void encode(ExecutorService executor, float[] residuals, int count, int dimension, int subDimension,
+                        float[] codebooks, byte[] codes) throws IOException {
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int from = 0; from < count; from += CHUNK) {
+            int start = from;
+            tasks.add(executor.submit(() -> {
+                int end = Math.min(count, start + CHUNK);
+                for (int i = start; i < end; i++) {
+                    for (int s = 0; s < subspaces; s++) {
+                        int codebook = s * EmbeddingIndex.CODEBOOK_SIZE * subDimension;
+                        int best = closestIn(residuals, i * dimension + s * subDimension, codebooks, codebook,
+                                EmbeddingIndex.CODEBOOK_SIZE, subDimension);
+                        codes[i * subspaces + s] = (byte) best;
+                    }
+                }
+            }));
+        }
+        await(tasks);
+    }
+
+    private static int closest(float[] points, int point, float[] centers, int k, int dimension) {
+        return closestIn(points, point, centers, 0, k, dimension);
+    }
+
+    private static int closestIn(float[] points, int point, float[] centers, int centersOffset, int k, int dimension) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int c = 0; c < k; c++) {
+            int center = centersOffset + c * dimension;
+            float sum = 0f;
+            for (int d = 0; d < dimension && sum < bestDistance; d++) {
+                float difference = points[point + d] - centers[center + d];
+                sum += difference * difference;
+            }
+            if (sum < bestDistance) {
+                bestDistance = sum;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static void await(List<Future<?>> tasks) throws IOException {
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while building the embedding index", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Building the embedding index failed", e.getCause());
+        }
+    }
+
+    private void write(File output, int dimension, int listCount, int count, float[] centroids, float[] codebooks,
+                       int[] listStart, int[] order, int[] ids, byte[] codes) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 64 * 1024))) {
+            out.writeInt(EmbeddingIndex.MAGIC);
+            out.writeInt(EmbeddingIndex.FORMAT_VERSION);
+            out.writeInt(dimension);
+            out.writeInt(listCount);
+            out.writeInt(subspaces);
+            out.writeInt(count);
+            for (float value : centroids) {
+                out.writeFloat(value);
+            }
+            for (float value : codebooks) {
+                out.writeFloat(value);
+            }
+            for (int start : listStart) {
+                out.writeInt(start);
+            }
+            for (int reference : order) {
+                out.writeInt(ids[reference]);
+            }
+            for (int reference : order) {
+                out.write(codes, reference * subspaces, subspaces);
+            }
+        }
+    }
+}
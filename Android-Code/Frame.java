@@ -0,0 +1,12 @@
+package com.dktes.medileaf;
+
+public interface Frame extends PixelSource {
+
+    // A frame of a live video stream
+    // Frame sources reuse a few frame objects over and over, so whoever receives a frame must call release()
+    // exactly once when it is done with it. After that the frame may be overwritten by the next camera image
+
+    long getTimestampNanos();
+
+    void release();
+}
@@ -0,0 +1,25 @@
+package com.dktes.medileaf;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface FrameSource extends Closeable {
+
+    // A frame source delivers a stream of frames, from the camera or from a generator in a JVM test
+    // The listener is called on the thread of the source, it should hand the frame off quickly
+    // (the LatestFrameScheduler only swaps a reference) and not do any work with it on that thread
+
+    interface Listener {
+        // The listener owns the frame now and must release it
+        void onFrame(Frame frame);
+    }
+
+    void start(Listener listener) throws IOException;
+
+    void stop();
+
+    @Override
+    default void close() {
+        stop();
+    }
+}
@@ -0,0 +1,36 @@
+package com.dktes.medileaf;
+
+public final class ImageBounds {
+
+    // The size of an encoded image and its EXIF orientation, read without decoding any pixel
+    // The orientation uses the EXIF values: 1 is normal, 2 to 8 are the mirrored and rotated variants
+
+    public static final int ORIENTATION_NORMAL = 1;
+
+    private final int width;
+    private final int height;
+    private final int orientation;
+
+    public ImageBounds(int width, int height, int orientation) {
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation < 1 || orientation > 8 ? ORIENTATION_NORMAL : orientation;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getOrientation() {
+        return orientation;
+    }
+
+    public boolean isTransposed() {
+        // Orientations 5 to 8 turn the image by 90 degrees, so its width and height are swapped on screen
+        return orientation >= 5;
+    }
+}
@@ -0,0 +1,13 @@
+package com.dktes.medileaf;
+
+import java.io.IOException;
+
+public interface ImageDecoder<S, B> {
+
+    // An image decoder reads an encoded image from a source (a content URI, a file...) into a bitmap of type B
+    // It is used in two steps: first the bounds are read, then a DecodePlan decides how small the bitmap can be
+
+    ImageBounds readBounds(S source) throws IOException;
+
+    B decode(S source, DecodePlan plan) throws IOException;
+}
@@ -0,0 +1,49 @@
+package com.dktes.medileaf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface InferenceEngine extends Closeable {
+
+    // An inference engine runs the model on one or more preprocessed images
+    // The app uses the TensorFlow Lite implementation, but nothing in this interface depends on Android,
+    // so the batch, cache and benchmark code can run on a plain JVM with another implementation
+
+    // Shape of the input of one image, for example {150, 150, 3}
+    int[] getImageShape();
+
+    // Number of bytes one preprocessed image takes in the input buffer
+    int getInputBytesPerImage();
+
+    // Number of probabilities returned per image
+    int getClassCount();
+
+    // How the preprocessed images must be stored in the input buffer. Quantized models take one byte per value
+    default TensorFormat getInputFormat() {
+        return TensorFormat.FLOAT32;
+    }
+
+    // How the model stores its output. run() always returns real probabilities, whatever this format is
+    default TensorFormat getOutputFormat() {
+        return TensorFormat.FLOAT32;
+    }
+
+    // Runs 'batchSize' images stored one after the other in 'input' (from position 0 to batchSize * getInputBytesPerImage())
+    // and writes batchSize * getClassCount() probabilities into 'output'. Implementations must be safe to call from several threads
+    void run(ByteBuffer input, int batchSize, float[] output) throws IOException;
+
+    // Length of the embedding of one image: the values of the layer before the classifier (Dense(64) for medinet),
+    // or 0 when the model does not output it. Images that look alike have embeddings that are close to each other
+    default int getEmbeddingSize() {
+        return 0;
+    }
+
+    // Like run(), and also writes batchSize * getEmbeddingSize() values into 'embeddings'
+    default void runWithEmbeddings(ByteBuffer input, int batchSize, float[] output, float[] embeddings) throws IOException {
+        throw new IOException("This model does not output embeddings");
+    }
+
+    @Override
+    void close();
+}
@@ -0,0 +1,58 @@
+package com.dktes.medileaf;
+
+import java.util.Locale;
+
+public final class InferenceOptions {
+
+    // How the interpreters run the model
+    //   threads                 number of CPU threads one inference may use
+    //   useXnnpack              run the float and int8 operators through the XNNPACK CPU delegate (much faster on ARM)
+    //   allowBufferHandleOutput lets a delegate keep the output in its own buffer instead of copying it to the CPU,
+    //                           only useful with GPU style delegates, so it is off by default
+    // The options are immutable, with...() returns a copy with one setting changed
+
+    public static final InferenceOptions DEFAULT = new InferenceOptions(1, true, false);
+
+    private final int threads;
+    private final boolean useXnnpack;
+    private final boolean allowBufferHandleOutput;
+
+    public InferenceOptions(int threads, boolean useXnnpack, boolean allowBufferHandleOutput) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1, got " + threads);
+        }
+        this.threads = threads;
+        this.useXnnpack = useXnnpack;
+        this.allowBufferHandleOutput = allowBufferHandleOutput;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public boolean isUseXnnpack() {
+        return useXnnpack;
+    }
+
+    public boolean isAllowBufferHandleOutput() {
+        return allowBufferHandleOutput;
+    }
+
+    public InferenceOptions withThreads(int threads) {
+        return new InferenceOptions(threads, useXnnpack, allowBufferHandleOutput);
+    }
+
+    public InferenceOptions withXnnpack(boolean useXnnpack) {
+        return new InferenceOptions(threads, useXnnpack, allowBufferHandleOutput);
+    }
+
+    public InferenceOptions withBufferHandleOutput(boolean allowBufferHandleOutput) {
+        return new InferenceOptions(threads, useXnnpack, allowBufferHandleOutput);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d threads, xnnpack %s, buffer handle output %s",
+                threads, useXnnpack ? "on" : "off", allowBufferHandleOutput ? "on" : "off");
+    }
+}
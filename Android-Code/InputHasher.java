@@ -0,0 +1,67 @@
+package com.dktes.medileaf;
+
+import java.nio.ByteBuffer;
+
+public final class InputHasher {
+
+    // Hashes of a preprocessed image, used as keys of the ResultCache
+    // - hash(): a fast 64 bit hash of the exact bytes, equal inputs always give equal results
+    // - perceptualHash(): a 64 bit difference hash, images that look the same give hashes that differ in few bits,
+    //   even when the photo was re-encoded or slightly resized
+
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private InputHasher() {
+    }
+
+    public static long hash(ByteBuffer input, int length) {
+        // Eight bytes are mixed in at a time, the remaining bytes one by one
+        long h = length * MULTIPLIER;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            h = Long.rotateLeft(h ^ input.getLong(i) * MULTIPLIER, 31) * MULTIPLIER;
+        }
+        for (; i < length; i++) {
+            h = Long.rotateLeft(h ^ (input.get(i) & 0xFF) * MULTIPLIER, 31) * MULTIPLIER;
+        }
+        // final avalanche, so that similar inputs do not give similar keys
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public static long perceptualHash(ByteBuffer input, int width, int height) {
+        return perceptualHash(input, width, height, TensorFormat.FLOAT32);
+    }
+
+    public static long perceptualHash(ByteBuffer input, int width, int height, TensorFormat format) {
+        // The RGB image is shrunk to 9x8 gray cells, and every bit tells whether a cell is brighter than its right neighbour
+        // Each cell is only compared with the previous one of its row, so no array is needed
+        long bits = 0;
+        for (int cy = 0; cy < 8; cy++) {
+            int y0 = cy * height / 8, y1 = Math.max(y0 + 1, (cy + 1) * height / 8);
+            float previous = 0;
+            for (int cx = 0; cx < 9; cx++) {
+                int x0 = cx * width / 9, x1 = Math.max(x0 + 1, (cx + 1) * width / 9);
+                float sum = 0;
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        int at = (y * width + x) * 3;
+                        sum += 0.299f * format.read(input, at) + 0.587f * format.read(input, at + 1)
+                                + 0.114f * format.read(input, at + 2);
+                    }
+                }
+                float cell = sum / ((y1 - y0) * (x1 - x0));
+                if (cx > 0) {
+                    bits <<= 1;
+                    if (previous > cell) {
+                        bits |= 1;
+                    }
+                }
+                previous = cell;
+            }
+        }
+        return bits;
+    }
+}
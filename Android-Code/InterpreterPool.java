@@ -0,0 +1,225 @@
+package com.dktes.medileaf;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+public class InterpreterPool implements Closeable {
+
+    // This class hands out reusable interpreters that are all built over the same memory-mapped model
+    // Creating an Interpreter is expensive, so we create them lazily and keep them around after they are returned
+    // The pool is bounded: at most 'capacity' interpreters exist at the same time and callers wait for a free one
+    // Under memory pressure the ResourceGovernor may lower the limit below the capacity (down to one interpreter)
+    // and raise it again later
+
+    // The intermediate tensors of one interpreter are estimated at this many times its input
+    private static final int ARENA_INPUTS = 8;
+
+    private final ByteBuffer model;
+    private final int capacity;
+    private final InferenceOptions options;
+
+    // 'idle' keeps the interpreters that are created but not borrowed at the moment
+    // 'permits' makes sure we never lend out more interpreters than the capacity of the pool
+    private final BlockingQueue<Interpreter> idle;
+    private final Permits permits;
+
+    // number of interpreters created so far and how many may exist at the moment, guarded by 'this'
+    private int created;
+    private int limit;
+    // The estimated memory of one interpreter, known once the first one was created
+    private volatile long interpreterBytes;
+    private volatile Runnable createListener;
+    private volatile boolean closed;
+
+    public InterpreterPool(ByteBuffer model, int capacity) {
+        this(model, capacity, InferenceOptions.DEFAULT);
+    }
+
+    public InterpreterPool(ByteBuffer model, int capacity, InferenceOptions options) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1, got " + capacity);
+        }
+        this.model = model;
+        this.capacity = capacity;
+        this.options = options;
+        this.idle = new ArrayBlockingQueue<>(capacity);
+        this.permits = new Permits(capacity);
+        this.limit = capacity;
+    }
+
+    public Interpreter acquire() throws IOException {
+        // Wait till an interpreter is free. If the thread is interrupted while waiting, we restore the flag and give up
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an interpreter", e);
+        }
+
+        if (closed) {
+            permits.release();
+            throw new IOException("Interpreter pool is closed");
+        }
+
+        // Reuse an idle interpreter if there is one, otherwise this permit allows us to create a new one
+        Interpreter interpreter = idle.poll();
+        if (interpreter == null) {
+            try {
+                interpreter = create();
+            } catch (RuntimeException e) {
+                permits.release();
+                throw new IOException(e.getMessage() + " -- occurred when creating an interpreter", e);
+            }
+            Runnable listener = createListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+        return interpreter;
+    }
+
+    public void release(Interpreter interpreter) {
+        // An interpreter that comes back after the pool was closed is closed right away,
+        // and so is one that is over the limit since it was lowered
+        if (closed || retireOverLimit() || !idle.offer(interpreter)) {
+            interpreter.close();
+        }
+        permits.release();
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int newLimit) {
+        // Lowering the limit takes permits away, so borrowers wait until the interpreters over the limit came back
+        // Idle interpreters over the new limit are closed now, borrowed ones when they are released
+        newLimit = Math.max(1, Math.min(capacity, newLimit));
+        synchronized (this) {
+            if (newLimit < limit) {
+                permits.reduce(limit - newLimit);
+            } else if (newLimit > limit) {
+                permits.release(newLimit - limit);
+            }
+            limit = newLimit;
+        }
+        while (isOverLimit()) {
+            Interpreter interpreter = idle.poll();
+            if (interpreter == null) {
+                break;
+            }
+            interpreter.close();
+            synchronized (this) {
+                created--;
+            }
+        }
+    }
+
+    // An estimate of the memory the created interpreters hold, see create()
+    public long getEstimatedBytes() {
+        return getCreatedCount() * interpreterBytes;
+    }
+
+    // Called on the borrowing thread every time a new interpreter was created
+    public void setCreateListener(Runnable listener) {
+        this.createListener = listener;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public InferenceOptions getOptions() {
+        return options;
+    }
+
+    public synchronized int getCreatedCount() {
+        return created;
+    }
+
+    public void trimIdle() {
+        // Close the interpreters nobody is using right now. They will be created again on demand
+        Interpreter interpreter;
+        while ((interpreter = idle.poll()) != null) {
+            interpreter.close();
+            synchronized (this) {
+                created--;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        trimIdle();
+    }
+
+    private synchronized boolean isOverLimit() {
+        return created > limit;
+    }
+
+    private synchronized boolean retireOverLimit() {
+        // Takes one interpreter off the count when there are more than the limit allows
+        if (created > limit) {
+            created--;
+            return true;
+        }
+        return false;
+    }
+
+    private Interpreter create() {
+        long start = Metrics.start();
+        Interpreter interpreter = new Interpreter(model, interpreterOptions(options));
+        warmUp(interpreter);
+        if (interpreterBytes == 0) {
+            // XNNPACK keeps its own packed copy of the weights, about the size of the model, and the arena of the
+            // interpreter holds the intermediate tensors, a few times the input for a small CNN like medinet
+            interpreterBytes = model.capacity() + ARENA_INPUTS * (long) interpreter.getInputTensor(0).numBytes();
+        }
+        Metrics.record(Metrics.Stage.INTERPRETER_CREATE, start);
+        synchronized (this) {
+            created++;
+        }
+        return interpreter;
+    }
+
+    static Interpreter.Options interpreterOptions(InferenceOptions options) {
+        // A new Options object per interpreter, the interpreter keeps a reference to the one it was built with
+        return new Interpreter.Options()
+                .setNumThreads(options.getThreads())
+                .setUseXNNPACK(options.isUseXnnpack())
+                .setAllowBufferHandleOutput(options.isAllowBufferHandleOutput());
+    }
+
+    private static void warmUp(Interpreter interpreter) {
+        // The first run of an interpreter allocates its tensors and prepares the kernels, which is much slower than later runs
+        // We do that run once here with an empty input so that the first real classification does not pay for it
+        Tensor input = interpreter.getInputTensor(0);
+        Tensor output = interpreter.getOutputTensor(0);
+        ByteBuffer inputBuffer = ByteBuffer.allocateDirect(input.numBytes()).order(ByteOrder.nativeOrder());
+        ByteBuffer outputBuffer = ByteBuffer.allocateDirect(output.numBytes()).order(ByteOrder.nativeOrder());
+        interpreter.run(inputBuffer, outputBuffer);
+    }
+
+    private static final class Permits extends Semaphore {
+        // A semaphore whose permits can be taken away without waiting for them
+
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits, true);
+        }
+
+        void reduce(int count) {
+            reducePermits(count);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.dktes.medileaf;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+public final class JournalRecord {
+
+    // One classification of the SurveyJournal. A query reuses one record for every result it visits,
+    // so copy the values you want to keep
+    //
+    // On disk every record has the same size (RECORD_SIZE bytes, big endian):
+    //   long sequence      number of the record, increasing, never reused
+    //   long timestamp     milliseconds since 1970, when the photo was classified
+    //   int  survey        the survey the record belongs to, 0 when there is none
+    //   int  latitude      in millionths of a degree, NO_LOCATION when the location is unknown
+    //   int  longitude     in millionths of a degree
+    //   long image hash    hash of the preprocessed image (see InputHasher), 0 when there is none
+    //   byte count         number of labels stored, at most K
+    //   byte flags         UNKNOWN when the model was not sure enough, DELETED when the record was removed
+    //   short[K] labels    label indices of the best classes, the best first
+    //   float[K] scores    their confidences
+    //   int  crc           CRC32 of everything before it, a record that was only half written is detected
+
+    public static final int K = 5;
+    public static final int RECORD_SIZE = 72;
+    public static final int NO_LOCATION = Integer.MIN_VALUE;
+
+    static final int FLAG_UNKNOWN = 1;
+    static final int FLAG_DELETED = 2;
+
+    // Where the fields a query filters on start, JournalSegment reads them without decoding the record
+    static final int TIMESTAMP_OFFSET = 8;
+    static final int SURVEY_OFFSET = 16;
+    static final int COUNT_OFFSET = 36;
+    static final int FLAGS_OFFSET = 37;
+    static final int LABELS_OFFSET = 38;
+    private static final int SCORES_OFFSET = LABELS_OFFSET + 2 * K;
+    private static final int CRC_OFFSET = SCORES_OFFSET + 4 * K;
+
+    private long sequence;
+    private long timestamp;
+    private int survey;
+    private int latitude;
+    private int longitude;
+    private long imageHash;
+    private int count;
+    private int flags;
+    private final int[] labels = new int[K];
+    private final float[] scores = new float[K];
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getSurvey() {
+        return survey;
+    }
+
+    public boolean hasLocation() {
+        return latitude != NO_LOCATION;
+    }
+
+    public double getLatitude() {
+        return hasLocation() ? latitude / 1e6 : Double.NaN;
+    }
+
+    public double getLongitude() {
+        return hasLocation() ? longitude / 1e6 : Double.NaN;
+    }
+
+    public long getImageHash() {
+        return imageHash;
+    }
+
+    // True when the model was not sure enough: the labels are only the closest guesses
+    public boolean isUnknown() {
+        return (flags & FLAG_UNKNOWN) != 0;
+    }
+
+    boolean isDeleted() {
+        return (flags & FLAG_DELETED) != 0;
+    }
+
+    // The label of the identification, or -1 for an unknown leaf
+    public int getLabelIndex() {
+        return isUnknown() || count == 0 ? -1 : labels[0];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int labelIndexAt(int rank) {
+        checkRank(rank);
+        return labels[rank];
+    }
+
+    public float scoreAt(int rank) {
+        checkRank(rank);
+        return scores[rank];
+    }
+
+    private void checkRank(int rank) {
+        if (rank < 0 || rank >= count) {
+            throw new IndexOutOfBoundsException("rank " + rank + " of " + count);
+        }
+    }
+
+    void set(long sequence, long timestamp, int survey, int latitude, int longitude, long imageHash,
+             int[] labelIndices, float[] labelScores, int labelCount, int flags) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.survey = survey;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.imageHash = imageHash;
+        this.count = Math.min(labelCount, K);
+        this.flags = flags;
+        for (int i = 0; i < this.count; i++) {
+            labels[i] = labelIndices[i];
+            scores[i] = labelScores[i];
+        }
+    }
+
+    int getFlags() {
+        return flags;
+    }
+
+    void setFlags(int flags) {
+        this.flags = flags;
+    }
+
+    void encode(byte[] record, CRC32 crc) {
+        ByteBuffer out = ByteBuffer.wrap(record);
+        out.putLong(0, sequence);
+        out.putLong(TIMESTAMP_OFFSET, timestamp);
+        out.putInt(SURVEY_OFFSET, survey);
+        out.putInt(20, latitude);
+        out.putInt(24, longitude);
+        out.putLong(28, imageHash);
+        record[COUNT_OFFSET] = (byte) count;
+        record[FLAGS_OFFSET] = (byte) flags;
+        for (int i = 0; i < K; i++) {
+            out.putShort(LABELS_OFFSET + 2 * i, i < count ? (short) labels[i] : 0);
+            out.putFloat(SCORES_OFFSET + 4 * i, i < count ? scores[i] : 0f);
+        }
+        crc.reset();
+        crc.update(record, 0, CRC_OFFSET);
+        out.putInt(CRC_OFFSET, (int) crc.getValue());
+    }
+
+    boolean decode(byte[] record, CRC32 crc) {
+        // Returns false for a record that is broken or was never written (all zeros)
+        ByteBuffer in = ByteBuffer.wrap(record);
+        crc.reset();
+        crc.update(record, 0, CRC_OFFSET);
+        if (in.getInt(CRC_OFFSET) != (int) crc.getValue() || record[COUNT_OFFSET] < 0 || record[COUNT_OFFSET] > K) {
+            return false;
+        }
+        sequence = in.getLong(0);
+        timestamp = in.getLong(TIMESTAMP_OFFSET);
+        survey = in.getInt(SURVEY_OFFSET);
+        latitude = in.getInt(20);
+        longitude = in.getInt(24);
+        imageHash = in.getLong(28);
+        count = record[COUNT_OFFSET];
+        flags = record[FLAGS_OFFSET];
+        for (int i = 0; i < count; i++) {
+            labels[i] = in.getShort(LABELS_OFFSET + 2 * i) & 0xFFFF;
+            scores[i] = in.getFloat(SCORES_OFFSET + 4 * i);
+        }
+        return sequence > 0;
+    }
+}
@@ -0,0 +1,510 @@
+package com.dktes.medileaf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+final class JournalSegment {
+
+    // One file of the SurveyJournal: a header and room for 'capacity' records, mapped into memory as a whole
+    // The file has its full size from the start, so appending a record is a copy into the mapping, nothing else
+    //
+    // Next to the records, the segment keeps a summary that answers queries without reading every record:
+    //   a sparse time index   for every block of BLOCK records the oldest and newest timestamp, and a mask of the
+    //                         identified labels (bit 63 stands for all labels above 62), so a query for one label or
+    //                         one week skips the blocks that cannot match
+    //   counters              identified records per label, in total and per survey
+    // While the segment is written the summary lives in memory. When it is full (sealed) the summary is written to
+    // a small .idx file next to it, so opening the journal does not read the records of the sealed segments again
+
+    static final int BLOCK = 64;
+    static final int NO_MATCH = -2;
+
+    private static final int MAGIC = 0x4D4C534A; // "MLSJ"
+    private static final int INDEX_MAGIC = 0x4D4C5349; // "MLSI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+
+    private final File file;
+    private final int capacity;
+    private final MappedByteBuffer mapping;
+    // A duplicate of the mapping for the relative bulk copies, its position is changed by every read and write
+    private final ByteBuffer view;
+    private final byte[] record = new byte[JournalRecord.RECORD_SIZE];
+    private final CRC32 crc = new CRC32();
+
+    private int count;
+    private long firstSequence;
+    private long lastSequence;
+    private boolean sealed;
+    private boolean dirty;
+
+    // The summary
+    private long minTime = Long.MAX_VALUE;
+    private long maxTime = Long.MIN_VALUE;
+    private final long[] blockMin;
+    private final long[] blockMax;
+    private final long[] blockLabels;
+    private int live;
+    private int[] labelCounts = new int[0];
+    private final Map<Integer, int[]> surveyCounts = new HashMap<>();
+
+    private JournalSegment(File file, int capacity, MappedByteBuffer mapping) {
+        this.file = file;
+        this.capacity = capacity;
+        this.mapping = mapping;
+        this.view = mapping.duplicate();
+        int blocks = (capacity + BLOCK - 1) / BLOCK;
+        this.blockMin = new long[blocks];
+        this.blockMax = new long[blocks];
+        this.blockLabels = new long[blocks];
+        Arrays.fill(blockMin, Long.MAX_VALUE);
+        Arrays.fill(blockMax, Long.MIN_VALUE);
+    }
+
+    static File fileFor(File directory, long firstSequence, String suffix) {
+        // The name sorts like the sequence, so the files of a directory list in the order of the journal
+        return new File(directory, String.format("segment-%016x%s", firstSequence, suffix));
+    }
+
+    static JournalSegment create(File file, int capacity) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(0);
+            out.setLength(HEADER_SIZE + (long) capacity * JournalRecord.RECORD_SIZE);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(JournalRecord.RECORD_SIZE);
+            out.writeInt(capacity);
+            MappedByteBuffer mapping = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, out.length());
+            JournalSegment segment = new JournalSegment(file, capacity, mapping);
+            segment.dirty = true;
+            return segment;
+        }
+    }
+
+    static JournalSegment open(File file) throws IOException {
+        MappedByteBuffer mapping;
+        int capacity;
+        try (RandomAccessFile in = new RandomAccessFile(file, "rw")) {
+            if (in.length() < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readInt() != JournalRecord.RECORD_SIZE) {
+                throw new IOException(file + " is not a journal segment");
+            }
+            capacity = in.readInt();
+            if (capacity < 1 || in.length() != HEADER_SIZE + (long) capacity * JournalRecord.RECORD_SIZE) {
+                throw new IOException(file + " has the wrong size");
+            }
+            mapping = in.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, in.length());
+        }
+        JournalSegment segment = new JournalSegment(file, capacity, mapping);
+        if (!segment.readIndex()) {
+            segment.recover();
+            if (segment.sealed) {
+                segment.writeIndex();
+            }
+        }
+        return segment;
+    }
+
+    private void recover() {
+        // Reads the records up to the first one that is broken or missing: after a crash that is the end of the log
+        // Every record after it is wiped, so it can never come back to life when the next records are written
+        JournalRecord decoded = new JournalRecord();
+        long previous = 0;
+        while (count < capacity) {
+            readRecord(count);
+            if (!decoded.decode(record, crc) || decoded.getSequence() <= previous) {
+                break;
+            }
+            previous = decoded.getSequence();
+            summarize(count, decoded, 1);
+            if (count == 0) {
+                firstSequence = previous;
+            }
+            lastSequence = previous;
+            count++;
+        }
+        byte[] zeros = new byte[JournalRecord.RECORD_SIZE];
+        for (int position = count; position < capacity; position++) {
+            readRecord(position);
+            if (Arrays.equals(record, zeros)) {
+                break;
+            }
+            writeRecord(position, zeros);
+            dirty = true;
+        }
+        sealed = count == capacity;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int size() {
+        return count;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    boolean isFull() {
+        return count == capacity;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    long getFirstSequence() {
+        return firstSequence;
+    }
+
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    int getLive() {
+        return live;
+    }
+
+    long getMinTime() {
+        return minTime;
+    }
+
+    long getMaxTime() {
+        return maxTime;
+    }
+
+    boolean mayContain(long from, long to, int label, int survey) {
+        // False when the summary proves that no record of this segment matches
+        if (live == 0 || maxTime < from || minTime >= to) {
+            return false;
+        }
+        if (survey != SurveyJournal.ANY && !surveyCounts.containsKey(survey)) {
+            return false;
+        }
+        return label == SurveyJournal.ANY || label < labelCounts.length && labelCounts[label] > 0;
+    }
+
+    boolean blockMayContain(int block, long from, long to, int label) {
+        if (blockMax[block] < from || blockMin[block] >= to) {
+            return false;
+        }
+        return label == SurveyJournal.ANY || (blockLabels[block] & labelBit(label)) != 0;
+    }
+
+    boolean isInside(long from, long to) {
+        return minTime >= from && maxTime < to;
+    }
+
+    void addCounts(int survey, int[] counts) {
+        // Adds the identified records per label of this segment to 'counts' (at least as long as labelCounts)
+        int[] source = survey == SurveyJournal.ANY ? labelCounts : surveyCounts.get(survey);
+        if (source != null) {
+            for (int label = 0; label < source.length; label++) {
+                counts[label] += source[label];
+            }
+        }
+    }
+
+    int getLabelLimit() {
+        return labelCounts.length;
+    }
+
+    void append(JournalRecord value) {
+        value.encode(record, crc);
+        writeRecord(count, record);
+        summarize(count, value, 1);
+        if (count == 0) {
+            firstSequence = value.getSequence();
+        }
+        lastSequence = value.getSequence();
+        count++;
+        dirty = true;
+    }
+
+    int match(int position, long from, long to, int label, int survey) {
+        // Looks at the few fields a query filters on, straight in the mapping, without decoding and checking the
+        // whole record. Returns NO_MATCH, or the label index of the record (-1 for an unknown leaf)
+        // Most records of a block are filtered out here, only the matches are read with read()
+        int base = HEADER_SIZE + position * JournalRecord.RECORD_SIZE;
+        long time = mapping.getLong(base + JournalRecord.TIMESTAMP_OFFSET);
+        int flags = mapping.get(base + JournalRecord.FLAGS_OFFSET);
+        if (time < from || time >= to || (flags & JournalRecord.FLAG_DELETED) != 0
+                || survey != SurveyJournal.ANY && mapping.getInt(base + JournalRecord.SURVEY_OFFSET) != survey) {
+            return NO_MATCH;
+        }
+        int recordLabel = (flags & JournalRecord.FLAG_UNKNOWN) != 0 || mapping.get(base + JournalRecord.COUNT_OFFSET) == 0
+                ? -1 : mapping.getShort(base + JournalRecord.LABELS_OFFSET) & 0xFFFF;
+        return label == SurveyJournal.ANY || recordLabel == label ? recordLabel : NO_MATCH;
+    }
+
+    boolean read(int position, JournalRecord into) {
+        readRecord(position);
+        return into.decode(record, crc);
+    }
+
+    int find(long sequence) {
+        // The position of a record, or -1. The sequences of a segment increase, but have gaps after a compaction
+        JournalRecord probe = new JournalRecord();
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (!read(middle, probe)) {
+                return -1;
+            }
+            if (probe.getSequence() < sequence) {
+                low = middle + 1;
+            } else if (probe.getSequence() > sequence) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    boolean delete(int position) throws IOException {
+        // Marks the record as deleted and takes it out of the counters. The space is reclaimed by a compaction
+        JournalRecord value = new JournalRecord();
+        if (!read(position, value) || value.isDeleted()) {
+            return false;
+        }
+        summarize(-1, value, -1);
+        value.setFlags(value.getFlags() | JournalRecord.FLAG_DELETED);
+        value.encode(record, crc);
+        writeRecord(position, record);
+        dirty = true;
+        if (sealed) {
+            // The mark goes to the disk before the summary that no longer counts the record
+            force();
+            writeIndex();
+        }
+        return true;
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    boolean takeDirty() {
+        // True once after every change, the journal then forces the segment to the disk
+        boolean wasDirty = dirty;
+        dirty = false;
+        return wasDirty;
+    }
+
+    void force() {
+        mapping.force();
+    }
+
+    void seal() throws IOException {
+        // No record is added anymore: the records go to the disk, then the summary, so a summary never describes
+        // records that were lost
+        sealed = true;
+        force();
+        writeIndex();
+    }
+
+    void deleteFiles() {
+        file.delete();
+        indexFile(file).delete();
+    }
+
+    private void summarize(int position, JournalRecord value, int delta) {
+        // delta is 1 for a new record and -1 for a deleted one. The block of a deleted record keeps its time range
+        // and its label bit, a block may only ever claim too much, never too little
+        if (value.isDeleted()) {
+            return;
+        }
+        live += delta;
+        if (delta > 0) {
+            long time = value.getTimestamp();
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            int block = position / BLOCK;
+            blockMin[block] = Math.min(blockMin[block], time);
+            blockMax[block] = Math.max(blockMax[block], time);
+            if (value.getLabelIndex() >= 0) {
+                blockLabels[block] |= labelBit(value.getLabelIndex());
+            }
+        }
+        // Every survey of the segment has an entry, even one with only unknown leaves
+        int[] survey = surveyCounts.get(value.getSurvey());
+        if (survey == null) {
+            survey = new int[0];
+            surveyCounts.put(value.getSurvey(), survey);
+        }
+        int label = value.getLabelIndex();
+        if (label < 0) {
+            // Unknown leaves are kept (and can be searched by time), but they are no identification of a species
+            return;
+        }
+        if (label >= labelCounts.length) {
+            labelCounts = Arrays.copyOf(labelCounts, label + 1);
+        }
+        labelCounts[label] += delta;
+        if (label >= survey.length) {
+            survey = Arrays.copyOf(survey, label + 1);
+            surveyCounts.put(value.getSurvey(), survey);
+        }
+        survey[label] += delta;
+    }
+
+    private static long labelBit(int label) {
+        return 1L << Math.min(label, 63);
+    }
+
+    private void readRecord(int position) {
+        view.position(HEADER_SIZE + position * JournalRecord.RECORD_SIZE);
+        view.get(record);
+    }
+
+    private void writeRecord(int position, byte[] bytes) {
+        view.position(HEADER_SIZE + position * JournalRecord.RECORD_SIZE);
+        view.put(bytes);
+    }
+
+    private static File indexFile(File file) {
+        String name = file.getName();
+        return new File(file.getParentFile(), name.substring(0, name.length() - LOG_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    private void writeIndex() throws IOException {
+        File index = indexFile(file);
+        File temporary = new File(index.getPath() + ".tmp");
+        CRC32 checksum = new CRC32();
+        try (FileOutputStream stream = new FileOutputStream(temporary)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(stream, checksum)));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeLong(firstSequence);
+            out.writeLong(lastSequence);
+            out.writeInt(live);
+            out.writeLong(minTime);
+            out.writeLong(maxTime);
+            int blocks = (count + BLOCK - 1) / BLOCK;
+            out.writeInt(blocks);
+            for (int block = 0; block < blocks; block++) {
+                out.writeLong(blockMin[block]);
+                out.writeLong(blockMax[block]);
+                out.writeLong(blockLabels[block]);
+            }
+            writeCounts(out, labelCounts);
+            out.writeInt(surveyCounts.size());
+            for (Map.Entry<Integer, int[]> entry : surveyCounts.entrySet()) {
+                out.writeInt(entry.getKey());
+                writeCounts(out, entry.getValue());
+            }
+            out.flush();
+            // The checksum is written after the content, it does not include itself
+            new DataOutputStream(stream).writeInt((int) checksum.getValue());
+            stream.getFD().sync();
+        }
+        if (!temporary.renameTo(index)) {
+            throw new IOException("Cannot replace " + index);
+        }
+    }
+
+    private boolean readIndex() {
+        // Returns false when there is no usable summary: missing, broken, or not matching the records
+        File index = indexFile(file);
+        if (!index.isFile()) {
+            return false;
+        }
+        CRC32 checksum = new CRC32();
+        try (FileInputStream stream = new FileInputStream(index)) {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(stream), checksum));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            int indexCount = in.readInt();
+            long first = in.readLong();
+            long last = in.readLong();
+            int indexLive = in.readInt();
+            long indexMin = in.readLong();
+            long indexMax = in.readLong();
+            int blocks = in.readInt();
+            if (indexCount < 1 || indexCount > capacity || blocks != (indexCount + BLOCK - 1) / BLOCK) {
+                return false;
+            }
+            for (int block = 0; block < blocks; block++) {
+                blockMin[block] = in.readLong();
+                blockMax[block] = in.readLong();
+                blockLabels[block] = in.readLong();
+            }
+            int[] labels = readCounts(in);
+            Map<Integer, int[]> surveys = new HashMap<>();
+            int surveyCount = in.readInt();
+            for (int i = 0; i < surveyCount; i++) {
+                int survey = in.readInt();
+                surveys.put(survey, readCounts(in));
+            }
+            // The checksum covers everything before it
+            int expected = (int) checksum.getValue();
+            if (in.readInt() != expected) {
+                return false;
+            }
+
+            // The summary must describe the records of this file: the last record it counts must be there
+            JournalRecord value = new JournalRecord();
+            if (!read(indexCount - 1, value) || value.getSequence() != last || !read(0, value)
+                    || value.getSequence() != first) {
+                return false;
+            }
+            count = indexCount;
+            firstSequence = first;
+            lastSequence = last;
+            live = indexLive;
+            minTime = indexMin;
+            maxTime = indexMax;
+            labelCounts = labels;
+            surveyCounts.putAll(surveys);
+            sealed = true;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Arrays.fill(blockMin, Long.MAX_VALUE);
+            Arrays.fill(blockMax, Long.MIN_VALUE);
+            Arrays.fill(blockLabels, 0L);
+            return false;
+        }
+    }
+
+    private static void writeCounts(DataOutputStream out, int[] counts) throws IOException {
+        out.writeInt(counts.length);
+        for (int value : counts) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readCounts(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 65536) {
+            throw new IOException("Broken journal index, " + length + " labels");
+        }
+        int[] counts = new int[length];
+        for (int i = 0; i < length; i++) {
+            counts[i] = in.readInt();
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,256 @@
+package com.dktes.medileaf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+final class JsonLeafSource implements Leaf.TextSource {
+
+    /****
+     * * * * NOTE * * * *
+     * data.json is an array of flat objects, one per leaf, and every attribute we use is a string.
+     * Instead of turning every string into a Java object, this class only remembers where each string
+     * starts and ends inside the raw bytes of the file. The short attributes are decoded right away,
+     * the long ones (description and usage) are decoded when a screen asks for them.
+     * * * * * ** * * * *
+     * ****/
+
+    private final byte[] json;
+
+    private int position;
+
+    private JsonLeafSource(byte[] json) {
+        this.json = json;
+    }
+
+    static Leaf[] read(InputStream in) throws IOException {
+        return new JsonLeafSource(readFully(in)).readLeaves();
+    }
+
+    static Leaf[] read(byte[] json) throws IOException {
+        return new JsonLeafSource(json).readLeaves();
+    }
+
+    @Override
+    public String readText(long reference) {
+        // A reference packs the start and the end offset of a string value (without its quotes)
+        int start = (int) (reference >>> 32);
+        int end = (int) reference;
+        return decode(start, end);
+    }
+
+    private Leaf[] readLeaves() throws IOException {
+        List<Leaf> leaves = new ArrayList<>();
+        position = 0;
+        expect('[');
+        skipWhitespace();
+        if (peek() == ']') {
+            position++;
+            return new Leaf[0];
+        }
+        while (true) {
+            leaves.add(readLeaf());
+            skipWhitespace();
+            byte next = peek();
+            position++;
+            if (next == ']') {
+                break;
+            }
+            if (next != ',') {
+                throw error("',' or ']'");
+            }
+        }
+        return leaves.toArray(new Leaf[0]);
+    }
+
+    private Leaf readLeaf() throws IOException {
+        String leafName = null, scientificName = null, origin = null, feature = null;
+        long description = -1, usage = -1;
+
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+        } else {
+            while (true) {
+                long name = readString();
+                expect(':');
+                skipWhitespace();
+                if (peek() == '"') {
+                    long value = readString();
+                    // Check what is the name of the attribute. Accordingly, keep the value for its designated field
+                    switch (readText(name)) {
+                        case "leafname":
+                            leafName = readText(value);
+                            break;
+                        case "sciname":
+                            scientificName = readText(value);
+                            break;
+                        case "description":
+                            description = value;
+                            break;
+                        case "usage":
+                            usage = value;
+                            break;
+                        case "origin":
+                            origin = readText(value);
+                            break;
+                        case "feature":
+                            feature = readText(value);
+                            break;
+                        default:
+                            break;
+                    }
+                } else {
+                    // If the value is not a string, we do not use it, so it is skipped
+                    skipValue();
+                }
+                skipWhitespace();
+                byte next = peek();
+                position++;
+                if (next == '}') {
+                    break;
+                }
+                if (next != ',') {
+                    throw error("',' or '}'");
+                }
+            }
+        }
+        return new Leaf(leafName, scientificName, origin, feature, this, description, usage);
+    }
+
+    private long readString() throws IOException {
+        // Returns the start and end offset of the string content and moves behind the closing quote
+        expect('"');
+        int start = position;
+        while (position < json.length) {
+            byte b = json[position];
+            if (b == '"') {
+                int end = position++;
+                return ((long) start << 32) | end;
+            }
+            position += b == '\\' ? 2 : 1;
+        }
+        throw error("closing '\"'");
+    }
+
+    private void skipValue() throws IOException {
+        byte first = peek();
+        if (first != '{' && first != '[') {
+            // numbers, true, false and null end at the next separator
+            while (position < json.length) {
+                byte b = json[position];
+                if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                    return;
+                }
+                position++;
+            }
+            return;
+        }
+        // nested objects and arrays are skipped by counting the brackets, strings may contain brackets too
+        int depth = 0;
+        do {
+            byte b = peek();
+            if (b == '"') {
+                readString();
+                continue;
+            }
+            if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+            }
+            position++;
+        } while (depth > 0);
+    }
+
+    private String decode(int start, int end) {
+        // Most strings have no escape sequence and can be decoded in one go
+        int escape = start;
+        while (escape < end && json[escape] != '\\') {
+            escape++;
+        }
+        if (escape == end) {
+            return new String(json, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(end - start);
+        int i = start;
+        while (i < end) {
+            byte b = json[i++];
+            if (b != '\\') {
+                out.write(b);
+                continue;
+            }
+            byte c = json[i++];
+            switch (c) {
+                case 'n': out.write('\n'); break;
+                case 't': out.write('\t'); break;
+                case 'r': out.write('\r'); break;
+                case 'b': out.write('\b'); break;
+                case 'f': out.write('\f'); break;
+                case 'u':
+                    char ch = (char) Integer.parseInt(new String(json, i, 4, StandardCharsets.US_ASCII), 16);
+                    i += 4;
+                    // Surrogate pairs are written as two escapes, so we join them before encoding as UTF-8
+                    if (Character.isHighSurrogate(ch) && i + 6 <= end && json[i] == '\\' && json[i + 1] == 'u') {
+                        char low = (char) Integer.parseInt(new String(json, i + 2, 4, StandardCharsets.US_ASCII), 16);
+                        i += 6;
+                        byte[] pair = new String(new char[]{ch, low}).getBytes(StandardCharsets.UTF_8);
+                        out.write(pair, 0, pair.length);
+                    } else {
+                        byte[] single = String.valueOf(ch).getBytes(StandardCharsets.UTF_8);
+                        out.write(single, 0, single.length);
+                    }
+                    break;
+                default:
+                    // \" \\ and \/ stand for the character itself
+                    out.write(c);
+                    break;
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void expect(char c) throws IOException {
+        skipWhitespace();
+        if (position >= json.length || json[position] != c) {
+            throw error("'" + c + "'");
+        }
+        position++;
+    }
+
+    private byte peek() throws IOException {
+        if (position >= json.length) {
+            throw error("more data");
+        }
+        return json[position];
+    }
+
+    private void skipWhitespace() {
+        while (position < json.length) {
+            byte b = json[position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private IOException error(String expected) {
+        return new IOException("Malformed data.json: expected " + expected + " at offset " + position);
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 8192));
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
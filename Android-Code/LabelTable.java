@@ -0,0 +1,77 @@
+package com.dktes.medileaf;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class LabelTable {
+
+    // The label table stores the names of the classes from labels.txt in the same order as the model output
+    // The i-th probability of the model belongs to the i-th label, so the table is addressed by index
+    // It is immutable and loaded only once per process by the ModelRegistry
+
+    private final String[] labels;
+    private final Map<String, Integer> indexByName;
+
+    private LabelTable(String[] labels) {
+        this.labels = labels;
+        this.indexByName = new HashMap<>(labels.length * 2);
+        for (int i = 0; i < labels.length; i++) {
+            indexByName.put(labels[i], i);
+        }
+    }
+
+    public static LabelTable load(InputStream in) throws IOException {
+        // Every non-empty line of labels.txt is one label. The last line may or may not end with a line break
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+        return of(lines);
+    }
+
+    public static LabelTable of(List<String> labels) {
+        return new LabelTable(labels.toArray(new String[0]));
+    }
+
+    public int size() {
+        return labels.length;
+    }
+
+    public String get(int index) {
+        return labels[index];
+    }
+
+    public int indexOf(String label) {
+        // returns -1 when the label is not part of the table
+        Integer index = indexByName.get(label);
+        return index == null ? -1 : index;
+    }
+
+    public List<String> asList() {
+        return Collections.unmodifiableList(Arrays.asList(labels));
+    }
+
+    public void checkOutputShape(int[] outputShape) throws IOException {
+        // The last dimension of the output tensor is the number of classes, it has to match the number of labels
+        // Otherwise the probabilities would silently be matched to the wrong names
+        int classes = outputShape.length == 0 ? 0 : outputShape[outputShape.length - 1];
+        if (classes != labels.length) {
+            throw new IOException("Model has " + classes + " output classes but labels.txt has " + labels.length + " labels");
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.dktes.medileaf;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class LatencyHistogram {
+
+    /****
+     * * * * NOTE * * * *
+     * A histogram of durations in nanoseconds that any thread can record into without locks and without allocating.
+     *
+     * The buckets are log-linear (like an HDR histogram): every power of two is split into 16 equal buckets.
+     * So a recorded value lands in a bucket that is at most 1/16 (about 6%) wider than the value itself,
+     * whether it is 40 microseconds or 4 seconds, and 600 buckets cover everything from 1 ns to a few minutes.
+     *
+     * Recording is one increment of an AtomicLongArray slot plus two atomic updates for the sum and the maximum.
+     * Percentiles are read from a copy of the counts, which may be a little behind a concurrent recording
+     * * * * * ** * * * *
+     * ****/
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values up to 2^40 ns (about 18 minutes), anything longer is counted in the last bucket
+    private static final int MAX_EXPONENT = 40;
+    public static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        // The max first: a reader that sees the count and then reads the max never gets a max below the value
+        long current;
+        while (nanos > (current = max.get())) {
+            if (max.compareAndSet(current, nanos)) {
+                break;
+            }
+        }
+        counts.incrementAndGet(bucketOf(nanos));
+        sum.addAndGet(nanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public long getSumNanos() {
+        return sum.get();
+    }
+
+    // Copies the counts into 'target' (at least BUCKET_COUNT long) and returns the total
+    public long copyCounts(long[] target) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            target[i] = counts.get(i);
+            total += target[i];
+        }
+        return total;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        sum.set(0);
+        max.set(0);
+    }
+
+    // The value below which 'quantile' (0 to 1) of the recorded values lie, taken from counts copied by copyCounts()
+    // The upper bound of the bucket is returned, so the result is never lower than the true percentile,
+    // but it is capped at 'maxNanos' (getMaxNanos()): the bucket of the largest value may reach beyond it
+    public static long percentile(long[] counts, long total, long maxNanos, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), maxNanos);
+            }
+        }
+        return Math.min(upperBoundOf(BUCKET_COUNT - 1), maxNanos);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
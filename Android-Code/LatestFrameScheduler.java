@@ -0,0 +1,108 @@
+package com.dktes.medileaf;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+public final class LatestFrameScheduler implements FrameSource.Listener, Closeable {
+
+    // The scheduler sits between a frame source and the classification
+    // The camera delivers 30 frames per second, the model may only manage 5 or 10. If every frame was queued,
+    // the queue would grow and the label on screen would describe what the camera saw seconds ago.
+    // So only the newest frame is kept: a new frame replaces (and releases) the one that is still waiting.
+    // One worker thread processes frames as fast as it can, which is exactly the rate the model can sustain
+
+    public interface Processor {
+        void process(Frame frame) throws Exception;
+    }
+
+    public interface ErrorHandler {
+        void onError(Exception error);
+    }
+
+    private final Processor processor;
+    private final ErrorHandler errorHandler;
+    private final AtomicReference<Frame> pending = new AtomicReference<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public LatestFrameScheduler(Processor processor, ErrorHandler errorHandler) {
+        this.processor = processor;
+        this.errorHandler = errorHandler;
+        this.worker = new Thread(this::work, "live-classifier");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        received.incrementAndGet();
+        if (!running) {
+            frame.release();
+            return;
+        }
+        Frame replaced = pending.getAndSet(frame);
+        if (replaced != null) {
+            // the worker did not get to this frame in time, a newer one is more useful
+            replaced.release();
+            dropped.incrementAndGet();
+        }
+        LockSupport.unpark(worker);
+    }
+
+    private void work() {
+        while (running) {
+            Frame frame = pending.getAndSet(null);
+            if (frame == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                processor.process(frame);
+                processed.incrementAndGet();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                errorHandler.onError(e);
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(worker);
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Frame frame = pending.getAndSet(null);
+        if (frame != null) {
+            frame.release();
+        }
+    }
+}
@@ -1,4 +1,6 @@
 package com.dktes.medileaf;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 public class Leaf implements Serializable {
@@ -10,11 +12,17 @@ public class Leaf implements Serializable {
 
     private final String leafName;
     private final String scientificName;
-    private final String description;
-    private final String usage;
+    private String description;
+    private String usage;
     private final String origin;
     private final String feature;
 
+    // The description and the usage are the long texts of a leaf and most screens never show them
+    // When a leaf comes from the LeafCatalog, these two texts are only read from the catalog when they are asked for the first time
+    private transient TextSource textSource;
+    private final long descriptionRef;
+    private final long usageRef;
+
     public Leaf(String leafName, String scientificName, String description, String usage, String origin, String feature) {
         this.leafName = leafName;
         this.scientificName = scientificName;
@@ -22,6 +30,20 @@ public class Leaf implements Serializable {
         this.usage = usage;
         this.origin = origin;
         this.feature = feature;
+        this.textSource = null;
+        this.descriptionRef = -1;
+        this.usageRef = -1;
+    }
+
+    Leaf(String leafName, String scientificName, String origin, String feature,
+         TextSource textSource, long descriptionRef, long usageRef) {
+        this.leafName = leafName;
+        this.scientificName = scientificName;
+        this.origin = origin;
+        this.feature = feature;
+        this.textSource = textSource;
+        this.descriptionRef = descriptionRef;
+        this.usageRef = usageRef;
     }
 
     public String getLeafName() {
@@ -33,11 +55,21 @@ public class Leaf implements Serializable {
     }
 
     public String getDescription() {
-        return description;
+        String text = description;
+        if (text == null && textSource != null && descriptionRef >= 0) {
+            text = textSource.readText(descriptionRef);
+            description = text;
+        }
+        return text;
     }
 
     public String getUsage() {
-        return usage;
+        String text = usage;
+        if (text == null && textSource != null && usageRef >= 0) {
+            text = textSource.readText(usageRef);
+            usage = text;
+        }
+        return text;
     }
 
     public String getOrigin() {
@@ -48,4 +80,16 @@ public class Leaf implements Serializable {
         return feature;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // The text source is not serializable, so the lazy texts are read before the leaf is written
+        getDescription();
+        getUsage();
+        out.defaultWriteObject();
+    }
+
+    interface TextSource {
+        // Reads a text of the catalog, 'reference' tells the source where the text is stored
+        String readText(long reference);
+    }
+
 }
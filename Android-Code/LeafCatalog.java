@@ -0,0 +1,208 @@
+package com.dktes.medileaf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+public final class LeafCatalog {
+
+    // The leaf catalog holds every leaf of data.json
+    // A leaf can be found in constant time by its name, by its scientific name or by the index of its label in labels.txt
+    // The long texts of a leaf (description and usage) are only decoded when a screen reads them
+    // It does not depend on Android, so the benchmarks and the server use it on a plain JVM
+    // The catalog of the app, read from the ContentStore once per process, is kept by LeafCatalogs
+
+    // A decoded leaf with its texts, and what the search index adds per leaf, roughly
+    static final int LEAF_BYTES = 2048;
+    private static final int SEARCH_INDEX_BYTES_PER_LEAF = 4096;
+
+    private final LeafStore store;
+
+    // A leaf is decoded from the store the first time it is asked for and kept afterwards
+    private final Leaf[] leaves;
+
+    // The index by scientific name is built on the first search by scientific name
+    private Map<String, Integer> byScientificName;
+
+    // The full-text index is built on the first search, it reads every text of the catalog once
+    private LeafSearchIndex searchIndex;
+
+    // The index by label is built for the label table that asks for it first
+    private LabelTable indexedLabels;
+    private int[] recordByLabel;
+
+    private LeafCatalog(LeafStore store) {
+        this.store = store;
+        this.leaves = new Leaf[store.size()];
+    }
+
+    public static LeafCatalog fromJson(InputStream in) throws IOException {
+        return new LeafCatalog(new ArrayStore(JsonLeafSource.read(in)));
+    }
+
+    public static LeafCatalog fromBinary(File file) throws IOException {
+        return new LeafCatalog(BinaryCatalog.open(file));
+    }
+
+    static LeafCatalog fromJson(byte[] json) throws IOException {
+        return new LeafCatalog(new ArrayStore(JsonLeafSource.read(json)));
+    }
+
+    static LeafCatalog fromCompiled(byte[] json, File binary) throws IOException {
+        // The binary catalog remembers the checksum of the data.json it was compiled from
+        // When data.json has changed (or the file is missing or broken), it is compiled again
+        // Throws when the catalog cannot be written, the caller may still read data.json with fromJson()
+        long checksum = CatalogCompiler.checksum(json);
+        BinaryCatalog catalog = BinaryCatalog.openIfCurrent(binary, checksum);
+        if (catalog == null) {
+            CatalogCompiler.compile(json, binary);
+            catalog = BinaryCatalog.open(binary);
+        }
+        return new LeafCatalog(catalog);
+    }
+
+    public int size() {
+        return leaves.length;
+    }
+
+    public long getEstimatedBytes() {
+        long bytes = store.getEstimatedBytes();
+        // With the parsed data.json, the decoded leaves are the ones of the store and were counted there
+        if (!(store instanceof ArrayStore)) {
+            for (Leaf leaf : leaves) {
+                if (leaf != null) {
+                    bytes += LEAF_BYTES;
+                }
+            }
+        }
+        synchronized (this) {
+            if (searchIndex != null) {
+                bytes += (long) leaves.length * SEARCH_INDEX_BYTES_PER_LEAF;
+            }
+        }
+        return bytes;
+    }
+
+    void clearDecoded() {
+        // A screen that is reading a leaf right now keeps its object, the next get() decodes it again
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = null;
+        }
+        synchronized (this) {
+            searchIndex = null;
+            byScientificName = null;
+        }
+    }
+
+    public Leaf get(int record) {
+        Leaf leaf = leaves[record];
+        if (leaf == null) {
+            // Two threads may decode the same leaf at the same time, both results are equal so it does not matter
+            leaf = store.get(record);
+            leaves[record] = leaf;
+        }
+        return leaf;
+    }
+
+    public Leaf findByName(String leafName) {
+        // returns null when there is no leaf with this name
+        long start = Metrics.start();
+        int record = store.indexOfName(leafName);
+        Leaf leaf = record < 0 ? null : get(record);
+        Metrics.record(Metrics.Stage.CATALOG_LOOKUP, start);
+        return leaf;
+    }
+
+    public Leaf findByScientificName(String scientificName) {
+        if (scientificName == null) {
+            return null;
+        }
+        Map<String, Integer> index;
+        synchronized (this) {
+            if (byScientificName == null) {
+                // Scientific names are written with different capitalization, so they are matched ignoring the case
+                index = new HashMap<>(leaves.length * 2);
+                for (int i = 0; i < leaves.length; i++) {
+                    String name = get(i).getScientificName();
+                    if (name != null) {
+                        index.put(name.toLowerCase(Locale.ROOT), i);
+                    }
+                }
+                byScientificName = index;
+            }
+            index = byScientificName;
+        }
+        Integer record = index.get(scientificName.toLowerCase(Locale.ROOT));
+        return record == null ? null : get(record);
+    }
+
+    public synchronized LeafSearchIndex getSearchIndex() {
+        // Building takes a few milliseconds for data.json, so call it from a background thread the first time
+        if (searchIndex == null) {
+            searchIndex = LeafSearchIndex.build(this);
+        }
+        return searchIndex;
+    }
+
+    public Leaf findByLabel(LabelTable labels, int labelIndex) {
+        int[] index;
+        synchronized (this) {
+            if (indexedLabels != labels) {
+                index = new int[labels.size()];
+                for (int i = 0; i < index.length; i++) {
+                    index[i] = store.indexOfName(labels.get(i));
+                }
+                indexedLabels = labels;
+                recordByLabel = index;
+            }
+            index = recordByLabel;
+        }
+        if (labelIndex < 0 || labelIndex >= index.length || index[labelIndex] < 0) {
+            return null;
+        }
+        return get(index[labelIndex]);
+    }
+
+    private static final class ArrayStore implements LeafStore {
+
+        // The store used when the leaves were parsed from data.json
+
+        private final Leaf[] leaves;
+        private final Map<String, Integer> byName;
+
+        ArrayStore(Leaf[] leaves) {
+            this.leaves = leaves;
+            this.byName = new HashMap<>(leaves.length * 2);
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i].getLeafName() != null) {
+                    byName.put(leaves[i].getLeafName(), i);
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return leaves.length;
+        }
+
+        @Override
+        public Leaf get(int record) {
+            return leaves[record];
+        }
+
+        @Override
+        public int indexOfName(String leafName) {
+            Integer record = leafName == null ? null : byName.get(leafName);
+            return record == null ? -1 : record;
+        }
+
+        @Override
+        public long getEstimatedBytes() {
+            // Every leaf of data.json is parsed and kept
+            return (long) leaves.length * LEAF_BYTES;
+        }
+    }
+}
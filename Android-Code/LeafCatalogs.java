@@ -0,0 +1,85 @@
+package com.dktes.medileaf;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+public final class LeafCatalogs {
+
+    // The leaf catalog of the app: read from the ContentStore (the data.json of the last content pack, or the one
+    // of the assets) and built only once per process. The catalog itself has no Android dependency, only this does
+
+    private static final String BINARY_CATALOG = "catalog.bin";
+
+    private static LeafCatalog instance;
+    // Registered once with the ResourceGovernor, it trims whichever catalog is the current one
+    private static ResourceGovernor.Registration registration;
+
+    private LeafCatalogs() {
+    }
+
+    public static synchronized LeafCatalog getInstance(Context context) throws IOException {
+        if (instance == null) {
+            Context application = context.getApplicationContext();
+            byte[] json;
+            try (InputStream in = ContentStore.getInstance(application).open(ContentStore.CATALOG)) {
+                json = JsonLeafSource.readFully(in);
+            }
+            instance = open(json, new File(application.getFilesDir(), BINARY_CATALOG));
+            if (registration == null) {
+                registration = ResourceGovernor.getInstance().register("catalog", ResourceGovernor.PRIORITY_CATALOG,
+                        new ResourceGovernor.Resource() {
+                            @Override
+                            public long getBytes() {
+                                LeafCatalog current = current();
+                                return current == null ? 0 : current.getEstimatedBytes();
+                            }
+
+                            @Override
+                            public void trim(int level) {
+                                LeafCatalogs.trim(level);
+                            }
+                        });
+            }
+        }
+        return instance;
+    }
+
+    public static synchronized void reload() {
+        // Called when a content pack changed data.json. Screens that hold the old catalog keep using it,
+        // the next getInstance() reads the new one (the binary catalog is compiled again because the checksum changed)
+        instance = null;
+    }
+
+    private static LeafCatalog open(byte[] json, File binary) throws IOException {
+        try {
+            return LeafCatalog.fromCompiled(json, binary);
+        } catch (IOException e) {
+            // If the catalog cannot be written (for example the disk is full), we still work from data.json
+            Log.w("LeafCatalogs", "Cannot compile the binary catalog, reading data.json instead", e);
+            return LeafCatalog.fromJson(json);
+        }
+    }
+
+    private static synchronized LeafCatalog current() {
+        return instance;
+    }
+
+    private static void trim(int level) {
+        // The decoded leaves and the indexes are built again when they are needed. At the last level the catalog
+        // itself is dropped like in reload(): the mapping of catalog.bin goes away once no screen holds it anymore
+        LeafCatalog current;
+        synchronized (LeafCatalogs.class) {
+            current = instance;
+            if (level == ResourceGovernor.TRIM_ALL) {
+                instance = null;
+            }
+        }
+        if (current != null && level >= ResourceGovernor.TRIM_CACHES) {
+            current.clearDecoded();
+        }
+    }
+}
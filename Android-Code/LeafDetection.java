@@ -0,0 +1,83 @@
+package com.dktes.medileaf;
+
+import java.util.Locale;
+
+public final class LeafDetection {
+
+    // One leaf found by the TiledClassifier: where it is in the photo, what it is and how sure the model is
+    // The region is given in fractions of the image (0 to 1), so it can be drawn over the photo at any size
+
+    private final float left;
+    private final float top;
+    private final float right;
+    private final float bottom;
+    private final int labelIndex;
+    private final String label;
+    private final float score;
+
+    public LeafDetection(float left, float top, float right, float bottom, int labelIndex, String label, float score) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        this.labelIndex = labelIndex;
+        this.label = label;
+        this.score = score;
+    }
+
+    public float getLeft() {
+        return left;
+    }
+
+    public float getTop() {
+        return top;
+    }
+
+    public float getRight() {
+        return right;
+    }
+
+    public float getBottom() {
+        return bottom;
+    }
+
+    public int getLabelIndex() {
+        return labelIndex;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    // The calibrated confidence of the label for this region
+    public float getScore() {
+        return score;
+    }
+
+    public float getArea() {
+        return (right - left) * (bottom - top);
+    }
+
+    // The area both regions share, as a part of the area they cover together (intersection over union)
+    public float overlap(LeafDetection other) {
+        float shared = sharedArea(other);
+        return shared == 0 ? 0 : shared / (getArea() + other.getArea() - shared);
+    }
+
+    // The area both regions share, as a part of the smaller one. 1 when one region lies inside the other
+    public float coverage(LeafDetection other) {
+        float shared = sharedArea(other);
+        return shared == 0 ? 0 : shared / Math.min(getArea(), other.getArea());
+    }
+
+    private float sharedArea(LeafDetection other) {
+        float width = Math.min(right, other.right) - Math.max(left, other.left);
+        float height = Math.min(bottom, other.bottom) - Math.max(top, other.top);
+        return width <= 0 || height <= 0 ? 0 : width * height;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s %.2f at [%.2f, %.2f, %.2f, %.2f]", label, score, left, top, right, bottom);
+    }
+}
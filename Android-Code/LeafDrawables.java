@@ -0,0 +1,71 @@
+package com.dktes.medileaf;
+
+import android.annotation.SuppressLint;
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.util.Locale;
+
+public final class LeafDrawables {
+
+    // Maps every label of the model to the drawable with the reference photo of the leaf
+    // The resource ids are looked up once, when the table is built for a label table, and kept in an int array
+    // indexed like the labels. Showing a result is then an array access instead of a lookup by name
+    //
+    // A drawable is named like its label in lower case, without spaces, dashes and other signs
+    // ("Arive-Dantu" -> arivedantu, "Indian Mustard" -> indianmustard). A few photos were named differently from
+    // their label, they are listed in ALIASES
+    // A label without a drawable is logged when the table is built and gets the id 0 (NO_DRAWABLE):
+    // the result screen then hides the image instead of showing nothing without a word
+
+    public static final int NO_DRAWABLE = 0;
+
+    // label, drawable name
+    private static final String[][] ALIASES = {
+            {"Tulsi", "tulasi"},
+    };
+
+    private final LabelTable labels;
+    private final int[] drawables;
+
+    private LeafDrawables(LabelTable labels, int[] drawables) {
+        this.labels = labels;
+        this.drawables = drawables;
+    }
+
+    @SuppressLint("DiscouragedApi")
+    public static LeafDrawables resolve(LabelTable labels, Resources resources, String packageName) {
+        // Looks up the drawables by name, which is slow: call it once per label table, off the UI thread
+        int[] drawables = new int[labels.size()];
+        for (int i = 0; i < drawables.length; i++) {
+            String name = resourceName(labels.get(i));
+            drawables[i] = resources.getIdentifier(name, "drawable", packageName);
+            if (drawables[i] == NO_DRAWABLE) {
+                Log.w("LeafDrawables", "No drawable '" + name + "' for the label '" + labels.get(i) + "'");
+            }
+        }
+        return new LeafDrawables(labels, drawables);
+    }
+
+    static String resourceName(String label) {
+        for (String[] alias : ALIASES) {
+            if (alias[0].equals(label)) {
+                return alias[1];
+            }
+        }
+        // Resource names may only hold lower case letters, digits and underscores
+        return label.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9_]", "");
+    }
+
+    public LabelTable getLabels() {
+        return labels;
+    }
+
+    public int getDrawable(int labelIndex) {
+        return labelIndex >= 0 && labelIndex < drawables.length ? drawables[labelIndex] : NO_DRAWABLE;
+    }
+
+    public int getDrawable(String label) {
+        return getDrawable(labels.indexOf(label));
+    }
+}
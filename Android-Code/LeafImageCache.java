@@ -0,0 +1,313 @@
+package com.dktes.medileaf;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public final class LeafImageCache {
+
+    /****
+     * * * * NOTE * * * *
+     * The result screen shows a reference photo of the leaf. Decoding it at full size on the UI thread took
+     * longer than everything else on that screen, and left a big bitmap behind for the GC every time.
+     *
+     * The photos are now decoded on the "leaf-images" thread at the size of the ImageView (see ResourceBitmapDecoder)
+     * and kept in an LRU cache bounded in bytes. A bitmap that is evicted goes to a BitmapPool and the next photo
+     * is decoded into it, so showing results does not allocate new pixel memory again and again.
+     *
+     * The photos of the best candidates are prefetched as soon as they are known: from the live mode while the
+     * frames are still being classified, and from the classification thread while the result screen is starting.
+     * When the screen shows up, its photo is usually in the cache already.
+     *
+     * A bitmap from acquire() or load() may be on screen: it is not given to the pool until it was released.
+     * The key of a photo is its drawable and the sample size it was decoded with: the same photo at another view size
+     * is only decoded again when it would need a different sample size.
+     * * * * * ** * * * *
+     * ****/
+
+    // The cache may take this share of the heap of the app, the pool a quarter of that again
+    private static final int HEAP_SHARE = 16;
+    // image_medicine in activity_result.xml is 300dp high, this is the size until its real size was measured
+    private static final int DEFAULT_HEIGHT_DP = 300;
+
+    public interface Callback {
+        // Called on the callback executor with an acquired bitmap, or null when the leaf has no photo
+        void onImage(Bitmap bitmap);
+    }
+
+    private static LeafImageCache instance;
+
+    private final Context context;
+    private final Resources resources;
+    private final BitmapPool pool;
+    private final ResourceBitmapDecoder decoder;
+    private final LruCache<Long, Bitmap> cache;
+    private final ExecutorService loader;
+    private final ResourceGovernor.Registration registration;
+
+    // Guarded by 'this'
+    private final Map<Integer, ImageBounds> bounds = new HashMap<>();
+    private final Map<Bitmap, Integer> inUse = new IdentityHashMap<>();
+    private final Set<Bitmap> retired = Collections.newSetFromMap(new IdentityHashMap<>());
+    private LeafDrawables drawables;
+    private int targetWidth;
+    private int targetHeight;
+
+    private LeafImageCache(Context context) {
+        this.context = context;
+        this.resources = context.getResources();
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClass = activityManager == null ? 64 : activityManager.getMemoryClass();
+        int maxBytes = memoryClass * 1024 * 1024 / HEAP_SHARE;
+        this.pool = new BitmapPool(maxBytes / 4);
+        this.decoder = new ResourceBitmapDecoder(resources, pool);
+        this.cache = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Bitmap removed, Bitmap replacement) {
+                // Always called while we hold the lock of the LeafImageCache, we only change the cache under it
+                if (removed == replacement) {
+                    return;
+                }
+                if (inUse.containsKey(removed)) {
+                    retired.add(removed);
+                } else {
+                    pool.put(removed);
+                }
+            }
+        };
+        this.loader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "leaf-images");
+            thread.setDaemon(true);
+            return thread;
+        });
+        DisplayMetrics metrics = resources.getDisplayMetrics();
+        this.targetWidth = metrics.widthPixels;
+        this.targetHeight = Math.round(DEFAULT_HEIGHT_DP * metrics.density);
+        // The pooled bitmaps go first, the cached photos at the next level. A photo on screen is never dropped
+        this.registration = ResourceGovernor.getInstance().register("leaf-images", ResourceGovernor.PRIORITY_IMAGES,
+                new ResourceGovernor.Resource() {
+                    @Override
+                    public long getBytes() {
+                        return getEstimatedBytes();
+                    }
+
+                    @Override
+                    public void trim(int level) {
+                        if (level >= ResourceGovernor.TRIM_CACHES) {
+                            trimMemory();
+                        } else if (level == ResourceGovernor.TRIM_IDLE) {
+                            pool.clear();
+                        }
+                    }
+                });
+    }
+
+    public static synchronized LeafImageCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new LeafImageCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public synchronized void setTargetSize(int width, int height) {
+        // The size of the ImageView, once it was laid out. The next photos are decoded for it
+        if (width > 0 && height > 0) {
+            targetWidth = width;
+            targetHeight = height;
+        }
+    }
+
+    public void prefetch(Prediction prediction, int count) {
+        // Decodes the photos of the 'count' best classes in the background. An unknown leaf has no photo to show
+        if (prediction.isUnknown()) {
+            return;
+        }
+        for (int rank = 0; rank < Math.min(count, prediction.size()); rank++) {
+            int labelIndex = prediction.labelIndexAt(rank);
+            loader.execute(() -> prefetch(drawableOf(labelIndex)));
+        }
+    }
+
+    public void prefetch(String label) {
+        loader.execute(() -> prefetch(drawableOf(label)));
+    }
+
+    public synchronized Bitmap acquire(String label) {
+        // The photo of a leaf when it is already in the cache, otherwise null. It never decodes, so it can be called
+        // on the UI thread. Release the bitmap when it is not shown anymore
+        if (drawables == null) {
+            return null;
+        }
+        Bitmap bitmap = cached(drawables.getDrawable(label));
+        if (bitmap != null) {
+            retain(bitmap);
+        }
+        return bitmap;
+    }
+
+    public void load(String label, Executor callbackExecutor, Callback callback) {
+        // Decodes the photo of a leaf in the background (or takes it from the cache) and hands it to the callback
+        loader.execute(() -> {
+            Bitmap bitmap = null;
+            int drawable = drawableOf(label);
+            if (drawable != LeafDrawables.NO_DRAWABLE) {
+                try {
+                    bitmap = get(drawable, true);
+                } catch (IOException | RuntimeException e) {
+                    Log.w("LeafImageCache", "Cannot decode the photo of " + label, e);
+                }
+            }
+            Bitmap result = bitmap;
+            callbackExecutor.execute(() -> callback.onImage(result));
+        });
+    }
+
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = inUse.get(bitmap);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            inUse.put(bitmap, count - 1);
+            return;
+        }
+        inUse.remove(bitmap);
+        if (retired.remove(bitmap)) {
+            // It left the cache while it was shown, now nothing uses it anymore
+            pool.put(bitmap);
+        }
+    }
+
+    public synchronized long getEstimatedBytes() {
+        // The pixels of the cached photos, of the photos on screen that left the cache and of the pooled bitmaps
+        long bytes = cache.size() + pool.getBytes();
+        for (Bitmap bitmap : retired) {
+            bytes += bitmap.getAllocationByteCount();
+        }
+        return bytes;
+    }
+
+    public synchronized void trimMemory() {
+        // Drops every photo that is not on screen, the evicted bitmaps are not kept in the pool either
+        cache.evictAll();
+        pool.clear();
+    }
+
+    private void prefetch(int drawable) {
+        if (drawable == LeafDrawables.NO_DRAWABLE) {
+            return;
+        }
+        try {
+            get(drawable, false);
+        } catch (IOException | RuntimeException e) {
+            Log.w("LeafImageCache", "Cannot prefetch the drawable " + drawable, e);
+        }
+    }
+
+    private Bitmap get(int drawable, boolean acquire) throws IOException {
+        // Only called on the loader thread, so a photo is never decoded twice at the same time
+        ImageBounds imageBounds;
+        int width, height;
+        synchronized (this) {
+            imageBounds = bounds.get(drawable);
+            width = targetWidth;
+            height = targetHeight;
+        }
+        if (imageBounds == null) {
+            imageBounds = decoder.readBounds(drawable);
+            synchronized (this) {
+                bounds.put(drawable, imageBounds);
+            }
+        }
+        DecodePlan plan = DecodePlan.forTarget(imageBounds, width, height, false, false);
+        long key = key(drawable, plan.getSampleSize());
+        synchronized (this) {
+            Bitmap bitmap = cache.get(key);
+            if (bitmap != null) {
+                if (acquire) {
+                    retain(bitmap);
+                }
+                return bitmap;
+            }
+        }
+        Bitmap bitmap = decoder.decode(drawable, plan);
+        synchronized (this) {
+            cache.put(key, bitmap);
+            if (acquire) {
+                retain(bitmap);
+            }
+        }
+        registration.grew();
+        return bitmap;
+    }
+
+    private Bitmap cached(int drawable) {
+        // With the lock held
+        ImageBounds imageBounds = bounds.get(drawable);
+        if (imageBounds == null) {
+            return null;
+        }
+        DecodePlan plan = DecodePlan.forTarget(imageBounds, targetWidth, targetHeight, false, false);
+        return cache.get(key(drawable, plan.getSampleSize()));
+    }
+
+    private void retain(Bitmap bitmap) {
+        Integer count = inUse.get(bitmap);
+        inUse.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    private static long key(int drawable, int sampleSize) {
+        return (long) drawable << 32 | sampleSize;
+    }
+
+    private int drawableOf(int labelIndex) {
+        LeafDrawables table = getDrawables();
+        return table == null ? LeafDrawables.NO_DRAWABLE : table.getDrawable(labelIndex);
+    }
+
+    private int drawableOf(String label) {
+        LeafDrawables table = getDrawables();
+        return table == null ? LeafDrawables.NO_DRAWABLE : table.getDrawable(label);
+    }
+
+    private LeafDrawables getDrawables() {
+        // Only called on the loader thread. The table is built again when a content pack brought new labels
+        LabelTable labels;
+        try {
+            labels = ModelRegistry.getInstance(context).getLabelTable();
+        } catch (IOException e) {
+            Log.w("LeafImageCache", "Cannot read the labels", e);
+            return null;
+        }
+        LeafDrawables table;
+        synchronized (this) {
+            table = drawables;
+        }
+        if (table == null || table.getLabels() != labels) {
+            table = LeafDrawables.resolve(labels, resources, context.getPackageName());
+            synchronized (this) {
+                drawables = table;
+            }
+        }
+        return table;
+    }
+}
@@ -0,0 +1,691 @@
+package com.dktes.medileaf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+public final class LeafSearchIndex {
+
+    /****
+     * * * * NOTE * * * *
+     * A full-text index over the catalog, so a leaf can be found by what it does ("joint pain"), by its feature
+     * ("anti-inflammatory"), by its origin or by a part of its scientific name ("azadir").
+     * It is built once from the LeafCatalog and never changes afterwards, so any number of threads may read it.
+     *
+     * The texts are split into lowercase words (letters and digits), common English words like "the" are skipped.
+     * Every distinct word is a term. The terms are sorted, so the id of a term is its position in that order, and
+     * for every term the index stores its postings: the records containing it and how often they do.
+     * All postings live in one int[] (record, frequency, record, frequency...), the postings of term t start at
+     * postingStart[t] and end at postingStart[t + 1]. No object is created per posting.
+     *
+     * Words found in important fields count more than words of the description: a word of the name counts 4 times,
+     * of the scientific name or the feature 3 times, and so on (see Field). The frequency stored is this weighted count.
+     *
+     * The records are ranked with BM25: a term scores more when it is rare in the catalog (idf), when it occurs
+     * often in the record, and less when the record is long, so a short feature text beats a long description.
+     *
+     * A record matches when it contains every word of the query. Each word is a clause (its term, plus the terms it is
+     * a prefix of while it is typed), and the clause with the fewest postings is read first: its records are the
+     * candidates. For every other clause, the candidates are looked up in its postings by galloping (doubling steps,
+     * then a binary search), so a common word like "india" costs a few steps per candidate instead of a full read.
+     *
+     * The last word of a query is also used as a prefix, so results appear while the user is still typing.
+     * The terms starting with a prefix are found with a small trie over the sorted terms: because the terms are
+     * sorted, all terms below a node of the trie are one contiguous range of term ids, stored in the node itself.
+     *
+     * Facets are the features and origins. For the records that matched, the result counts how many have each
+     * feature and each origin, and a search can be restricted to one value of a facet.
+     *
+     * Searching needs a few arrays as large as the catalog. They are kept in a Searcher, which is reused
+     * for every query of one thread, so a query only allocates its result
+     * * * * * ** * * * *
+     * ****/
+
+    public enum Field {
+        NAME(4),
+        SCIENTIFIC_NAME(3),
+        FEATURE(3),
+        ORIGIN(2),
+        USAGE(1),
+        DESCRIPTION(1);
+
+        private final int weight;
+
+        Field(int weight) {
+            this.weight = weight;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    public enum Facet {
+        FEATURE,
+        ORIGIN
+    }
+
+    // The usual BM25 parameters: how quickly repeated words stop adding to the score, and how much length matters
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+
+    // Terms found only through the prefix count less than the word itself, and a short prefix like "a"
+    // does not expand to the whole dictionary
+    private static final float PREFIX_WEIGHT = 0.7f;
+    private static final int MAX_PREFIX_TERMS = 64;
+
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+            "a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "has", "in", "is", "it", "its",
+            "of", "on", "or", "that", "the", "this", "to", "with"));
+
+    private final int records;
+    private final String[] terms;
+    private final int[] postingStart;
+    private final int[] postings;
+    private final float[] idf;
+
+    // For every record: K1 * (1 - B + B * length / average length), the part of BM25 that only depends on the record
+    private final float[] lengthNorm;
+
+    // The trie: node 0 is the root. Children of a node are a linked list (first child, next sibling),
+    // which is compact and fast enough for the few dozen letters a node can have
+    private final char[] nodeChar;
+    private final int[] nodeFirstChild;
+    private final int[] nodeNextSibling;
+    private final int[] nodeTermStart;
+    private final int[] nodeTermEnd;
+
+    // For every facet: its distinct values (sorted), and for every record the index of its value or -1
+    private final String[][] facetValues;
+    private final int[][] facetOfRecord;
+
+    private LeafSearchIndex(int records, String[] terms, int[] postingStart, int[] postings, float[] idf,
+                            float[] lengthNorm, Trie trie, String[][] facetValues, int[][] facetOfRecord) {
+        this.records = records;
+        this.terms = terms;
+        this.postingStart = postingStart;
+        this.postings = postings;
+        this.idf = idf;
+        this.lengthNorm = lengthNorm;
+        this.nodeChar = Arrays.copyOf(trie.chars, trie.size);
+        this.nodeFirstChild = Arrays.copyOf(trie.firstChild, trie.size);
+        this.nodeNextSibling = Arrays.copyOf(trie.nextSibling, trie.size);
+        this.nodeTermStart = Arrays.copyOf(trie.termStart, trie.size);
+        this.nodeTermEnd = Arrays.copyOf(trie.termEnd, trie.size);
+        this.facetValues = facetValues;
+        this.facetOfRecord = facetOfRecord;
+    }
+
+    public static LeafSearchIndex build(LeafCatalog catalog) {
+        int records = catalog.size();
+        Map<String, Integer> termIds = new HashMap<>();
+        List<String> termList = new ArrayList<>();
+        List<String> tokens = new ArrayList<>();
+
+        // Every (term, record, frequency) of the catalog, in the order of the records
+        int[] tripleTerm = new int[1024];
+        int[] tripleRecord = new int[1024];
+        int[] tripleFrequency = new int[1024];
+        int triples = 0;
+
+        // The weighted frequencies of the record being indexed, by term id, and the terms it contains
+        int[] frequency = new int[256];
+        int[] recordTerms = new int[256];
+
+        int[] length = new int[records];
+        long totalLength = 0;
+        for (int record = 0; record < records; record++) {
+            Leaf leaf = catalog.get(record);
+            int distinct = 0;
+            for (Field field : Field.values()) {
+                tokens.clear();
+                tokenize(textOf(leaf, field), tokens);
+                for (String token : tokens) {
+                    Integer id = termIds.get(token);
+                    if (id == null) {
+                        id = termList.size();
+                        termIds.put(token, id);
+                        termList.add(token);
+                        if (id >= frequency.length) {
+                            frequency = Arrays.copyOf(frequency, frequency.length * 2);
+                        }
+                    }
+                    if (frequency[id] == 0) {
+                        if (distinct == recordTerms.length) {
+                            recordTerms = Arrays.copyOf(recordTerms, distinct * 2);
+                        }
+                        recordTerms[distinct++] = id;
+                    }
+                    frequency[id] += field.weight;
+                    length[record] += field.weight;
+                }
+            }
+            if (triples + distinct > tripleTerm.length) {
+                int capacity = Math.max(tripleTerm.length * 2, triples + distinct);
+                tripleTerm = Arrays.copyOf(tripleTerm, capacity);
+                tripleRecord = Arrays.copyOf(tripleRecord, capacity);
+                tripleFrequency = Arrays.copyOf(tripleFrequency, capacity);
+            }
+            for (int i = 0; i < distinct; i++) {
+                int id = recordTerms[i];
+                tripleTerm[triples] = id;
+                tripleRecord[triples] = record;
+                tripleFrequency[triples] = frequency[id];
+                triples++;
+                frequency[id] = 0;
+            }
+            totalLength += length[record];
+        }
+
+        // Sort the terms, and give every term the id of its sorted position
+        String[] terms = termList.toArray(new String[0]);
+        Arrays.sort(terms);
+        int[] sortedId = new int[terms.length];
+        for (int id = 0; id < terms.length; id++) {
+            sortedId[termIds.get(terms[id])] = id;
+        }
+
+        // Counting sort of the triples by term. They were added record after record,
+        // so the postings of every term come out sorted by record
+        int[] postingStart = new int[terms.length + 1];
+        for (int i = 0; i < triples; i++) {
+            postingStart[sortedId[tripleTerm[i]] + 1] += 2;
+        }
+        for (int id = 0; id < terms.length; id++) {
+            postingStart[id + 1] += postingStart[id];
+        }
+        int[] postings = new int[triples * 2];
+        int[] fill = Arrays.copyOf(postingStart, terms.length);
+        for (int i = 0; i < triples; i++) {
+            int at = fill[sortedId[tripleTerm[i]]];
+            postings[at] = tripleRecord[i];
+            postings[at + 1] = tripleFrequency[i];
+            fill[sortedId[tripleTerm[i]]] = at + 2;
+        }
+
+        float[] idf = new float[terms.length];
+        for (int id = 0; id < terms.length; id++) {
+            int documentFrequency = (postingStart[id + 1] - postingStart[id]) / 2;
+            idf[id] = (float) Math.log(1 + (records - documentFrequency + 0.5) / (documentFrequency + 0.5));
+        }
+        float averageLength = records == 0 ? 1f : Math.max(1f, (float) totalLength / records);
+        float[] lengthNorm = new float[records];
+        for (int record = 0; record < records; record++) {
+            lengthNorm[record] = K1 * (1 - B + B * length[record] / averageLength);
+        }
+
+        Trie trie = new Trie(terms);
+
+        Facet[] facets = Facet.values();
+        String[][] facetValues = new String[facets.length][];
+        int[][] facetOfRecord = new int[facets.length][];
+        for (Facet facet : facets) {
+            buildFacet(catalog, facet, facetValues, facetOfRecord);
+        }
+        return new LeafSearchIndex(records, terms, postingStart, postings, idf, lengthNorm, trie,
+                facetValues, facetOfRecord);
+    }
+
+    private static void buildFacet(LeafCatalog catalog, Facet facet, String[][] facetValues, int[][] facetOfRecord) {
+        // Values are compared ignoring the case, and shown the way they were first written
+        Map<String, String> distinct = new HashMap<>();
+        for (int record = 0; record < catalog.size(); record++) {
+            String value = facetOf(catalog.get(record), facet);
+            if (value != null && !distinct.containsKey(value.toLowerCase(Locale.ROOT))) {
+                distinct.put(value.toLowerCase(Locale.ROOT), value);
+            }
+        }
+        String[] keys = distinct.keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+        String[] values = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = distinct.get(keys[i]);
+        }
+        int[] ofRecord = new int[catalog.size()];
+        for (int record = 0; record < ofRecord.length; record++) {
+            String value = facetOf(catalog.get(record), facet);
+            ofRecord[record] = value == null ? -1 : Arrays.binarySearch(keys, value.toLowerCase(Locale.ROOT));
+        }
+        facetValues[facet.ordinal()] = values;
+        facetOfRecord[facet.ordinal()] = ofRecord;
+    }
+
+    private static String textOf(Leaf leaf, Field field) {
+        switch (field) {
+            case NAME:
+                return leaf.getLeafName();
+            case SCIENTIFIC_NAME:
+                return leaf.getScientificName();
+            case FEATURE:
+                return leaf.getFeature();
+            case ORIGIN:
+                return leaf.getOrigin();
+            case USAGE:
+                return leaf.getUsage();
+            default:
+                return leaf.getDescription();
+        }
+    }
+
+    private static String facetOf(Leaf leaf, Facet facet) {
+        String value = facet == Facet.FEATURE ? leaf.getFeature() : leaf.getOrigin();
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    static void tokenize(String text, List<String> tokens) {
+        // Splits the text into lowercase words made of letters and digits. "Anti-inflammatory" gives two words,
+        // which is also what a query for it gives, so both still match
+        if (text == null) {
+            return;
+        }
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean word = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                String token = text.substring(start, i).toLowerCase(Locale.ROOT);
+                if (!STOP_WORDS.contains(token)) {
+                    tokens.add(token);
+                }
+                start = -1;
+            }
+        }
+    }
+
+    public int size() {
+        return records;
+    }
+
+    public int getTermCount() {
+        return terms.length;
+    }
+
+    // The distinct values of a facet, the counts of a SearchResult use the same order
+    public String[] getFacetValues(Facet facet) {
+        return facetValues[facet.ordinal()].clone();
+    }
+
+    public Searcher newSearcher() {
+        return new Searcher();
+    }
+
+    private int findNode(String prefix) {
+        // Walks down the trie letter by letter, returns -1 when no term starts with the prefix
+        int node = 0;
+        for (int i = 0; i < prefix.length() && node >= 0; i++) {
+            char c = prefix.charAt(i);
+            int child = nodeFirstChild[node];
+            while (child >= 0 && nodeChar[child] != c) {
+                child = nodeNextSibling[child];
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private int facetValueIndex(Facet facet, String value) {
+        String[] values = facetValues[facet.ordinal()];
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equalsIgnoreCase(value.trim())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public final class Searcher {
+
+        // The scores of the records, and the query that last wrote each score, so the arrays never have to be cleared
+        private final float[] scores = new float[records];
+        private final int[] stamp = new int[records];
+        private final int[] matched = new int[records];
+        // The score a clause adds to matched[i], 0 when the record is not in its postings
+        private final float[] clauseScores = new float[records];
+        private final List<String> tokens = new ArrayList<>();
+        private int matchedCount;
+        private int query;
+
+        // The clauses of the query: the exact term or -1, the range of prefix terms, and the number of postings
+        private int[] clauseExact = new int[4];
+        private int[] clauseStart = new int[4];
+        private int[] clauseEnd = new int[4];
+        private int[] clausePostings = new int[4];
+        private int clauseCount;
+
+        private int filterFacet = -1;
+        private int filterValue;
+
+        private Searcher() {
+        }
+
+        public SearchResult search(String text, int limit) {
+            return search(text, null, null, limit);
+        }
+
+        public SearchResult search(String text, Facet facet, String facetValue, int limit) {
+            if (limit < 1) {
+                throw new IllegalArgumentException("limit must be at least 1, got " + limit);
+            }
+            if (++query == 0) {
+                // After four billion queries the stamps wrap around, start them again
+                Arrays.fill(stamp, 0);
+                query = 1;
+            }
+            matchedCount = 0;
+            filterFacet = -1;
+            if (facet != null && facetValue != null) {
+                filterFacet = facet.ordinal();
+                filterValue = facetValueIndex(facet, facetValue);
+                if (filterValue < 0) {
+                    return collect(limit);
+                }
+            }
+
+            tokens.clear();
+            tokenize(text, tokens);
+            if (tokens.isEmpty()) {
+                // Without words (or only common words) a facet alone lists all of its records
+                if (filterFacet >= 0) {
+                    for (int record = 0; record < records; record++) {
+                        add(record, 0f);
+                    }
+                }
+                return collect(limit);
+            }
+
+            // While the user is still typing the last word, it is also searched as a prefix
+            boolean typing = text.length() > 0 && Character.isLetterOrDigit(text.charAt(text.length() - 1));
+            clauseCount = 0;
+            for (int i = 0; i < tokens.size(); i++) {
+                String token = tokens.get(i);
+                int node = findNode(token);
+                if (node < 0) {
+                    // No term is this word or starts with it, so no record has every word
+                    return collect(limit);
+                }
+                int start = nodeTermStart[node];
+                int end = nodeTermEnd[node];
+                int exact = -1;
+                if (terms[start].length() == token.length()) {
+                    exact = start;
+                    start++;
+                }
+                end = typing && i == tokens.size() - 1 ? Math.min(end, start + MAX_PREFIX_TERMS) : start;
+                if (exact < 0 && start == end) {
+                    return collect(limit);
+                }
+                addClause(exact, start, end);
+            }
+
+            // The shortest clause gives the candidates, every other clause only keeps those it contains
+            int first = shortestClause(0);
+            swapClauses(0, first);
+            if (clauseExact[0] >= 0) {
+                accumulate(clauseExact[0], 1f);
+            }
+            for (int term = clauseStart[0]; term < clauseEnd[0]; term++) {
+                accumulate(term, PREFIX_WEIGHT);
+            }
+            if (clauseCount > 1) {
+                // Postings are sorted by record, so sorted candidates are found with one pass over each list
+                Arrays.sort(matched, 0, matchedCount);
+            }
+            for (int c = 1; c < clauseCount && matchedCount > 0; c++) {
+                swapClauses(c, shortestClause(c));
+                Arrays.fill(clauseScores, 0, matchedCount, 0f);
+                if (clauseExact[c] >= 0) {
+                    intersect(clauseExact[c], 1f);
+                }
+                for (int term = clauseStart[c]; term < clauseEnd[c]; term++) {
+                    intersect(term, PREFIX_WEIGHT);
+                }
+                // BM25 scores are positive, so a candidate without a score is not in the postings of the clause
+                int kept = 0;
+                for (int i = 0; i < matchedCount; i++) {
+                    if (clauseScores[i] > 0f) {
+                        int record = matched[i];
+                        scores[record] += clauseScores[i];
+                        matched[kept++] = record;
+                    }
+                }
+                matchedCount = kept;
+            }
+            return collect(limit);
+        }
+
+        private void addClause(int exact, int start, int end) {
+            if (clauseCount == clauseExact.length) {
+                int capacity = clauseCount * 2;
+                clauseExact = Arrays.copyOf(clauseExact, capacity);
+                clauseStart = Arrays.copyOf(clauseStart, capacity);
+                clauseEnd = Arrays.copyOf(clauseEnd, capacity);
+                clausePostings = Arrays.copyOf(clausePostings, capacity);
+            }
+            int count = exact >= 0 ? postingStart[exact + 1] - postingStart[exact] : 0;
+            count += postingStart[end] - postingStart[start];
+            clauseExact[clauseCount] = exact;
+            clauseStart[clauseCount] = start;
+            clauseEnd[clauseCount] = end;
+            clausePostings[clauseCount] = count;
+            clauseCount++;
+        }
+
+        private int shortestClause(int from) {
+            int shortest = from;
+            for (int c = from + 1; c < clauseCount; c++) {
+                if (clausePostings[c] < clausePostings[shortest]) {
+                    shortest = c;
+                }
+            }
+            return shortest;
+        }
+
+        private void swapClauses(int a, int b) {
+            if (a != b) {
+                swap(clauseExact, a, b);
+                swap(clauseStart, a, b);
+                swap(clauseEnd, a, b);
+                swap(clausePostings, a, b);
+            }
+        }
+
+        private void intersect(int term, float weight) {
+            // Adds the score of 'term' to the candidates that have it. Both the candidates and the postings are sorted
+            // by record, so the search for the next candidate starts where the last one was found
+            float termIdf = weight * idf[term];
+            int p = postingStart[term];
+            int end = postingStart[term + 1];
+            for (int i = 0; i < matchedCount && p < end; i++) {
+                int record = matched[i];
+                p = seek(p, end, record);
+                if (p < end && postings[p] == record) {
+                    float frequency = postings[p + 1];
+                    clauseScores[i] += termIdf * frequency * (K1 + 1) / (frequency + lengthNorm[record]);
+                }
+            }
+        }
+
+        private int seek(int from, int end, int record) {
+            // The first posting at or after 'from' whose record is not below 'record', or 'end'
+            // The steps double until they pass the record, then a binary search finds it between the last two steps
+            // Positions are counted in (record, frequency) pairs
+            if (postings[from] >= record) {
+                return from;
+            }
+            int pairs = (end - from) / 2;
+            int low = 0;
+            int high = 1;
+            while (high < pairs && postings[from + 2 * high] < record) {
+                low = high;
+                high *= 2;
+            }
+            high = Math.min(high, pairs);
+            while (low + 1 < high) {
+                int middle = (low + high) >>> 1;
+                if (postings[from + 2 * middle] < record) {
+                    low = middle;
+                } else {
+                    high = middle;
+                }
+            }
+            return from + 2 * high;
+        }
+
+        private void accumulate(int term, float weight) {
+            float termIdf = weight * idf[term];
+            for (int p = postingStart[term], end = postingStart[term + 1]; p < end; p += 2) {
+                int record = postings[p];
+                float frequency = postings[p + 1];
+                add(record, termIdf * frequency * (K1 + 1) / (frequency + lengthNorm[record]));
+            }
+        }
+
+        private void add(int record, float score) {
+            if (filterFacet >= 0 && facetOfRecord[filterFacet][record] != filterValue) {
+                return;
+            }
+            if (stamp[record] != query) {
+                stamp[record] = query;
+                scores[record] = 0f;
+                matched[matchedCount++] = record;
+            }
+            scores[record] += score;
+        }
+
+        private SearchResult collect(int limit) {
+            // The best records come out of a heap of 'limit' entries, the facets are counted over every match
+            TopK best = new TopK(Math.min(limit, Math.max(1, matchedCount)));
+            best.clear();
+            int[][] counts = new int[facetValues.length][];
+            for (int f = 0; f < counts.length; f++) {
+                counts[f] = new int[facetValues[f].length];
+            }
+            for (int i = 0; i < matchedCount; i++) {
+                int record = matched[i];
+                best.offer(record, scores[record]);
+                for (int f = 0; f < counts.length; f++) {
+                    int value = facetOfRecord[f][record];
+                    if (value >= 0) {
+                        counts[f][value]++;
+                    }
+                }
+            }
+            best.finish();
+            int[] resultRecords = new int[best.size()];
+            float[] resultScores = new float[best.size()];
+            for (int i = 0; i < resultRecords.length; i++) {
+                resultRecords[i] = best.indexAt(i);
+                resultScores[i] = best.scoreAt(i);
+            }
+            return new SearchResult(resultRecords, resultScores, matchedCount, counts);
+        }
+    }
+
+    public static final class SearchResult {
+        private final int[] records;
+        private final float[] scores;
+        private final int totalMatches;
+        private final int[][] facetCounts;
+
+        SearchResult(int[] records, float[] scores, int totalMatches, int[][] facetCounts) {
+            this.records = records;
+            this.scores = scores;
+            this.totalMatches = totalMatches;
+            this.facetCounts = facetCounts;
+        }
+
+        // The number of records returned, at most the limit of the search
+        public int size() {
+            return records.length;
+        }
+
+        // The record of the catalog at this rank, LeafCatalog.get() returns its leaf
+        public int recordAt(int rank) {
+            return records[rank];
+        }
+
+        public float scoreAt(int rank) {
+            return scores[rank];
+        }
+
+        // How many records matched in total, also those beyond the limit
+        public int getTotalMatches() {
+            return totalMatches;
+        }
+
+        // How many matching records have the value at 'valueIndex' of LeafSearchIndex.getFacetValues(facet)
+        public int getFacetCount(Facet facet, int valueIndex) {
+            return facetCounts[facet.ordinal()][valueIndex];
+        }
+    }
+
+    private static void swap(int[] values, int a, int b) {
+        int value = values[a];
+        values[a] = values[b];
+        values[b] = value;
+    }
+
+    private static final class Trie {
+        // Only used while building, the index keeps trimmed copies of these arrays
+        char[] chars = new char[256];
+        int[] firstChild = new int[256];
+        int[] nextSibling = new int[256];
+        int[] lastChild = new int[256];
+        int[] termStart = new int[256];
+        int[] termEnd = new int[256];
+        int size;
+
+        Trie(String[] sortedTerms) {
+            addNode('\0', 0);
+            termEnd[0] = sortedTerms.length;
+            for (int id = 0; id < sortedTerms.length; id++) {
+                // The terms come sorted, so a letter that already has a node under the current one is always
+                // its last child, and every node is reached by a contiguous run of term ids
+                String term = sortedTerms[id];
+                int node = 0;
+                for (int i = 0; i < term.length(); i++) {
+                    char c = term.charAt(i);
+                    int child = lastChild[node];
+                    if (child < 0 || chars[child] != c) {
+                        int created = addNode(c, id);
+                        if (child < 0) {
+                            firstChild[node] = created;
+                        } else {
+                            nextSibling[child] = created;
+                        }
+                        lastChild[node] = created;
+                        child = created;
+                    }
+                    termEnd[child] = id + 1;
+                    node = child;
+                }
+            }
+        }
+
+        private int addNode(char c, int term) {
+            if (size == chars.length) {
+                int capacity = size * 2;
+                chars = Arrays.copyOf(chars, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                lastChild = Arrays.copyOf(lastChild, capacity);
+                termStart = Arrays.copyOf(termStart, capacity);
+                termEnd = Arrays.copyOf(termEnd, capacity);
+            }
+            chars[size] = c;
+            firstChild[size] = -1;
+            nextSibling[size] = -1;
+            lastChild[size] = -1;
+            termStart[size] = term;
+            termEnd[size] = term + 1;
+            return size++;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.dktes.medileaf;
+
+interface LeafStore {
+
+    // A leaf store is where the LeafCatalog gets its records from: either the parsed data.json or the binary catalog
+    // Records are addressed by their position, from 0 to size() - 1
+
+    int size();
+
+    Leaf get(int record);
+
+    // returns the record of the leaf with this exact name, or -1 when there is none
+    int indexOfName(String leafName);
+
+    // An estimate of the memory the store holds, for the ResourceGovernor
+    long getEstimatedBytes();
+}
@@ -0,0 +1,216 @@
+package com.dktes.medileaf;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
+
+import android.Manifest;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.graphics.SurfaceTexture;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
+import android.view.TextureView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.IOException;
+import java.util.Locale;
+
+public class LiveActivity extends AppCompatActivity {
+
+    // The live mode classifies what the camera sees, continuously, instead of a single photo
+    // The camera preview is shown on the TextureView and the smoothed label is written over it
+    // Tapping the label opens the result screen of that leaf, like a normal classification does
+
+    private static final String TAG = "LiveActivity";
+    private static final int CAMERA_REQUEST = 1;
+
+    // alpha of the moving average: about the last 5 frames matter. A label is only shown (and can be tapped)
+    // when the rejection policy of the ModelRegistry accepts the smoothed result
+    private static final float SMOOTHING = 0.3f;
+
+    private TextureView preview;
+    private TextView textLabel;
+    private TextView textConfidence;
+
+    private FrameSource frameSource;
+    private LatestFrameScheduler scheduler;
+    private Surface previewSurface;
+    private String currentLabel = "";
+    private float currentConfidence;
+
+    // The generation of the ModelRegistry the live classifier was built with
+    private int liveGeneration;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_live);
+
+        preview = findViewById(R.id.texture_preview);
+        textLabel = findViewById(R.id.text_live_label);
+        textConfidence = findViewById(R.id.text_live_confidence);
+
+        textLabel.setOnClickListener(view -> {
+            if (!currentLabel.isEmpty()) {
+                Intent resultActivity = new Intent(getApplicationContext(), ResultActivity.class);
+                resultActivity.putExtra("leafName", currentLabel);
+                resultActivity.putExtra("confidence", currentConfidence);
+                startActivity(resultActivity);
+            }
+        });
+
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.CAMERA}, CAMERA_REQUEST);
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode != CAMERA_REQUEST) {
+            return;
+        }
+        if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            startWhenPreviewReady();
+        } else {
+            Toast.makeText(this, "The live mode needs the camera", Toast.LENGTH_LONG).show();
+            finish();
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // The app is in front again, the components trimmed for the system may grow back
+        ResourceGovernor.getInstance().relax();
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED) {
+            startWhenPreviewReady();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        // The camera must be given back as soon as the activity is not visible anymore
+        stopLive();
+        super.onPause();
+    }
+
+    private void startWhenPreviewReady() {
+        if (preview.isAvailable()) {
+            startLive(preview.getSurfaceTexture());
+            return;
+        }
+        preview.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
+            @Override
+            public void onSurfaceTextureAvailable(SurfaceTexture texture, int width, int height) {
+                startLive(texture);
+            }
+
+            @Override
+            public void onSurfaceTextureSizeChanged(SurfaceTexture texture, int width, int height) {
+            }
+
+            @Override
+            public boolean onSurfaceTextureDestroyed(SurfaceTexture texture) {
+                stopLive();
+                return true;
+            }
+
+            @Override
+            public void onSurfaceTextureUpdated(SurfaceTexture texture) {
+            }
+        });
+    }
+
+    private void startLive(SurfaceTexture texture) {
+        if (scheduler != null || isFinishing()) {
+            return;
+        }
+        // The model may not be loaded yet, so the engine and the labels are fetched off the UI thread
+        new Thread(() -> {
+            try {
+                ModelRegistry registry = ModelRegistry.getInstance(this);
+                int generation = registry.getGeneration();
+                InferenceEngine engine = registry.getInferenceEngine();
+                LabelTable labels = registry.getLabelTable();
+                RejectionPolicy policy = registry.getRejectionPolicy();
+                runOnUiThread(() -> startCamera(texture, engine, labels, policy, generation));
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot load the model", e);
+                runOnUiThread(() -> Toast.makeText(this, "Cannot load the model", Toast.LENGTH_LONG).show());
+            }
+        }, "live-setup").start();
+    }
+
+    private void startCamera(SurfaceTexture texture, InferenceEngine engine, LabelTable labels, RejectionPolicy policy,
+                             int generation) {
+        if (scheduler != null || isFinishing()) {
+            return;
+        }
+        liveGeneration = generation;
+        LiveClassifier classifier = new LiveClassifier(engine, labels, SMOOTHING, policy,
+                ContextCompat.getMainExecutor(this), this::showLabel);
+        scheduler = new LatestFrameScheduler(classifier, this::onFrameError);
+
+        texture.setDefaultBufferSize(640, 480);
+        previewSurface = new Surface(texture);
+        frameSource = new Camera2FrameSource(this, previewSurface);
+        try {
+            frameSource.start(scheduler);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot start the camera", e);
+            Toast.makeText(this, "Cannot open the camera", Toast.LENGTH_LONG).show();
+            stopLive();
+        }
+    }
+
+    private void stopLive() {
+        if (frameSource != null) {
+            frameSource.stop();
+            frameSource = null;
+        }
+        if (scheduler != null) {
+            scheduler.close();
+            scheduler = null;
+        }
+        if (previewSurface != null) {
+            previewSurface.release();
+            previewSurface = null;
+        }
+    }
+
+    private void onFrameError(Exception error) {
+        // Called on the classification thread. When a content pack replaced the model, the old interpreters are closed
+        // and every frame fails: the live mode is started again with the new model
+        if (ModelRegistry.getInstance(this).getGeneration() != liveGeneration) {
+            runOnUiThread(this::restartLive);
+            return;
+        }
+        Log.w(TAG, "Cannot classify a frame", error);
+    }
+
+    private void restartLive() {
+        // Several failed frames may ask for a restart, only the first one does it
+        int generation = ModelRegistry.getInstance(this).getGeneration();
+        if (scheduler == null || generation == liveGeneration) {
+            return;
+        }
+        liveGeneration = generation;
+        stopLive();
+        startWhenPreviewReady();
+    }
+
+    private void showLabel(String label, float confidence) {
+        if (!label.isEmpty() && !label.equals(currentLabel)) {
+            // The frames are still being classified, meanwhile the photo for the result screen is decoded
+            LeafImageCache.getInstance(this).prefetch(label);
+        }
+        currentLabel = label;
+        currentConfidence = confidence;
+        textLabel.setText(label);
+        textConfidence.setText(label.isEmpty() ? "" : String.format(Locale.ROOT, "%d%%", Math.round(confidence * 100)));
+    }
+}
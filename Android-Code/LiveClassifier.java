@@ -0,0 +1,79 @@
+package com.dktes.medileaf;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+public final class LiveClassifier implements LatestFrameScheduler.Processor {
+
+    // Classifies the frames handed over by the LatestFrameScheduler, one at a time on its worker thread
+    // Each frame is preprocessed into the same input buffer, classified, and its top-k is added to the smoother.
+    // The smoothed top-k goes through the same RejectionPolicy as a photo, so live mode only names a leaf
+    // when a photo of it would be accepted too (confidence, margin and entropy, with the fitted temperature)
+    // The listener only hears about it when the label or the rounded confidence on screen would change,
+    // so the UI thread is not woken up for every frame
+
+    public interface Listener {
+        // 'label' is empty while the smoothed result is rejected as an unknown leaf
+        void onLabel(String label, float confidence);
+    }
+
+    private final Preprocessor preprocessor;
+    private final ClassificationHelper helper;
+    private final LabelTable labels;
+    private final TopKSmoother smoother;
+    private final RejectionPolicy policy;
+    private final Prediction prediction;
+    private final Executor callbackExecutor;
+    private final Listener listener;
+
+    private String shownLabel;
+    private int shownPercent = -1;
+
+    public LiveClassifier(InferenceEngine engine, LabelTable labels, float alpha, RejectionPolicy policy,
+                          Executor callbackExecutor, Listener listener) {
+        int[] shape = engine.getImageShape();
+        this.preprocessor = new BilinearPreprocessor(shape[1], shape[0], engine.getInputFormat());
+        // no result cache here: camera frames never repeat exactly, they would only fill the cache
+        this.helper = new ClassificationHelper(engine, labels, 3, null, policy);
+        this.labels = labels;
+        this.smoother = new TopKSmoother(labels.size(), 3, alpha);
+        this.policy = policy;
+        this.prediction = new Prediction(labels, 3);
+        this.callbackExecutor = callbackExecutor;
+        this.listener = listener;
+    }
+
+    @Override
+    public void process(Frame frame) throws Exception {
+        long start = Metrics.start();
+        ByteBuffer input = preprocessor.process(frame);
+        Metrics.record(Metrics.Stage.PREPROCESS, start);
+
+        // The single frame may be rejected while the smoothed result is accepted, or the other way around,
+        // only the decision on the smoothed result counts
+        TopK smoothed = smoother.update(helper.predict(input).getTopK());
+        prediction.update(smoothed, labels.size(), policy);
+
+        String label = "";
+        float confidence = 0f;
+        if (!prediction.isUnknown()) {
+            label = prediction.getLabel();
+            confidence = prediction.getConfidence();
+        }
+        int percent = Math.round(confidence * 100);
+        if (!label.equals(shownLabel) || percent != shownPercent) {
+            shownLabel = label;
+            shownPercent = percent;
+            String shown = label;
+            float shownConfidence = confidence;
+            callbackExecutor.execute(() -> listener.onLabel(shown, shownConfidence));
+        }
+    }
+
+    public void reset() {
+        // Forgets the smoothed scores. Only call it while no frame is being processed (the scheduler is closed)
+        smoother.reset();
+        shownLabel = null;
+        shownPercent = -1;
+    }
+}
@@ -0,0 +1,49 @@
+package com.dktes.medileaf;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class LocalPackSource implements PackSource {
+
+    // Offers the packs (*.mlcp files) of a directory, for example one the packs were copied to with adb,
+    // or the directory a download finished in. It stands in for a server when testing updates offline
+
+    public static final String EXTENSION = ".mlcp";
+
+    private final File directory;
+
+    public LocalPackSource(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public List<String> list() {
+        List<String> names = new ArrayList<>();
+        String[] files = directory.list();
+        if (files != null) {
+            Arrays.sort(files);
+            for (String file : files) {
+                if (file.endsWith(EXTENSION)) {
+                    names.add(file);
+                }
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public InputStream open(String name) throws IOException {
+        File file = new File(directory, name);
+        if (!file.getParentFile().equals(directory)) {
+            throw new FileNotFoundException("Not a pack of " + directory + ": " + name);
+        }
+        return new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+    }
+}
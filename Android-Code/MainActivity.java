@@ -3,6 +3,7 @@ package com.dktes.medileaf;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
 
 import android.app.Activity;
 import android.content.Intent;
@@ -14,6 +15,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class MainActivity extends AppCompatActivity {
 
     // This is the parent activity
@@ -21,14 +28,79 @@ public class MainActivity extends AppCompatActivity {
     // Capture image allows a user to click a image of the leaf from their mobile camera
     // Upload image allows a user to upload image of the leaf from their mobile gallery
 
-    // The 'image' variable is used to store the captured or uploaded image by the user
-    private Bitmap image;
+    // The preprocessor and the classification helper keep their buffers between classifications, so we create them only once
+    // They are only used on the inference thread of the classification executor
+    private TargetSizeDecoder<Uri, Bitmap> uriDecoder;
+    private Preprocessor preprocessor;
+    private final BitmapPixelSource bitmapSource = new BitmapPixelSource(null);
+    private ClassificationHelper classificationHelper;
+
+    // The generation of the ModelRegistry the objects above were built for, see refreshModel()
+    private int modelGeneration = -1;
+
+    // The buffers of the objects above are registered with the ResourceGovernor. They can only be dropped on the
+    // inference thread, so a trim only marks them and refreshModel() drops them before the next classification
+    private ResourceGovernor.Registration buffersRegistration;
+    private volatile long bufferBytes;
+    private volatile boolean buffersTrimmed;
+
+    // The accurate mode classifies several views of the image (test-time augmentation) within a time budget
+    // It is switched on and off with a long press on the capture or upload button and remembered between sessions
+    private static final String SETTINGS = "settings";
+    private static final String SETTING_TTA = "tta";
+    // The photos of this many of the best classes are decoded while the result screen starts
+    private static final int PREFETCH_CANDIDATES = 1;
+    // The survey new classifications are journaled under, 0 until the first one is started
+    // A long press on the live button starts the next survey and is remembered between sessions
+    private static final String SETTING_SURVEY = "survey";
+    private static final int TTA_VIEWS = 8;
+    private static final int TTA_BATCH_SIZE = 4;
+    private static final long TTA_BUDGET_NANOS = 600_000_000L;
+    private volatile boolean ttaEnabled;
+    private TtaClassifier ttaClassifier;
+    private ExecutorService ttaExecutor;
+
+    // Decoding, preprocessing and classifying an image is too slow for the UI thread, so it happens on this executor
+    private ClassificationExecutor<Intent, ClassificationPipeline.Result> classificationExecutor;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        // The pipeline decodes the returned image, preprocesses it, classifies it and finds the leaf in the catalog
+        ClassificationPipeline<Intent, Bitmap, ByteBuffer> pipeline = new ClassificationPipeline<>(
+                this::decodeImage,
+                this::preprocessImage,
+                this::classifyImage,
+                leafName -> LeafCatalogs.getInstance(getApplicationContext()).findByName(leafName));
+        // In accurate mode the bitmap itself goes to the inference stage, because every view is preprocessed separately
+        ClassificationPipeline<Intent, Bitmap, Bitmap> ttaPipeline = new ClassificationPipeline<>(
+                this::decodeImage,
+                image -> image,
+                this::classifyViews,
+                leafName -> LeafCatalogs.getInstance(getApplicationContext()).findByName(leafName));
+        ttaEnabled = getSharedPreferences(SETTINGS, MODE_PRIVATE).getInt(SETTING_TTA, 0) == 1;
+        classificationExecutor = new ClassificationExecutor<>(
+                data -> {
+                    refreshModel();
+                    return ttaEnabled ? ttaPipeline.run(data) : pipeline.run(data);
+                }, ContextCompat.getMainExecutor(this));
+
+        buffersRegistration = ResourceGovernor.getInstance().register("classification-buffers",
+                ResourceGovernor.PRIORITY_BUFFERS, new ResourceGovernor.Resource() {
+                    @Override
+                    public long getBytes() {
+                        return bufferBytes;
+                    }
+
+                    @Override
+                    public void trim(int level) {
+                        if (level >= ResourceGovernor.TRIM_IDLE) {
+                            buffersTrimmed = true;
+                        }
+                    }
+                });
 
         // Set the message of the day to text_message
         String message_of_day = Utility.getMessage();
@@ -38,6 +110,7 @@ public class MainActivity extends AppCompatActivity {
         // Initialize the buttons for capturing and uploading
         FloatingActionButton actionCapture = findViewById(R.id.action_capture);
         FloatingActionButton actionUpload = findViewById(R.id.action_upload);
+        FloatingActionButton actionLive = findViewById(R.id.action_live);
 
         // This intent will be used to jump to the result activity of our app
         Intent resultActivity = new Intent(getApplicationContext(), ResultActivity.class);
@@ -59,28 +132,42 @@ public class MainActivity extends AppCompatActivity {
                 Intent data = result.getData();
                 // we need to make sure that data is not null
                 assert data != null;
-                try {
-                    // get the extra content of the intent and find the key 'data' which represents an image
-                    // this will only possible when user captures an image with camera
-                    this.image = (Bitmap) data.getExtras().get("data");
-                }
-                catch(NullPointerException ex) {
-                    // a null pointer exception will occur if the user has uploaded it from gallery
-                    // in that case, we will get the path of the image from gallery app which will later used to load image using GetFromUri method
-                    this.image = getFromUri(data.getData(), this);
-                }
-
-                // A new separate method is created which will call the ClassificationHelper and return the leaf name
-                String leafName = classifyImage(this);
-
-                // We will send this leaf name to the result activity
-                resultActivity.putExtra("leafName", leafName);
-                startActivity(resultActivity);
+
+                // The time from here to the first frame of the result screen is what the user waits for
+                long capturedAt = Metrics.start();
+
+                // The image is decoded and classified on the classification executor, the UI stays responsive meanwhile
+                // If the user captures another image before this one is done, this classification is cancelled
+                classificationExecutor.submit(data, new ClassificationExecutor.Callback<ClassificationPipeline.Result>() {
+                    @Override
+                    public void onResult(ClassificationPipeline.Result classification) {
+                        // We will send this leaf name to the result activity
+                        // When the model was not sure enough, there is no leaf name and the result screen says so
+                        Prediction prediction = classification.getPrediction();
+                        resultActivity.putExtra("leafName", classification.getLeafName());
+                        resultActivity.putExtra("confidence", prediction.getConfidence());
+                        resultActivity.putExtra("capturedAt", capturedAt);
+                        startActivity(resultActivity);
+                    }
+
+                    @Override
+                    public void onError(Throwable error) {
+                        if (error instanceof CancellationException) {
+                            Metrics.increment(Metrics.Counter.CLASSIFICATION_CANCELLED);
+                            return;
+                        }
+                        if (error instanceof OutOfMemoryError) {
+                            Metrics.increment(Metrics.Counter.OUT_OF_MEMORY);
+                        }
+                        Metrics.increment(Metrics.Counter.CLASSIFICATION_FAILED);
+                        System.out.println(error.getMessage() + " -- Exception in classifyImage() method");
+                        Toast.makeText(MainActivity.this, "Cannot classify this image", Toast.LENGTH_LONG).show();
+                    }
+                });
 
             } else {
                 // If the results are not returned, a Toast will be displayed to avoid crashing of app
                 Toast.makeText(this, "Cannot get image at this moment", Toast.LENGTH_LONG).show();
-                this.image = null;
             }
         });
 
@@ -108,39 +195,174 @@ public class MainActivity extends AppCompatActivity {
             // The action will not initiate a contract between gallery apps and Medileaf and start the selected gallery app
             captureOrUpload.launch(intent);
         });
+
+        // the live button opens the live mode, which classifies the camera preview continuously
+        actionLive.setOnClickListener(view -> startActivity(new Intent(getApplicationContext(), LiveActivity.class)));
+
+        // a long press on capture or upload switches the accurate mode
+        actionCapture.setOnLongClickListener(view -> toggleAccurateMode());
+        actionUpload.setOnLongClickListener(view -> toggleAccurateMode());
+        // a long press on live starts a new survey, the classifications after it are journaled under it
+        actionLive.setOnLongClickListener(view -> startNewSurvey());
+    }
+
+    private boolean toggleAccurateMode() {
+        ttaEnabled = !ttaEnabled;
+        getSharedPreferences(SETTINGS, MODE_PRIVATE).edit().putInt(SETTING_TTA, ttaEnabled ? 1 : 0).apply();
+        Toast.makeText(this, ttaEnabled ? "Accurate mode on" : "Accurate mode off", Toast.LENGTH_SHORT).show();
+        return true;
     }
 
-    private Bitmap getFromUri(Uri uri, Activity activity) {
+    private boolean startNewSurvey() {
+        int survey = getSharedPreferences(SETTINGS, MODE_PRIVATE).getInt(SETTING_SURVEY, 0) + 1;
+        getSharedPreferences(SETTINGS, MODE_PRIVATE).edit().putInt(SETTING_SURVEY, survey).apply();
+        Toast.makeText(this, "Survey " + survey + " started", Toast.LENGTH_SHORT).show();
+        return true;
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // The app is in front again, the components trimmed for the system may grow back
+        ResourceGovernor.getInstance().relax();
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Any classification still running belongs to this activity, so it is cancelled with it
+        classificationExecutor.close();
+        buffersRegistration.close();
+        if (ttaExecutor != null) {
+            ttaExecutor.shutdown();
+        }
+        super.onDestroy();
+    }
+
+    private Bitmap decodeImage(Intent data) throws Exception {
+        long start = Metrics.start();
+        try {
+            // get the extra content of the intent and find the key 'data' which represents an image
+            // this will only possible when user captures an image with camera
+            return (Bitmap) data.getExtras().get("data");
+        }
+        catch(NullPointerException ex) {
+            // a null pointer exception will occur if the user has uploaded it from gallery
+            // in that case, we will get the path of the image from gallery app which will later used to load image using GetFromUri method
+            return getFromUri(data.getData());
+        }
+        finally {
+            Metrics.record(Metrics.Stage.DECODE, start);
+        }
+    }
+
+    private Bitmap getFromUri(Uri uri) throws Exception {
         // gallery app will surely return the path to the image that the user select
         // this method's job is to load the image from the given path
+        // Photos from the gallery are often 12 MP or more, but the model only needs 150x150 pixels
+        // So the decoder reads the size of the image first and decodes only as many pixels as the preprocessing needs
+        if (uriDecoder == null) {
+            int[] shape = ModelRegistry.getInstance(this).getInferenceEngine().getImageShape();
+            uriDecoder = new TargetSizeDecoder<>(new UriBitmapDecoder(getContentResolver()), shape[1], shape[0], false, true);
+        }
+        return uriDecoder.apply(uri);
+    }
+
+    private ByteBuffer preprocessImage(Bitmap image) throws IOException {
+        // We cannot pass a raw image from gallery and camera directly to a DL model
+        // The preprocessor resizes it to the input size of the model (150x150 RGB) and converts it to floats in one pass
+        if (preprocessor == null) {
+            // A quantized model takes one byte per value instead of a float, the preprocessor writes what the model expects
+            InferenceEngine engine = ModelRegistry.getInstance(this).getInferenceEngine();
+            int[] shape = engine.getImageShape();
+            preprocessor = new BilinearPreprocessor(shape[1], shape[0], engine.getInputFormat());
+            bufferBytes += engine.getInputBytesPerImage();
+            buffersRegistration.grew();
+        }
+        long start = Metrics.start();
+        bitmapSource.set(image);
         try {
-            // This is way simpler
-            // The MediaStore has functionality to get a bitmap image from the given URI
-            // the getContentResolver() identifies from which source the data has arrived into our app. Ex, cloud apps, gallery or external pen drive
-            // If the resolver cannot identify the source, the image loading fails
-            return MediaStore.Images.Media.getBitmap(activity.getContentResolver(), uri);
-        } catch (Exception ex) {
-            System.out.println(ex.getMessage() + " while loading the image from gallery");
+            return preprocessor.process(bitmapSource);
+        } finally {
+            // do not keep the bitmap alive after it was preprocessed
+            bitmapSource.set(null);
+            Metrics.record(Metrics.Stage.PREPROCESS, start);
         }
-        return null;
     }
 
-    private String classifyImage(Activity activity) {
+    private void refreshModel() {
+        // A content pack may have replaced the model while the app was running. Everything built for the old model
+        // is dropped here, on the inference thread, and built again for the new model when it is needed
+        // The same happens when the ResourceGovernor asked for the buffers back
+        int generation = ModelRegistry.getInstance(this).getGeneration();
+        if (generation != modelGeneration || buffersTrimmed) {
+            modelGeneration = generation;
+            buffersTrimmed = false;
+            uriDecoder = null;
+            preprocessor = null;
+            classificationHelper = null;
+            ttaClassifier = null;
+            bufferBytes = 0;
+        }
+    }
+
+    private Prediction classifyImage(ByteBuffer image) throws IOException {
         // This is a supporting method that handles all the classification stuff
-        String result = "";
+        // It runs on the inference thread, never on the UI thread
+        if (classificationHelper == null) {
+            // The model and the labels are loaded only once per process by the ModelRegistry, here we just get them
+            // The result cache remembers images that were classified before, even after the app was restarted
+            ModelRegistry registry = ModelRegistry.getInstance(this);
+            classificationHelper = new ClassificationHelper(registry.getInferenceEngine(), registry.getLabelTable(),
+                    3, registry.getResultCache(), registry.getRejectionPolicy());
+        }
+        // the result holds the best leaves and how sure the model is. It is copied because the helper reuses it
+        Prediction prediction = classificationHelper.predict(image).copy();
+        LeafImageCache.getInstance(this).prefetch(prediction, PREFETCH_CANDIDATES);
+        int bytesPerImage = ModelRegistry.getInstance(this).getInferenceEngine().getInputBytesPerImage();
+        journal(prediction, InputHasher.hash(image, bytesPerImage));
+        return prediction;
+    }
 
-        // Now we first convert the image from gallery or camera to a tensor image
-        ImageHelper imageHelper = new ImageHelper(this.image);
+    private Prediction classifyViews(Bitmap image) throws IOException {
+        // Test-time augmentation: flipped, cropped and slightly turned views of the image are classified in batches
+        // and their probabilities averaged. When the pool has a second interpreter, two batches run at the same time
+        if (ttaClassifier == null) {
+            ModelRegistry registry = ModelRegistry.getInstance(this);
+            int parallelism = Math.min(2, registry.getInterpreterPool().getCapacity());
+            if (parallelism > 1 && ttaExecutor == null) {
+                ttaExecutor = Executors.newFixedThreadPool(parallelism - 1);
+            }
+            ttaClassifier = new TtaClassifier(registry.getInferenceEngine(), registry.getLabelTable(),
+                    ViewTransform.defaults(TTA_VIEWS), TTA_BATCH_SIZE, parallelism, ttaExecutor, 3,
+                    registry.getRejectionPolicy());
+            // A batch input per parallel batch, the copy of the source image is not counted
+            bufferBytes += (long) parallelism * TTA_BATCH_SIZE * registry.getInferenceEngine().getInputBytesPerImage();
+            buffersRegistration.grew();
+        }
+        bitmapSource.set(image);
+        Prediction prediction;
         try {
-            // here, the classification helper will get an image and an activity which will be used as a resource to classify it
-            ClassificationHelper classificationHelper = new ClassificationHelper(activity, imageHelper.getTensorImage());
-            // the results will contain a single string that is the name of the leaf that we want to find
-            result = classificationHelper.classify();
+            prediction = ttaClassifier.classify(bitmapSource, TTA_BUDGET_NANOS).copy();
+        } finally {
+            bitmapSource.set(null);
         }
-        catch (Exception ex) {
-            System.out.println(ex.getMessage() + " -- Exception in classifyImage() method");
+        LeafImageCache.getInstance(this).prefetch(prediction, PREFETCH_CANDIDATES);
+        // The views are preprocessed one by one, there is no single preprocessed image to hash
+        journal(prediction, 0);
+        return prediction;
+    }
+
+    private void journal(Prediction prediction, long imageHash) {
+        // Every classification is kept in the survey journal. Appending only copies the record into a mapped file,
+        // the disk is written in the background, so the result is not delayed
+        // The app does not ask for the location permission, so the location is left unknown
+        try {
+            int survey = getSharedPreferences(SETTINGS, MODE_PRIVATE).getInt(SETTING_SURVEY, 0);
+            ((MediLeafApplication) getApplication()).getJournal().append(System.currentTimeMillis(), survey,
+                    Double.NaN, Double.NaN, imageHash, prediction);
+        } catch (IOException e) {
+            // A journal that cannot be written must not cost the user the result
+            System.out.println(e.getMessage() + " -- Exception in journal() method");
         }
-        // return the name of leaf
-        return result;
     }
 }
\ No newline at end of file
@@ -0,0 +1,150 @@
+package com.dktes.medileaf;
+
+import android.app.ActivityManager;
+import android.app.Application;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+public class MediLeafApplication extends Application {
+
+    // This class lives as long as the app process does
+    // Everything that should be loaded once and shared by all activities (like the model) is tied to it
+
+    // How often the metrics snapshot is written to files/metrics.json
+    private static final long METRICS_PERIOD_SECONDS = 60;
+
+    // Content packs (*.mlcp) copied to this directory are installed on the next start
+    private static final String PACKS_DIRECTORY = "packs";
+
+    // Every classification is written to the survey journal in this directory (see SurveyJournal)
+    private static final String JOURNAL_DIRECTORY = "journal";
+
+    // The heavy components together (interpreters, catalog, caches, see ResourceGovernor) may hold this share
+    // of the memory class of the app. It counts native memory too, so it is a share and not the whole heap
+    private static final int MEMORY_CLASS_SHARE = 2;
+
+    private MetricsReporter metricsReporter;
+    private SurveyJournal journal;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClass = activityManager == null ? 64 : activityManager.getMemoryClass();
+        ResourceGovernor.getInstance().setBudget((long) memoryClass * 1024 * 1024 / MEMORY_CLASS_SHARE);
+        ModelRegistry.getInstance(this);
+
+        metricsReporter = new MetricsReporter(this);
+        metricsReporter.start(METRICS_PERIOD_SECONDS);
+
+        // When a content pack is installed, the catalog and the model are loaded again from the new files
+        ContentStore.getInstance(this).addListener(version -> {
+            LeafCatalogs.reload();
+            ModelRegistry.getInstance(this).reload();
+        });
+
+        // The leaf catalog is read on a background thread, so it is ready by the time the first result is shown
+        // The model is prepared there as well: the variant is chosen, the interpreter threads are tuned (only
+        // the first time) and the first interpreter is created, so the first classification does not wait for it
+        // New content packs are installed first, so the warm-up already loads the new content
+        new Thread(() -> {
+            installContentPacks();
+            try {
+                LeafCatalogs.getInstance(this);
+            } catch (IOException e) {
+                Log.e("MediLeafApplication", "Error reading the leaf catalog", e);
+            }
+            try {
+                ModelRegistry.getInstance(this).getInferenceEngine();
+            } catch (IOException e) {
+                Log.e("MediLeafApplication", "Error loading the model", e);
+            }
+        }, "warmup").start();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // The components registered with the governor give memory back, more of it the more the system needs
+        ResourceGovernor governor = ResourceGovernor.getInstance();
+        governor.trim(governorLevel(level));
+        Log.i("MediLeafApplication", "Trim memory " + level + ": " + governor);
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // The process may be killed soon after this, so the metrics are saved now
+            dumpMetrics();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ResourceGovernor.getInstance().trim(ResourceGovernor.TRIM_ALL);
+    }
+
+    static int governorLevel(int trimMemoryLevel) {
+        // While the app is in front, only a critical request takes everything. In the background the caches go
+        // first, and everything when the process is close to being killed
+        if (trimMemoryLevel >= TRIM_MEMORY_MODERATE || trimMemoryLevel == TRIM_MEMORY_RUNNING_CRITICAL) {
+            return ResourceGovernor.TRIM_ALL;
+        }
+        if (trimMemoryLevel >= TRIM_MEMORY_RUNNING_LOW) {
+            return ResourceGovernor.TRIM_CACHES;
+        }
+        return ResourceGovernor.TRIM_IDLE;
+    }
+
+    @Override
+    public void onTerminate() {
+        dumpMetrics();
+        metricsReporter.close();
+        ModelRegistry.getInstance(this).close();
+        synchronized (this) {
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    Log.w("MediLeafApplication", "Error closing the survey journal", e);
+                }
+                journal = null;
+            }
+        }
+        super.onTerminate();
+    }
+
+    public synchronized SurveyJournal getJournal() throws IOException {
+        // Opened on first use: the newest segment is checked and the summaries of the others are read
+        // It maps files, so call it off the UI thread
+        if (journal == null) {
+            journal = SurveyJournal.open(new File(getFilesDir(), JOURNAL_DIRECTORY));
+        }
+        return journal;
+    }
+
+    public void installContentPacks() {
+        // Installs the packs of the local pack directory. It reads and verifies files, so call it off the UI thread
+        // The external files directory can be written with adb, without it the private one is used
+        File directory = getExternalFilesDir(PACKS_DIRECTORY);
+        if (directory == null) {
+            directory = new File(getFilesDir(), PACKS_DIRECTORY);
+        }
+        try {
+            ContentStore.getInstance(this).update(new LocalPackSource(directory),
+                    ModelRegistry.getInstance(this)::validateContent);
+        } catch (IOException e) {
+            Log.e("MediLeafApplication", "Error installing a content pack", e);
+        }
+    }
+
+    private void dumpMetrics() {
+        new Thread(() -> {
+            try {
+                metricsReporter.dump();
+            } catch (IOException e) {
+                Log.w("MediLeafApplication", "Error writing the metrics", e);
+            }
+        }, "metrics-dump").start();
+    }
+}
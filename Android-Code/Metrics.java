@@ -0,0 +1,158 @@
+package com.dktes.medileaf;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class Metrics {
+
+    /****
+     * * * * NOTE * * * *
+     * Metrics collects how long every stage of a classification takes and counts the events worth knowing about.
+     * It is global for the process, so any class can record without passing a metrics object around.
+     *
+     * Recording a stage is done like this, and allocates nothing:
+     *   long start = Metrics.start();
+     *   ... the work ...
+     *   Metrics.record(Metrics.Stage.PREPROCESS, start);
+     *
+     * snapshotJson() turns everything into a JSON object with the count, mean, p50, p90, p99 and maximum per stage,
+     * plus the non-empty buckets, so the snapshots of many devices can be merged before computing percentiles.
+     * MetricsReporter writes these snapshots to a file on a schedule
+     * * * * * ** * * * *
+     * ****/
+
+    public enum Stage {
+        MODEL_LOAD("model_load"),
+        INTERPRETER_CREATE("interpreter_create"),
+        DECODE("decode"),
+        PREPROCESS("preprocess"),
+        INFERENCE("inference"),
+        LABEL_DECODE("label_decode"),
+        CATALOG_LOOKUP("catalog_lookup"),
+        RESULT_INFLATE("result_inflate"),
+        // from the moment the camera or gallery returned an image to the first frame of the result screen
+        CAPTURE_TO_RESULT("capture_to_result");
+
+        private final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    public enum Counter {
+        CACHE_HIT("cache_hit"),
+        CACHE_MISS("cache_miss"),
+        OUT_OF_MEMORY("out_of_memory"),
+        CLASSIFICATION_FAILED("classification_failed"),
+        CLASSIFICATION_CANCELLED("classification_cancelled"),
+        REJECTED("rejected_unknown");
+
+        private final String key;
+
+        Counter(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final Counter[] COUNTERS = Counter.values();
+
+    private static final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+    private static final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+
+    static {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    public static void record(Stage stage, long startNanos) {
+        histograms[stage.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public static void recordNanos(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    public static void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    public static LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    public static long getCount(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    public static void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    public static String snapshotJson(String deviceClass, long timestampMillis) {
+        // Only called when a snapshot is exported, so allocating here is fine
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        StringBuilder json = new StringBuilder(2048);
+        json.append("{\n  \"device_class\": \"").append(deviceClass).append("\",\n");
+        json.append("  \"timestamp\": ").append(timestampMillis).append(",\n");
+        json.append("  \"stages\": {");
+        for (int s = 0; s < STAGES.length; s++) {
+            LatencyHistogram histogram = histograms[s];
+            long total = histogram.copyCounts(counts);
+            // Read after the counts, so it is at least the largest value they hold
+            long max = histogram.getMaxNanos();
+            json.append(s == 0 ? "\n" : ",\n");
+            json.append("    \"").append(STAGES[s].getKey()).append("\": {");
+            json.append("\"count\": ").append(total);
+            json.append(String.format(Locale.ROOT, ", \"mean_us\": %.1f", total == 0 ? 0.0 : histogram.getSumNanos() / 1e3 / total));
+            json.append(", \"p50_us\": ").append(micros(LatencyHistogram.percentile(counts, total, max, 0.50)));
+            json.append(", \"p90_us\": ").append(micros(LatencyHistogram.percentile(counts, total, max, 0.90)));
+            json.append(", \"p99_us\": ").append(micros(LatencyHistogram.percentile(counts, total, max, 0.99)));
+            json.append(", \"max_us\": ").append(micros(max));
+            // [upper bound in ns, count] of every non-empty bucket
+            json.append(", \"buckets\": [");
+            boolean first = true;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    json.append(first ? "" : ", ").append('[').append(LatencyHistogram.upperBoundOf(i))
+                            .append(", ").append(counts[i]).append(']');
+                    first = false;
+                }
+            }
+            json.append("]}");
+        }
+        json.append("\n  },\n  \"counters\": {");
+        for (int c = 0; c < COUNTERS.length; c++) {
+            json.append(c == 0 ? "\n" : ",\n");
+            json.append("    \"").append(COUNTERS[c].getKey()).append("\": ").append(counters.get(c));
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    private static long micros(long nanos) {
+        return (nanos + 999) / 1000;
+    }
+}
@@ -0,0 +1,94 @@
+package com.dktes.medileaf;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public final class MetricsReporter implements Closeable {
+
+    // The metrics reporter writes a JSON snapshot of Metrics to files/metrics.json, on a schedule and on demand
+    // The file can be pulled from a test device (adb) or picked up by an upload job later
+    // Every snapshot is tagged with a device class, because a p99 only means something next to the kind of phone it came from
+
+    private static final String TAG = "MetricsReporter";
+    private static final String FILE_NAME = "metrics.json";
+
+    private final File file;
+    private final String deviceClass;
+    private ScheduledExecutorService scheduler;
+
+    public MetricsReporter(Context context) {
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+        this.deviceClass = deviceClass(context);
+    }
+
+    public String getDeviceClass() {
+        return deviceClass;
+    }
+
+    public synchronized void start(long periodSeconds) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                dump();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot write the metrics snapshot", e);
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public File dump() throws IOException {
+        // Written to a temporary file first, so a reader never sees half a snapshot
+        byte[] json = Metrics.snapshotJson(deviceClass, System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8);
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(json);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+        return file;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    static String deviceClass(Context context) {
+        // A rough class from the heap the system gives us and the number of cores:
+        // 'low' for low RAM devices and small heaps, 'high' for phones with many cores and a large heap, 'mid' for the rest
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int cores = Runtime.getRuntime().availableProcessors();
+        int memoryClass = activityManager == null ? 0 : activityManager.getMemoryClass();
+        boolean lowRam = activityManager != null && activityManager.isLowRamDevice();
+        if (lowRam || memoryClass < 192 || cores <= 4) {
+            return "low";
+        }
+        if (memoryClass >= 256 && cores >= 8) {
+            return "high";
+        }
+        return "mid";
+    }
+}
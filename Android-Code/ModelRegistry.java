@@ -0,0 +1,448 @@
+package com.dktes.medileaf;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+public class ModelRegistry implements Closeable {
+
+    // The model registry owns everything that should exist only once per process:
+    // the memory-mapped model (the best variant of medinet for this phone), the pool of interpreters built over it and the table of labels.
+    // It is created by MediLeafApplication and lives as long as the application, not as long as an activity
+    // When a content pack replaces the model or the labels, reload() drops all of it and it is built again on next use.
+    // The generation counts these reloads, so an activity can tell that the objects it built from the old model are stale
+
+    // The variants of the model that may be bundled in the assets, the first one is the float32 reference
+    // Variants that are missing from the assets are skipped. With a single variant nothing is measured
+    private static final String[] MODEL_VARIANTS = {"medinet.tflite", "medinet_fp16.tflite", "medinet_int8.tflite"};
+    private static final String CALIBRATION_PATH = "calibration.bin";
+    // A variant may lose at most 2% of top-1 accuracy on the calibration set compared to the reference
+    private static final float MAX_ACCURACY_DROP = 0.02f;
+    private static final String PREFERENCES = "model_registry";
+    private static final String TAG = "ModelRegistry";
+    private static final String TUNING_FILE = "interpreter_tuning.properties";
+    private static final String RESULT_CACHE_FILE = "results.log";
+    // The fitted temperature of the rejection policy, stored per model checksum
+    private static final String SETTING_TEMPERATURE = "temperature:";
+
+    // How many results the cache keeps in memory and on disk
+    private static final int RESULT_CACHE_MEMORY_ENTRIES = 64;
+    private static final int RESULT_CACHE_DISK_ENTRIES = 2048;
+    private static final int RESULT_CACHE_K = 5;
+    // By default only the exact same image gets a cached result. A near match by perceptual hash returns the species
+    // of another photo without running the model, which may be a different leaf that looks alike. It is opt-in:
+    // the preference sets how many bits of the perceptual hash two photos may differ in, -1 turns it off
+    private static final String SETTING_NEAR_DISTANCE = "result_cache_near_distance";
+    private static final int EXACT_MATCH_ONLY = -1;
+
+    private static ModelRegistry instance;
+
+    // We keep the application context only, holding an activity here would leak it
+    private final Context context;
+
+    private String modelPath;
+    private MappedByteBuffer model;
+    private InferenceOptions inferenceOptions;
+    private InterpreterPool interpreterPool;
+    private InferenceEngine inferenceEngine;
+    private LabelTable labelTable;
+    private long modelChecksum;
+    private RejectionPolicy rejectionPolicy;
+    private ResultCache resultCache;
+    private EmbeddingIndex embeddingIndex;
+    private boolean embeddingIndexLoaded;
+    private int generation;
+
+    // The interpreters and the result cache are registered with the ResourceGovernor while they exist
+    private ResourceGovernor.Registration interpretersRegistration;
+    private ResourceGovernor.Registration resultsRegistration;
+
+    private ModelRegistry(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public static synchronized ModelRegistry getInstance(Context context) {
+        if (instance == null) {
+            instance = new ModelRegistry(context);
+        }
+        return instance;
+    }
+
+    public synchronized InterpreterPool getInterpreterPool() throws IOException {
+        // The model is mapped and the pool is created on first use only
+        if (interpreterPool == null) {
+            InferenceOptions options = getInferenceOptions();
+            InterpreterPool pool = new InterpreterPool(getModel(), poolSize(options.getThreads()), options);
+            // Idle interpreters are closed at the first level, under heavy pressure the pool keeps only one.
+            // The pool is captured here, the callback must not take the lock of the registry
+            interpretersRegistration = ResourceGovernor.getInstance().register("interpreters",
+                    ResourceGovernor.PRIORITY_INTERPRETERS, new ResourceGovernor.Resource() {
+                        @Override
+                        public long getBytes() {
+                            return pool.getEstimatedBytes();
+                        }
+
+                        @Override
+                        public void trim(int level) {
+                            if (level == ResourceGovernor.TRIM_NONE) {
+                                pool.setLimit(pool.getCapacity());
+                            } else if (level == ResourceGovernor.TRIM_ALL) {
+                                pool.setLimit(1);
+                            } else {
+                                pool.trimIdle();
+                            }
+                        }
+                    });
+            pool.setCreateListener(interpretersRegistration::grew);
+            interpreterPool = pool;
+        }
+        return interpreterPool;
+    }
+
+    public synchronized InferenceOptions getInferenceOptions() throws IOException {
+        // The number of threads per inference is tuned once per model on this device, and then read from a file
+        if (inferenceOptions == null) {
+            MappedByteBuffer mapped = getModel();
+            int maxThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+            ThreadTuner tuner = new ThreadTuner(new File(context.getFilesDir(), TUNING_FILE), maxThreads, 3, 10, 0.1f);
+            try {
+                int threads = tuner.tune(getModelChecksum(), count -> new TfliteInferenceEngine(
+                        new InterpreterPool(mapped, 1, InferenceOptions.DEFAULT.withThreads(count)), true));
+                inferenceOptions = InferenceOptions.DEFAULT.withThreads(threads);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot tune the interpreter, using the default options", e);
+                inferenceOptions = InferenceOptions.DEFAULT;
+            }
+            Log.i(TAG, "Interpreter options: " + inferenceOptions);
+        }
+        return inferenceOptions;
+    }
+
+    public synchronized InferenceEngine getInferenceEngine() throws IOException {
+        if (inferenceEngine == null) {
+            inferenceEngine = new TfliteInferenceEngine(getInterpreterPool());
+        }
+        return inferenceEngine;
+    }
+
+    public synchronized LabelTable getLabelTable() throws IOException {
+        // The labels are read once and checked against the output tensor of the model,
+        // so a labels.txt that does not belong to the model fails here instead of producing wrong names
+        if (labelTable == null) {
+            LabelTable labels;
+            try (InputStream in = ContentStore.getInstance(context).open(ContentStore.LABELS)) {
+                labels = LabelTable.load(in);
+            }
+            InterpreterPool pool = getInterpreterPool();
+            Interpreter interpreter = pool.acquire();
+            try {
+                labels.checkOutputShape(interpreter.getOutputTensor(0).shape());
+            } finally {
+                pool.release(interpreter);
+            }
+            labelTable = labels;
+        }
+        return labelTable;
+    }
+
+    public synchronized RejectionPolicy getRejectionPolicy() throws IOException {
+        // The policy of every classifier, with the temperature fitted for this model on the calibration set
+        // The fit runs the model over the calibration images once per model, then it is read from the preferences
+        // The labels of calibration.bin are those of the bundled labels.txt: with labels of a content pack the
+        // indices may mean other leaves, so no temperature is fitted then
+        if (rejectionPolicy == null) {
+            SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+            String key = SETTING_TEMPERATURE + Long.toHexString(getModelChecksum());
+            float temperature = preferences.getFloat(key, 0f);
+            if (!(temperature > 0)) {
+                CalibrationSet calibration = ContentStore.getInstance(context).getInstalledFile(ContentStore.LABELS) == null
+                        ? readCalibration() : null;
+                if (calibration != null) {
+                    temperature = RejectionPolicy.fitTemperature(calibration, getInferenceEngine());
+                    preferences.edit().putFloat(key, temperature).apply();
+                } else {
+                    temperature = RejectionPolicy.DEFAULT.getTemperature();
+                }
+            }
+            rejectionPolicy = RejectionPolicy.DEFAULT.withTemperature(temperature);
+            Log.i(TAG, "Rejection temperature: " + temperature);
+        }
+        return rejectionPolicy;
+    }
+
+    public synchronized EmbeddingIndex getEmbeddingIndex() throws IOException {
+        // The index of the reference images, or null when there is none or the model does not output embeddings
+        // The index of a content pack is a file, a bundled one must be stored uncompressed in the APK to be mapped
+        if (!embeddingIndexLoaded) {
+            int embeddingSize = getInferenceEngine().getEmbeddingSize();
+            if (embeddingSize > 0) {
+                File installed = ContentStore.getInstance(context).getInstalledFile(ContentStore.REFERENCES);
+                try {
+                    EmbeddingIndex index = installed != null ? EmbeddingIndex.open(installed)
+                            : EmbeddingIndex.read(mapModel(context, ContentStore.REFERENCES));
+                    if (index.getDimension() == embeddingSize) {
+                        embeddingIndex = index;
+                    } else {
+                        Log.w(TAG, "The reference index has " + index.getDimension() + " dimensions, the model "
+                                + embeddingSize + ", similar leaves are disabled");
+                    }
+                } catch (IOException e) {
+                    Log.i(TAG, "No reference index, similar leaves are disabled");
+                }
+            }
+            embeddingIndexLoaded = true;
+        }
+        return embeddingIndex;
+    }
+
+    public synchronized long getModelChecksum() throws IOException {
+        // A checksum of the model file, so anything derived from the model can tell when the model changed
+        if (modelChecksum == 0) {
+            MappedByteBuffer buffer = getModel();
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[64 * 1024];
+            ByteBuffer view = buffer.duplicate();
+            view.clear();
+            while (view.hasRemaining()) {
+                int length = Math.min(chunk.length, view.remaining());
+                view.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+            // the length is mixed in, and 0 is kept free to mean 'not computed yet'
+            modelChecksum = (crc.getValue() << 32 | buffer.capacity()) | 1L << 63;
+        }
+        return modelChecksum;
+    }
+
+    public synchronized ResultCache getResultCache() throws IOException {
+        // The cache lives in the cache directory: Android may delete it when storage runs low, which is fine
+        if (resultCache == null) {
+            File file = new File(context.getCacheDir(), RESULT_CACHE_FILE);
+            int nearDistance = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE)
+                    .getInt(SETTING_NEAR_DISTANCE, EXACT_MATCH_ONLY);
+            // The results hold the decisions of the rejection policy, so a new policy starts a new cache as well
+            long checksum = getModelChecksum() * 31 + getRejectionPolicy().hashCode();
+            ResultCache cache = ResultCache.open(file, checksum, RESULT_CACHE_K,
+                    RESULT_CACHE_MEMORY_ENTRIES, RESULT_CACHE_DISK_ENTRIES, nearDistance);
+            // The results in memory can go, the log on disk still answers for the images classified before
+            resultsRegistration = ResourceGovernor.getInstance().register("results",
+                    ResourceGovernor.PRIORITY_RESULTS, new ResourceGovernor.Resource() {
+                        @Override
+                        public long getBytes() {
+                            return cache.getEstimatedBytes();
+                        }
+
+                        @Override
+                        public void trim(int level) {
+                            if (level >= ResourceGovernor.TRIM_CACHES) {
+                                cache.clearMemory();
+                            }
+                        }
+                    });
+            resultCache = cache;
+        }
+        return resultCache;
+    }
+
+    public synchronized MappedByteBuffer getModel() throws IOException {
+        if (model == null) {
+            long start = Metrics.start();
+            model = mapModel(context, getModelPath());
+            Metrics.record(Metrics.Stage.MODEL_LOAD, start);
+        }
+        return model;
+    }
+
+    public synchronized String getModelPath() throws IOException {
+        // The variant is chosen once per process. The choice is remembered, so the measurement only runs again
+        // when the bundled variants change (after an app update)
+        // A model installed by a content pack is used as it is, the variants only exist in the assets
+        if (modelPath == null) {
+            File installed = ContentStore.getInstance(context).getInstalledFile(ContentStore.MODEL);
+            modelPath = installed != null ? installed.getAbsolutePath() : selectVariant();
+        }
+        return modelPath;
+    }
+
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    public synchronized void reload() {
+        // Called when a content pack changed the model or the labels. A classification that is running keeps
+        // its interpreter until it is done, the pool closes it when it comes back
+        close();
+        modelPath = null;
+        modelChecksum = 0;
+        rejectionPolicy = null;
+        labelTable = null;
+        embeddingIndex = null;
+        embeddingIndexLoaded = false;
+        generation++;
+    }
+
+    private String selectVariant() throws IOException {
+        List<String> available = new ArrayList<>();
+        StringBuilder key = new StringBuilder("variant");
+        for (String variant : MODEL_VARIANTS) {
+            try (AssetFileDescriptor fileDescriptor = context.getAssets().openFd(variant)) {
+                available.add(variant);
+                key.append(':').append(variant).append('=').append(fileDescriptor.getDeclaredLength());
+            } catch (IOException e) {
+                // this variant is not bundled
+            }
+        }
+        if (available.isEmpty()) {
+            throw new IOException("No model found in the assets");
+        }
+        // Without the float32 reference there is nothing to compare the accuracy of the other variants with
+        if (available.size() == 1 || !available.get(0).equals(MODEL_VARIANTS[0])) {
+            return available.get(0);
+        }
+
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        String remembered = preferences.getString(key.toString(), null);
+        if (remembered != null && available.contains(remembered)) {
+            return remembered;
+        }
+
+        CalibrationSet calibration = readCalibration();
+        if (calibration == null) {
+            // Without the calibration set the accuracy of a variant cannot be checked, so the reference is used
+            Log.w(TAG, "No calibration set, using " + available.get(0));
+            return available.get(0);
+        }
+
+        // Every variant is mapped and measured with its own single interpreter, then unmapped again
+        VariantSelector selector = new VariantSelector(calibration, MAX_ACCURACY_DROP);
+        List<VariantSelector.Measurement> measurements = new ArrayList<>();
+        for (String variant : available) {
+            InterpreterPool pool = new InterpreterPool(mapModel(context, variant), 1);
+            try {
+                measurements.add(selector.measure(variant, new TfliteInferenceEngine(pool)));
+            } catch (IOException e) {
+                if (measurements.isEmpty()) {
+                    throw e;
+                }
+                Log.w(TAG, "Cannot measure " + variant, e);
+            } finally {
+                pool.close();
+            }
+        }
+        String chosen = measurements.get(selector.choose(measurements)).getName();
+        for (VariantSelector.Measurement measurement : measurements) {
+            Log.i(TAG, measurement.toString());
+        }
+        Log.i(TAG, "Using " + chosen);
+        preferences.edit().putString(key.toString(), chosen).apply();
+        return chosen;
+    }
+
+    private CalibrationSet readCalibration() {
+        // The labelled images bundled with the app, or null when there are none
+        try (InputStream in = context.getAssets().open(CALIBRATION_PATH)) {
+            return CalibrationSet.read(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read the calibration set", e);
+            return null;
+        }
+    }
+
+    public void validateContent(File directory) throws IOException {
+        // Checks the model and the labels of a content pack before it is installed: the model must load,
+        // and the labels must fit its output. A file the pack does not contain is the one in use now:
+        // the installed labels, and the active model (an installed one or the selected variant)
+        // A reference index must fit the embedding output of the model
+        File labelsFile = new File(directory, ContentStore.LABELS);
+        File modelFile = new File(directory, ContentStore.MODEL);
+        File referencesFile = new File(directory, ContentStore.REFERENCES);
+        if (!labelsFile.isFile() && !modelFile.isFile() && !referencesFile.isFile()) {
+            return;
+        }
+        LabelTable labels;
+        try (InputStream in = labelsFile.isFile() ? new FileInputStream(labelsFile)
+                : ContentStore.getInstance(context).open(ContentStore.LABELS)) {
+            labels = LabelTable.load(in);
+        }
+        MappedByteBuffer mapped = mapModel(context, modelFile.isFile() ? modelFile.getAbsolutePath() : getModelPath());
+        Interpreter interpreter;
+        try {
+            interpreter = new Interpreter(mapped);
+        } catch (RuntimeException e) {
+            throw new IOException("The model of the content pack cannot be loaded", e);
+        }
+        try {
+            labels.checkOutputShape(interpreter.getOutputTensor(0).shape());
+            if (referencesFile.isFile()) {
+                int dimension = EmbeddingIndex.open(referencesFile).getDimension();
+                int[] shape = interpreter.getOutputTensorCount() > 1 ? interpreter.getOutputTensor(1).shape() : null;
+                if (shape == null || shape[shape.length - 1] != dimension) {
+                    throw new IOException("The reference index does not fit the embeddings of the model");
+                }
+            }
+        } finally {
+            interpreter.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (interpreterPool != null) {
+            interpretersRegistration.close();
+            interpreterPool.close();
+            interpreterPool = null;
+            inferenceEngine = null;
+        }
+        inferenceOptions = null;
+        if (resultCache != null) {
+            resultsRegistration.close();
+            resultCache.close();
+            resultCache = null;
+        }
+        model = null;
+    }
+
+    private static int poolSize(int threadsPerInterpreter) {
+        // One interpreter per two cores is plenty for a phone, but we always keep at least one
+        // An interpreter that runs on several threads counts for several cores
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2 / threadsPerInterpreter));
+    }
+
+    private static MappedByteBuffer mapModel(Context context, String modelPath) throws IOException {
+        // A model of a content pack is a plain file, it is mapped as a whole
+        if (modelPath.startsWith(File.separator)) {
+            return PackInstaller.map(new File(modelPath));
+        }
+        /*
+         * AssetFileDescriptor gives us the offset and the length of the model inside the APK.
+         * We map that region into memory as READ ONLY. The mapping stays valid after the descriptor is closed,
+         * so every interpreter of the pool can share the same buffer.
+         * */
+        try (AssetFileDescriptor fileDescriptor = context.getAssets().openFd(modelPath);
+             FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor())) {
+
+            FileChannel fileChannel = inputStream.getChannel();
+            long startOffset = fileDescriptor.getStartOffset();
+            long declareLength = fileDescriptor.getDeclaredLength();
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declareLength);
+
+        } catch (IOException e) {
+            throw new IOException(e.getMessage() + " -- occurred when loading the model in ModelRegistry", e);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.dktes.medileaf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public final class PackInstaller {
+
+    /****
+     * * * * NOTE * * * *
+     * The installer keeps the installed content packs in one directory:
+     *   current      the installed version, as text. Without it, only the content bundled with the app is used
+     *   v<version>/  every file of that version (a file a pack did not change is copied from the previous version)
+     *
+     * Installing a pack never touches the installed version: the files are written into v<version>.tmp/,
+     * checked against the hashes of the manifest, validated by the caller (does the model load, do the labels
+     * match it...), and synced to the disk. Only then the directory is renamed to v<version>/ and the new version
+     * is written to current.tmp, which is renamed over current. A rename within a directory is atomic, so after
+     * a crash or a power cut the app finds either the old version or the new one, never a mix of both.
+     * Leftovers of an interrupted install are deleted the next time the installer starts.
+     *
+     * It does not depend on Android, the bundled files are provided by the caller (the ContentStore reads them
+     * from the assets), so the whole update path can be run on a JVM
+     * * * * * ** * * * *
+     * ****/
+
+    public interface Bundled {
+        // The file as it was bundled with the app, the base of a delta when no version is installed yet
+        // Returns null when the app has no such file
+        ByteBuffer read(String name) throws IOException;
+    }
+
+    public interface Validator {
+        // Checks a staged version before it replaces the installed one, throws when it must not be installed
+        void validate(File directory) throws IOException;
+    }
+
+    private static final String CURRENT = "current";
+    private static final String VERSION_PREFIX = "v";
+    private static final String STAGING_SUFFIX = ".tmp";
+
+    private final File root;
+    private final Bundled bundled;
+
+    // -1 until the installed version was read from the disk
+    private int version = -1;
+
+    public PackInstaller(File root, Bundled bundled) {
+        this.root = root;
+        this.bundled = bundled;
+    }
+
+    public synchronized int getInstalledVersion() {
+        // 0 when no pack is installed
+        if (version < 0) {
+            version = readCurrent();
+            cleanUp();
+        }
+        return version;
+    }
+
+    public synchronized File getInstalledFile(String name) {
+        // The file of the installed version, or null when the bundled one is still used
+        int installed = getInstalledVersion();
+        if (installed == 0) {
+            return null;
+        }
+        File file = new File(versionDirectory(installed), name);
+        return file.isFile() ? file : null;
+    }
+
+    public synchronized int update(PackSource source, Validator validator) throws IOException {
+        // Installs the newest packs the source offers, one after the other: a chain of deltas works as well as
+        // a single full pack. When a version is offered both ways, the delta is preferred because it is smaller
+        // A pack whose manifest cannot be read is ignored, another pack may still bring the update
+        // Returns the version installed in the end
+        int installed = getInstalledVersion();
+        while (true) {
+            String best = null;
+            PackManifest bestManifest = null;
+            for (String name : source.list()) {
+                PackManifest manifest;
+                try (InputStream in = source.open(name)) {
+                    manifest = PackManifest.read(in);
+                } catch (IOException e) {
+                    continue;
+                }
+                if (manifest.getVersion() <= installed
+                        || manifest.isDelta() && manifest.getBaseVersion() != installed) {
+                    continue;
+                }
+                if (bestManifest == null || manifest.getVersion() > bestManifest.getVersion()
+                        || manifest.getVersion() == bestManifest.getVersion() && manifest.isDelta() && !bestManifest.isDelta()) {
+                    best = name;
+                    bestManifest = manifest;
+                }
+            }
+            if (best == null) {
+                return installed;
+            }
+            try (InputStream in = source.open(best)) {
+                installed = install(in, validator);
+            }
+        }
+    }
+
+    public synchronized int install(InputStream pack, Validator validator) throws IOException {
+        InputStream in = pack instanceof BufferedInputStream ? pack : new BufferedInputStream(pack, 64 * 1024);
+        PackManifest manifest = PackManifest.read(in);
+        int installed = getInstalledVersion();
+        int target = manifest.getVersion();
+        if (target <= installed) {
+            throw new IOException("Version " + target + " is not newer than the installed version " + installed);
+        }
+        if (manifest.isDelta() && manifest.getBaseVersion() != installed) {
+            throw new IOException("The pack updates version " + manifest.getBaseVersion() + ", installed is " + installed);
+        }
+
+        File current = installed == 0 ? null : versionDirectory(installed);
+        File staging = new File(root, VERSION_PREFIX + target + STAGING_SUFFIX);
+        deleteRecursively(staging);
+        if (!staging.mkdirs()) {
+            throw new IOException("Cannot create " + staging);
+        }
+        try {
+            Set<String> written = new HashSet<>();
+            for (PackManifest.Entry entry : manifest.getEntries()) {
+                if (!written.add(entry.getName())) {
+                    throw new IOException("The pack contains " + entry.getName() + " twice");
+                }
+                writeEntry(entry, new LimitedInputStream(in, entry.getPayloadLength()), current, staging);
+            }
+            // Whatever the pack did not change is carried over, so every version directory is complete on its own
+            if (current != null) {
+                String[] names = current.list();
+                if (names != null) {
+                    for (String name : names) {
+                        if (!written.contains(name)) {
+                            copyFile(new File(current, name), new File(staging, name));
+                        }
+                    }
+                }
+            }
+            if (validator != null) {
+                validator.validate(staging);
+            }
+
+            File directory = versionDirectory(target);
+            deleteRecursively(directory);
+            if (!staging.renameTo(directory)) {
+                throw new IOException("Cannot rename " + staging + " to " + directory);
+            }
+            writeCurrent(target);
+        } catch (IOException | RuntimeException e) {
+            deleteRecursively(staging);
+            throw e;
+        }
+        version = target;
+        // The files of older versions may still be mapped by a running classification, deleting them is fine:
+        // the mapping keeps the data until it is released
+        cleanUp();
+        return target;
+    }
+
+    private void writeEntry(PackManifest.Entry entry, LimitedInputStream payload, File current, File staging)
+            throws IOException {
+        File file = new File(staging, entry.getName());
+        MessageDigest digest = sha256();
+        long length;
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            DigestOutputStream out = new DigestOutputStream(new BufferedOutputStream(stream, 64 * 1024), digest);
+            if (entry.getKind() == PackManifest.Kind.FULL) {
+                length = copy(payload, out);
+            } else {
+                ByteBuffer base = readBase(current, entry.getName());
+                if (!Arrays.equals(hash(base), entry.getBaseHash())) {
+                    throw new IOException("The installed " + entry.getName() + " is not the one the delta was made for");
+                }
+                length = DeltaCodec.apply(base, payload, out);
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        if (payload.remaining() != 0) {
+            throw new IOException("Broken content pack, " + payload.remaining() + " bytes left in " + entry.getName());
+        }
+        if (length != entry.getLength() || !Arrays.equals(digest.digest(), entry.getHash())) {
+            throw new IOException(entry.getName() + " does not match the hash of the manifest");
+        }
+    }
+
+    private ByteBuffer readBase(File current, String name) throws IOException {
+        if (current != null) {
+            File file = new File(current, name);
+            if (file.isFile()) {
+                return map(file);
+            }
+        }
+        ByteBuffer base = bundled == null ? null : bundled.read(name);
+        if (base == null) {
+            throw new IOException("No installed " + name + " to apply the delta to");
+        }
+        return base;
+    }
+
+    private int readCurrent() {
+        File file = new File(root, CURRENT);
+        if (!file.isFile()) {
+            return 0;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] bytes = JsonLeafSource.readFully(in);
+            int installed = Integer.parseInt(new String(bytes, StandardCharsets.UTF_8).trim());
+            return installed > 0 && versionDirectory(installed).isDirectory() ? installed : 0;
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void writeCurrent(int target) throws IOException {
+        File temporary = new File(root, CURRENT + STAGING_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temporary)) {
+            out.write(Integer.toString(target).getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        if (!temporary.renameTo(new File(root, CURRENT))) {
+            throw new IOException("Cannot replace " + new File(root, CURRENT));
+        }
+    }
+
+    private void cleanUp() {
+        // Deletes staging directories and versions that are not installed (anymore)
+        String[] names = root.list();
+        if (names == null) {
+            return;
+        }
+        String keep = VERSION_PREFIX + version;
+        for (String name : names) {
+            if (name.startsWith(VERSION_PREFIX) && !name.equals(keep)) {
+                deleteRecursively(new File(root, name));
+            }
+        }
+    }
+
+    private File versionDirectory(int target) {
+        return new File(root, VERSION_PREFIX + target);
+    }
+
+    static MappedByteBuffer map(File file) throws IOException {
+        // The mapping stays valid after the file is closed
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+        }
+    }
+
+    static byte[] hash(ByteBuffer buffer) {
+        MessageDigest digest = sha256();
+        ByteBuffer view = buffer.duplicate();
+        view.clear();
+        digest.update(view);
+        return digest.digest();
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java and Android runtime has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        long total = 0;
+        int count;
+        while ((count = in.read(chunk)) > 0) {
+            out.write(chunk, 0, count);
+            total += count;
+        }
+        return total;
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        try (InputStream in = new FileInputStream(from); FileOutputStream out = new FileOutputStream(to)) {
+            copy(in, out);
+            out.getFD().sync();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static final class LimitedInputStream extends FilterInputStream {
+        // The payload of one entry: reads stop at its end, and closing it does not close the pack
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        long remaining() {
+            return remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("The content pack ends too early");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int count = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (count < 0) {
+                throw new IOException("The content pack ends too early");
+            }
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
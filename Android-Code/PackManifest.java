@@ -0,0 +1,178 @@
+package com.dktes.medileaf;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public final class PackManifest {
+
+    /****
+     * * * * NOTE * * * *
+     * A content pack updates the catalog (data.json), the labels (labels.txt) and the model (medinet.tflite)
+     * without a new APK. A pack is one file: this manifest, followed by the payload of every entry in the same order.
+     *
+     *   int magic "MLCP", int format version
+     *   int version        the content version this pack installs, always higher than the one it replaces
+     *   int base version   0 for a full pack, otherwise the only installed version this pack can be applied to
+     *   int entry count
+     *   per entry: UTF name, byte kind (FULL or DELTA), long length, 32 bytes SHA-256 of the file,
+     *              32 bytes SHA-256 of the file the delta applies to (zeros for FULL), long payload length
+     *
+     * A FULL payload is the file itself, a DELTA payload is a DeltaCodec patch against the installed file.
+     * Files that a pack does not mention stay as they are. Every file is checked against its hash before
+     * the new version replaces the installed one
+     * * * * * ** * * * *
+     * ****/
+
+    static final int MAGIC = 0x4D4C4350; // "MLCP"
+    static final int FORMAT_VERSION = 1;
+    static final int HASH_LENGTH = 32;
+
+    public enum Kind { FULL, DELTA }
+
+    public static final class Entry {
+        private final String name;
+        private final Kind kind;
+        private final long length;
+        private final byte[] hash;
+        private final byte[] baseHash;
+        private final long payloadLength;
+
+        public Entry(String name, Kind kind, long length, byte[] hash, byte[] baseHash, long payloadLength) {
+            checkName(name);
+            if (hash.length != HASH_LENGTH || baseHash.length != HASH_LENGTH) {
+                throw new IllegalArgumentException("hashes must be " + HASH_LENGTH + " bytes");
+            }
+            this.name = name;
+            this.kind = kind;
+            this.length = length;
+            this.hash = hash.clone();
+            this.baseHash = baseHash.clone();
+            this.payloadLength = payloadLength;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public byte[] getHash() {
+            return hash.clone();
+        }
+
+        public byte[] getBaseHash() {
+            return baseHash.clone();
+        }
+
+        public long getPayloadLength() {
+            return payloadLength;
+        }
+    }
+
+    private final int version;
+    private final int baseVersion;
+    private final List<Entry> entries;
+
+    public PackManifest(int version, int baseVersion, List<Entry> entries) {
+        if (version <= 0 || baseVersion < 0 || baseVersion >= version) {
+            throw new IllegalArgumentException("invalid versions " + baseVersion + " -> " + version);
+        }
+        this.version = version;
+        this.baseVersion = baseVersion;
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    public static PackManifest read(InputStream stream) throws IOException {
+        // The stream is left right after the manifest, at the payload of the first entry
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a content pack");
+        }
+        int format = in.readInt();
+        if (format != FORMAT_VERSION) {
+            throw new IOException("Unsupported content pack format " + format);
+        }
+        int version = in.readInt();
+        int baseVersion = in.readInt();
+        int count = in.readInt();
+        if (count < 0 || count > 1024) {
+            throw new IOException("Broken content pack, " + count + " entries");
+        }
+        List<Entry> entries = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                int kind = in.readByte();
+                if (kind < 0 || kind >= Kind.values().length) {
+                    throw new IOException("Unknown kind " + kind + " of " + name);
+                }
+                long length = in.readLong();
+                byte[] hash = new byte[HASH_LENGTH];
+                in.readFully(hash);
+                byte[] baseHash = new byte[HASH_LENGTH];
+                in.readFully(baseHash);
+                long payloadLength = in.readLong();
+                if (length < 0 || payloadLength < 0) {
+                    throw new IOException("Broken content pack, negative length for " + name);
+                }
+                entries.add(new Entry(name, Kind.values()[kind], length, hash, baseHash, payloadLength));
+            }
+            return new PackManifest(version, baseVersion, entries);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Broken content pack: " + e.getMessage(), e);
+        }
+    }
+
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(version);
+        out.writeInt(baseVersion);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeUTF(entry.name);
+            out.writeByte(entry.kind.ordinal());
+            out.writeLong(entry.length);
+            out.write(entry.hash);
+            out.write(entry.baseHash);
+            out.writeLong(entry.payloadLength);
+        }
+        out.flush();
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getBaseVersion() {
+        return baseVersion;
+    }
+
+    public boolean isDelta() {
+        return baseVersion != 0;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    static void checkName(String name) {
+        // Entries become files of the content directory, a name must never reach outside of it
+        if (name == null || name.isEmpty() || name.startsWith(".") || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0) {
+            throw new IllegalArgumentException("invalid entry name " + name);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.dktes.medileaf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+public interface PackSource {
+
+    // A pack source is where content packs come from: a download server, or a local directory
+    // The ContentStore reads the manifest of every pack first, then opens only the pack it will install
+
+    // The names of the packs this source offers
+    List<String> list() throws IOException;
+
+    InputStream open(String name) throws IOException;
+}
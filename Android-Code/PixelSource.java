@@ -0,0 +1,15 @@
+package com.dktes.medileaf;
+
+public interface PixelSource {
+
+    // A pixel source is an image that can be read one row at a time
+    // Pixels are packed ARGB integers (the same format as Bitmap.getPixels), so the preprocessing code does not
+    // need to know whether the image is a Bitmap, a camera frame or a plain int[] on a JVM
+
+    int getWidth();
+
+    int getHeight();
+
+    // Copies the pixels of row 'y' into 'row', which has room for at least getWidth() pixels
+    void readRow(int y, int[] row);
+}
@@ -0,0 +1,169 @@
+package com.dktes.medileaf;
+
+public final class Prediction {
+
+    // The outcome of one classification: the best classes with their calibrated confidence, how sure the model is,
+    // and whether the result was rejected as an unknown leaf
+    //   confidence  calibrated probability of the best class
+    //   margin      confidence of the best class minus the confidence of the second one
+    //   entropy     how much the probabilities are spread, 0 when one class has everything and 1 when all are equal
+    //
+    // A classifier keeps one prediction and updates it for every image, so a classification allocates nothing.
+    // Because of that, a prediction is only valid until the next classification. copy() keeps it longer,
+    // for example to hand it to the UI thread
+
+    private final LabelTable labels;
+    private final TopK topK;
+    private final float[] confidences;
+    private float confidence;
+    private float margin;
+    private float entropy;
+    private boolean unknown = true;
+
+    public Prediction(LabelTable labels, int k) {
+        this.labels = labels;
+        this.topK = new TopK(Math.min(k, labels.size()));
+        this.confidences = new float[topK.capacity()];
+    }
+
+    public void update(float[] probabilities, int length, RejectionPolicy policy) {
+        // A single pass over the probabilities: the best classes enter the heap of the top-k,
+        // and the sums needed for the calibrated confidence and the entropy are collected at the same time
+        // With q = r / sum and r = p^(1/T), the entropy -sum(q log q) equals log(sum) - sum(r log r) / sum
+        double power = 1.0 / policy.getTemperature();
+        double sum = 0, sumRLogR = 0;
+        topK.clear();
+        for (int i = 0; i < length; i++) {
+            float p = probabilities[i];
+            topK.offer(i, p);
+            if (p > 0) {
+                double r = power == 1.0 ? p : Math.pow(p, power);
+                sum += r;
+                sumRLogR += r * Math.log(r);
+            }
+        }
+        topK.finish();
+        evaluate(sum, sumRLogR, length, power, policy);
+    }
+
+    public void update(TopK known, int classes, RejectionPolicy policy) {
+        // Only the top-k is known here (a smoothed result). The remaining probability is assumed to be
+        // spread evenly over the other classes, which gives the highest entropy the missing classes could have
+        topK.copyFrom(known);
+        double power = 1.0 / policy.getTemperature();
+        double sum = 0, sumRLogR = 0, knownMass = 0;
+        for (int i = 0; i < topK.size(); i++) {
+            float p = topK.scoreAt(i);
+            knownMass += p;
+            if (p > 0) {
+                double r = power == 1.0 ? p : Math.pow(p, power);
+                sum += r;
+                sumRLogR += r * Math.log(r);
+            }
+        }
+        int others = classes - topK.size();
+        double rest = 1.0 - knownMass;
+        if (others > 0 && rest > 0) {
+            double r = Math.pow(rest / others, power);
+            sum += others * r;
+            sumRLogR += others * r * Math.log(r);
+        }
+        evaluate(sum, sumRLogR, classes, power, policy);
+    }
+
+    public void restore(TopK known, float[] knownConfidences, float knownEntropy, boolean knownUnknown) {
+        // A result of the ResultCache: the decision of the classification that stored it is taken as it was,
+        // so the same image is accepted or rejected the same way every time
+        topK.copyFrom(known);
+        int size = topK.size();
+        for (int i = 0; i < size; i++) {
+            confidences[i] = knownConfidences[i];
+        }
+        confidence = size > 0 ? confidences[0] : 0f;
+        margin = confidence - (size > 1 ? confidences[1] : 0f);
+        entropy = knownEntropy;
+        unknown = size == 0 || knownUnknown;
+    }
+
+    private void evaluate(double sum, double sumRLogR, int classes, double power, RejectionPolicy policy) {
+        int size = topK.size();
+        if (size == 0 || !(sum > 0)) {
+            // Nothing to choose from, or an output full of zeros and NaN
+            confidence = 0f;
+            margin = 0f;
+            entropy = 1f;
+            unknown = true;
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            float p = topK.scoreAt(i);
+            confidences[i] = p > 0 ? (float) ((power == 1.0 ? p : Math.pow(p, power)) / sum) : 0f;
+        }
+        confidence = confidences[0];
+        margin = confidence - (size > 1 ? confidences[1] : 0f);
+        double spread = Math.log(sum) - sumRLogR / sum;
+        entropy = classes > 1 ? (float) Math.min(1.0, Math.max(0.0, spread / Math.log(classes))) : 0f;
+        unknown = !policy.accepts(confidence, margin, entropy);
+    }
+
+    public boolean isUnknown() {
+        return unknown;
+    }
+
+    // The name of the best class, or null when the result was rejected
+    public String getLabel() {
+        return unknown ? null : getBestLabel();
+    }
+
+    // The name of the best class even when it was rejected, or null when there is no class at all
+    public String getBestLabel() {
+        return topK.size() == 0 ? null : labels.get(topK.indexAt(0));
+    }
+
+    public float getConfidence() {
+        return confidence;
+    }
+
+    public float getMargin() {
+        return margin;
+    }
+
+    public float getEntropy() {
+        return entropy;
+    }
+
+    // The raw probabilities of the best classes, as returned by the model
+    public TopK getTopK() {
+        return topK;
+    }
+
+    public int size() {
+        return topK.size();
+    }
+
+    public int labelIndexAt(int rank) {
+        return topK.indexAt(rank);
+    }
+
+    public String labelAt(int rank) {
+        return labels.get(topK.indexAt(rank));
+    }
+
+    public float confidenceAt(int rank) {
+        if (rank < 0 || rank >= topK.size()) {
+            throw new IndexOutOfBoundsException("rank " + rank + " of " + topK.size());
+        }
+        return confidences[rank];
+    }
+
+    public Prediction copy() {
+        Prediction copy = new Prediction(labels, topK.capacity());
+        copy.topK.copyFrom(topK);
+        System.arraycopy(confidences, 0, copy.confidences, 0, confidences.length);
+        copy.confidence = confidence;
+        copy.margin = margin;
+        copy.entropy = entropy;
+        copy.unknown = unknown;
+        return copy;
+    }
+}
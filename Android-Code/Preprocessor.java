@@ -0,0 +1,24 @@
+package com.dktes.medileaf;
+
+import java.nio.ByteBuffer;
+
+public interface Preprocessor {
+
+    // A preprocessor turns an image of any size into the input of the model (150x150 RGB)
+    // Implementations own their buffers and are not meant to be shared between threads
+
+    int getOutputWidth();
+
+    int getOutputHeight();
+
+    // Number of bytes one preprocessed image takes
+    int getBytesPerImage();
+
+    // Preprocesses the image into the preprocessor's own buffer and returns it, positioned at 0
+    // The buffer is overwritten by the next call
+    ByteBuffer process(PixelSource source);
+
+    // Preprocesses the image into 'target', starting at its current position, for example one slot of a batch
+    // The position of 'target' is moved behind the written image
+    void processInto(PixelSource source, ByteBuffer target);
+}
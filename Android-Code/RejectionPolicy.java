@@ -0,0 +1,157 @@
+package com.dktes.medileaf;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public final class RejectionPolicy {
+
+    // The model always answers with one of the leaves it knows, even for a photo of a shoe
+    // For a medicinal plant a wrong name is worse than no name, so a result is only accepted when the model is sure enough.
+    // A result is rejected as "unknown leaf" when any of these checks fails:
+    //   confidence  the calibrated probability of the best class is below minConfidence
+    //   margin      the best class is less than minMargin ahead of the second one (two leaves look alike)
+    //   entropy     the probabilities are spread over many classes (normalized entropy above maxEntropy, 0 to 1)
+    //
+    // Networks trained with a softmax are usually over-confident. The probabilities are calibrated with temperature scaling:
+    // p^(1/T), normalized again. A temperature above 1 flattens them, the temperature is fitted on labelled validation
+    // images (the same ones used to train the model must not be used) by minimizing the negative log likelihood
+    // The ModelRegistry fits it once per model on the bundled calibration set and hands the policy to every classifier
+
+    public static final RejectionPolicy DEFAULT = new RejectionPolicy(1.0f, 0.45f, 0.10f, 0.75f);
+
+    // Accepts every result, for tools that want the raw best class
+    public static final RejectionPolicy ACCEPT_ALL = new RejectionPolicy(1.0f, 0f, 0f, 1f);
+
+    private final float temperature;
+    private final float minConfidence;
+    private final float minMargin;
+    private final float maxEntropy;
+
+    public RejectionPolicy(float temperature, float minConfidence, float minMargin, float maxEntropy) {
+        if (!(temperature > 0)) {
+            throw new IllegalArgumentException("temperature must be positive, got " + temperature);
+        }
+        this.temperature = temperature;
+        this.minConfidence = minConfidence;
+        this.minMargin = minMargin;
+        this.maxEntropy = maxEntropy;
+    }
+
+    public RejectionPolicy withTemperature(float temperature) {
+        return new RejectionPolicy(temperature, minConfidence, minMargin, maxEntropy);
+    }
+
+    public RejectionPolicy withMinConfidence(float minConfidence) {
+        return new RejectionPolicy(temperature, minConfidence, minMargin, maxEntropy);
+    }
+
+    public float getTemperature() {
+        return temperature;
+    }
+
+    public float getMinConfidence() {
+        return minConfidence;
+    }
+
+    public float getMinMargin() {
+        return minMargin;
+    }
+
+    public float getMaxEntropy() {
+        return maxEntropy;
+    }
+
+    public boolean accepts(float confidence, float margin, float entropy) {
+        return confidence >= minConfidence && margin >= minMargin && entropy <= maxEntropy;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof RejectionPolicy)) {
+            return false;
+        }
+        RejectionPolicy policy = (RejectionPolicy) other;
+        return Float.compare(temperature, policy.temperature) == 0 && Float.compare(minConfidence, policy.minConfidence) == 0
+                && Float.compare(minMargin, policy.minMargin) == 0 && Float.compare(maxEntropy, policy.maxEntropy) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = Float.floatToIntBits(temperature);
+        hash = hash * 31 + Float.floatToIntBits(minConfidence);
+        hash = hash * 31 + Float.floatToIntBits(minMargin);
+        return hash * 31 + Float.floatToIntBits(maxEntropy);
+    }
+
+    public static float fitTemperature(CalibrationSet calibration, InferenceEngine engine) throws IOException {
+        // Runs the model over the labelled images of the calibration set and fits the temperature on its probabilities
+        // Images whose label the model does not have are left out. Without any image the temperature stays 1
+        if (calibration.size() == 0) {
+            return 1f;
+        }
+        int[] shape = engine.getImageShape();
+        Preprocessor preprocessor = new BilinearPreprocessor(shape[1], shape[0], engine.getInputFormat());
+        ArgbPixelSource source = new ArgbPixelSource(calibration.getPixels(0), calibration.getWidth(), calibration.getHeight());
+        int classes = engine.getClassCount();
+        float[][] probabilities = new float[calibration.size()][];
+        int[] labels = new int[calibration.size()];
+        int samples = 0;
+        for (int i = 0; i < calibration.size(); i++) {
+            int label = calibration.getLabel(i);
+            if (label < 0 || label >= classes) {
+                continue;
+            }
+            source.set(calibration.getPixels(i), calibration.getWidth(), calibration.getHeight());
+            float[] output = new float[classes];
+            engine.run(preprocessor.process(source), 1, output);
+            probabilities[samples] = output;
+            labels[samples] = label;
+            samples++;
+        }
+        if (samples == 0) {
+            return 1f;
+        }
+        return fitTemperature(Arrays.copyOf(probabilities, samples), Arrays.copyOf(labels, samples));
+    }
+
+    public static float fitTemperature(float[][] probabilities, int[] labels) {
+        // Golden section search of the temperature with the lowest negative log likelihood on labelled images
+        // The likelihood is a smooth function of the temperature with a single minimum, so this converges quickly
+        float low = 0.25f, high = 8f;
+        final float ratio = 0.618034f;
+        float a = high - ratio * (high - low);
+        float b = low + ratio * (high - low);
+        double la = negativeLogLikelihood(probabilities, labels, a);
+        double lb = negativeLogLikelihood(probabilities, labels, b);
+        for (int i = 0; i < 40; i++) {
+            if (la < lb) {
+                high = b;
+                b = a;
+                lb = la;
+                a = high - ratio * (high - low);
+                la = negativeLogLikelihood(probabilities, labels, a);
+            } else {
+                low = a;
+                a = b;
+                la = lb;
+                b = low + ratio * (high - low);
+                lb = negativeLogLikelihood(probabilities, labels, b);
+            }
+        }
+        return (low + high) / 2;
+    }
+
+    private static double negativeLogLikelihood(float[][] probabilities, int[] labels, float temperature) {
+        double total = 0;
+        double power = 1.0 / temperature;
+        for (int i = 0; i < probabilities.length; i++) {
+            float[] p = probabilities[i];
+            double sum = 0;
+            for (float value : p) {
+                sum += Math.pow(Math.max(value, 1e-12f), power);
+            }
+            total -= power * Math.log(Math.max(p[labels[i]], 1e-12f)) - Math.log(sum);
+        }
+        return total / probabilities.length;
+    }
+}
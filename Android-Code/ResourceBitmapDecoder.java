@@ -0,0 +1,74 @@
+package com.dktes.medileaf;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public final class ResourceBitmapDecoder implements ImageDecoder<Integer, Bitmap> {
+
+    // This decoder reads the reference photos of the leaves from the drawables of the app
+    // Like the UriBitmapDecoder, the bounds are read first and the photo is decoded with the sample size of the plan,
+    // so a photo is never decoded bigger than the view that shows it
+    // The raw file of the drawable is decoded: the density scaling of getDrawable() would decode it at full size
+    // first and scale it afterwards. The pixels go into a bitmap of the pool when one is big enough
+
+    private final Resources resources;
+    private final BitmapPool pool;
+
+    ResourceBitmapDecoder(Resources resources, BitmapPool pool) {
+        this.resources = resources;
+        this.pool = pool;
+    }
+
+    @Override
+    public ImageBounds readBounds(Integer drawable) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = open(drawable)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Cannot read the size of the drawable " + drawable);
+        }
+        return new ImageBounds(options.outWidth, options.outHeight, ImageBounds.ORIENTATION_NORMAL);
+    }
+
+    @Override
+    public Bitmap decode(Integer drawable, DecodePlan plan) throws IOException {
+        // The region of the plan is ignored: the drawables are small enough to always be decoded whole
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = plan.getSampleSize();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        // A mutable bitmap can go back to the pool when it is not needed anymore
+        options.inMutable = true;
+        options.inBitmap = pool.take(plan.getDecodedWidth(), plan.getDecodedHeight());
+
+        Bitmap bitmap;
+        try (InputStream in = open(drawable)) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder did not accept the pooled bitmap (the decoded size differs a little from the plan),
+            // so the photo is decoded into a new one
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            try (InputStream in = open(drawable)) {
+                bitmap = BitmapFactory.decodeStream(in, null, options);
+            }
+        }
+        if (bitmap == null) {
+            throw new IOException("Cannot decode the drawable " + drawable);
+        }
+        return bitmap;
+    }
+
+    private InputStream open(int drawable) throws IOException {
+        try {
+            return resources.openRawResource(drawable);
+        } catch (Resources.NotFoundException e) {
+            throw new IOException("No drawable " + drawable, e);
+        }
+    }
+}
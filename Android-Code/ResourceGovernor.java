@@ -0,0 +1,244 @@
+package com.dktes.medileaf;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public final class ResourceGovernor {
+
+    /****
+     * * * * NOTE * * * *
+     * On phones with 2 or 3 GB the app was killed when the interpreters, the decoded photo, the catalog and the
+     * result photo were all alive at the same moment. Each of them only looked at its own size.
+     *
+     * Every component that holds a lot of memory registers here with its footprint (how many bytes it holds right now)
+     * and a trim callback that gives memory back. The governor does not own any of that memory, it only decides
+     * who has to give some back and when:
+     *   - when Android asks the app for memory (onTrimMemory), every component is trimmed at the matching level
+     *   - when the components together hold more than the budget, they are trimmed one after the other, from the
+     *     lowest priority and the mildest level up, until the total fits again
+     *
+     * The levels, from the mildest:
+     *   TRIM_IDLE    what nobody uses right now and is cheap to get back: idle interpreters, pooled bitmaps
+     *   TRIM_CACHES  caches: photos, results in memory, decoded leaves and the search index
+     *   TRIM_ALL     everything that can be rebuilt: a single interpreter, the catalog is dropped and unmapped
+     * relax() tells the components the pressure is over, so they may grow back (the app is in front again).
+     *
+     * Footprints are estimates in bytes, and they include native memory (interpreters, bitmap pixels), not only the
+     * Java heap. The governor has no Android dependency, so the budget can be checked in a JVM test with getUsage().
+     * * * * * ** * * * *
+     * ****/
+
+    public static final int TRIM_NONE = 0;
+    public static final int TRIM_IDLE = 1;
+    public static final int TRIM_CACHES = 2;
+    public static final int TRIM_ALL = 3;
+
+    // Lower priorities are trimmed first. The interpreters come last: without them nothing can be classified
+    public static final int PRIORITY_BUFFERS = 10;
+    public static final int PRIORITY_IMAGES = 20;
+    public static final int PRIORITY_RESULTS = 30;
+    public static final int PRIORITY_CATALOG = 40;
+    public static final int PRIORITY_INTERPRETERS = 50;
+
+    // Until the application sets a budget, the components may use a quarter of the heap
+    private static final int DEFAULT_HEAP_SHARE = 4;
+
+    public interface Resource {
+        // The bytes this component holds right now. Called often, so it must be cheap
+        long getBytes();
+
+        // Gives memory back for 'level', or may grow back for TRIM_NONE. Called without any lock of the governor
+        void trim(int level);
+    }
+
+    public static final class Usage {
+        private final String name;
+        private final int priority;
+        private final long bytes;
+
+        Usage(String name, int priority, long bytes) {
+            this.name = name;
+            this.priority = priority;
+            this.bytes = bytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s %.1f MB", name, bytes / 1048576.0);
+        }
+    }
+
+    public final class Registration implements Closeable {
+        private final String name;
+        private final int priority;
+        private final Resource resource;
+
+        Registration(String name, int priority, Resource resource) {
+            this.name = name;
+            this.priority = priority;
+            this.resource = resource;
+        }
+
+        // Call after the footprint grew, without holding a lock the trim callbacks need.
+        // When the budget is exceeded, the components are trimmed right here on the calling thread
+        public void grew() {
+            if (getUsedBytes() > getBudget()) {
+                enforce();
+            }
+        }
+
+        // Unregisters the component, for example when it was closed
+        @Override
+        public void close() {
+            synchronized (ResourceGovernor.this) {
+                registrations.remove(this);
+            }
+        }
+    }
+
+    private static ResourceGovernor instance;
+
+    // Sorted by priority, guarded by 'this'
+    private final List<Registration> registrations = new ArrayList<>();
+    private long budgetBytes;
+    private int level = TRIM_NONE;
+
+    // Only one thread trims for the budget at a time, the others do not wait for it
+    private final AtomicBoolean enforcing = new AtomicBoolean();
+
+    public ResourceGovernor(long budgetBytes) {
+        setBudget(budgetBytes);
+    }
+
+    public static synchronized ResourceGovernor getInstance() {
+        if (instance == null) {
+            instance = new ResourceGovernor(Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_SHARE);
+        }
+        return instance;
+    }
+
+    public synchronized void setBudget(long budgetBytes) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("budget must be positive, got " + budgetBytes);
+        }
+        this.budgetBytes = budgetBytes;
+    }
+
+    public synchronized long getBudget() {
+        return budgetBytes;
+    }
+
+    // The strongest level trimmed since the last relax()
+    public synchronized int getLevel() {
+        return level;
+    }
+
+    public Registration register(String name, int priority, Resource resource) {
+        Registration registration = new Registration(name, priority, resource);
+        synchronized (this) {
+            int at = registrations.size();
+            while (at > 0 && registrations.get(at - 1).priority > priority) {
+                at--;
+            }
+            registrations.add(at, registration);
+        }
+        registration.grew();
+        return registration;
+    }
+
+    public long getUsedBytes() {
+        long used = 0;
+        for (Registration registration : snapshot()) {
+            used += Math.max(0, registration.resource.getBytes());
+        }
+        return used;
+    }
+
+    // The footprint of every component, from the lowest priority
+    public List<Usage> getUsage() {
+        List<Registration> current = snapshot();
+        List<Usage> usage = new ArrayList<>(current.size());
+        for (Registration registration : current) {
+            usage.add(new Usage(registration.name, registration.priority, registration.resource.getBytes()));
+        }
+        return usage;
+    }
+
+    // Trims every component at 'level', from the lowest priority. Used for the requests of the system
+    public void trim(int level) {
+        if (level < TRIM_IDLE || level > TRIM_ALL) {
+            throw new IllegalArgumentException("level must be TRIM_IDLE to TRIM_ALL, got " + level);
+        }
+        synchronized (this) {
+            this.level = Math.max(this.level, level);
+        }
+        for (Registration registration : snapshot()) {
+            registration.resource.trim(level);
+        }
+    }
+
+    // The pressure is over: components that shrank below their normal size may grow back
+    public void relax() {
+        synchronized (this) {
+            if (level == TRIM_NONE) {
+                return;
+            }
+            level = TRIM_NONE;
+        }
+        for (Registration registration : snapshot()) {
+            registration.resource.trim(TRIM_NONE);
+        }
+    }
+
+    // Trims one component after the other, mildest level first, until the total fits into the budget
+    // Returns whether it fits. When another thread is trimming already, returns right away
+    public boolean enforce() {
+        if (!enforcing.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            long budget = getBudget();
+            for (int trim = TRIM_IDLE; trim <= TRIM_ALL; trim++) {
+                for (Registration registration : snapshot()) {
+                    if (getUsedBytes() <= budget) {
+                        return true;
+                    }
+                    if (registration.resource.getBytes() > 0) {
+                        registration.resource.trim(trim);
+                        synchronized (this) {
+                            level = Math.max(level, trim);
+                        }
+                    }
+                }
+            }
+            return getUsedBytes() <= budget;
+        } finally {
+            enforcing.set(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%.1f of %.1f MB %s", getUsedBytes() / 1048576.0,
+                getBudget() / 1048576.0, getUsage());
+    }
+
+    private synchronized List<Registration> snapshot() {
+        return new ArrayList<>(registrations);
+    }
+}
@@ -1,86 +1,144 @@
 package com.dktes.medileaf;
 
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.core.content.res.ResourcesCompat;
+import androidx.core.content.ContextCompat;
 
-import android.annotation.SuppressLint;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.os.Bundle;
-import android.util.JsonReader;
+import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 
 public class ResultActivity extends AppCompatActivity {
-    @SuppressLint("UseCompatLoadingForDrawables")
+
+    // The photo on screen, it belongs to the LeafImageCache and is given back in onDestroy()
+    private Bitmap shownImage;
+    private boolean destroyed;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        long start = Metrics.start();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_result);
 
-        // All the data about the leaves is stored in data.json file in assets folder of the project
-        // To access any JSON file, we need to have a JsonReader from Android's standard utility library
-        JsonReader reader;
         Intent intent = getIntent();
 
         // The name of leaf is predicted by the Deep Learning model in the last step and passed to this activity
-        // Now, we read that leaf name from the intent object and find the record related to the leaf in data.json file
-        String leafName = intent.getExtras().getString("leafName");
-
-        try {
-            // Open the data.json file from the assets folder. the InputStream is the obvious way to read files in Java
-            InputStream in = getApplicationContext().getAssets().open("data.json");
-            // Pass the input stream to the json reader. Json reader will identify the stream and read all the data from the file
-            reader = new JsonReader(new InputStreamReader(in));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        // Now, we read that leaf name from the intent object and find the record related to the leaf in the catalog
+        // There is no leaf name when the model was not sure enough about the photo
+        String leafName = intent.getStringExtra("leafName");
 
-        // DataHelper is created by us. This file will read the JSON data.json file and will create a list of leaf data
-        DataHelper dataHelper;
-        try {
-            // We initialize the data helper object and wait till the data helper get all leaf data from the data.json
-            dataHelper = new DataHelper(reader, leafName);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        // All the data about the leaves is stored in data.json file in assets folder of the project
+        // The LeafCatalog reads that file only once per process and finds a leaf by its name without scanning the whole file
+        Leaf leaf = null;
+        if (leafName != null) {
+            try {
+                leaf = LeafCatalogs.getInstance(getApplicationContext()).findByName(leafName);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
 
-        // Data helper will point out the leaf data that we want to show
-        // This leaf data will be shown on the result activity with the image
-        Leaf leaf = dataHelper.leaf;
-
-        // We will find image using the leaf name
-        // Now, leaf name could contain dashes, spaces, and capital alphabets. We need to replace any spaces and dashes first,
-        // then lowercase the leaf name and use it as a resource key.
-        String resourceName = leafName.replace("\\s+-", "").toLowerCase();
-        resourceName = resourceName.replace("-", "").toLowerCase();
-
-        // In this line of code, we will use the resource name to locate the image
-        @SuppressLint("DiscouragedApi")
-        int resId = getResources().getIdentifier(resourceName, "drawable", getApplicationInfo().packageName);
-
-        // Assign the image to the imageview that holds the image of the leaf.
-        ImageView imageMedicine = findViewById(R.id.image_medicine);
-        // the setImageDrawable function sets an image to the given image view
-        // To this function, we must pass a drawable object from drawable folder of the project to show the image
-        imageMedicine.setImageDrawable(ResourcesCompat.getDrawable(getResources(), resId, getTheme()));
-
         // Initialize all text views to show the information about the leaf
+        ImageView imageMedicine = findViewById(R.id.image_medicine);
         TextView textTitle = findViewById(R.id.text_title);
         TextView textScientific = findViewById(R.id.text_scientific);
         TextView textOrigin = findViewById(R.id.text_origin);
         TextView textFeature = findViewById(R.id.text_feature);
         TextView textDesc = findViewById(R.id.text_desc);
 
-        // Use the methods from the leaf object to get a particular information about the leaf and set it to a text view
-        textTitle.setText(leaf.getLeafName());
-        textScientific.setText(leaf.getScientificName());
-        textOrigin.setText(leaf.getOrigin());
-        textFeature.setText(leaf.getFeature());
-        String desc = leaf.getDescription() + " " + leaf.getUsage();
-        textDesc.setText(desc);
+        if (leaf == null) {
+            // Showing the closest leaf anyway could make someone use the wrong plant, so we say that we do not know it
+            // and tell the user how to take a photo that works better
+            showUnknown(imageMedicine, textTitle, textScientific, textDesc);
+            findViewById(R.id.info_holder).setVisibility(View.GONE);
+        } else {
+            // The photo of the leaf is usually in the LeafImageCache already: it was prefetched while the model ran
+            // Otherwise it is decoded in the background, at the size of the image view, and shown when it is ready
+            showImage(imageMedicine, leafName);
+
+            // Use the methods from the leaf object to get a particular information about the leaf and set it to a text view
+            textTitle.setText(leaf.getLeafName());
+            // The calibrated confidence of the model, when the leaf was found by a classification
+            float confidence = intent.getFloatExtra("confidence", -1f);
+            if (confidence >= 0) {
+                textScientific.setText(getString(R.string.result_confidence, leaf.getScientificName(),
+                        Math.round(confidence * 100)));
+            } else {
+                textScientific.setText(leaf.getScientificName());
+            }
+            textOrigin.setText(leaf.getOrigin());
+            textFeature.setText(leaf.getFeature());
+            String desc = leaf.getDescription() + " " + leaf.getUsage();
+            textDesc.setText(desc);
+        }
+        Metrics.record(Metrics.Stage.RESULT_INFLATE, start);
+
+        // The capture time was set by MainActivity. Just before the first frame is drawn, the user sees the result
+        long capturedAt = intent.getLongExtra("capturedAt", 0);
+        if (capturedAt != 0 && savedInstanceState == null) {
+            View decorView = getWindow().getDecorView();
+            decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+                @Override
+                public boolean onPreDraw() {
+                    decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                    Metrics.record(Metrics.Stage.CAPTURE_TO_RESULT, capturedAt);
+                    return true;
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        destroyed = true;
+        if (shownImage != null) {
+            ImageView imageMedicine = findViewById(R.id.image_medicine);
+            imageMedicine.setImageDrawable(null);
+            LeafImageCache.getInstance(this).release(shownImage);
+            shownImage = null;
+        }
+        super.onDestroy();
+    }
+
+    private void showImage(ImageView imageMedicine, String leafName) {
+        LeafImageCache images = LeafImageCache.getInstance(this);
+        // Once the view is laid out, its real size is used for the next photos
+        imageMedicine.post(() -> images.setTargetSize(imageMedicine.getWidth(), imageMedicine.getHeight()));
+
+        Bitmap cached = images.acquire(leafName);
+        if (cached != null) {
+            shownImage = cached;
+            imageMedicine.setImageBitmap(cached);
+            return;
+        }
+        // The placeholder of the layout is not the right leaf, so nothing is shown until the photo is decoded
+        imageMedicine.setImageDrawable(null);
+        images.load(leafName, ContextCompat.getMainExecutor(this), bitmap -> {
+            if (destroyed) {
+                if (bitmap != null) {
+                    images.release(bitmap);
+                }
+                return;
+            }
+            if (bitmap == null) {
+                // There is no photo of this leaf
+                imageMedicine.setVisibility(View.GONE);
+                return;
+            }
+            shownImage = bitmap;
+            imageMedicine.setImageBitmap(bitmap);
+        });
+    }
+
+    private void showUnknown(ImageView imageMedicine, TextView textTitle, TextView textScientific, TextView textDesc) {
+        imageMedicine.setVisibility(View.GONE);
+        textTitle.setText(R.string.unknown_leaf);
+        textScientific.setText("");
+        textDesc.setText(R.string.unknown_leaf_hint);
     }
 }
\ No newline at end of file
@@ -0,0 +1,456 @@
+package com.dktes.medileaf;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+public final class ResultCache implements Closeable {
+
+    /****
+     * * * * NOTE * * * *
+     * The result cache remembers the top-k classes of images that were already classified, with the decision that was
+     * taken for them: the calibrated confidences, the entropy and whether the result was rejected as unknown.
+     * The entropy needs every probability of the model, so it could not be computed again from the top-k alone,
+     * and a hit has to accept or reject the image exactly like the classification that stored it.
+     * The key is a hash of the preprocessed input (see InputHasher), so the same gallery image is never classified twice.
+     *
+     * There are two tiers:
+     *   memory  a small LRU map of the most recently used results
+     *   disk    an append-only log file. Every new result is appended, and an index in memory maps a key to its record.
+     *           When the log holds too many records it is compacted in the background: only the newest records are kept.
+     *
+     * The log starts with a checksum of the model and the rejection policy. A log written for another model or policy
+     * is thrown away when it is opened, because its results and decisions would be wrong for the new ones.
+     *
+     * Optionally, a result can also be found by a perceptual hash: an image that differs from a cached one
+     * in at most 'nearDistance' bits of its perceptual hash is treated as the same image.
+     * * * * * ** * * * *
+     * ****/
+
+    private static final int MAGIC = 0x4D4C5243; // "MLRC"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+    // Where the label indices of a record start, after key, perceptual hash, count, unknown and entropy
+    private static final int INDICES = 22;
+    // What an entry of a map costs on the heap with its boxed key (and value), without the arrays of a result
+    private static final int MEMORY_ENTRY_BYTES = 120;
+    private static final int INDEX_ENTRY_BYTES = 80;
+
+    public static final class CachedResult {
+        private final int[] labelIndices;
+        private final float[] scores;
+        private final float[] confidences;
+        private final float entropy;
+        private final boolean unknown;
+
+        CachedResult(int[] labelIndices, float[] scores, float[] confidences, float entropy, boolean unknown) {
+            this.labelIndices = labelIndices;
+            this.scores = scores;
+            this.confidences = confidences;
+            this.entropy = entropy;
+            this.unknown = unknown;
+        }
+
+        public int size() {
+            return labelIndices.length;
+        }
+
+        public int indexAt(int rank) {
+            return labelIndices[rank];
+        }
+
+        // The raw probability of the model
+        public float scoreAt(int rank) {
+            return scores[rank];
+        }
+
+        // The calibrated confidence, as the Prediction had it
+        public float confidenceAt(int rank) {
+            return confidences[rank];
+        }
+
+        public float getEntropy() {
+            return entropy;
+        }
+
+        public boolean isUnknown() {
+            return unknown;
+        }
+    }
+
+    private final File file;
+    private final int k;
+    private final int recordSize;
+    private final int maxDiskEntries;
+    private final int nearDistance;
+
+    private final LinkedHashMap<Long, CachedResult> memory;
+
+    // Guarded by 'this'
+    private RandomAccessFile log;
+    private Map<Long, Long> diskIndex = new HashMap<>();
+    private long[] perceptualHashes = new long[64];
+    private long[] perceptualKeys = new long[64];
+    private int perceptualCount;
+    private long recordCount;
+    private boolean compacting;
+
+    private final byte[] record;
+    private final ByteBuffer recordBuffer;
+    private final CRC32 crc = new CRC32();
+    private final ExecutorService compactor;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong nearHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private ResultCache(File file, int k, int memoryEntries, int maxDiskEntries, int nearDistance) {
+        this.file = file;
+        this.k = k;
+        // key, perceptual hash, count, unknown, entropy, k indices, k scores, k confidences, CRC
+        this.recordSize = 8 + 8 + 1 + 1 + 4 + k * 2 + k * 4 + k * 4 + 4;
+        this.maxDiskEntries = maxDiskEntries;
+        this.nearDistance = nearDistance;
+        this.memory = new LinkedHashMap<Long, CachedResult>(memoryEntries * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedResult> eldest) {
+                return size() > memoryEntries;
+            }
+        };
+        this.record = new byte[recordSize];
+        this.recordBuffer = ByteBuffer.wrap(record);
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "result-cache-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // nearDistance is the number of perceptual hash bits two images may differ in, or -1 to only accept exact matches
+    // 'checksum' stands for the model and the rejection policy the results were computed with
+    public static ResultCache open(File file, long checksum, int k, int memoryEntries,
+                                   int maxDiskEntries, int nearDistance) throws IOException {
+        ResultCache cache = new ResultCache(file, k, memoryEntries, maxDiskEntries, nearDistance);
+        cache.load(checksum);
+        return cache;
+    }
+
+    public CachedResult get(long key, long perceptualHash) {
+        synchronized (this) {
+            CachedResult result = memory.get(key);
+            if (result != null) {
+                hits.incrementAndGet();
+                return result;
+            }
+            result = readFromDisk(key);
+            if (result != null) {
+                memory.put(key, result);
+                diskHits.incrementAndGet();
+                return result;
+            }
+            if (nearDistance >= 0) {
+                for (int i = perceptualCount - 1; i >= 0; i--) {
+                    if (Long.bitCount(perceptualHashes[i] ^ perceptualHash) <= nearDistance) {
+                        result = readFromDisk(perceptualKeys[i]);
+                        if (result != null) {
+                            nearHits.incrementAndGet();
+                            return result;
+                        }
+                    }
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(long key, long perceptualHash, Prediction prediction) {
+        TopK topK = prediction.getTopK();
+        int count = Math.min(k, topK.size());
+        int[] indices = new int[count];
+        float[] scores = new float[count];
+        float[] confidences = new float[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = topK.indexAt(i);
+            scores[i] = topK.scoreAt(i);
+            confidences[i] = prediction.confidenceAt(i);
+        }
+        CachedResult result = new CachedResult(indices, scores, confidences, prediction.getEntropy(),
+                prediction.isUnknown());
+
+        boolean compact;
+        synchronized (this) {
+            memory.put(key, result);
+            if (log == null || diskIndex.containsKey(key)) {
+                return;
+            }
+            try {
+                long offset = log.length();
+                encode(key, perceptualHash, result);
+                log.seek(offset);
+                log.write(record);
+                diskIndex.put(key, offset);
+                addPerceptual(key, perceptualHash);
+                recordCount++;
+            } catch (IOException e) {
+                // The disk tier is only an optimization, a failed write just means this result is not persisted
+                return;
+            }
+            compact = !compacting && recordCount > 2L * maxDiskEntries;
+            if (compact) {
+                compacting = true;
+            }
+        }
+        if (compact) {
+            compactor.execute(this::compact);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getNearHits() {
+        return nearHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getDiskEntries() {
+        return diskIndex.size();
+    }
+
+    public synchronized void clearMemory() {
+        memory.clear();
+    }
+
+    // An estimate of the heap the cache holds: the results in memory, the index of the log and the perceptual hashes
+    public synchronized long getEstimatedBytes() {
+        return memory.size() * (MEMORY_ENTRY_BYTES + k * 12L) + diskIndex.size() * INDEX_ENTRY_BYTES
+                + perceptualHashes.length * 16L;
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdown();
+        synchronized (this) {
+            closeLog();
+            memory.clear();
+        }
+    }
+
+    private void load(long checksum) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        log = new RandomAccessFile(file, "rw");
+        boolean valid = log.length() >= HEADER_SIZE
+                && log.readInt() == MAGIC
+                && log.readInt() == VERSION
+                && log.readLong() == checksum
+                && log.readInt() == k;
+        if (!valid) {
+            // A new file, a file of another version, or results of another model or policy: start from an empty log
+            log.setLength(0);
+            log.seek(0);
+            log.writeInt(MAGIC);
+            log.writeInt(VERSION);
+            log.writeLong(checksum);
+            log.writeInt(k);
+            return;
+        }
+
+        long offset = HEADER_SIZE;
+        long length = log.length();
+        while (offset + recordSize <= length) {
+            log.seek(offset);
+            log.readFully(record);
+            if (!checkRecord()) {
+                break;
+            }
+            long key = recordBuffer.getLong(0);
+            if (diskIndex.put(key, offset) == null) {
+                addPerceptual(key, recordBuffer.getLong(8));
+            }
+            recordCount++;
+            offset += recordSize;
+        }
+        // A record that was only half written when the app was killed is cut off
+        if (offset != length) {
+            log.setLength(offset);
+        }
+    }
+
+    private CachedResult readFromDisk(long key) {
+        Long offset = diskIndex.get(key);
+        if (offset == null || log == null) {
+            return null;
+        }
+        try {
+            log.seek(offset);
+            log.readFully(record);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!checkRecord()) {
+            return null;
+        }
+        int count = record[16];
+        int[] indices = new int[count];
+        float[] scores = new float[count];
+        float[] confidences = new float[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = recordBuffer.getShort(INDICES + i * 2) & 0xFFFF;
+            scores[i] = recordBuffer.getFloat(INDICES + k * 2 + i * 4);
+            confidences[i] = recordBuffer.getFloat(INDICES + k * 6 + i * 4);
+        }
+        return new CachedResult(indices, scores, confidences, recordBuffer.getFloat(18), record[17] != 0);
+    }
+
+    private void encode(long key, long perceptualHash, CachedResult result) {
+        recordBuffer.clear();
+        recordBuffer.putLong(0, key);
+        recordBuffer.putLong(8, perceptualHash);
+        record[16] = (byte) result.size();
+        record[17] = (byte) (result.isUnknown() ? 1 : 0);
+        recordBuffer.putFloat(18, result.getEntropy());
+        for (int i = 0; i < k; i++) {
+            recordBuffer.putShort(INDICES + i * 2, i < result.size() ? (short) result.indexAt(i) : 0);
+            recordBuffer.putFloat(INDICES + k * 2 + i * 4, i < result.size() ? result.scoreAt(i) : 0f);
+            recordBuffer.putFloat(INDICES + k * 6 + i * 4, i < result.size() ? result.confidenceAt(i) : 0f);
+        }
+        crc.reset();
+        crc.update(record, 0, recordSize - 4);
+        recordBuffer.putInt(recordSize - 4, (int) crc.getValue());
+    }
+
+    private boolean checkRecord() {
+        crc.reset();
+        crc.update(record, 0, recordSize - 4);
+        return recordBuffer.getInt(recordSize - 4) == (int) crc.getValue() && record[16] >= 0 && record[16] <= k;
+    }
+
+    private void addPerceptual(long key, long perceptualHash) {
+        if (perceptualCount == perceptualHashes.length) {
+            perceptualHashes = Arrays.copyOf(perceptualHashes, perceptualCount * 2);
+            perceptualKeys = Arrays.copyOf(perceptualKeys, perceptualCount * 2);
+        }
+        perceptualHashes[perceptualCount] = perceptualHash;
+        perceptualKeys[perceptualCount] = key;
+        perceptualCount++;
+    }
+
+    private void compact() {
+        // Records never change once written, so the newest ones can be copied without holding the lock.
+        // Only the records appended while we were copying are copied again under the lock at the end
+        File temp = new File(file.getPath() + ".compact");
+        try {
+            List<Long> offsets;
+            long snapshotEnd;
+            synchronized (this) {
+                if (log == null) {
+                    return;
+                }
+                offsets = new ArrayList<>(diskIndex.values());
+                Collections.sort(offsets);
+                if (offsets.size() > maxDiskEntries) {
+                    offsets = offsets.subList(offsets.size() - maxDiskEntries, offsets.size());
+                }
+                snapshotEnd = log.length();
+            }
+
+            byte[] copy = new byte[recordSize];
+            try (RandomAccessFile source = new RandomAccessFile(file, "r");
+                 RandomAccessFile target = new RandomAccessFile(temp, "rw")) {
+                target.setLength(0);
+                byte[] header = new byte[HEADER_SIZE];
+                source.readFully(header);
+                target.write(header);
+                for (long offset : offsets) {
+                    source.seek(offset);
+                    source.readFully(copy);
+                    target.write(copy);
+                }
+
+                synchronized (this) {
+                    if (log == null) {
+                        return;
+                    }
+                    long end = log.length();
+                    for (long offset = snapshotEnd; offset + recordSize <= end; offset += recordSize) {
+                        log.seek(offset);
+                        log.readFully(copy);
+                        target.write(copy);
+                    }
+                    target.getFD().sync();
+                    closeLog();
+                    if (!temp.renameTo(file)) {
+                        throw new IOException("Cannot replace " + file);
+                    }
+                    diskIndex = new HashMap<>();
+                    perceptualCount = 0;
+                    recordCount = 0;
+                    log = new RandomAccessFile(file, "rw");
+                    long length = log.length();
+                    for (long offset = HEADER_SIZE; offset + recordSize <= length; offset += recordSize) {
+                        log.seek(offset);
+                        log.readFully(record);
+                        long key = recordBuffer.getLong(0);
+                        if (diskIndex.put(key, offset) == null) {
+                            addPerceptual(key, recordBuffer.getLong(8));
+                        }
+                        recordCount++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Compaction is retried the next time the log grows, the old log stays usable meanwhile
+            temp.delete();
+            synchronized (this) {
+                if (log == null && !compactor.isShutdown()) {
+                    try {
+                        log = new RandomAccessFile(file, "rw");
+                    } catch (IOException ignored) {
+                        // The disk tier stays disabled, the memory tier keeps working
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException ignored) {
+                // nothing to do, the file is not used anymore
+            }
+            log = null;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.dktes.medileaf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class SimilarLeafFinder {
+
+    // Turns the nearest reference images of an embedding into leaves of the catalog
+    // The id of a reference image in the EmbeddingIndex is the index of its label in labels.txt
+    // The neighbours are grouped by their label: a leaf gets one vote per reference image among the neighbours,
+    // the leaves with the most votes come first (the closer one on a tie). The share of the votes also tells whether
+    // the references agree with a prediction, see getSupport()
+    // One finder per thread, it reuses the searcher and the arrays of the neighbours
+
+    // In AnnBenchmark more than 4 probes barely find more neighbours, they only take longer
+    public static final int DEFAULT_NEIGHBOURS = 20;
+    public static final int DEFAULT_PROBES = 4;
+
+    public static final class Match {
+        private final Leaf leaf;
+        private final int labelIndex;
+        private final int votes;
+        private final float distance;
+
+        Match(Leaf leaf, int labelIndex, int votes, float distance) {
+            this.leaf = leaf;
+            this.labelIndex = labelIndex;
+            this.votes = votes;
+            this.distance = distance;
+        }
+
+        // null when the catalog has no leaf for the label
+        public Leaf getLeaf() {
+            return leaf;
+        }
+
+        public int getLabelIndex() {
+            return labelIndex;
+        }
+
+        public int getVotes() {
+            return votes;
+        }
+
+        // Squared distance of the closest reference image of this leaf, between 0 (same) and 4 (opposite)
+        public float getDistance() {
+            return distance;
+        }
+    }
+
+    private final EmbeddingIndex.Searcher searcher;
+    private final LeafCatalog catalog;
+    private final LabelTable labels;
+    private final int neighbours;
+    private final int probes;
+    private final int[] neighbourLabels;
+    private final float[] neighbourDistances;
+    private final int[] votes;
+    private final float[] closest;
+    private int found;
+
+    public SimilarLeafFinder(EmbeddingIndex index, LeafCatalog catalog, LabelTable labels) {
+        this(index, catalog, labels, DEFAULT_NEIGHBOURS, DEFAULT_PROBES);
+    }
+
+    public SimilarLeafFinder(EmbeddingIndex index, LeafCatalog catalog, LabelTable labels, int neighbours, int probes) {
+        if (neighbours < 1 || probes < 1) {
+            throw new IllegalArgumentException("neighbours and probes must be at least 1");
+        }
+        this.searcher = index.newSearcher();
+        this.catalog = catalog;
+        this.labels = labels;
+        this.neighbours = neighbours;
+        this.probes = probes;
+        this.neighbourLabels = new int[neighbours];
+        this.neighbourDistances = new float[neighbours];
+        this.votes = new int[labels.size()];
+        this.closest = new float[labels.size()];
+    }
+
+    public List<Match> find(float[] embedding, int maxLeaves) {
+        found = searcher.search(embedding, neighbours, probes, neighbourLabels, neighbourDistances);
+        Arrays.fill(votes, 0);
+        for (int i = 0; i < found; i++) {
+            int label = neighbourLabels[i];
+            // A reference of a label the table does not know (an index built for other labels) is skipped
+            if (label < 0 || label >= votes.length) {
+                continue;
+            }
+            if (votes[label]++ == 0) {
+                closest[label] = neighbourDistances[i];
+            }
+        }
+
+        List<Match> matches = new ArrayList<>();
+        while (matches.size() < maxLeaves) {
+            int best = -1;
+            for (int label = 0; label < votes.length; label++) {
+                if (votes[label] > 0 && (best < 0 || votes[label] > votes[best]
+                        || votes[label] == votes[best] && closest[label] < closest[best])) {
+                    best = label;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            matches.add(new Match(catalog.findByLabel(labels, best), best, votes[best], closest[best]));
+            votes[best] = -votes[best];
+        }
+        // The votes were negated to mark the labels already taken, getSupport() reads them back
+        for (int label = 0; label < votes.length; label++) {
+            votes[label] = Math.abs(votes[label]);
+        }
+        return matches;
+    }
+
+    public float getSupport(int labelIndex) {
+        // Share of the neighbours of the last find() that carry this label: near 1 when the reference images agree
+        // with a prediction of this label, near 0 when the photo looks like other leaves
+        if (found == 0 || labelIndex < 0 || labelIndex >= votes.length) {
+            return 0f;
+        }
+        return votes[labelIndex] / (float) found;
+    }
+}
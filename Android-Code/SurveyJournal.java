@@ -0,0 +1,486 @@
+package com.dktes.medileaf;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class SurveyJournal implements Closeable {
+
+    /****
+     * * * * NOTE * * * *
+     * The survey journal keeps every classification on the phone: when, where, which leaves and how sure the
+     * model was. A field team gets an identification back from the journal instead of photographing the plant again,
+     * and can ask "all Neem identifications of last week" or "how many of each species in this survey".
+     *
+     * The journal is an append-only log cut into segments (see JournalSegment). Every record has the same size
+     * (see JournalRecord), so the n-th record of a segment is found without reading the others.
+     * Appending copies the record into the memory mapping of the newest segment, it does not wait for the disk.
+     *
+     * Group commit: a background thread forces the changed segments to the disk, at most once every
+     * 'commitMillis'. All records appended in that time are written by one force, so a batch of thousands of
+     * classifications costs a handful of disk syncs instead of one per record. awaitDurable() waits until a record
+     * is on the disk, for the few callers that need it.
+     *
+     * When the newest segment is full, it is sealed and a new one is started (rollover). The journal is bounded:
+     * when it holds more than 'maxSegments' segments, the two oldest sealed neighbours that fit into one segment
+     * after dropping their deleted records are merged (compaction), otherwise the oldest segment is dropped.
+     *
+     * Queries read the summaries of the segments first: a segment or a block of 64 records whose time range or labels
+     * cannot match is skipped, and the counters per label and per survey answer counts without reading records.
+     *
+     * All methods may be called from any thread. It does not depend on Android, so it runs on a JVM as well
+     * * * * * ** * * * *
+     * ****/
+
+    // Matches every label or every survey in a query
+    public static final int ANY = -1;
+
+    // 8192 records of 72 bytes are a segment of 576 KB. 64 segments keep the last half million classifications
+    // in at most 36 MB, years of field work, before the oldest ones are dropped
+    public static final int DEFAULT_SEGMENT_RECORDS = 8192;
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+    public static final long DEFAULT_COMMIT_MILLIS = 100;
+
+    public interface Visitor {
+        // Called for every matching record, oldest first. Return false to stop the query
+        // The record is reused for the next one, and the journal is locked meanwhile, so do not call it from here
+        boolean visit(JournalRecord record);
+    }
+
+    private final File directory;
+    private final int segmentRecords;
+    private final int maxSegments;
+    private final long commitMillis;
+
+    // Guarded by 'this'. The segments are ordered by their sequences, the last one is written
+    private final List<JournalSegment> segments = new ArrayList<>();
+    private final JournalRecord scratch = new JournalRecord();
+    private long nextSequence = 1;
+    private long durableSequence = 1;
+    private IOException commitError;
+    private boolean closed;
+    private final Thread committer;
+
+    private SurveyJournal(File directory, int segmentRecords, int maxSegments, long commitMillis) {
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.maxSegments = maxSegments;
+        this.commitMillis = commitMillis;
+        this.committer = new Thread(this::commitLoop, "journal-commit");
+        this.committer.setDaemon(true);
+    }
+
+    public static SurveyJournal open(File directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_RECORDS, DEFAULT_MAX_SEGMENTS, DEFAULT_COMMIT_MILLIS);
+    }
+
+    // segmentRecords  records per segment file (72 bytes each)
+    // maxSegments     the journal keeps at most this many segments, at least 2
+    // commitMillis    how long appended records may wait before they are forced to the disk together
+    public static SurveyJournal open(File directory, int segmentRecords, int maxSegments, long commitMillis)
+            throws IOException {
+        if (segmentRecords < JournalSegment.BLOCK || maxSegments < 2 || commitMillis < 0) {
+            throw new IllegalArgumentException("invalid journal settings");
+        }
+        SurveyJournal journal = new SurveyJournal(directory, segmentRecords, maxSegments, commitMillis);
+        journal.load();
+        journal.committer.start();
+        return journal;
+    }
+
+    private void load() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        String[] names = directory.list();
+        if (names != null) {
+            Arrays.sort(names);
+            for (String name : names) {
+                File file = new File(directory, name);
+                if (name.endsWith(".tmp")) {
+                    // A merge or an index that was interrupted
+                    file.delete();
+                    continue;
+                }
+                if (!name.startsWith("segment-") || !name.endsWith(JournalSegment.LOG_SUFFIX)) {
+                    continue;
+                }
+                JournalSegment segment;
+                try {
+                    segment = JournalSegment.open(file);
+                } catch (IOException e) {
+                    // A segment that cannot be read is lost, the others are still worth keeping
+                    file.delete();
+                    continue;
+                }
+                JournalSegment previous = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+                if (segment.size() == 0 || previous != null && segment.getFirstSequence() <= previous.getLastSequence()) {
+                    // Empty, or already part of the segment before it: a merge stopped before deleting its source
+                    segment.deleteFiles();
+                    continue;
+                }
+                if (previous != null && !previous.isSealed()) {
+                    // Only the newest segment is written, an older one that is not full is sealed as it is
+                    previous.seal();
+                }
+                segments.add(segment);
+            }
+        }
+        if (!segments.isEmpty()) {
+            nextSequence = segments.get(segments.size() - 1).getLastSequence() + 1;
+        }
+        durableSequence = nextSequence;
+    }
+
+    public long append(long timestamp, int survey, double latitude, double longitude, long imageHash,
+                       Prediction prediction) throws IOException {
+        // Returns the sequence number of the record
+        int count = Math.min(prediction.size(), JournalRecord.K);
+        int[] labels = new int[count];
+        float[] scores = new float[count];
+        for (int i = 0; i < count; i++) {
+            labels[i] = prediction.labelIndexAt(i);
+            scores[i] = prediction.confidenceAt(i);
+        }
+        return append(timestamp, survey, latitude, longitude, imageHash, labels, scores, count, prediction.isUnknown());
+    }
+
+    public synchronized long append(long timestamp, int survey, double latitude, double longitude, long imageHash,
+                                    int[] labels, float[] scores, int count, boolean unknown) throws IOException {
+        // latitude and longitude are NaN when the location is unknown
+        checkOpen();
+        boolean located = !Double.isNaN(latitude) && !Double.isNaN(longitude);
+        scratch.set(nextSequence, timestamp, survey,
+                located ? (int) Math.round(latitude * 1e6) : JournalRecord.NO_LOCATION,
+                located ? (int) Math.round(longitude * 1e6) : 0,
+                imageHash, labels, scores, count, unknown ? JournalRecord.FLAG_UNKNOWN : 0);
+        JournalSegment active = activeSegment();
+        active.append(scratch);
+        long sequence = nextSequence++;
+        notifyAll();
+        return sequence;
+    }
+
+    public void awaitDurable(long sequence) throws IOException {
+        // Blocks until the record is on the disk (until the next group commit)
+        synchronized (this) {
+            while (durableSequence <= sequence) {
+                if (commitError != null) {
+                    throw new IOException("The journal cannot be written", commitError);
+                }
+                if (closed) {
+                    throw new IOException("The journal is closed");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal");
+                }
+            }
+        }
+    }
+
+    public void flush() throws IOException {
+        long last;
+        synchronized (this) {
+            last = nextSequence - 1;
+            notifyAll();
+        }
+        if (last > 0) {
+            awaitDurable(last);
+        }
+    }
+
+    public synchronized int query(long from, long to, int label, int survey, Visitor visitor) {
+        // Visits the records with from <= timestamp < to, identified as 'label' and of 'survey' (or ANY)
+        // Returns the number of records visited
+        int visited = 0;
+        for (JournalSegment segment : segments) {
+            if (!segment.mayContain(from, to, label, survey)) {
+                continue;
+            }
+            int size = segment.size();
+            for (int block = 0; block * JournalSegment.BLOCK < size; block++) {
+                if (!segment.blockMayContain(block, from, to, label)) {
+                    continue;
+                }
+                int end = Math.min(size, (block + 1) * JournalSegment.BLOCK);
+                for (int position = block * JournalSegment.BLOCK; position < end; position++) {
+                    if (segment.match(position, from, to, label, survey) == JournalSegment.NO_MATCH
+                            || !segment.read(position, scratch)) {
+                        continue;
+                    }
+                    visited++;
+                    if (!visitor.visit(scratch)) {
+                        return visited;
+                    }
+                }
+            }
+        }
+        return visited;
+    }
+
+    public synchronized int[] countLabels(long from, long to, int survey) {
+        // Identified records per label index with from <= timestamp < to, of 'survey' (or ANY)
+        // A segment that lies completely in the range is answered by its counters, only the edges are read
+        int limit = 0;
+        for (JournalSegment segment : segments) {
+            limit = Math.max(limit, segment.getLabelLimit());
+        }
+        int[] counts = new int[limit];
+        for (JournalSegment segment : segments) {
+            if (!segment.mayContain(from, to, ANY, survey)) {
+                continue;
+            }
+            if (segment.isInside(from, to)) {
+                segment.addCounts(survey, counts);
+                continue;
+            }
+            int size = segment.size();
+            for (int block = 0; block * JournalSegment.BLOCK < size; block++) {
+                if (!segment.blockMayContain(block, from, to, ANY)) {
+                    continue;
+                }
+                int end = Math.min(size, (block + 1) * JournalSegment.BLOCK);
+                for (int position = block * JournalSegment.BLOCK; position < end; position++) {
+                    int label = segment.match(position, from, to, ANY, survey);
+                    if (label >= 0 && label < counts.length) {
+                        counts[label]++;
+                    }
+                }
+            }
+        }
+        return counts;
+    }
+
+    public int[] getSpeciesCounts(int survey) {
+        // Identified records per label index of a survey (or ANY), over the whole journal
+        return countLabels(Long.MIN_VALUE, Long.MAX_VALUE, survey);
+    }
+
+    public synchronized boolean get(long sequence, JournalRecord into) {
+        // Reads one record by its sequence, false when it does not exist (anymore)
+        JournalSegment segment = segmentOf(sequence);
+        if (segment == null) {
+            return false;
+        }
+        int position = segment.find(sequence);
+        return position >= 0 && segment.read(position, into) && !into.isDeleted();
+    }
+
+    public synchronized boolean delete(long sequence) throws IOException {
+        // Removes a record, for example a photo of the wrong plant. The space is reclaimed by the compaction
+        checkOpen();
+        JournalSegment segment = segmentOf(sequence);
+        if (segment == null) {
+            return false;
+        }
+        int position = segment.find(sequence);
+        boolean deleted = position >= 0 && segment.delete(position);
+        if (deleted) {
+            notifyAll();
+        }
+        return deleted;
+    }
+
+    public synchronized int size() {
+        // The number of records that are not deleted
+        int live = 0;
+        for (JournalSegment segment : segments) {
+            live += segment.getLive();
+        }
+        return live;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized void compact() throws IOException {
+        // Merges every run of sealed neighbours that fits into one segment. Runs on its own during a rollover,
+        // call it after deleting many records to give their space back at once
+        checkOpen();
+        for (int i = 0; i + 1 < segments.size(); ) {
+            if (!merge(i)) {
+                i++;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            // The last records go to the disk now, the mappings are released by the garbage collector
+            for (JournalSegment segment : segments) {
+                if (segment.takeDirty()) {
+                    segment.force();
+                }
+            }
+            segments.clear();
+        }
+    }
+
+    private JournalSegment segmentOf(long sequence) {
+        // The last segment that starts at or before the sequence
+        int low = 0, high = segments.size() - 1, found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (segments.get(middle).getFirstSequence() <= sequence) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found < 0 ? null : segments.get(found);
+    }
+
+    private JournalSegment activeSegment() throws IOException {
+        JournalSegment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active != null && !active.isFull() && !active.isSealed()) {
+            return active;
+        }
+        // Rollover. The full segment is sealed here: its records are forced now, not by the next commit,
+        // because its summary is written right after and must never describe records that are not on the disk
+        if (active != null && !active.isSealed()) {
+            active.seal();
+        }
+        if (segments.size() >= maxSegments) {
+            compact();
+            while (segments.size() >= maxSegments) {
+                segments.remove(0).deleteFiles();
+            }
+        }
+        JournalSegment created = JournalSegment.create(
+                JournalSegment.fileFor(directory, nextSequence, JournalSegment.LOG_SUFFIX), segmentRecords);
+        segments.add(created);
+        return created;
+    }
+
+    private boolean merge(int first) throws IOException {
+        // Copies the records of segments 'first' and 'first + 1' that are not deleted into one new segment,
+        // which takes the name of the first. Returns false when they cannot be merged
+        JournalSegment a = segments.get(first);
+        JournalSegment b = segments.get(first + 1);
+        if (!a.isSealed() || !b.isSealed() || a.getLive() + b.getLive() > segmentRecords) {
+            return false;
+        }
+        int live = a.getLive() + b.getLive();
+        if (live == 0) {
+            segments.remove(first + 1).deleteFiles();
+            segments.remove(first).deleteFiles();
+            return true;
+        }
+        File target = a.getFile();
+        File temporary = new File(target.getPath() + ".tmp");
+        JournalSegment merged = JournalSegment.create(temporary, live);
+        JournalRecord record = new JournalRecord();
+        for (JournalSegment source : new JournalSegment[]{a, b}) {
+            for (int position = 0; position < source.size(); position++) {
+                if (source.read(position, record) && !record.isDeleted()) {
+                    merged.append(record);
+                }
+            }
+        }
+        merged.force();
+        // The rename replaces the first segment in one step. When the app dies before the second segment is
+        // deleted, load() finds its records inside the merged one and deletes it then
+        if (!temporary.renameTo(target)) {
+            temporary.delete();
+            throw new IOException("Cannot replace " + target);
+        }
+        b.deleteFiles();
+        JournalSegment reopened = JournalSegment.open(target);
+        reopened.seal();
+        segments.set(first, reopened);
+        segments.remove(first + 1);
+        return true;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The journal is closed");
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            long target;
+            List<JournalSegment> dirty = new ArrayList<>();
+            synchronized (this) {
+                while (!closed && durableSequence == nextSequence && !anyDirty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            // The records appended while we sleep join this group
+            if (commitMillis > 0) {
+                try {
+                    Thread.sleep(commitMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            synchronized (this) {
+                target = nextSequence;
+                for (JournalSegment segment : segments) {
+                    if (segment.takeDirty()) {
+                        dirty.add(segment);
+                    }
+                }
+            }
+            // Forcing does not hold the lock, appends and queries go on meanwhile
+            IOException error = null;
+            for (JournalSegment segment : dirty) {
+                try {
+                    segment.force();
+                } catch (RuntimeException e) {
+                    // force() reports a failing disk as an unchecked exception
+                    error = new IOException(e);
+                }
+            }
+            synchronized (this) {
+                if (error != null) {
+                    commitError = error;
+                } else {
+                    durableSequence = Math.max(durableSequence, target);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private boolean anyDirty() {
+        // Only asked by the committer while it holds the lock. A segment that was changed without a new record
+        // (a deletion) must be forced as well, it is only marked and picked up by takeDirty()
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (segments.get(i).isDirty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,77 @@
+package com.dktes.medileaf;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class SyntheticFrameSource implements FrameSource {
+
+    // A frame source without a camera: a generator fills the frames at a fixed rate
+    // This lets the scheduler, the smoothing and the whole live classification run on a desktop JVM
+
+    public interface Generator {
+        // Fills 'frame' (for example with setNv21) with the frame number 'index'
+        void fill(YuvFrame frame, long index);
+    }
+
+    private final long periodNanos;
+    private final Generator generator;
+    private final YuvFramePool pool;
+    private final AtomicLong skipped = new AtomicLong();
+    private Thread thread;
+    private volatile boolean running;
+
+    public SyntheticFrameSource(int framesPerSecond, int poolSize, Generator generator) {
+        this.periodNanos = 1_000_000_000L / framesPerSecond;
+        this.generator = generator;
+        this.pool = new YuvFramePool(poolSize);
+    }
+
+    @Override
+    public synchronized void start(Listener listener) {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(() -> {
+            long next = System.nanoTime();
+            for (long index = 0; running; index++) {
+                YuvFrame frame = pool.poll();
+                if (frame == null) {
+                    skipped.incrementAndGet();
+                } else {
+                    generator.fill(frame, index);
+                    listener.onFrame(frame);
+                }
+                next += periodNanos;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "synthetic-frames");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+}
@@ -0,0 +1,29 @@
+package com.dktes.medileaf;
+
+public final class TargetSizeDecoder<S, B> implements ClassificationPipeline.Stage<S, B> {
+
+    // The decode stage of the pipeline: it decodes an image only as big as the model needs
+    // A 12 MP photo is read at 1/16 of its size or less instead of at full resolution
+
+    private final ImageDecoder<S, B> decoder;
+    private final int targetWidth;
+    private final int targetHeight;
+    private final boolean cropToAspect;
+    private final boolean applyOrientation;
+
+    public TargetSizeDecoder(ImageDecoder<S, B> decoder, int targetWidth, int targetHeight,
+                             boolean cropToAspect, boolean applyOrientation) {
+        this.decoder = decoder;
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        this.cropToAspect = cropToAspect;
+        this.applyOrientation = applyOrientation;
+    }
+
+    @Override
+    public B apply(S source) throws Exception {
+        ImageBounds bounds = decoder.readBounds(source);
+        DecodePlan plan = DecodePlan.forTarget(bounds, targetWidth, targetHeight, cropToAspect, applyOrientation);
+        return decoder.decode(source, plan);
+    }
+}
@@ -0,0 +1,107 @@
+package com.dktes.medileaf;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+public final class TensorFormat {
+
+    // How the values of a model input or output are stored
+    // A float32 model stores every value as a 4 byte float. A quantized (int8) model stores one byte per value,
+    // and the real value is found with the scale and the zero point of the tensor:
+    //   real value = (stored value - zeroPoint) * scale
+    // A float16 model usually keeps float32 inputs and outputs and converts inside the graph, so it looks like FLOAT32 here
+
+    public enum Type {
+        FLOAT32(4),
+        UINT8(1),
+        INT8(1);
+
+        private final int bytes;
+
+        Type(int bytes) {
+            this.bytes = bytes;
+        }
+
+        public int getBytes() {
+            return bytes;
+        }
+    }
+
+    public static final TensorFormat FLOAT32 = new TensorFormat(Type.FLOAT32, 1f, 0);
+
+    private final Type type;
+    private final float scale;
+    private final int zeroPoint;
+
+    public TensorFormat(Type type, float scale, int zeroPoint) {
+        if (type != Type.FLOAT32 && !(scale > 0)) {
+            throw new IllegalArgumentException("A quantized tensor needs a positive scale, got " + scale);
+        }
+        this.type = type;
+        this.scale = type == Type.FLOAT32 ? 1f : scale;
+        this.zeroPoint = type == Type.FLOAT32 ? 0 : zeroPoint;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public int getZeroPoint() {
+        return zeroPoint;
+    }
+
+    public int getBytesPerValue() {
+        return type.getBytes();
+    }
+
+    public boolean isQuantized() {
+        return type != Type.FLOAT32;
+    }
+
+    // true when a pixel value of 0 to 255 can be stored as it is, without any arithmetic
+    public boolean isRawBytes() {
+        return type == Type.UINT8 && scale == 1f && zeroPoint == 0;
+    }
+
+    // Converts a real value to the stored value, rounded and clamped to the range of the type
+    public int quantize(float value) {
+        int quantized = Math.round(value / scale) + zeroPoint;
+        if (type == Type.UINT8) {
+            return quantized < 0 ? 0 : Math.min(quantized, 255);
+        }
+        return quantized < -128 ? -128 : Math.min(quantized, 127);
+    }
+
+    public float dequantize(int stored) {
+        return (stored - zeroPoint) * scale;
+    }
+
+    // Writes the value number 'index' of a buffer, 'index' counts values and not bytes
+    public void write(ByteBuffer buffer, int index, float value) {
+        if (type == Type.FLOAT32) {
+            buffer.putFloat(index * 4, value);
+        } else {
+            buffer.put(index, (byte) quantize(value));
+        }
+    }
+
+    public float read(ByteBuffer buffer, int index) {
+        switch (type) {
+            case UINT8:
+                return dequantize(buffer.get(index) & 0xFF);
+            case INT8:
+                return dequantize(buffer.get(index));
+            default:
+                return buffer.getFloat(index * 4);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.FLOAT32 ? "float32" : type.name().toLowerCase(Locale.ROOT) + " (scale " + scale + ", zero point " + zeroPoint + ")";
+    }
+}
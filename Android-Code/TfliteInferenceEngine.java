@@ -0,0 +1,218 @@
+package com.dktes.medileaf;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class TfliteInferenceEngine implements InferenceEngine {
+
+    // This engine runs the TensorFlow Lite model through the interpreters of an InterpreterPool
+    // The batch size is the first dimension of the input tensor. Before every run the input is resized to the requested
+    // batch size; the interpreter only re-allocates its tensors when the size actually changes
+    // A model exported with a second output (see the notebook) also gives the embedding of every image:
+    // output 0 is always the probabilities, output 1 the values of the layer before the classifier
+
+    private final InterpreterPool interpreterPool;
+    private final boolean ownsPool;
+    private final int[] imageShape;
+    private final int inputBytesPerImage;
+    private final int classCount;
+    private final TensorFormat inputFormat;
+    private final TensorFormat outputFormat;
+    private final int embeddingSize;
+    private final TensorFormat embeddingFormat;
+
+    // The shape of a single image batch is used for almost every run, so it is built once
+    private final int[] singleShape;
+
+    // Every thread gets its own output buffer, it grows with the biggest batch that thread has run
+    private final ThreadLocal<ByteBuffer> outputBuffers = new ThreadLocal<>();
+    private final ThreadLocal<ByteBuffer> embeddingBuffers = new ThreadLocal<>();
+
+    public TfliteInferenceEngine(InterpreterPool interpreterPool) throws IOException {
+        this(interpreterPool, false);
+    }
+
+    // When 'ownsPool' is true, closing the engine closes the pool too (used for short-lived engines, like while tuning)
+    public TfliteInferenceEngine(InterpreterPool interpreterPool, boolean ownsPool) throws IOException {
+        this.interpreterPool = interpreterPool;
+        this.ownsPool = ownsPool;
+        Interpreter interpreter = interpreterPool.acquire();
+        try {
+            Tensor input = interpreter.getInputTensor(0);
+            Tensor output = interpreter.getOutputTensor(0);
+            int[] inputShape = input.shape();
+            int[] outputShape = output.shape();
+            // A quantized model tells us how its values are stored, the preprocessing and the decoding adapt to it
+            this.inputFormat = formatOf(input);
+            this.outputFormat = formatOf(output);
+            int batch = Math.max(1, inputShape[0]);
+            this.imageShape = Arrays.copyOfRange(inputShape, 1, inputShape.length);
+            this.inputBytesPerImage = input.numBytes() / batch;
+            this.classCount = outputShape[outputShape.length - 1];
+            this.singleShape = batchShape(1);
+            if (interpreter.getOutputTensorCount() > 1) {
+                Tensor embedding = interpreter.getOutputTensor(1);
+                int[] embeddingShape = embedding.shape();
+                this.embeddingSize = embeddingShape[embeddingShape.length - 1];
+                this.embeddingFormat = formatOf(embedding);
+            } else {
+                this.embeddingSize = 0;
+                this.embeddingFormat = TensorFormat.FLOAT32;
+            }
+        } finally {
+            interpreterPool.release(interpreter);
+        }
+    }
+
+    @Override
+    public int[] getImageShape() {
+        return imageShape.clone();
+    }
+
+    @Override
+    public int getInputBytesPerImage() {
+        return inputBytesPerImage;
+    }
+
+    @Override
+    public int getClassCount() {
+        return classCount;
+    }
+
+    @Override
+    public TensorFormat getInputFormat() {
+        return inputFormat;
+    }
+
+    @Override
+    public TensorFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    @Override
+    public int getEmbeddingSize() {
+        return embeddingSize;
+    }
+
+    @Override
+    public void run(ByteBuffer input, int batchSize, float[] output) throws IOException {
+        ByteBuffer batchInput = batchInput(input, batchSize);
+        int values = batchSize * classCount;
+        ByteBuffer outputBuffer = outputBuffer(outputBuffers, values * outputFormat.getBytesPerValue());
+        Interpreter interpreter = interpreterPool.acquire();
+        try {
+            long start = Metrics.start();
+            interpreter.resizeInput(0, batchSize == 1 ? singleShape : batchShape(batchSize));
+            interpreter.run(batchInput, outputBuffer);
+            Metrics.record(Metrics.Stage.INFERENCE, start);
+        } finally {
+            interpreterPool.release(interpreter);
+        }
+        read(outputBuffer, outputFormat, output, values);
+    }
+
+    @Override
+    public void runWithEmbeddings(ByteBuffer input, int batchSize, float[] output, float[] embeddings)
+            throws IOException {
+        if (embeddingSize == 0) {
+            throw new IOException("This model does not output embeddings");
+        }
+        ByteBuffer batchInput = batchInput(input, batchSize);
+        int values = batchSize * classCount;
+        int embeddingValues = batchSize * embeddingSize;
+        ByteBuffer outputBuffer = outputBuffer(outputBuffers, values * outputFormat.getBytesPerValue());
+        ByteBuffer embeddingBuffer = outputBuffer(embeddingBuffers, embeddingValues * embeddingFormat.getBytesPerValue());
+        Map<Integer, Object> outputs = new HashMap<>(4);
+        outputs.put(0, outputBuffer);
+        outputs.put(1, embeddingBuffer);
+        Interpreter interpreter = interpreterPool.acquire();
+        try {
+            long start = Metrics.start();
+            interpreter.resizeInput(0, batchSize == 1 ? singleShape : batchShape(batchSize));
+            interpreter.runForMultipleInputsOutputs(new Object[]{batchInput}, outputs);
+            Metrics.record(Metrics.Stage.INFERENCE, start);
+        } finally {
+            interpreterPool.release(interpreter);
+        }
+        read(outputBuffer, outputFormat, output, values);
+        read(embeddingBuffer, embeddingFormat, embeddings, embeddingValues);
+    }
+
+    private ByteBuffer batchInput(ByteBuffer input, int batchSize) {
+        // The interpreter checks that the buffer has exactly the size of the input tensor,
+        // so a batch that does not fill the whole buffer is passed as a slice
+        int inputBytes = batchSize * inputBytesPerImage;
+        if (input.capacity() != inputBytes) {
+            ByteBuffer view = input.duplicate();
+            view.position(0).limit(inputBytes);
+            return view.slice().order(input.order());
+        }
+        input.rewind();
+        return input;
+    }
+
+    private static void read(ByteBuffer buffer, TensorFormat format, float[] target, int values) {
+        buffer.rewind();
+        if (format.isQuantized()) {
+            // The output of a quantized model is one byte per value, turned back into real values here
+            for (int i = 0; i < values; i++) {
+                target[i] = format.read(buffer, i);
+            }
+        } else {
+            buffer.asFloatBuffer().get(target, 0, values);
+        }
+    }
+
+    @Override
+    public void close() {
+        // Normally the pool belongs to the ModelRegistry, which closes it with the application
+        if (ownsPool) {
+            interpreterPool.close();
+        }
+    }
+
+    static TensorFormat formatOf(Tensor tensor) throws IOException {
+        switch (tensor.dataType()) {
+            case FLOAT32:
+                return TensorFormat.FLOAT32;
+            case UINT8:
+                return new TensorFormat(TensorFormat.Type.UINT8, tensor.quantizationParams().getScale(),
+                        tensor.quantizationParams().getZeroPoint());
+            case INT8:
+                return new TensorFormat(TensorFormat.Type.INT8, tensor.quantizationParams().getScale(),
+                        tensor.quantizationParams().getZeroPoint());
+            default:
+                throw new IOException("Unsupported tensor type " + tensor.dataType());
+        }
+    }
+
+    private int[] batchShape(int batchSize) {
+        int[] shape = new int[imageShape.length + 1];
+        shape[0] = batchSize;
+        System.arraycopy(imageShape, 0, shape, 1, imageShape.length);
+        return shape;
+    }
+
+    private static ByteBuffer outputBuffer(ThreadLocal<ByteBuffer> buffers, int bytes) {
+        // The output tensor has exactly 'bytes' bytes, so the buffer is sliced to that size as well
+        ByteBuffer buffer = buffers.get();
+        if (buffer == null || buffer.capacity() < bytes) {
+            buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+            buffers.set(buffer);
+        }
+        if (buffer.capacity() == bytes) {
+            buffer.clear();
+            return buffer;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.clear().limit(bytes);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+}
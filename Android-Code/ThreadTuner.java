@@ -0,0 +1,120 @@
+package com.dktes.medileaf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Properties;
+
+public final class ThreadTuner {
+
+    /****
+     * * * * NOTE * * * *
+     * More threads do not always make an inference faster. On a phone with big and little cores,
+     * a second thread may land on a slow core and the run waits for it; a small model spends more time
+     * synchronizing the threads than computing.
+     *
+     * The tuner times the model with 1, 2, 4... threads (up to the number of cores) and keeps the fastest count.
+     * A higher count is only taken when it is clearly faster (by 'minGain'), because every extra thread costs battery.
+     * The result is stored per model checksum in a small properties file, so the tuning runs once per model and device.
+     *
+     * The tuner only needs an engine factory, so it runs and can be tested on any JVM with a CPU engine
+     * * * * * ** * * * *
+     * ****/
+
+    public interface EngineFactory {
+        // Creates an engine that uses 'threads' threads per inference. The tuner closes it when it is done
+        InferenceEngine create(int threads) throws IOException;
+    }
+
+    private final File store;
+    private final int maxThreads;
+    private final int warmupRuns;
+    private final int timedRuns;
+    private final float minGain;
+
+    public ThreadTuner(File store, int maxThreads, int warmupRuns, int timedRuns, float minGain) {
+        this.store = store;
+        this.maxThreads = Math.max(1, maxThreads);
+        this.warmupRuns = warmupRuns;
+        this.timedRuns = Math.max(1, timedRuns);
+        this.minGain = minGain;
+    }
+
+    // Returns the stored thread count for this model, or tunes it first
+    public synchronized int tune(long modelChecksum, EngineFactory factory) throws IOException {
+        String key = Long.toHexString(modelChecksum);
+        Properties tuned = load();
+        String stored = tuned.getProperty(key);
+        if (stored != null) {
+            try {
+                return Math.min(Integer.parseInt(stored), maxThreads);
+            } catch (NumberFormatException e) {
+                // a broken entry is tuned again
+            }
+        }
+
+        int best = 1;
+        long bestNanos = Long.MAX_VALUE;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long nanos = measure(factory, threads);
+            if (bestNanos == Long.MAX_VALUE || nanos < bestNanos * (1f - minGain)) {
+                best = threads;
+                bestNanos = nanos;
+            }
+        }
+
+        tuned.setProperty(key, Integer.toString(best));
+        save(tuned);
+        return best;
+    }
+
+    long measure(EngineFactory factory, int threads) throws IOException {
+        InferenceEngine engine = factory.create(threads);
+        try {
+            ByteBuffer input = ByteBuffer.allocateDirect(engine.getInputBytesPerImage()).order(ByteOrder.nativeOrder());
+            float[] output = new float[engine.getClassCount()];
+            for (int i = 0; i < warmupRuns; i++) {
+                engine.run(input, 1, output);
+            }
+            long[] nanos = new long[timedRuns];
+            for (int i = 0; i < timedRuns; i++) {
+                long start = System.nanoTime();
+                engine.run(input, 1, output);
+                nanos[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(nanos);
+            return nanos[timedRuns / 2];
+        } finally {
+            engine.close();
+        }
+    }
+
+    private Properties load() {
+        Properties tuned = new Properties();
+        if (store.isFile()) {
+            try (InputStream in = new FileInputStream(store)) {
+                tuned.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                // an unreadable file is simply replaced
+                tuned.clear();
+            }
+        }
+        return tuned;
+    }
+
+    private void save(Properties tuned) throws IOException {
+        File temp = new File(store.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            tuned.store(out, "best interpreter thread count per model checksum");
+        }
+        if (!temp.renameTo(store)) {
+            throw new IOException("Cannot replace " + store);
+        }
+    }
+}
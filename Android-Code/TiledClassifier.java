@@ -0,0 +1,413 @@
+package com.dktes.medileaf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class TiledClassifier {
+
+    /****
+     * * * * NOTE * * * *
+     * Finds several leaves in one photo (a herb bed, a tray of specimens) instead of squashing the whole photo
+     * into one model input, which gives a single and often wrong label.
+     *
+     * Square windows slide over the image at a few scales (a scale is the side of the window as a part of the shorter
+     * side of the image), neighbours overlapping by 'overlap'. Every window is classified on its own, and the windows
+     * that pass the RejectionPolicy become candidates. Candidates of the same leaf that cover the same place are merged
+     * by non-maximum suppression: the most confident one is kept, the others are dropped.
+     *
+     * The windows of the first (largest) scale always run first, on the calling thread. When every one of them is sure
+     * of the same leaf, the photo shows one species and the smaller windows are not needed: the result is returned
+     * right away (early exit). Otherwise the smaller windows run like the views of the TtaClassifier: in batches,
+     * several batches at the same time on pooled interpreters, and only as long as the time budget allows.
+     * Within a scale the windows nearest the center come first, so a budget that runs out loses the edges of the photo.
+     *
+     * The source image should be decoded at getSourceSide() or more, so the smallest windows are not enlarged.
+     * Like the TtaClassifier, one TiledClassifier must not be used by two threads at the same time
+     * * * * * ** * * * *
+     * ****/
+
+    // All windows of the largest scale must agree with at least this confidence to skip the smaller ones
+    private static final float EARLY_EXIT_CONFIDENCE = 0.9f;
+    // Two candidates of the same leaf are the same leaf when they overlap more than this (intersection over union),
+    // or when the smaller one lies inside the other for more than NMS_COVERAGE of its area (windows of different scales)
+    private static final float NMS_OVERLAP = 0.3f;
+    private static final float NMS_COVERAGE = 0.8f;
+    private static final int NO_LABEL = -1;
+
+    private final InferenceEngine engine;
+    private final LabelTable labels;
+    private final float[] scales;
+    private final float overlap;
+    private final int batchSize;
+    private final Executor executor;
+    private final Slot[] slots;
+    private final RejectionPolicy policy;
+
+    // The source image, copied once so every window can read it
+    private int[] sourcePixels = new int[0];
+    private int sourceWidth;
+    private int sourceHeight;
+
+    // The windows for the current image size, in the order they are classified, and the result of each
+    private int layoutWidth = -1;
+    private int layoutHeight = -1;
+    private int tileCount;
+    private int coarseCount;
+    private int[] tileLeft = new int[0];
+    private int[] tileTop = new int[0];
+    private int[] tileSide = new int[0];
+    private int[] tileLabel = new int[0];
+    private float[] tileScore = new float[0];
+
+    private final AtomicInteger nextTile = new AtomicInteger();
+    private final AtomicLong lastBatchNanos = new AtomicLong();
+    private int lastTileCount;
+    private boolean lastEarlyExit;
+
+    public TiledClassifier(InferenceEngine engine, LabelTable labels, float[] scales, float overlap,
+                           int batchSize, int parallelism, Executor executor) {
+        this(engine, labels, scales, overlap, batchSize, parallelism, executor, RejectionPolicy.DEFAULT);
+    }
+
+    // 'scales' go from the largest to the smallest window, for example {1, 0.6, 0.4}
+    public TiledClassifier(InferenceEngine engine, LabelTable labels, float[] scales, float overlap,
+                           int batchSize, int parallelism, Executor executor, RejectionPolicy policy) {
+        if (scales.length == 0) {
+            throw new IllegalArgumentException("at least one scale is needed");
+        }
+        for (int i = 0; i < scales.length; i++) {
+            if (!(scales[i] > 0 && scales[i] <= 1) || (i > 0 && scales[i] >= scales[i - 1])) {
+                throw new IllegalArgumentException("scales must be in (0, 1] and decreasing");
+            }
+        }
+        if (!(overlap >= 0 && overlap < 1)) {
+            throw new IllegalArgumentException("overlap must be in [0, 1), got " + overlap);
+        }
+        if (batchSize < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("batchSize and parallelism must be at least 1");
+        }
+        if (parallelism > 1 && executor == null) {
+            throw new IllegalArgumentException("parallel batches need an executor");
+        }
+        this.engine = engine;
+        this.labels = labels;
+        this.scales = scales.clone();
+        this.overlap = overlap;
+        this.batchSize = batchSize;
+        this.executor = executor;
+        this.policy = policy;
+        this.slots = new Slot[parallelism];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(labels);
+        }
+    }
+
+    // The shorter side the source image should have, so the smallest windows are at least as big as the model input
+    public int getSourceSide() {
+        int[] shape = engine.getImageShape();
+        return (int) Math.ceil(Math.min(shape[0], shape[1]) / scales[scales.length - 1]);
+    }
+
+    // The leaves found in 'source', the most confident first. The list is empty when no window was sure enough
+    public List<LeafDetection> classify(PixelSource source, long budgetNanos) throws IOException {
+        long deadline = System.nanoTime() + budgetNanos;
+        copySource(source);
+        layout(sourceWidth, sourceHeight);
+        for (int i = 0; i < tileCount; i++) {
+            tileLabel[i] = NO_LABEL;
+        }
+        lastBatchNanos.set(0);
+
+        // The largest windows, always and on this thread
+        nextTile.set(0);
+        slots[0].run(coarseCount, deadline, true);
+        if (slots[0].error != null) {
+            throw slots[0].error;
+        }
+        int classified = slots[0].classified;
+        lastEarlyExit = isSingleSpecies();
+        if (!lastEarlyExit && coarseCount < tileCount) {
+            classified += runSmallerTiles(deadline);
+        }
+        lastTileCount = classified;
+        return lastEarlyExit ? singleSpecies() : suppress();
+    }
+
+    // How many windows the last classification could afford within its budget
+    public int getLastTileCount() {
+        return lastTileCount;
+    }
+
+    // Whether the last classification stopped after the largest windows because they all agreed
+    public boolean isLastEarlyExit() {
+        return lastEarlyExit;
+    }
+
+    private int runSmallerTiles(long deadline) throws IOException {
+        // Slot 0 runs on this thread, the others on the executor
+        nextTile.set(coarseCount);
+        int parallel = Math.min(slots.length, (tileCount - coarseCount + batchSize - 1) / batchSize);
+        CountDownLatch done = new CountDownLatch(parallel - 1);
+        for (int i = 1; i < parallel; i++) {
+            Slot slot = slots[i];
+            executor.execute(() -> {
+                try {
+                    slot.run(tileCount, deadline, false);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        slots[0].run(tileCount, deadline, false);
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the tiles", e);
+        }
+        int classified = 0;
+        for (int i = 0; i < parallel; i++) {
+            if (slots[i].error != null) {
+                throw slots[i].error;
+            }
+            classified += slots[i].classified;
+        }
+        return classified;
+    }
+
+    private boolean isSingleSpecies() {
+        int label = tileLabel[0];
+        for (int i = 0; i < coarseCount; i++) {
+            if (tileLabel[i] == NO_LABEL || tileLabel[i] != label || tileScore[i] < EARLY_EXIT_CONFIDENCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<LeafDetection> singleSpecies() {
+        // One detection over all the largest windows, as sure as the least sure of them
+        int left = sourceWidth, top = sourceHeight, right = 0, bottom = 0;
+        float score = 1f;
+        for (int i = 0; i < coarseCount; i++) {
+            left = Math.min(left, tileLeft[i]);
+            top = Math.min(top, tileTop[i]);
+            right = Math.max(right, tileLeft[i] + tileSide[i]);
+            bottom = Math.max(bottom, tileTop[i] + tileSide[i]);
+            score = Math.min(score, tileScore[i]);
+        }
+        List<LeafDetection> result = new ArrayList<>(1);
+        result.add(new LeafDetection(left / (float) sourceWidth, top / (float) sourceHeight,
+                right / (float) sourceWidth, bottom / (float) sourceHeight, tileLabel[0], labels.get(tileLabel[0]), score));
+        return result;
+    }
+
+    private List<LeafDetection> suppress() {
+        // Non-maximum suppression: the candidates are visited from the most to the least confident,
+        // and a candidate is dropped when a kept one of the same leaf already covers the same place
+        List<LeafDetection> candidates = new ArrayList<>();
+        for (int i = 0; i < tileCount; i++) {
+            if (tileLabel[i] != NO_LABEL) {
+                candidates.add(new LeafDetection(tileLeft[i] / (float) sourceWidth, tileTop[i] / (float) sourceHeight,
+                        (tileLeft[i] + tileSide[i]) / (float) sourceWidth, (tileTop[i] + tileSide[i]) / (float) sourceHeight,
+                        tileLabel[i], labels.get(tileLabel[i]), tileScore[i]));
+            }
+        }
+        candidates.sort((a, b) -> Float.compare(b.getScore(), a.getScore()));
+        List<LeafDetection> kept = new ArrayList<>();
+        for (LeafDetection candidate : candidates) {
+            boolean duplicate = false;
+            for (LeafDetection leaf : kept) {
+                if (leaf.getLabelIndex() == candidate.getLabelIndex()
+                        && (leaf.overlap(candidate) > NMS_OVERLAP || leaf.coverage(candidate) > NMS_COVERAGE)) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                kept.add(candidate);
+            }
+        }
+        return kept;
+    }
+
+    private void layout(int width, int height) {
+        // The windows only depend on the size of the image, so they are computed again only when it changes
+        if (width == layoutWidth && height == layoutHeight) {
+            return;
+        }
+        layoutWidth = width;
+        layoutHeight = height;
+        tileCount = 0;
+        for (int level = 0; level < scales.length; level++) {
+            int side = Math.max(1, Math.round(scales[level] * Math.min(width, height)));
+            int stride = Math.max(1, Math.round(side * (1 - overlap)));
+            int columns = width <= side ? 1 : (width - side + stride - 1) / stride + 1;
+            int rows = height <= side ? 1 : (height - side + stride - 1) / stride + 1;
+            ensureCapacity(tileCount + columns * rows);
+            int first = tileCount;
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    // The windows are spread evenly, so the last one ends at the edge of the image
+                    tileLeft[tileCount] = columns == 1 ? (width - side) / 2 : column * (width - side) / (columns - 1);
+                    tileTop[tileCount] = rows == 1 ? (height - side) / 2 : row * (height - side) / (rows - 1);
+                    tileSide[tileCount] = side;
+                    tileCount++;
+                }
+            }
+            sortByDistanceToCenter(first, tileCount, width, height);
+            if (level == 0) {
+                coarseCount = tileCount;
+            }
+        }
+    }
+
+    private void sortByDistanceToCenter(int from, int to, int width, int height) {
+        // An insertion sort, a scale has a few dozen windows at most
+        for (int i = from + 1; i < to; i++) {
+            int left = tileLeft[i], top = tileTop[i], side = tileSide[i];
+            long distance = distanceToCenter(left, top, side, width, height);
+            int j = i - 1;
+            while (j >= from && distanceToCenter(tileLeft[j], tileTop[j], tileSide[j], width, height) > distance) {
+                tileLeft[j + 1] = tileLeft[j];
+                tileTop[j + 1] = tileTop[j];
+                tileSide[j + 1] = tileSide[j];
+                j--;
+            }
+            tileLeft[j + 1] = left;
+            tileTop[j + 1] = top;
+            tileSide[j + 1] = side;
+        }
+    }
+
+    private static long distanceToCenter(int left, int top, int side, int width, int height) {
+        // Squared, and doubled to stay in integers
+        long dx = 2L * left + side - width;
+        long dy = 2L * top + side - height;
+        return dx * dx + dy * dy;
+    }
+
+    private void ensureCapacity(int count) {
+        if (tileLeft.length >= count) {
+            return;
+        }
+        int capacity = Math.max(count, tileLeft.length * 2);
+        tileLeft = Arrays.copyOf(tileLeft, capacity);
+        tileTop = Arrays.copyOf(tileTop, capacity);
+        tileSide = Arrays.copyOf(tileSide, capacity);
+        tileLabel = new int[capacity];
+        tileScore = new float[capacity];
+    }
+
+    private void copySource(PixelSource source) {
+        sourceWidth = source.getWidth();
+        sourceHeight = source.getHeight();
+        if (sourcePixels.length < sourceWidth * sourceHeight) {
+            sourcePixels = new int[sourceWidth * sourceHeight];
+        }
+        int[] row = new int[sourceWidth];
+        for (int y = 0; y < sourceHeight; y++) {
+            source.readRow(y, row);
+            System.arraycopy(row, 0, sourcePixels, y * sourceWidth, sourceWidth);
+        }
+    }
+
+    // One window of the source image, read in place
+    private final class Window implements PixelSource {
+        private int left;
+        private int top;
+        private int side;
+
+        void set(int tile) {
+            left = tileLeft[tile];
+            top = tileTop[tile];
+            side = tileSide[tile];
+        }
+
+        @Override
+        public int getWidth() {
+            return side;
+        }
+
+        @Override
+        public int getHeight() {
+            return side;
+        }
+
+        @Override
+        public void readRow(int y, int[] row) {
+            System.arraycopy(sourcePixels, (top + y) * sourceWidth + left, row, 0, side);
+        }
+    }
+
+    private final class Slot {
+        private final Preprocessor preprocessor;
+        private final Window window = new Window();
+        private final ByteBuffer input;
+        private final float[] output;
+        private final float[] probabilities;
+        private final Prediction prediction;
+        private int classified;
+        private IOException error;
+
+        Slot(LabelTable labels) {
+            int[] shape = engine.getImageShape();
+            this.preprocessor = new BilinearPreprocessor(shape[1], shape[0], engine.getInputFormat());
+            this.input = ByteBuffer.allocateDirect(batchSize * engine.getInputBytesPerImage()).order(ByteOrder.nativeOrder());
+            this.probabilities = new float[labels.size()];
+            this.output = new float[batchSize * probabilities.length];
+            this.prediction = new Prediction(labels, 2);
+        }
+
+        // Classifies the windows from nextTile up to 'end'. With 'always' the deadline is not checked
+        void run(int end, long deadline, boolean always) {
+            classified = 0;
+            error = null;
+            while (true) {
+                // Only start a batch that can still finish before the deadline
+                long estimate = lastBatchNanos.get();
+                if (!always && System.nanoTime() + estimate > deadline) {
+                    return;
+                }
+                int start = nextTile.getAndAdd(batchSize);
+                if (start >= end) {
+                    return;
+                }
+                int filled = Math.min(batchSize, end - start);
+                long begin = System.nanoTime();
+                input.clear();
+                for (int i = 0; i < filled; i++) {
+                    window.set(start + i);
+                    preprocessor.processInto(window, input);
+                }
+                try {
+                    engine.run(input, filled, output);
+                } catch (IOException e) {
+                    error = e;
+                    return;
+                }
+                // Every window has its own place in the result arrays, so the slots do not need a lock here.
+                // The latch the calling thread waits on makes the results visible to it
+                int classes = probabilities.length;
+                for (int i = 0; i < filled; i++) {
+                    System.arraycopy(output, i * classes, probabilities, 0, classes);
+                    prediction.update(probabilities, classes, policy);
+                    if (!prediction.isUnknown()) {
+                        tileLabel[start + i] = prediction.labelIndexAt(0);
+                        tileScore[start + i] = prediction.getConfidence();
+                    }
+                }
+                classified += filled;
+                lastBatchNanos.set(System.nanoTime() - begin);
+            }
+        }
+    }
+}
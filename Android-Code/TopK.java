@@ -0,0 +1,140 @@
+package com.dktes.medileaf;
+
+public final class TopK {
+
+    // TopK keeps the k highest scores of a probability vector together with their label indices
+    // Both arrays are allocated once, so selecting the best classes allocates nothing
+    //
+    // While scores are offered, the two arrays hold a min-heap of fixed size k: position 0 is the smallest score we keep,
+    // so a new score only has to be compared with that one. finish() sorts the heap in place,
+    // after that position 0 always holds the best class
+
+    private final int[] indices;
+    private final float[] scores;
+    private int size;
+
+    public TopK(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1, got " + k);
+        }
+        this.indices = new int[k];
+        this.scores = new float[k];
+    }
+
+    public void select(float[] probabilities, int length) {
+        // One pass over the probabilities, then the k survivors are sorted
+        clear();
+        for (int i = 0; i < length; i++) {
+            offer(i, probabilities[i]);
+        }
+        finish();
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void offer(int index, float score) {
+        // A score only enters when the heap is not full yet, or when it beats the smallest score we keep
+        // NaN never enters, a broken output must not become the best class
+        if (!(score == score)) {
+            return;
+        }
+        int k = indices.length;
+        if (size < k) {
+            siftUp(size++, index, score);
+        } else if (score > scores[0]) {
+            siftDown(0, index, score, k);
+        }
+    }
+
+    public float getThreshold() {
+        // While scores are offered: the score a new one has to beat to enter, -Infinity while the heap is not full
+        return size < indices.length ? Float.NEGATIVE_INFINITY : scores[0];
+    }
+
+    public void finish() {
+        // Heap sort: the smallest score is moved to the end again and again, which leaves the scores in descending order
+        for (int last = size - 1; last > 0; last--) {
+            int index = indices[last];
+            float score = scores[last];
+            indices[last] = indices[0];
+            scores[last] = scores[0];
+            siftDown(0, index, score, last);
+        }
+    }
+
+    private void siftUp(int position, int index, float score) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (!isLess(score, index, scores[parent], indices[parent])) {
+                break;
+            }
+            scores[position] = scores[parent];
+            indices[position] = indices[parent];
+            position = parent;
+        }
+        scores[position] = score;
+        indices[position] = index;
+    }
+
+    private void siftDown(int position, int index, float score, int length) {
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= length) {
+                break;
+            }
+            if (child + 1 < length && isLess(scores[child + 1], indices[child + 1], scores[child], indices[child])) {
+                child++;
+            }
+            if (!isLess(scores[child], indices[child], score, index)) {
+                break;
+            }
+            scores[position] = scores[child];
+            indices[position] = indices[child];
+            position = child;
+        }
+        scores[position] = score;
+        indices[position] = index;
+    }
+
+    private static boolean isLess(float score, int index, float otherScore, int otherIndex) {
+        // On equal scores the higher label index counts as smaller, so ties keep the first label like a plain scan would
+        return score < otherScore || score == otherScore && index > otherIndex;
+    }
+
+    void load(int[] cachedIndices, float[] cachedScores, int count) {
+        // Restores a top-k that was computed earlier, for example by the ResultCache
+        size = Math.min(count, indices.length);
+        System.arraycopy(cachedIndices, 0, indices, 0, size);
+        System.arraycopy(cachedScores, 0, scores, 0, size);
+    }
+
+    void copyFrom(TopK other) {
+        load(other.indices, other.scores, other.size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return indices.length;
+    }
+
+    public int indexAt(int rank) {
+        checkRank(rank);
+        return indices[rank];
+    }
+
+    public float scoreAt(int rank) {
+        checkRank(rank);
+        return scores[rank];
+    }
+
+    private void checkRank(int rank) {
+        if (rank < 0 || rank >= size) {
+            throw new IndexOutOfBoundsException("rank " + rank + " of " + size);
+        }
+    }
+}
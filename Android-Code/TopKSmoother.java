@@ -0,0 +1,56 @@
+package com.dktes.medileaf;
+
+public final class TopKSmoother {
+
+    // In live mode every frame is classified on its own, and the best class can jump between two similar leaves
+    // from one frame to the next. The smoother keeps an exponential moving average of the scores:
+    //   average = (1 - alpha) * average + alpha * score of this frame
+    // Classes that are not in the top-k of a frame count as 0 for that frame.
+    // A small alpha gives a calm label that reacts slowly, a large alpha follows the camera quickly
+
+    private final float alpha;
+    private final float[] average;
+    private final TopK smoothed;
+    private int frames;
+
+    public TopKSmoother(int classes, int k, float alpha) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha must be in (0, 1], got " + alpha);
+        }
+        this.alpha = alpha;
+        this.average = new float[classes];
+        this.smoothed = new TopK(Math.min(k, classes));
+    }
+
+    // Returns the smoothed top-k, which is reused by the next update
+    public TopK update(TopK frame) {
+        // The first frame is taken as it is, otherwise the average would need several frames to climb up from 0
+        float weight = frames == 0 ? 1f : alpha;
+        float keep = 1f - weight;
+        for (int i = 0; i < average.length; i++) {
+            average[i] *= keep;
+        }
+        for (int rank = 0; rank < frame.size(); rank++) {
+            average[frame.indexAt(rank)] += weight * frame.scoreAt(rank);
+        }
+        frames++;
+        smoothed.select(average, average.length);
+        return smoothed;
+    }
+
+    public TopK getSmoothed() {
+        return smoothed;
+    }
+
+    public int getFrameCount() {
+        return frames;
+    }
+
+    public void reset() {
+        for (int i = 0; i < average.length; i++) {
+            average[i] = 0f;
+        }
+        frames = 0;
+        smoothed.select(average, 0);
+    }
+}
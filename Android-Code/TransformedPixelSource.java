@@ -0,0 +1,66 @@
+package com.dktes.medileaf;
+
+public final class TransformedPixelSource implements PixelSource {
+
+    // Shows an ARGB image through a ViewTransform, without making a transformed copy of it
+    // Every output pixel is mapped back to the source: undo the mirror, turn by the rotation around the center,
+    // and take the nearest source pixel. Pixels that fall outside the source repeat its border
+    // The preprocessor resizes the view afterwards, so a nearest pixel is good enough here
+
+    private int[] pixels;
+    private int sourceWidth;
+    private int sourceHeight;
+
+    private int width;
+    private int height;
+    private boolean flip;
+    private float cos;
+    private float sin;
+
+    public void set(int[] pixels, int sourceWidth, int sourceHeight, ViewTransform view) {
+        this.pixels = pixels;
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.width = Math.max(1, Math.round(sourceWidth * view.getCrop()));
+        this.height = Math.max(1, Math.round(sourceHeight * view.getCrop()));
+        this.flip = view.isFlip();
+        double radians = Math.toRadians(view.getRotationDegrees());
+        this.cos = (float) Math.cos(radians);
+        this.sin = (float) Math.sin(radians);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRow(int y, int[] row) {
+        float dy = y + 0.5f - height / 2f;
+        float dx = (flip ? width / 2f - 0.5f : 0.5f - width / 2f);
+        float stepX = flip ? -1f : 1f;
+        float centerX = sourceWidth / 2f;
+        float centerY = sourceHeight / 2f;
+        // position of the first pixel of the row in the source, and how far one step to the right moves it
+        float sx = cos * dx + sin * dy + centerX;
+        float sy = -sin * dx + cos * dy + centerY;
+        float stepSx = cos * stepX;
+        float stepSy = -sin * stepX;
+        int maxX = sourceWidth - 1;
+        int maxY = sourceHeight - 1;
+        for (int x = 0; x < width; x++) {
+            int px = (int) Math.floor(sx);
+            int py = (int) Math.floor(sy);
+            px = px < 0 ? 0 : Math.min(px, maxX);
+            py = py < 0 ? 0 : Math.min(py, maxY);
+            row[x] = pixels[py * sourceWidth + px];
+            sx += stepSx;
+            sy += stepSy;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.dktes.medileaf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class TtaClassifier {
+
+    /****
+     * * * * NOTE * * * *
+     * Test-time augmentation: instead of classifying the image once, several views of it are classified
+     * (see ViewTransform) and their probabilities are averaged before the best classes are selected.
+     *
+     * The views are preprocessed into a batch input and sent to the model in one run per batch.
+     * With a parallelism above 1 several batches run at the same time, each on its own pooled interpreter;
+     * the extra batches run on 'executor' while the calling thread runs one itself.
+     *
+     * Every classification has a time budget. Before a new batch is started, we check whether it can still finish
+     * in time (judging by the last batch). When it cannot, no more views are added and the average of the views
+     * done so far is returned. The first batch always runs, so there is always a result.
+     *
+     * Like ClassificationHelper, one TtaClassifier must not be used by two threads at the same time
+     * * * * * ** * * * *
+     * ****/
+
+    private final InferenceEngine engine;
+    private final List<ViewTransform> views;
+    private final int batchSize;
+    private final Executor executor;
+    private final Slot[] slots;
+    private final float[] average;
+    private final Prediction prediction;
+    private final RejectionPolicy policy;
+
+    // The source image, copied once so every view can read it
+    private int[] sourcePixels = new int[0];
+    private int sourceWidth;
+    private int sourceHeight;
+
+    private final AtomicInteger nextView = new AtomicInteger();
+    private final AtomicLong lastBatchNanos = new AtomicLong();
+    private int lastViewCount;
+
+    public TtaClassifier(InferenceEngine engine, LabelTable labels, List<ViewTransform> views,
+                         int batchSize, int parallelism, Executor executor, int k) {
+        this(engine, labels, views, batchSize, parallelism, executor, k, RejectionPolicy.DEFAULT);
+    }
+
+    public TtaClassifier(InferenceEngine engine, LabelTable labels, List<ViewTransform> views,
+                         int batchSize, int parallelism, Executor executor, int k, RejectionPolicy policy) {
+        if (batchSize < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("batchSize and parallelism must be at least 1");
+        }
+        if (parallelism > 1 && executor == null) {
+            throw new IllegalArgumentException("parallel batches need an executor");
+        }
+        this.engine = engine;
+        this.views = views;
+        this.batchSize = Math.min(batchSize, views.size());
+        this.executor = executor;
+        int classes = labels.size();
+        this.slots = new Slot[Math.min(parallelism, (views.size() + this.batchSize - 1) / this.batchSize)];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(classes);
+        }
+        this.average = new float[classes];
+        this.prediction = new Prediction(labels, k);
+        this.policy = policy;
+    }
+
+    public Prediction classify(PixelSource source, long budgetNanos) throws IOException {
+        long deadline = System.nanoTime() + budgetNanos;
+        copySource(source);
+        nextView.set(0);
+        lastBatchNanos.set(0);
+
+        // Slot 0 runs on this thread, the others on the executor
+        CountDownLatch done = new CountDownLatch(slots.length - 1);
+        for (int i = 1; i < slots.length; i++) {
+            Slot slot = slots[i];
+            executor.execute(() -> {
+                try {
+                    slot.run(deadline, false);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        slots[0].run(deadline, true);
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the views", e);
+        }
+
+        // Average the probabilities of every view that was classified
+        int count = 0;
+        for (int c = 0; c < average.length; c++) {
+            average[c] = 0f;
+        }
+        for (Slot slot : slots) {
+            if (slot.error != null) {
+                throw slot.error;
+            }
+            count += slot.classified;
+            for (int c = 0; c < average.length; c++) {
+                average[c] += slot.sum[c];
+            }
+        }
+        for (int c = 0; c < average.length; c++) {
+            average[c] /= count;
+        }
+        lastViewCount = count;
+        // The averaged probabilities go through the same rejection as a single view. Views that disagree
+        // give a flatter average, so augmentation also makes junk images easier to reject
+        prediction.update(average, average.length, policy);
+        return prediction;
+    }
+
+    // The result of the last classification. It is reused, so it is only valid until the next one
+    public Prediction getPrediction() {
+        return prediction;
+    }
+
+    // How many views the last classification could afford within its budget
+    public int getLastViewCount() {
+        return lastViewCount;
+    }
+
+    private void copySource(PixelSource source) {
+        sourceWidth = source.getWidth();
+        sourceHeight = source.getHeight();
+        if (sourcePixels.length < sourceWidth * sourceHeight) {
+            sourcePixels = new int[sourceWidth * sourceHeight];
+        }
+        int[] row = new int[sourceWidth];
+        for (int y = 0; y < sourceHeight; y++) {
+            source.readRow(y, row);
+            System.arraycopy(row, 0, sourcePixels, y * sourceWidth, sourceWidth);
+        }
+    }
+
+    private final class Slot {
+        private final Preprocessor preprocessor;
+        private final TransformedPixelSource view = new TransformedPixelSource();
+        private final ByteBuffer input;
+        private final float[] output;
+        private final float[] sum;
+        private int classified;
+        private IOException error;
+
+        Slot(int classes) {
+            int[] shape = engine.getImageShape();
+            this.preprocessor = new BilinearPreprocessor(shape[1], shape[0], engine.getInputFormat());
+            this.input = ByteBuffer.allocateDirect(batchSize * engine.getInputBytesPerImage()).order(ByteOrder.nativeOrder());
+            this.output = new float[batchSize * classes];
+            this.sum = new float[classes];
+        }
+
+        void run(long deadline, boolean first) {
+            classified = 0;
+            error = null;
+            for (int c = 0; c < sum.length; c++) {
+                sum[c] = 0f;
+            }
+            while (true) {
+                // Only start a batch that can still finish before the deadline. The very first one always runs
+                long estimate = lastBatchNanos.get();
+                if (!(first && classified == 0) && System.nanoTime() + estimate > deadline) {
+                    return;
+                }
+                int start = nextView.getAndAdd(batchSize);
+                if (start >= views.size()) {
+                    return;
+                }
+                int filled = Math.min(batchSize, views.size() - start);
+                long begin = System.nanoTime();
+                input.clear();
+                for (int i = 0; i < filled; i++) {
+                    view.set(sourcePixels, sourceWidth, sourceHeight, views.get(start + i));
+                    preprocessor.processInto(view, input);
+                }
+                try {
+                    engine.run(input, filled, output);
+                } catch (IOException e) {
+                    error = e;
+                    return;
+                }
+                int classes = sum.length;
+                for (int i = 0; i < filled; i++) {
+                    for (int c = 0; c < classes; c++) {
+                        sum[c] += output[i * classes + c];
+                    }
+                }
+                classified += filled;
+                lastBatchNanos.set(System.nanoTime() - begin);
+            }
+        }
+    }
+}
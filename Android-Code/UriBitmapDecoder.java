@@ -0,0 +1,125 @@
+package com.dktes.medileaf;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public final class UriBitmapDecoder implements ImageDecoder<Uri, Bitmap> {
+
+    // This decoder reads images returned by the gallery (or any other app) through their content URI
+    // The bounds are read first without decoding pixels, then the image is decoded with the sample size of the plan,
+    // so a 50 MP photo never exists in memory at full resolution
+
+    private final ContentResolver resolver;
+
+    public UriBitmapDecoder(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    @Override
+    public ImageBounds readBounds(Uri uri) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = open(uri)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Cannot read the size of the image " + uri);
+        }
+        return new ImageBounds(options.outWidth, options.outHeight, readOrientation(uri));
+    }
+
+    @Override
+    public Bitmap decode(Uri uri, DecodePlan plan) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = plan.getSampleSize();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        Bitmap bitmap;
+        try (InputStream in = open(uri)) {
+            if (plan.isFullImage()) {
+                bitmap = BitmapFactory.decodeStream(in, null, options);
+            } else {
+                // Only the region we keep is decoded
+                BitmapRegionDecoder regionDecoder = BitmapRegionDecoder.newInstance(in, false);
+                try {
+                    Rect region = new Rect(plan.getRegionLeft(), plan.getRegionTop(),
+                            plan.getRegionLeft() + plan.getRegionWidth(), plan.getRegionTop() + plan.getRegionHeight());
+                    bitmap = regionDecoder.decodeRegion(region, options);
+                } finally {
+                    regionDecoder.recycle();
+                }
+            }
+        }
+        if (bitmap == null) {
+            throw new IOException("Cannot decode the image " + uri);
+        }
+        return orient(bitmap, plan.getOrientation());
+    }
+
+    private InputStream open(Uri uri) throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Cannot open the image " + uri);
+        }
+        return in;
+    }
+
+    private int readOrientation(Uri uri) {
+        // Reading EXIF from a stream needs Android N. On older devices the image is used as it is stored
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return ImageBounds.ORIENTATION_NORMAL;
+        }
+        try (InputStream in = open(uri)) {
+            return new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            return ImageBounds.ORIENTATION_NORMAL;
+        }
+    }
+
+    private static Bitmap orient(Bitmap bitmap, int orientation) {
+        // The bitmap is already small here, so turning it costs little
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(-90);
+                break;
+            default:
+                return bitmap;
+        }
+        Bitmap oriented = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (oriented != bitmap) {
+            bitmap.recycle();
+        }
+        return oriented;
+    }
+}
@@ -0,0 +1,103 @@
+package com.dktes.medileaf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+public final class VariantSelector {
+
+    /****
+     * * * * NOTE * * * *
+     * The app may ship several variants of the same model, for example:
+     *   medinet.tflite        float32, the reference
+     *   medinet_fp16.tflite   float16 weights, half the size
+     *   medinet_int8.tflite   full integer, a quarter of the size and usually the fastest on CPU-only phones
+     * Which one is fastest depends on the phone, and a quantized model can lose accuracy.
+     *
+     * The selector runs every variant over the calibration set. It measures the top-1 accuracy and the median time
+     * of one inference, and picks the fastest variant whose accuracy is at most 'maxAccuracyDrop' below the
+     * reference (the first variant). The reference always qualifies, so there is always a choice
+     * * * * * ** * * * *
+     * ****/
+
+    public static final class Measurement {
+        private final String name;
+        private final float accuracy;
+        private final long medianNanos;
+
+        Measurement(String name, float accuracy, long medianNanos) {
+            this.name = name;
+            this.accuracy = accuracy;
+            this.medianNanos = medianNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public float getAccuracy() {
+            return accuracy;
+        }
+
+        public long getMedianNanos() {
+            return medianNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: accuracy %.3f, %.2f ms per image", name, accuracy, medianNanos / 1e6);
+        }
+    }
+
+    private final CalibrationSet calibration;
+    private final float maxAccuracyDrop;
+
+    public VariantSelector(CalibrationSet calibration, float maxAccuracyDrop) {
+        this.calibration = calibration;
+        this.maxAccuracyDrop = maxAccuracyDrop;
+    }
+
+    public Measurement measure(String name, InferenceEngine engine) throws IOException {
+        int[] shape = engine.getImageShape();
+        Preprocessor preprocessor = new BilinearPreprocessor(shape[1], shape[0], engine.getInputFormat());
+        ArgbPixelSource source = new ArgbPixelSource(calibration.getPixels(0), calibration.getWidth(), calibration.getHeight());
+        float[] probabilities = new float[engine.getClassCount()];
+        TopK best = new TopK(1);
+
+        // The first inference of an engine is always slow, it is run once before anything is timed
+        engine.run(preprocessor.process(source), 1, probabilities);
+
+        int samples = calibration.size();
+        long[] nanos = new long[samples];
+        int correct = 0;
+        for (int i = 0; i < samples; i++) {
+            source.set(calibration.getPixels(i), calibration.getWidth(), calibration.getHeight());
+            ByteBuffer input = preprocessor.process(source);
+            long start = System.nanoTime();
+            engine.run(input, 1, probabilities);
+            nanos[i] = System.nanoTime() - start;
+            best.select(probabilities, probabilities.length);
+            if (best.indexAt(0) == calibration.getLabel(i)) {
+                correct++;
+            }
+        }
+        Arrays.sort(nanos);
+        float accuracy = samples == 0 ? 0f : (float) correct / samples;
+        return new Measurement(name, accuracy, samples == 0 ? 0 : nanos[samples / 2]);
+    }
+
+    // Returns the index of the chosen measurement, the first one is the reference
+    public int choose(List<Measurement> measurements) {
+        float floor = measurements.get(0).getAccuracy() - maxAccuracyDrop;
+        int chosen = 0;
+        for (int i = 1; i < measurements.size(); i++) {
+            Measurement candidate = measurements.get(i);
+            if (candidate.getAccuracy() >= floor && candidate.getMedianNanos() < measurements.get(chosen).getMedianNanos()) {
+                chosen = i;
+            }
+        }
+        return chosen;
+    }
+}
@@ -0,0 +1,63 @@
+package com.dktes.medileaf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+public final class ViewTransform {
+
+    // One cheap variation of an image for test-time augmentation: a mirror, a center crop and a small rotation
+    // The model sees the leaf a little differently in every view, and averaging its answers over the views
+    // smooths out the mistakes caused by the angle the photo was taken at
+
+    public static final ViewTransform IDENTITY = new ViewTransform(false, 1f, 0f);
+
+    private final boolean flip;
+    private final float crop;
+    private final float rotationDegrees;
+
+    // 'crop' is the part of the width and height that is kept around the center (1 keeps everything)
+    public ViewTransform(boolean flip, float crop, float rotationDegrees) {
+        if (!(crop > 0 && crop <= 1)) {
+            throw new IllegalArgumentException("crop must be in (0, 1], got " + crop);
+        }
+        this.flip = flip;
+        this.crop = crop;
+        this.rotationDegrees = rotationDegrees;
+    }
+
+    public boolean isFlip() {
+        return flip;
+    }
+
+    public float getCrop() {
+        return crop;
+    }
+
+    public float getRotationDegrees() {
+        return rotationDegrees;
+    }
+
+    // The first 'count' views of the default set, ordered from the most to the least useful
+    // The plain image always comes first, so a TTA result is never based on less than the normal classification
+    public static List<ViewTransform> defaults(int count) {
+        List<ViewTransform> all = Arrays.asList(
+                IDENTITY,
+                new ViewTransform(true, 1f, 0f),
+                new ViewTransform(false, 0.85f, 0f),
+                new ViewTransform(true, 0.85f, 0f),
+                new ViewTransform(false, 0.9f, 10f),
+                new ViewTransform(false, 0.9f, -10f),
+                new ViewTransform(true, 0.9f, 10f),
+                new ViewTransform(true, 0.9f, -10f),
+                new ViewTransform(false, 0.7f, 0f),
+                new ViewTransform(true, 0.7f, 0f));
+        return new ArrayList<>(all.subList(0, Math.max(1, Math.min(count, all.size()))));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s crop %.2f rotate %.0f", flip ? "flipped" : "plain", crop, rotationDegrees);
+    }
+}
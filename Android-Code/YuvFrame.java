@@ -0,0 +1,160 @@
+package com.dktes.medileaf;
+
+import java.nio.ByteBuffer;
+
+public final class YuvFrame implements Frame {
+
+    /****
+     * * * * NOTE * * * *
+     * A camera frame in YUV 4:2:0, the format cameras deliver their preview in.
+     * Y holds the brightness of every pixel, U and V hold the color of every block of 2x2 pixels.
+     *
+     * The planes are described by strides, so the same class can hold the common layouts:
+     *   NV21      one array: the Y plane, then V and U interleaved (pixel stride 2)
+     *   I420      three separate planes (pixel stride 1)
+     *   YUV_420_888  whatever the camera2 Image planes say
+     *
+     * The arrays are allocated once and reused for every frame of the same size.
+     * readRow() converts one row to ARGB when the preprocessor asks for it, so a full ARGB copy of the frame never exists.
+     * The frame can also be rotated by 90, 180 or 270 degrees while it is read, because the camera sensor is usually
+     * mounted sideways in the phone
+     * * * * * ** * * * *
+     * ****/
+
+    public interface Recycler {
+        void recycle(YuvFrame frame);
+    }
+
+    private final Recycler recycler;
+
+    private int sourceWidth;
+    private int sourceHeight;
+    private int rotation;
+    private long timestampNanos;
+
+    private byte[] yPlane = new byte[0];
+    private byte[] uPlane = new byte[0];
+    private byte[] vPlane = new byte[0];
+    private int yRowStride;
+    private int uvRowStride;
+    private int uvPixelStride;
+    private int uOffset;
+    private int vOffset;
+
+    public YuvFrame(Recycler recycler) {
+        this.recycler = recycler;
+    }
+
+    public void setNv21(byte[] data, int width, int height, int rotation, long timestampNanos) {
+        // NV21 is the default preview format of the old camera API: Y plane, then VU pairs
+        setGeometry(width, height, rotation, timestampNanos);
+        yPlane = data;
+        uPlane = data;
+        vPlane = data;
+        yRowStride = width;
+        uvRowStride = width;
+        uvPixelStride = 2;
+        vOffset = width * height;
+        uOffset = width * height + 1;
+    }
+
+    public void copyPlanes(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+                           int width, int height, int rotation, long timestampNanos) {
+        // Copies the planes of a camera image into arrays owned by this frame, so the image can be closed right away
+        setGeometry(width, height, rotation, timestampNanos);
+        yPlane = copy(y, yPlane);
+        uPlane = copy(u, uPlane);
+        vPlane = copy(v, vPlane);
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        uOffset = 0;
+        vOffset = 0;
+    }
+
+    private void setGeometry(int width, int height, int rotation, long timestampNanos) {
+        if (rotation % 90 != 0) {
+            throw new IllegalArgumentException("rotation must be a multiple of 90, got " + rotation);
+        }
+        this.sourceWidth = width;
+        this.sourceHeight = height;
+        this.rotation = (rotation % 360 + 360) % 360;
+        this.timestampNanos = timestampNanos;
+    }
+
+    private static byte[] copy(ByteBuffer plane, byte[] target) {
+        int length = plane.remaining();
+        if (target.length < length) {
+            target = new byte[length];
+        }
+        plane.duplicate().get(target, 0, length);
+        return target;
+    }
+
+    @Override
+    public int getWidth() {
+        return rotation == 90 || rotation == 270 ? sourceHeight : sourceWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return rotation == 90 || rotation == 270 ? sourceWidth : sourceHeight;
+    }
+
+    @Override
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    @Override
+    public void readRow(int y, int[] row) {
+        int width = getWidth();
+        switch (rotation) {
+            case 0:
+                for (int x = 0; x < width; x++) {
+                    row[x] = argbAt(x, y);
+                }
+                break;
+            case 90:
+                // the output is the source turned clockwise: output row y is source column y, read from the bottom up
+                for (int x = 0; x < width; x++) {
+                    row[x] = argbAt(y, sourceHeight - 1 - x);
+                }
+                break;
+            case 180:
+                for (int x = 0; x < width; x++) {
+                    row[x] = argbAt(sourceWidth - 1 - x, sourceHeight - 1 - y);
+                }
+                break;
+            default:
+                for (int x = 0; x < width; x++) {
+                    row[x] = argbAt(sourceWidth - 1 - y, x);
+                }
+                break;
+        }
+    }
+
+    private int argbAt(int x, int y) {
+        // BT.601 video range, in fixed point, the same conversion Android uses for camera previews
+        int luma = (yPlane[y * yRowStride + x] & 0xFF) - 16;
+        int chroma = (y >> 1) * uvRowStride + (x >> 1) * uvPixelStride;
+        int u = (uPlane[uOffset + chroma] & 0xFF) - 128;
+        int v = (vPlane[vOffset + chroma] & 0xFF) - 128;
+        int scaled = 298 * Math.max(luma, 0) + 128;
+        int red = clamp((scaled + 409 * v) >> 8);
+        int green = clamp((scaled - 100 * u - 208 * v) >> 8);
+        int blue = clamp((scaled + 516 * u) >> 8);
+        return 0xFF000000 | red << 16 | green << 8 | blue;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : Math.min(value, 255);
+    }
+
+    @Override
+    public void release() {
+        if (recycler != null) {
+            recycler.recycle(this);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.dktes.medileaf;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+public final class YuvFramePool implements YuvFrame.Recycler {
+
+    // A fixed number of frames that are reused over and over
+    // When all of them are in use (the classifier holds one, the scheduler one, the source is filling one),
+    // the source simply skips the camera image instead of allocating another frame
+
+    private final ArrayBlockingQueue<YuvFrame> free;
+
+    public YuvFramePool(int size) {
+        free = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            free.add(new YuvFrame(this));
+        }
+    }
+
+    // returns null when every frame is in use
+    public YuvFrame poll() {
+        return free.poll();
+    }
+
+    @Override
+    public void recycle(YuvFrame frame) {
+        free.offer(frame);
+    }
+
+    public int getFreeCount() {
+        return free.size();
+    }
+}
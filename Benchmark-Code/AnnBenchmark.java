@@ -0,0 +1,204 @@
+package com.dktes.medileaf.bench;
+
+import com.dktes.medileaf.EmbeddingIndex;
+import com.dktes.medileaf.EmbeddingIndexBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+public final class AnnBenchmark implements Benchmark {
+
+    // Searches the EmbeddingIndex the way the result screen looks for similar leaves, one query per run
+    // The embeddings are synthetic, with the shape of real ones: 64 values, 30 leaves, and every leaf seen from
+    // a few typical angles (clusters). Like real embeddings, the points of a cluster do not fill all 64 dimensions,
+    // they vary along a few directions (light, size, rotation...) plus a little noise
+    // The queries are new points of the same clusters
+    // setUp() also prints the recall: the share of the true 10 nearest references (found by comparing with every
+    // reference) that the index returns. More probes and more subspaces (bytes per reference) give a higher recall
+    // and a slower query
+    // An index is built once (in parallel on all cores) and shared by the benchmarks of all probe counts
+    // The index is expected to answer in well under a millisecond with 100k references
+
+    private static final int DIMENSION = 64;
+    private static final int LEAVES = 30;
+    private static final int CLUSTERS_PER_LEAF = 20;
+    private static final int VARIATIONS = 8;
+    private static final int QUERIES = 256;
+    private static final int K = 10;
+
+    private static final Map<String, Data> DATA = new HashMap<>();
+
+    private final int size;
+    private final int subspaces;
+    private final int probes;
+    private Data data;
+    private EmbeddingIndex.Searcher searcher;
+    private final float[] query = new float[DIMENSION];
+    private final int[] ids = new int[K];
+    private final float[] distances = new float[K];
+    private int next;
+
+    private static final class Data {
+        float[] queries;
+        int[][] exact;
+        EmbeddingIndex index;
+    }
+
+    public AnnBenchmark(int size, int subspaces, int probes) {
+        this.size = size;
+        this.subspaces = subspaces;
+        this.probes = probes;
+    }
+
+    @Override
+    public String getName() {
+        return "ann.pq" + subspaces + ".probes" + probes + "." + size;
+    }
+
+    @Override
+    public void setUp() throws IOException {
+        data = data(size, subspaces);
+        searcher = data.index.newSearcher();
+        int hits = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            System.arraycopy(data.queries, q * DIMENSION, query, 0, DIMENSION);
+            int found = searcher.search(query, K, probes, ids, distances);
+            for (int i = 0; i < found; i++) {
+                for (int expected : data.exact[q]) {
+                    if (ids[i] == expected) {
+                        hits++;
+                        break;
+                    }
+                }
+            }
+        }
+        System.out.printf(Locale.ROOT, "%s: recall@%d %.3f%n", getName(), K, hits / (double) (QUERIES * K));
+    }
+
+    @Override
+    public long run() {
+        System.arraycopy(data.queries, (next++ % QUERIES) * DIMENSION, query, 0, DIMENSION);
+        return searcher.search(query, K, probes, ids, distances) + ids[0];
+    }
+
+    private static synchronized Data data(int size, int subspaces) throws IOException {
+        String key = size + "/" + subspaces;
+        Data data = DATA.get(key);
+        if (data != null) {
+            return data;
+        }
+        Random random = new Random(7);
+        float[] centers = new float[LEAVES * CLUSTERS_PER_LEAF * DIMENSION];
+        for (int leaf = 0; leaf < LEAVES; leaf++) {
+            // The clusters of a leaf are spread around one point of the leaf, so a leaf is a loose group of clusters
+            float[] leafCenter = gaussian(random, 1f);
+            for (int c = 0; c < CLUSTERS_PER_LEAF; c++) {
+                int offset = (leaf * CLUSTERS_PER_LEAF + c) * DIMENSION;
+                for (int d = 0; d < DIMENSION; d++) {
+                    centers[offset + d] = leafCenter[d] + (float) random.nextGaussian() * 0.5f;
+                }
+            }
+        }
+        float[] directions = new float[LEAVES * CLUSTERS_PER_LEAF * VARIATIONS * DIMENSION];
+        for (int i = 0; i < directions.length; i++) {
+            directions[i] = (float) random.nextGaussian() * 0.15f;
+        }
+        float[] embeddings = sample(random, centers, directions, size);
+        int[] referenceIds = new int[size];
+        for (int i = 0; i < size; i++) {
+            referenceIds[i] = i;
+        }
+
+        data = new Data();
+        data.queries = sample(random, centers, directions, QUERIES);
+        data.exact = exact(embeddings, size, data.queries);
+
+        File file = File.createTempFile("references", ".ivf");
+        file.deleteOnExit();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int lists = Math.max(16, Integer.highestOneBit((int) Math.sqrt(size)));
+        long start = System.nanoTime();
+        new EmbeddingIndexBuilder(lists, subspaces, threads).build(embeddings, referenceIds, size, DIMENSION, file);
+        System.out.printf(Locale.ROOT, "ann.pq%d.%d: %d lists built in %.0f ms on %d threads, %d KB%n",
+                subspaces, size, lists, (System.nanoTime() - start) / 1e6, threads, file.length() / 1024);
+        data.index = EmbeddingIndex.open(file);
+        DATA.put(key, data);
+        return data;
+    }
+
+    private static float[] gaussian(Random random, float scale) {
+        float[] values = new float[DIMENSION];
+        for (int d = 0; d < DIMENSION; d++) {
+            values[d] = (float) random.nextGaussian() * scale;
+        }
+        return values;
+    }
+
+    private static float[] sample(Random random, float[] centers, float[] directions, int count) {
+        int clusters = centers.length / DIMENSION;
+        float[] points = new float[count * DIMENSION];
+        float[] amounts = new float[VARIATIONS];
+        for (int i = 0; i < count; i++) {
+            int cluster = random.nextInt(clusters);
+            for (int v = 0; v < VARIATIONS; v++) {
+                amounts[v] = (float) random.nextGaussian();
+            }
+            for (int d = 0; d < DIMENSION; d++) {
+                float value = centers[cluster * DIMENSION + d] + (float) random.nextGaussian() * 0.02f;
+                for (int v = 0; v < VARIATIONS; v++) {
+                    value += amounts[v] * directions[((cluster * VARIATIONS) + v) * DIMENSION + d];
+                }
+                points[i * DIMENSION + d] = value;
+            }
+        }
+        return points;
+    }
+
+    private static int[][] exact(float[] embeddings, int count, float[] queries) {
+        // The true neighbours by cosine similarity, the same order as the distances of the normalized embeddings
+        float[] norms = new float[count];
+        for (int i = 0; i < count; i++) {
+            norms[i] = norm(embeddings, i * DIMENSION);
+        }
+        int[][] exact = new int[QUERIES][K];
+        float[] best = new float[K];
+        for (int q = 0; q < QUERIES; q++) {
+            int[] ids = exact[q];
+            Arrays.fill(best, -Float.MAX_VALUE);
+            float queryNorm = norm(queries, q * DIMENSION);
+            for (int i = 0; i < count; i++) {
+                float dot = 0f;
+                for (int d = 0; d < DIMENSION; d++) {
+                    dot += queries[q * DIMENSION + d] * embeddings[i * DIMENSION + d];
+                }
+                float similarity = dot / (queryNorm * norms[i]);
+                if (similarity <= best[K - 1]) {
+                    continue;
+                }
+                // Insertion into the sorted top K
+                int position = K - 1;
+                while (position > 0 && best[position - 1] < similarity) {
+                    best[position] = best[position - 1];
+                    ids[position] = ids[position - 1];
+                    position--;
+                }
+                best[position] = similarity;
+                ids[position] = i;
+            }
+        }
+        return exact;
+    }
+
+    private static float norm(float[] values, int offset) {
+        float sum = 0f;
+        for (int d = 0; d < DIMENSION; d++) {
+            sum += values[offset + d] * values[offset + d];
+        }
+        return (float) Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,80 @@
+package com.dktes.medileaf.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+public final class Baseline {
+
+    // A baseline is a stored set of results, one time and one allocation figure per benchmark, in a properties file:
+    //   preprocess.640x480.nanosPerOp=585000.0
+    //   preprocess.640x480.bytesPerOp=0.0
+    // A new run is compared against it, and every benchmark that got slower or allocates more is reported.
+    // Times are noisy, so they only count as a regression above a relative threshold.
+    // Allocations are exact, so a few bytes more per operation already count (a few bytes of slack cover JVM noise)
+
+    private static final double ALLOCATION_SLACK_BYTES = 16;
+
+    private final Properties values;
+
+    private Baseline(Properties values) {
+        this.values = values;
+    }
+
+    public static Baseline load(File file) throws IOException {
+        Properties values = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            values.load(in);
+        }
+        return new Baseline(values);
+    }
+
+    public static void save(List<BenchmarkResult> results, File file) throws IOException {
+        Properties values = new Properties();
+        for (BenchmarkResult result : results) {
+            values.setProperty(result.getName() + ".nanosPerOp", Double.toString(result.getNanosPerOp()));
+            values.setProperty(result.getName() + ".bytesPerOp", Double.toString(result.getBytesPerOp()));
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            values.store(out, "MediLeaf benchmark baseline");
+        }
+    }
+
+    // Returns one line per regression, an empty list means the run is at least as good as the baseline
+    public List<String> compare(List<BenchmarkResult> results, double timeThreshold) {
+        List<String> regressions = new ArrayList<>();
+        for (BenchmarkResult result : results) {
+            String name = result.getName();
+            double nanos = get(name + ".nanosPerOp");
+            double bytes = get(name + ".bytesPerOp");
+            if (Double.isNaN(nanos)) {
+                System.out.println("  " + name + ": not in the baseline");
+                continue;
+            }
+            double ratio = result.getNanosPerOp() / nanos;
+            System.out.println(String.format(Locale.ROOT, "  %-32s time x%.2f   allocation %.1f -> %.1f B/op",
+                    name, ratio, bytes, result.getBytesPerOp()));
+            if (ratio > 1 + timeThreshold) {
+                regressions.add(String.format(Locale.ROOT, "%s is %.0f%% slower (%.1f -> %.1f ns/op)",
+                        name, (ratio - 1) * 100, nanos, result.getNanosPerOp()));
+            }
+            if (bytes >= 0 && result.getBytesPerOp() > bytes + ALLOCATION_SLACK_BYTES) {
+                regressions.add(String.format(Locale.ROOT, "%s allocates more (%.1f -> %.1f B/op)",
+                        name, bytes, result.getBytesPerOp()));
+            }
+        }
+        return regressions;
+    }
+
+    private double get(String key) {
+        String value = values.getProperty(key);
+        return value == null ? Double.NaN : Double.parseDouble(value);
+    }
+}
@@ -0,0 +1,15 @@
+package com.dktes.medileaf.bench;
+
+public interface Benchmark {
+
+    // One benchmark measures one operation of the app, for example preprocessing one frame
+    // setUp() builds everything the operation needs, so only the operation itself is measured
+
+    String getName();
+
+    void setUp() throws Exception;
+
+    // Runs the operation once. The returned value is derived from the result and summed up by the runner,
+    // otherwise the JIT could notice that the result is never used and remove the work we want to measure
+    long run() throws Exception;
+}
@@ -0,0 +1,108 @@
+package com.dktes.medileaf.bench;
+
+import com.dktes.medileaf.TensorFormat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class BenchmarkMain {
+
+    /****
+     * * * * NOTE * * * *
+     * The benchmarks run on a plain JVM, next to the app sources but without Android:
+     * they only use the parts of the app that do not depend on Android (preprocessing, top-k, labels, catalog, search, similar leaves).
+     * GovernorCheck, built with the same line, checks the trim order of the ResourceGovernor (it has its own main).
+     *
+     * Compile and run from the root of the repository (Java 8 or newer, a HotSpot JVM for the allocation numbers):
+     *   javac -d build/bench Benchmark-Code/*.java Android-Code/{ArgbPixelSource,BilinearPreprocessor,PixelSource,Preprocessor,TensorFormat,TopK,LabelTable,ClassificationHelper,Prediction,RejectionPolicy,InferenceEngine,InputHasher,ResultCache,Leaf,LeafStore,LeafCatalog,LeafSearchIndex,JsonLeafSource,BinaryCatalog,CatalogCompiler,CalibrationSet,Metrics,LatencyHistogram,PackInstaller,PackSource,PackManifest,DeltaCodec,EmbeddingIndex,EmbeddingIndexBuilder,SimilarLeafFinder,JournalRecord,JournalSegment,SurveyJournal,ResourceGovernor}.java
+     *   java -cp build/bench com.dktes.medileaf.bench.BenchmarkMain [options]
+     *
+     * Options:
+     *   --assets <dir>        the directory with data.json and labels.txt (default Android-Code)
+     *   --filter <text>       only run the benchmarks whose name contains the text
+     *   --save <file>         store the results as a baseline
+     *   --baseline <file>     compare the results with a stored baseline, exits with 1 when something regressed
+     *   --threshold <ratio>   how much slower a benchmark may get before it counts as a regression (default 0.10)
+     *   --quick               shorter warm-up and iterations, for a smoke test
+     * * * * * ** * * * *
+     * ****/
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File assets = new File("Android-Code");
+        String filter = "";
+        File save = null, baseline = null;
+        double threshold = 0.10;
+        boolean quick = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--assets": assets = new File(args[++i]); break;
+                case "--filter": filter = args[++i]; break;
+                case "--save": save = new File(args[++i]); break;
+                case "--baseline": baseline = new File(args[++i]); break;
+                case "--threshold": threshold = Double.parseDouble(args[++i]); break;
+                case "--quick": quick = true; break;
+                default:
+                    System.err.println("unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.add(new PreprocessBenchmark(150, 150));
+        benchmarks.add(new PreprocessBenchmark(640, 480));
+        benchmarks.add(new PreprocessBenchmark(1920, 1080));
+        benchmarks.add(new PreprocessBenchmark(640, 480, new TensorFormat(TensorFormat.Type.UINT8, 1f, 0)));
+        benchmarks.add(new TopKBenchmark(30, 1));
+        benchmarks.add(new TopKBenchmark(30, 3));
+        benchmarks.add(new TopKBenchmark(30, 5));
+        benchmarks.add(new DecodeBenchmark(new File(assets, "labels.txt")));
+        for (int size : new int[]{30, 1000, 10000}) {
+            benchmarks.add(new CatalogBenchmark(new File(assets, "data.json"), CatalogBenchmark.Kind.JSON, size));
+            benchmarks.add(new CatalogBenchmark(new File(assets, "data.json"), CatalogBenchmark.Kind.BINARY, size));
+        }
+        for (int size : new int[]{30, 10000}) {
+            for (SearchBenchmark.Kind kind : SearchBenchmark.Kind.values()) {
+                benchmarks.add(new SearchBenchmark(new File(assets, "data.json"), kind, size));
+            }
+        }
+        for (int subspaces : new int[]{16, 32}) {
+            for (int probes : new int[]{1, 4, 16}) {
+                benchmarks.add(new AnnBenchmark(100000, subspaces, probes));
+            }
+        }
+        for (JournalBenchmark.Kind kind : JournalBenchmark.Kind.values()) {
+            benchmarks.add(new JournalBenchmark(kind, 500000));
+        }
+
+        BenchmarkRunner runner = quick ? new BenchmarkRunner(200, 3, 200) : new BenchmarkRunner(2000, 5, 1000);
+        List<BenchmarkResult> results = new ArrayList<>();
+        for (Benchmark benchmark : benchmarks) {
+            if (!benchmark.getName().contains(filter)) {
+                continue;
+            }
+            BenchmarkResult result = runner.run(benchmark);
+            results.add(result);
+            System.out.println(result);
+        }
+        System.out.println("(sink " + runner.getSink() + ")");
+
+        if (save != null) {
+            Baseline.save(results, save);
+            System.out.println("baseline saved to " + save);
+        }
+        if (baseline != null) {
+            System.out.println("compared with " + baseline + ":");
+            List<String> regressions = Baseline.load(baseline).compare(results, threshold);
+            for (String regression : regressions) {
+                System.out.println("REGRESSION " + regression);
+            }
+            if (!regressions.isEmpty()) {
+                System.exit(1);
+            }
+        }
+    }
+}
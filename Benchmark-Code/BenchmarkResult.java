@@ -0,0 +1,68 @@
+package com.dktes.medileaf.bench;
+
+import java.util.Locale;
+
+public final class BenchmarkResult {
+
+    // The measurements of one benchmark. The time is the median over the measured iterations,
+    // so a single iteration disturbed by the OS or a GC does not move the result much
+
+    private final String name;
+    private final double nanosPerOp;
+    private final double minNanosPerOp;
+    private final double maxNanosPerOp;
+    private final double bytesPerOp;
+    private final long gcCount;
+    private final long gcMillis;
+
+    BenchmarkResult(String name, double nanosPerOp, double minNanosPerOp, double maxNanosPerOp,
+                    double bytesPerOp, long gcCount, long gcMillis) {
+        this.name = name;
+        this.nanosPerOp = nanosPerOp;
+        this.minNanosPerOp = minNanosPerOp;
+        this.maxNanosPerOp = maxNanosPerOp;
+        this.bytesPerOp = bytesPerOp;
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getNanosPerOp() {
+        return nanosPerOp;
+    }
+
+    public double getMinNanosPerOp() {
+        return minNanosPerOp;
+    }
+
+    public double getMaxNanosPerOp() {
+        return maxNanosPerOp;
+    }
+
+    // -1 when the JVM cannot measure allocations per thread
+    public double getBytesPerOp() {
+        return bytesPerOp;
+    }
+
+    public double getAllocationMegabytesPerSecond() {
+        return bytesPerOp < 0 ? -1 : bytesPerOp / nanosPerOp * 1e9 / (1024 * 1024);
+    }
+
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    public long getGcMillis() {
+        return gcMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%-32s %12.1f ns/op  [%.1f .. %.1f]  %10.1f B/op  %8.2f MB/s  gc %d (%d ms)",
+                name, nanosPerOp, minNanosPerOp, maxNanosPerOp, bytesPerOp,
+                getAllocationMegabytesPerSecond(), gcCount, gcMillis);
+    }
+}
@@ -0,0 +1,102 @@
+package com.dktes.medileaf.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+public final class BenchmarkRunner {
+
+    // The runner first warms a benchmark up, so the JIT has compiled the hot code, and then measures it in iterations
+    // For every iteration it counts the operations, the elapsed time and the bytes allocated by the benchmark thread.
+    // Allocated bytes per operation is the number to watch for the hot paths of the app: on a phone every allocation
+    // in a loop that runs 30 times per second ends up as a garbage collection pause
+
+    private final long warmupMillis;
+    private final int iterations;
+    private final long iterationMillis;
+
+    private final com.sun.management.ThreadMXBean allocations;
+
+    // The sum of all results, printed at the end so the JIT cannot drop the work (see Benchmark.run)
+    private long sink;
+
+    public BenchmarkRunner(long warmupMillis, int iterations, long iterationMillis) {
+        this.warmupMillis = warmupMillis;
+        this.iterations = iterations;
+        this.iterationMillis = iterationMillis;
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            allocations = (com.sun.management.ThreadMXBean) threads;
+            allocations.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            allocations = null;
+        }
+    }
+
+    public BenchmarkResult run(Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+
+        long warmupEnd = System.nanoTime() + warmupMillis * 1_000_000L;
+        while (System.nanoTime() < warmupEnd) {
+            sink += benchmark.run();
+        }
+
+        double[] nanosPerOp = new double[iterations];
+        long totalOps = 0, totalBytes = 0;
+        long gcCountBefore = gcCount(), gcMillisBefore = gcMillis();
+        for (int i = 0; i < iterations; i++) {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long end = start + iterationMillis * 1_000_000L;
+            long ops = 0;
+            long now;
+            do {
+                sink += benchmark.run();
+                ops++;
+                now = System.nanoTime();
+            } while (now < end);
+            long bytes = allocatedBytes() - bytesBefore;
+            nanosPerOp[i] = (double) (now - start) / ops;
+            totalOps += ops;
+            totalBytes += bytes;
+        }
+        long gcCount = gcCount() - gcCountBefore;
+        long gcMillis = gcMillis() - gcMillisBefore;
+
+        double[] sorted = nanosPerOp.clone();
+        Arrays.sort(sorted);
+        double median = sorted[sorted.length / 2];
+        double bytesPerOp = allocations == null ? -1 : (double) totalBytes / totalOps;
+        return new BenchmarkResult(benchmark.getName(), median, sorted[0], sorted[sorted.length - 1],
+                bytesPerOp, gcCount, gcMillis);
+    }
+
+    public long getSink() {
+        return sink;
+    }
+
+    @SuppressWarnings("deprecation")
+    private long allocatedBytes() {
+        // Reading the counter allocates nothing itself, so it does not disturb the numbers
+        return allocations == null ? 0 : allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+}
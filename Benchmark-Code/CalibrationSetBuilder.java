@@ -0,0 +1,88 @@
+package com.dktes.medileaf.bench;
+
+import com.dktes.medileaf.CalibrationSet;
+import com.dktes.medileaf.LabelTable;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class CalibrationSetBuilder {
+
+    // Builds the calibration.bin asset that the app uses to check the accuracy of the model variants
+    // The images are read from one folder per label (the folder name is the label, as in labels.txt),
+    // and at most 'perLabel' images of each folder are taken. Every image is resized to the model input size
+    //
+    //   java -cp build/bench com.dktes.medileaf.bench.CalibrationSetBuilder <labels.txt> <image folder> <calibration.bin> [perLabel]
+
+    private static final int SIZE = 150;
+
+    private CalibrationSetBuilder() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: CalibrationSetBuilder <labels.txt> <image folder> <calibration.bin> [perLabel]");
+            System.exit(2);
+        }
+        LabelTable labels;
+        try (InputStream in = new FileInputStream(args[0])) {
+            labels = LabelTable.load(in);
+        }
+        File root = new File(args[1]);
+        int perLabel = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+        List<Integer> sampleLabels = new ArrayList<>();
+        List<int[]> samplePixels = new ArrayList<>();
+        for (int label = 0; label < labels.size(); label++) {
+            File[] files = new File(root, labels.get(label)).listFiles();
+            if (files == null) {
+                System.err.println("no folder for " + labels.get(label));
+                continue;
+            }
+            Arrays.sort(files);
+            int taken = 0;
+            for (File file : files) {
+                if (taken == perLabel) {
+                    break;
+                }
+                BufferedImage image = ImageIO.read(file);
+                if (image == null) {
+                    continue;
+                }
+                sampleLabels.add(label);
+                samplePixels.add(resize(image));
+                taken++;
+            }
+        }
+
+        int[] labelArray = new int[sampleLabels.size()];
+        for (int i = 0; i < labelArray.length; i++) {
+            labelArray[i] = sampleLabels.get(i);
+        }
+        CalibrationSet set = new CalibrationSet(SIZE, SIZE, labelArray, samplePixels.toArray(new int[0][]));
+        try (OutputStream out = new FileOutputStream(args[2])) {
+            set.write(out);
+        }
+        System.out.println(set.size() + " images written to " + args[2]);
+    }
+
+    private static int[] resize(BufferedImage image) {
+        BufferedImage resized = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = resized.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, SIZE, SIZE, null);
+        graphics.dispose();
+        return resized.getRGB(0, 0, SIZE, SIZE, null, 0, SIZE);
+    }
+}
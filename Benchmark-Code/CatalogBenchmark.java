@@ -0,0 +1,116 @@
+package com.dktes.medileaf.bench;
+
+import com.dktes.medileaf.CatalogCompiler;
+import com.dktes.medileaf.Leaf;
+import com.dktes.medileaf.LeafCatalog;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public final class CatalogBenchmark implements Benchmark {
+
+    // Looks leaves up by name, the way ResultActivity does after a classification
+    // The real data.json has 30 leaves. To see how the lookup scales, bigger catalogs are generated
+    // by repeating its entries under new names (the texts stay real, so the strings have realistic lengths)
+    // One lookup out of eight asks for a name that does not exist
+
+    public enum Kind { JSON, BINARY }
+
+    private static final int QUERIES = 4096;
+
+    private final File dataJson;
+    private final Kind kind;
+    private final int size;
+    private LeafCatalog catalog;
+    private String[] queries;
+    private int next;
+    private File binary;
+
+    public CatalogBenchmark(File dataJson, Kind kind, int size) {
+        this.dataJson = dataJson;
+        this.kind = kind;
+        this.size = size;
+    }
+
+    @Override
+    public String getName() {
+        return "catalog." + kind.name().toLowerCase(java.util.Locale.ROOT) + "." + size;
+    }
+
+    @Override
+    public void setUp() throws IOException {
+        LeafCatalog original;
+        try (InputStream in = new FileInputStream(dataJson)) {
+            original = LeafCatalog.fromJson(in);
+        }
+        byte[] json = generate(original, size);
+        if (kind == Kind.JSON) {
+            catalog = LeafCatalog.fromJson(new ByteArrayInputStream(json));
+        } else {
+            binary = File.createTempFile("catalog-" + size, ".bin");
+            binary.deleteOnExit();
+            CatalogCompiler.compile(json, binary);
+            catalog = LeafCatalog.fromBinary(binary);
+        }
+
+        Random random = new Random(size);
+        queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = random.nextInt(8) == 0 ? "Missing leaf " + i : nameOf(original, random.nextInt(size));
+        }
+    }
+
+    @Override
+    public long run() {
+        Leaf leaf = catalog.findByName(queries[next]);
+        next = (next + 1) % QUERIES;
+        return leaf == null ? 0 : leaf.getLeafName().length();
+    }
+
+    private static String nameOf(LeafCatalog original, int record) {
+        String name = original.get(record % original.size()).getLeafName();
+        return record < original.size() ? name : name + " " + record;
+    }
+
+    static byte[] generate(LeafCatalog original, int size) {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int record = 0; record < size; record++) {
+            Leaf leaf = original.get(record % original.size());
+            json.append("    {\n");
+            field(json, "leafname", nameOf(original, record), false);
+            field(json, "sciname", leaf.getScientificName(), false);
+            field(json, "description", leaf.getDescription(), false);
+            field(json, "usage", leaf.getUsage(), false);
+            field(json, "origin", leaf.getOrigin(), false);
+            field(json, "feature", leaf.getFeature(), true);
+            json.append(record + 1 < size ? "    },\n" : "    }\n");
+        }
+        return json.append("]\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void field(StringBuilder json, String key, String value, boolean last) {
+        json.append("        \"").append(key).append("\": ");
+        if (value == null) {
+            json.append("null");
+        } else {
+            json.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    json.append('\\').append(c);
+                } else if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+            json.append('"');
+        }
+        json.append(last ? "\n" : ",\n");
+    }
+}
@@ -0,0 +1,91 @@
+package com.dktes.medileaf.bench;
+
+import com.dktes.medileaf.ClassificationHelper;
+import com.dktes.medileaf.InferenceEngine;
+import com.dktes.medileaf.LabelTable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+public final class DecodeBenchmark implements Benchmark {
+
+    // Measures what ClassificationHelper does around the model: reading the probabilities,
+    // selecting the best classes and turning the best one into a label
+    // The model itself is replaced by an engine that replays random probability vectors, so this runs without TFLite
+
+    private final File labelsFile;
+    private ClassificationHelper helper;
+    private ByteBuffer input;
+
+    public DecodeBenchmark(File labelsFile) {
+        this.labelsFile = labelsFile;
+    }
+
+    @Override
+    public String getName() {
+        return "decode.labels";
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        LabelTable labels;
+        try (InputStream in = new FileInputStream(labelsFile)) {
+            labels = LabelTable.load(in);
+        }
+        float[][] vectors = TopKBenchmark.randomSoftmax(new Random(7), TopKBenchmark.VECTORS, labels.size());
+        ReplayEngine engine = new ReplayEngine(vectors);
+        helper = new ClassificationHelper(engine, labels);
+        input = ByteBuffer.allocateDirect(engine.getInputBytesPerImage()).order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public long run() throws Exception {
+        // Random probabilities are mostly rejected as unknown, so the best label is read whether or not it was accepted
+        String label = helper.predict(input).getBestLabel();
+        if (label == null) {
+            throw new IllegalStateException("The prediction has no classes");
+        }
+        return label.length();
+    }
+
+    private static final class ReplayEngine implements InferenceEngine {
+        private final float[][] vectors;
+        private int next;
+
+        ReplayEngine(float[][] vectors) {
+            this.vectors = vectors;
+        }
+
+        @Override
+        public int[] getImageShape() {
+            return new int[]{150, 150, 3};
+        }
+
+        @Override
+        public int getInputBytesPerImage() {
+            return 150 * 150 * 3 * 4;
+        }
+
+        @Override
+        public int getClassCount() {
+            return vectors[0].length;
+        }
+
+        @Override
+        public void run(ByteBuffer input, int batchSize, float[] output) {
+            for (int i = 0; i < batchSize; i++) {
+                float[] vector = vectors[next];
+                next = (next + 1) % vectors.length;
+                System.arraycopy(vector, 0, output, i * vector.length, vector.length);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
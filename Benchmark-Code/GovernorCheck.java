@@ -0,0 +1,138 @@
+package com.dktes.medileaf.bench;
+
+import com.dktes.medileaf.ResourceGovernor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class GovernorCheck {
+
+    // Checks the ResourceGovernor on a plain JVM with fake components: which component is trimmed at which level
+    // and in which order when the total goes over the budget, and how many bytes are left afterwards
+    //
+    //   java -cp build/bench com.dktes.medileaf.bench.GovernorCheck
+    //
+    // Prints every step and exits with an exception at the first difference. The repository has no test framework,
+    // so the check is a main next to the benchmarks and is built with the same javac line (see BenchmarkMain)
+
+    private static final List<String> trims = new ArrayList<>();
+
+    private GovernorCheck() {
+    }
+
+    private static final class FakeResource implements ResourceGovernor.Resource {
+        private final String name;
+        // The bytes it holds after a trim at each level, TRIM_NONE is its normal size
+        private long[] bytesAtLevel;
+        private long bytes;
+
+        FakeResource(String name, long... bytesAtLevel) {
+            this.name = name;
+            this.bytesAtLevel = bytesAtLevel;
+            this.bytes = bytesAtLevel[ResourceGovernor.TRIM_NONE];
+        }
+
+        void grow(long... bytesAtLevel) {
+            this.bytesAtLevel = bytesAtLevel;
+            this.bytes = bytesAtLevel[ResourceGovernor.TRIM_NONE];
+        }
+
+        @Override
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public void trim(int level) {
+            trims.add(name + ":" + level);
+            bytes = bytesAtLevel[level];
+        }
+    }
+
+    public static void main(String[] args) {
+        ResourceGovernor governor = new ResourceGovernor(100);
+        // The bytes at TRIM_NONE, TRIM_IDLE, TRIM_CACHES and TRIM_ALL
+        FakeResource buffers = new FakeResource("buffers", 0, 0, 0, 0);
+        FakeResource images = new FakeResource("images", 40, 30, 0, 0);
+        FakeResource catalog = new FakeResource("catalog", 30, 30, 10, 0);
+        FakeResource interpreters = new FakeResource("interpreters", 30, 20, 20, 10);
+        // Registered out of order on purpose, the governor sorts them by priority
+        ResourceGovernor.Registration interpretersRegistration = governor.register("interpreters",
+                ResourceGovernor.PRIORITY_INTERPRETERS, interpreters);
+        ResourceGovernor.Registration catalogRegistration = governor.register("catalog",
+                ResourceGovernor.PRIORITY_CATALOG, catalog);
+        governor.register("images", ResourceGovernor.PRIORITY_IMAGES, images);
+        governor.register("buffers", ResourceGovernor.PRIORITY_BUFFERS, buffers);
+        System.out.println("registered: " + names(governor) + ", " + governor.getUsedBytes() + " bytes");
+        expect("usage order", "[buffers, images, catalog, interpreters]", names(governor));
+        expect("used bytes at the budget", 100L, governor.getUsedBytes());
+        expect("trims within the budget", "[]", trims.toString());
+
+        // The pool grows by 60 bytes: 130 of 100. Every component is trimmed at TRIM_IDLE from the lowest priority
+        // (the empty buffers are skipped), that leaves 130 again, so TRIM_CACHES starts over from the lowest priority
+        // and stops as soon as the images fit
+        interpreters.grow(90, 70, 70, 10);
+        interpretersRegistration.grew();
+        System.out.println("over the budget: " + trims + ", " + governor.getUsedBytes() + " bytes");
+        expect("trim order", "[images:1, catalog:1, interpreters:1, images:2]", trims.toString());
+        expect("used bytes after the trim", 100L, governor.getUsedBytes());
+        expect("bytes per component", "[0, 0, 30, 70]", bytes(governor));
+        expect("level", ResourceGovernor.TRIM_CACHES, governor.getLevel());
+
+        // The pressure is over: every component may grow back, also those that were not trimmed
+        trims.clear();
+        governor.relax();
+        System.out.println("relaxed: " + trims + ", " + governor.getUsedBytes() + " bytes");
+        expect("relax order", "[buffers:0, images:0, catalog:0, interpreters:0]", trims.toString());
+        expect("used bytes after relax", 160L, governor.getUsedBytes());
+        expect("level after relax", ResourceGovernor.TRIM_NONE, governor.getLevel());
+
+        // A closed component is neither counted nor trimmed. Components that hold nothing are skipped
+        // (the images at TRIM_ALL), and the last level trims the interpreters down to one
+        catalogRegistration.close();
+        governor.setBudget(40);
+        trims.clear();
+        boolean fits = governor.enforce();
+        System.out.println("without the catalog, budget 40: " + trims + ", " + governor.getUsedBytes() + " bytes");
+        expect("fits", true, fits);
+        expect("trim order without the catalog",
+                "[images:1, interpreters:1, images:2, interpreters:2, interpreters:3]", trims.toString());
+        expect("used bytes without the catalog", 10L, governor.getUsedBytes());
+        expect("level without the catalog", ResourceGovernor.TRIM_ALL, governor.getLevel());
+
+        // A request of the system trims every component at its level, whatever the budget
+        governor.relax();
+        trims.clear();
+        governor.setBudget(1000);
+        governor.trim(ResourceGovernor.TRIM_IDLE);
+        System.out.println("system trim: " + trims + ", " + governor.getUsedBytes() + " bytes");
+        expect("system trim order", "[buffers:1, images:1, interpreters:1]", trims.toString());
+        expect("used bytes after the system trim", 100L, governor.getUsedBytes());
+
+        System.out.println("GovernorCheck passed");
+    }
+
+    private static String names(ResourceGovernor governor) {
+        List<String> names = new ArrayList<>();
+        for (ResourceGovernor.Usage usage : governor.getUsage()) {
+            names.add(usage.getName());
+        }
+        return names.toString();
+    }
+
+    private static String bytes(ResourceGovernor governor) {
+        List<ResourceGovernor.Usage> usage = governor.getUsage();
+        long[] bytes = new long[usage.size()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = usage.get(i).getBytes();
+        }
+        return Arrays.toString(bytes);
+    }
+
+    private static void expect(String what, Object expected, Object actual) {
+        if (!expected.equals(actual)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.dktes.medileaf.bench;
+
+import com.dktes.medileaf.SurveyJournal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+public final class JournalBenchmark implements Benchmark {
+
+    // Writes and queries the SurveyJournal with the default segments, one operation per run
+    // The journal is filled with 'size' classifications, one per minute (500k records are about a year),
+    // of 30 leaves in 50 surveys, one in ten an unknown leaf
+    //   APPEND  one classification is added (the disk is written by the group commit in the background)
+    //   LABEL   all identifications of one leaf in one week, like "all Neem IDs of last week"
+    //   COUNT   the species counts of one survey over a month
+    // Appending is expected to take a few microseconds, so thousands of records per second are no effort,
+    // and a query should read only the blocks of its week or month, not the whole journal
+
+    public enum Kind { APPEND, LABEL, COUNT }
+
+    private static final int LEAVES = 30;
+    private static final int SURVEYS = 50;
+    private static final long MINUTE = 60_000L;
+    private static final long WEEK = 7 * 24 * 60 * MINUTE;
+    private static final long MONTH = 30 * 24 * 60 * MINUTE;
+
+    private final Kind kind;
+    private final int size;
+    private final Random random = new Random(11);
+    private final int[] labels = new int[3];
+    private final float[] scores = {0.8f, 0.15f, 0.05f};
+    private SurveyJournal journal;
+    private long time;
+    private long visited;
+    private final SurveyJournal.Visitor visitor = record -> {
+        visited += record.getSequence();
+        return true;
+    };
+
+    public JournalBenchmark(Kind kind, int size) {
+        this.kind = kind;
+        this.size = size;
+    }
+
+    @Override
+    public String getName() {
+        return "journal." + kind.name().toLowerCase(Locale.ROOT) + "." + size;
+    }
+
+    @Override
+    public void setUp() throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "medileaf-" + getName());
+        File[] old = directory.listFiles();
+        if (old != null) {
+            for (File file : old) {
+                file.delete();
+            }
+        }
+        journal = SurveyJournal.open(directory);
+        long start = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            append();
+        }
+        journal.flush();
+        System.out.printf(Locale.ROOT, "%s: %d records in %d segments written in %.0f ms%n", getName(),
+                journal.size(), journal.getSegmentCount(), (System.nanoTime() - start) / 1e6);
+    }
+
+    @Override
+    public long run() throws IOException {
+        switch (kind) {
+            case APPEND:
+                return append();
+            case LABEL: {
+                long from = (long) (random.nextDouble() * (time - WEEK));
+                return journal.query(from, from + WEEK, random.nextInt(LEAVES), SurveyJournal.ANY, visitor) + visited;
+            }
+            default: {
+                long from = (long) (random.nextDouble() * (time - MONTH));
+                int[] counts = journal.countLabels(from, from + MONTH, random.nextInt(SURVEYS));
+                return counts.length > 0 ? counts[0] : 0;
+            }
+        }
+    }
+
+    private long append() throws IOException {
+        time += MINUTE;
+        labels[0] = random.nextInt(LEAVES);
+        labels[1] = (labels[0] + 1) % LEAVES;
+        labels[2] = (labels[0] + 2) % LEAVES;
+        return journal.append(time, random.nextInt(SURVEYS), Double.NaN, Double.NaN, random.nextLong(),
+                labels, scores, labels.length, random.nextInt(10) == 0);
+    }
+}
@@ -0,0 +1,103 @@
+package com.dktes.medileaf.bench;
+
+import com.dktes.medileaf.DeltaCodec;
+import com.dktes.medileaf.PackManifest;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class PackBuilder {
+
+    // Builds a content pack (see PackManifest) from the files of a new content version
+    // Without a base it is a full pack. With the directory of the previous version as base, it is a delta pack:
+    // unchanged files are left out, changed files are sent as a DeltaCodec patch when that is smaller than the file
+    //
+    //   java -cp build/bench com.dktes.medileaf.bench.PackBuilder <version> <pack.mlcp> [--base <version> <directory>] <files...>
+    //
+    // For example, after fixing a description in data.json:
+    //   PackBuilder 2 pack-2.mlcp --base 1 content-1 content-2/data.json content-2/labels.txt content-2/medinet.tflite
+
+    private PackBuilder() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: PackBuilder <version> <pack.mlcp> [--base <version> <directory>] <files...>");
+            System.exit(2);
+        }
+        int version = Integer.parseInt(args[0]);
+        File output = new File(args[1]);
+        int baseVersion = 0;
+        File baseDirectory = null;
+        int first = 2;
+        if (args[2].equals("--base")) {
+            baseVersion = Integer.parseInt(args[3]);
+            baseDirectory = new File(args[4]);
+            first = 5;
+        }
+        List<File> files = new ArrayList<>();
+        for (int i = first; i < args.length; i++) {
+            files.add(new File(args[i]));
+        }
+        build(version, baseVersion, baseDirectory, files, output);
+    }
+
+    public static void build(int version, int baseVersion, File baseDirectory, List<File> files, File output)
+            throws IOException {
+        List<PackManifest.Entry> entries = new ArrayList<>();
+        List<byte[]> payloads = new ArrayList<>();
+        byte[] noHash = new byte[32];
+        for (File file : files) {
+            byte[] content = Files.readAllBytes(file.toPath());
+            byte[] hash = sha256(content);
+            File baseFile = baseDirectory == null ? null : new File(baseDirectory, file.getName());
+            if (baseFile != null && baseFile.isFile()) {
+                byte[] base = Files.readAllBytes(baseFile.toPath());
+                byte[] baseHash = sha256(base);
+                if (Arrays.equals(hash, baseHash)) {
+                    System.out.println(file.getName() + ": unchanged");
+                    continue;
+                }
+                byte[] patch = DeltaCodec.encode(base, content);
+                if (patch.length < content.length) {
+                    System.out.printf("%s: delta of %d bytes for %d bytes%n", file.getName(), patch.length, content.length);
+                    entries.add(new PackManifest.Entry(file.getName(), PackManifest.Kind.DELTA, content.length,
+                            hash, baseHash, patch.length));
+                    payloads.add(patch);
+                    continue;
+                }
+            }
+            System.out.printf("%s: full, %d bytes%n", file.getName(), content.length);
+            entries.add(new PackManifest.Entry(file.getName(), PackManifest.Kind.FULL, content.length,
+                    hash, noHash, content.length));
+            payloads.add(content);
+        }
+
+        PackManifest manifest = new PackManifest(version, baseVersion, entries);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+            manifest.write(out);
+            for (byte[] payload : payloads) {
+                out.write(payload);
+            }
+        }
+        System.out.printf("%s: version %d%s, %d bytes%n", output, version,
+                baseVersion == 0 ? "" : " from " + baseVersion, output.length());
+    }
+
+    private static byte[] sha256(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.dktes.medileaf.bench;
+
+import com.dktes.medileaf.ArgbPixelSource;
+import com.dktes.medileaf.BilinearPreprocessor;
+import com.dktes.medileaf.Preprocessor;
+import com.dktes.medileaf.TensorFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+public final class PreprocessBenchmark implements Benchmark {
+
+    // Preprocesses a synthetic ARGB frame into the 150x150 float input of the model
+    // The frame is random noise over a gradient, the content does not matter for the speed, only the size does
+    // The output is float32, or one byte per value for the input of a quantized model
+
+    private final int width;
+    private final int height;
+    private final TensorFormat format;
+    private Preprocessor preprocessor;
+    private ArgbPixelSource source;
+
+    public PreprocessBenchmark(int width, int height) {
+        this(width, height, TensorFormat.FLOAT32);
+    }
+
+    public PreprocessBenchmark(int width, int height, TensorFormat format) {
+        this.width = width;
+        this.height = height;
+        this.format = format;
+    }
+
+    @Override
+    public String getName() {
+        String name = "preprocess." + width + "x" + height;
+        return format.isQuantized() ? name + "." + format.getType().name().toLowerCase(Locale.ROOT) : name;
+    }
+
+    @Override
+    public void setUp() {
+        Random random = new Random(width * 31L + height);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = (x * 255 / width + random.nextInt(32)) & 0xFF;
+                int green = (y * 255 / height + random.nextInt(32)) & 0xFF;
+                int blue = random.nextInt(256);
+                pixels[y * width + x] = 0xFF000000 | red << 16 | green << 8 | blue;
+            }
+        }
+        source = new ArgbPixelSource(pixels, width, height);
+        preprocessor = new BilinearPreprocessor(150, 150, format);
+    }
+
+    @Override
+    public long run() {
+        ByteBuffer input = preprocessor.process(source);
+        return input.get(input.capacity() / 2);
+    }
+}
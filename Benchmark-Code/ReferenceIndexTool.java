@@ -0,0 +1,54 @@
+package com.dktes.medileaf.bench;
+
+import com.dktes.medileaf.EmbeddingIndexBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+public final class ReferenceIndexTool {
+
+    // Builds references.ivf, the EmbeddingIndex of the similar leaves, from the references.bin written by the notebook
+    //
+    //   java -cp build/bench com.dktes.medileaf.bench.ReferenceIndexTool <references.bin> <references.ivf> [subspaces]
+    //
+    // 32 subspaces (32 bytes per reference image) find about 93% of the true neighbours in AnnBenchmark, 16 about 84%
+    // The index is shipped in a content pack next to the model whose embeddings it holds
+
+    private ReferenceIndexTool() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: ReferenceIndexTool <references.bin> <references.ivf> [subspaces]");
+            System.exit(2);
+        }
+        int subspaces = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        int count, dimension;
+        float[] embeddings;
+        int[] labels;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]), 64 * 1024))) {
+            count = in.readInt();
+            dimension = in.readInt();
+            embeddings = new float[count * dimension];
+            for (int i = 0; i < embeddings.length; i++) {
+                embeddings[i] = in.readFloat();
+            }
+            labels = new int[count];
+            for (int i = 0; i < count; i++) {
+                labels[i] = in.readInt();
+            }
+        }
+
+        // About the square root of the number of references, as a power of two
+        int lists = Math.max(1, Integer.highestOneBit((int) Math.sqrt(count)));
+        int threads = Runtime.getRuntime().availableProcessors();
+        File output = new File(args[1]);
+        long start = System.nanoTime();
+        new EmbeddingIndexBuilder(lists, subspaces, threads).build(embeddings, labels, count, dimension, output);
+        System.out.printf("%s: %d references of %d values, %d lists, %d bytes, built in %.1f s%n", output, count,
+                dimension, lists, output.length(), (System.nanoTime() - start) / 1e9);
+    }
+}
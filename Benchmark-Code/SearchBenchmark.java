@@ -0,0 +1,84 @@
+package com.dktes.medileaf.bench;
+
+import com.dktes.medileaf.LeafCatalog;
+import com.dktes.medileaf.LeafSearchIndex;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+public final class SearchBenchmark implements Benchmark {
+
+    // Searches the catalog the way a search screen would, one query per run
+    // The catalog is generated like in CatalogBenchmark, so with 10k leaves every text of data.json exists
+    // about 300 times and common words like "india" match nearly every record: the worst case for the postings
+    //   WORDS   symptoms and uses typed as whole words
+    //   PREFIX  the last word is still being typed, part of a scientific name or a feature
+    //   FACET   words restricted to one origin, or an origin alone
+    // The index is expected to answer well under a millisecond per query on 10k leaves
+
+    public enum Kind { WORDS, PREFIX, FACET }
+
+    private static final String[] WORDS = {
+            "joint pain", "immunity", "digestion antioxidants", "skin infections", "fever cough",
+            "anti inflammatory", "blood sugar", "stress anxiety", "hair growth", "missing symptom"
+    };
+    private static final String[] PREFIXES = {
+            "azadir", "anti-infl", "ocimum s", "joint pa", "antiox", "vanda r", "tinos", "dig", "immun", "xyz"
+    };
+    private static final String[] FACET_WORDS = {
+            "immunity", "pain", "digestion", "", "skin"
+    };
+
+    private final File dataJson;
+    private final Kind kind;
+    private final int size;
+    private LeafSearchIndex.Searcher searcher;
+    private int next;
+
+    public SearchBenchmark(File dataJson, Kind kind, int size) {
+        this.dataJson = dataJson;
+        this.kind = kind;
+        this.size = size;
+    }
+
+    @Override
+    public String getName() {
+        return "search." + kind.name().toLowerCase(Locale.ROOT) + "." + size;
+    }
+
+    @Override
+    public void setUp() throws IOException {
+        LeafCatalog original;
+        try (InputStream in = new FileInputStream(dataJson)) {
+            original = LeafCatalog.fromJson(in);
+        }
+        LeafCatalog catalog = LeafCatalog.fromJson(new ByteArrayInputStream(CatalogBenchmark.generate(original, size)));
+        long start = System.nanoTime();
+        LeafSearchIndex index = catalog.getSearchIndex();
+        System.out.printf(Locale.ROOT, "%s: index of %d leaves and %d terms built in %.1f ms%n",
+                getName(), index.size(), index.getTermCount(), (System.nanoTime() - start) / 1e6);
+        searcher = index.newSearcher();
+    }
+
+    @Override
+    public long run() {
+        LeafSearchIndex.SearchResult result;
+        switch (kind) {
+            case WORDS:
+                result = searcher.search(WORDS[next++ % WORDS.length] + " ", 20);
+                break;
+            case PREFIX:
+                result = searcher.search(PREFIXES[next++ % PREFIXES.length], 20);
+                break;
+            default:
+                result = searcher.search(FACET_WORDS[next++ % FACET_WORDS.length] + " ",
+                        LeafSearchIndex.Facet.ORIGIN, "India", 20);
+                break;
+        }
+        return result.size() + result.getTotalMatches();
+    }
+}
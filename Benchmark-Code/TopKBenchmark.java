@@ -0,0 +1,59 @@
+package com.dktes.medileaf.bench;
+
+import com.dktes.medileaf.TopK;
+
+import java.util.Random;
+
+public final class TopKBenchmark implements Benchmark {
+
+    // Selects the k best classes of random 30-class probability vectors
+    // A few hundred different vectors are cycled through, so the branch predictor cannot learn one of them
+
+    static final int VECTORS = 512;
+
+    private final int classes;
+    private final int k;
+    private float[][] vectors;
+    private TopK topK;
+    private int next;
+
+    public TopKBenchmark(int classes, int k) {
+        this.classes = classes;
+        this.k = k;
+    }
+
+    @Override
+    public String getName() {
+        return "topk." + classes + ".k" + k;
+    }
+
+    @Override
+    public void setUp() {
+        vectors = randomSoftmax(new Random(classes), VECTORS, classes);
+        topK = new TopK(k);
+    }
+
+    @Override
+    public long run() {
+        float[] probabilities = vectors[next];
+        next = (next + 1) % VECTORS;
+        topK.select(probabilities, probabilities.length);
+        return topK.indexAt(0);
+    }
+
+    static float[][] randomSoftmax(Random random, int count, int classes) {
+        // Like the output of the model: a softmax over random logits, usually with one clear winner
+        float[][] vectors = new float[count][classes];
+        for (float[] vector : vectors) {
+            double sum = 0;
+            for (int i = 0; i < classes; i++) {
+                vector[i] = (float) Math.exp(random.nextGaussian() * 3);
+                sum += vector[i];
+            }
+            for (int i = 0; i < classes; i++) {
+                vector[i] /= sum;
+            }
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,32 @@
+package com.dktes.medileaf.server;
+
+import com.dktes.medileaf.PixelSource;
+
+import java.awt.image.BufferedImage;
+
+public final class BufferedImagePixelSource implements PixelSource {
+
+    // A pixel source over a decoded BufferedImage, the JVM counterpart of the BitmapPixelSource
+    // getRGB() returns packed ARGB like Bitmap.getPixels(), one row at a time into the caller's row array
+
+    private final BufferedImage image;
+
+    public BufferedImagePixelSource(BufferedImage image) {
+        this.image = image;
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public void readRow(int y, int[] row) {
+        image.getRGB(0, y, image.getWidth(), 1, row, 0, image.getWidth());
+    }
+}
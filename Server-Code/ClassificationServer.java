@@ -0,0 +1,332 @@
+package com.dktes.medileaf.server;
+
+import com.dktes.medileaf.BilinearPreprocessor;
+import com.dktes.medileaf.InferenceEngine;
+import com.dktes.medileaf.LabelTable;
+import com.dktes.medileaf.Leaf;
+import com.dktes.medileaf.LeafCatalog;
+import com.dktes.medileaf.LeafDetection;
+import com.dktes.medileaf.Prediction;
+import com.dktes.medileaf.TargetSizeDecoder;
+import com.dktes.medileaf.RejectionPolicy;
+import com.dktes.medileaf.TiledClassifier;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class ClassificationServer implements Closeable {
+
+    // The HTTP front end of the classifier, on the HttpServer of the JDK (no dependency)
+    //   POST /classify   the body is a JPEG or PNG. The answer is the top-k labels and the catalog record of the leaf
+    //   POST /detect     the same, for photos with several leaves: every leaf found with its region (see TiledClassifier)
+    //   GET  /stats      images and batches the model ran so far
+    //   GET  /health     "ok" once the model is loaded
+    // Every request runs on its own virtual thread (Java 21), which blocks cheaply while its batch is collected and
+    // run. On an older JVM a fixed pool of platform threads is used instead
+    // Decoding and preprocessing run on the request threads, the model runs on the threads of the MicroBatcher
+
+    // Uploads bigger than this are refused, a phone photo is a few MB
+    private static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+    private static final int FALLBACK_THREADS = 64;
+    // The windows of /detect: the whole image, then 60% and 40% of its shorter side, overlapping by half
+    // A detection runs its windows itself instead of through the batcher, in batches of TILE_BATCH_SIZE
+    private static final float[] TILE_SCALES = {1f, 0.6f, 0.4f};
+    private static final float TILE_OVERLAP = 0.5f;
+    private static final int TILE_BATCH_SIZE = 8;
+    private static final long TILE_BUDGET_NANOS = 2_000_000_000L;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final MicroBatcher batcher;
+    private final LeafCatalog catalog;
+    private final LabelTable labels;
+    private final TargetSizeDecoder<byte[], BufferedImage> decoder;
+    private final int width;
+    private final int height;
+    private final InferenceEngine engine;
+    private final RejectionPolicy policy;
+    // Preprocessors own a direct buffer and a few tables, so they are reused between requests
+    private final BlockingQueue<BilinearPreprocessor> preprocessors = new ArrayBlockingQueue<>(FALLBACK_THREADS);
+    // The same for the tiled classifiers of /detect, which also keep a copy of the last image
+    private final BlockingQueue<TiledClassifier> tiledClassifiers = new ArrayBlockingQueue<>(FALLBACK_THREADS);
+    private final TargetSizeDecoder<byte[], BufferedImage> tileDecoder;
+
+    public ClassificationServer(InetSocketAddress address, InferenceEngine engine, LabelTable labels,
+                                LeafCatalog catalog, MicroBatcher batcher) throws IOException {
+        this(address, engine, labels, catalog, batcher, RejectionPolicy.DEFAULT);
+    }
+
+    // 'policy' decides for /detect which regions are a leaf, /classify uses the policy of the batcher
+    public ClassificationServer(InetSocketAddress address, InferenceEngine engine, LabelTable labels,
+                                LeafCatalog catalog, MicroBatcher batcher, RejectionPolicy policy) throws IOException {
+        this.engine = engine;
+        this.policy = policy;
+        this.labels = labels;
+        this.catalog = catalog;
+        this.batcher = batcher;
+        int[] shape = engine.getImageShape();
+        this.width = shape[1];
+        this.height = shape[0];
+        this.decoder = new TargetSizeDecoder<>(new ImageIoDecoder(), width, height, false, false);
+        // Photos for /detect are decoded bigger, so the smallest windows still have the resolution of the model input
+        TiledClassifier tiledClassifier = newTiledClassifier();
+        int side = tiledClassifier.getSourceSide();
+        this.tileDecoder = new TargetSizeDecoder<>(new ImageIoDecoder(), side, side, false, false);
+        tiledClassifiers.offer(tiledClassifier);
+        this.executor = requestExecutor();
+        this.server = HttpServer.create(address, 1024);
+        server.setExecutor(executor);
+        server.createContext("/classify", this::classify);
+        server.createContext("/detect", this::detect);
+        server.createContext("/stats", this::stats);
+        server.createContext("/health", exchange -> respond(exchange, 200, "text/plain", "ok"));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public boolean usesVirtualThreads() {
+        return !(executor instanceof java.util.concurrent.ThreadPoolExecutor);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void classify(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "text/plain", "POST an image");
+                return;
+            }
+            byte[] body = readBody(exchange.getRequestBody());
+            if (body == null) {
+                respond(exchange, 413, "text/plain", "The image is too big");
+                return;
+            }
+            BufferedImage image;
+            try {
+                image = decoder.apply(body);
+            } catch (Exception e) {
+                respond(exchange, 400, "text/plain", "Cannot decode the image");
+                return;
+            }
+            BufferedImagePixelSource source = new BufferedImagePixelSource(image);
+            String json;
+            try {
+                Prediction prediction = batcher.classify(target -> {
+                    BilinearPreprocessor preprocessor = preprocessors.poll();
+                    if (preprocessor == null) {
+                        preprocessor = new BilinearPreprocessor(width, height, engine.getInputFormat());
+                    }
+                    try {
+                        preprocessor.processInto(source, target);
+                    } finally {
+                        preprocessors.offer(preprocessor);
+                    }
+                });
+                json = toJson(prediction);
+            } catch (Exception e) {
+                respond(exchange, 500, "text/plain", "Classification failed: " + e.getMessage());
+                return;
+            }
+            respond(exchange, 200, "application/json", json);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void detect(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "text/plain", "POST an image");
+                return;
+            }
+            byte[] body = readBody(exchange.getRequestBody());
+            if (body == null) {
+                respond(exchange, 413, "text/plain", "The image is too big");
+                return;
+            }
+            BufferedImage image;
+            try {
+                image = tileDecoder.apply(body);
+            } catch (Exception e) {
+                respond(exchange, 400, "text/plain", "Cannot decode the image");
+                return;
+            }
+            TiledClassifier tiledClassifier = tiledClassifiers.poll();
+            if (tiledClassifier == null) {
+                tiledClassifier = newTiledClassifier();
+            }
+            String json;
+            try {
+                List<LeafDetection> detections = tiledClassifier.classify(new BufferedImagePixelSource(image),
+                        TILE_BUDGET_NANOS);
+                json = toJson(detections, tiledClassifier.getLastTileCount(), tiledClassifier.isLastEarlyExit());
+            } catch (Exception e) {
+                respond(exchange, 500, "text/plain", "Detection failed: " + e.getMessage());
+                return;
+            } finally {
+                tiledClassifiers.offer(tiledClassifier);
+            }
+            respond(exchange, 200, "application/json", json);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private TiledClassifier newTiledClassifier() {
+        // Requests already run side by side, so each detection runs its batches one after the other
+        return new TiledClassifier(engine, labels, TILE_SCALES, TILE_OVERLAP, TILE_BATCH_SIZE, 1, null, policy);
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        long batches = batcher.getBatchCount();
+        long images = batcher.getImageCount();
+        respond(exchange, 200, "application/json", String.format(Locale.ROOT,
+                "{\"images\": %d, \"batches\": %d, \"mean_batch_size\": %.2f, \"max_batch_size\": %d}",
+                images, batches, batches == 0 ? 0.0 : images / (double) batches, batcher.getMaxBatchSize()));
+    }
+
+    String toJson(Prediction prediction) {
+        // {"unknown": false, "label": "Neem", "confidence": 0.93, "top": [{"label": ..., "score": ...}, ...],
+        //  "leaf": {"name": ..., "scientific_name": ..., ...}}
+        // label and leaf are null for an unknown leaf, the top classes are still listed for review
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"unknown\": ").append(prediction.isUnknown());
+        json.append(", \"label\": ").append(quote(prediction.getLabel()));
+        json.append(String.format(Locale.ROOT, ", \"confidence\": %.4f", prediction.getConfidence()));
+        json.append(", \"top\": [");
+        for (int rank = 0; rank < prediction.size(); rank++) {
+            json.append(rank == 0 ? "" : ", ");
+            json.append("{\"label\": ").append(quote(prediction.labelAt(rank)));
+            json.append(String.format(Locale.ROOT, ", \"score\": %.4f}", prediction.confidenceAt(rank)));
+        }
+        json.append("], \"leaf\": ");
+        appendLeaf(json, prediction.isUnknown() ? -1 : prediction.labelIndexAt(0));
+        return json.append('}').toString();
+    }
+
+    String toJson(List<LeafDetection> detections, int tiles, boolean earlyExit) {
+        // {"tiles": 38, "early_exit": false, "leaves": [{"label": "Neem", "score": 0.93,
+        //  "region": [left, top, right, bottom], "leaf": {...}}, ...]}
+        // The region is in fractions of the image, the leaves are ordered from the most confident
+        StringBuilder json = new StringBuilder(1024 * (detections.size() + 1));
+        json.append("{\"tiles\": ").append(tiles);
+        json.append(", \"early_exit\": ").append(earlyExit);
+        json.append(", \"leaves\": [");
+        for (int i = 0; i < detections.size(); i++) {
+            LeafDetection detection = detections.get(i);
+            json.append(i == 0 ? "" : ", ");
+            json.append("{\"label\": ").append(quote(detection.getLabel()));
+            json.append(String.format(Locale.ROOT, ", \"score\": %.4f, \"region\": [%.4f, %.4f, %.4f, %.4f]",
+                    detection.getScore(), detection.getLeft(), detection.getTop(),
+                    detection.getRight(), detection.getBottom()));
+            json.append(", \"leaf\": ");
+            appendLeaf(json, detection.getLabelIndex());
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private void appendLeaf(StringBuilder json, int labelIndex) {
+        Leaf leaf = labelIndex < 0 ? null : catalog.findByLabel(labels, labelIndex);
+        if (leaf == null) {
+            json.append("null");
+            return;
+        }
+        json.append("{\"name\": ").append(quote(leaf.getLeafName()));
+        json.append(", \"scientific_name\": ").append(quote(leaf.getScientificName()));
+        json.append(", \"description\": ").append(quote(leaf.getDescription()));
+        json.append(", \"usage\": ").append(quote(leaf.getUsage()));
+        json.append(", \"origin\": ").append(quote(leaf.getOrigin()));
+        json.append(", \"feature\": ").append(quote(leaf.getFeature()));
+        json.append('}');
+    }
+
+    static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        // Returns null when the body is bigger than MAX_BODY_BYTES
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256 * 1024);
+        byte[] chunk = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(chunk)) > 0) {
+            if (body.size() + read > MAX_BODY_BYTES) {
+                return null;
+            }
+            body.write(chunk, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String type, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", type + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static ExecutorService requestExecutor() {
+        // Virtual threads exist from Java 21 on. They are looked up by reflection, so the server still builds
+        // and runs on Java 11 with a pool of platform threads
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(FALLBACK_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "request-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
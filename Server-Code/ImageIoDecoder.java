@@ -0,0 +1,71 @@
+package com.dktes.medileaf.server;
+
+import com.dktes.medileaf.DecodePlan;
+import com.dktes.medileaf.ImageBounds;
+import com.dktes.medileaf.ImageDecoder;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+public final class ImageIoDecoder implements ImageDecoder<byte[], BufferedImage> {
+
+    // The JVM counterpart of the UriBitmapDecoder: it decodes the uploaded JPEG or PNG bytes with ImageIO
+    // The sample size and the region of the DecodePlan are handed to the reader, so a 12 MP upload is read at 1/16
+    // of its size and the full resolution never exists in memory
+    // EXIF orientation is not read, the web portal sends images the way they should be shown
+
+    @Override
+    public ImageBounds readBounds(byte[] source) throws IOException {
+        try (ImageInputStream in = open(source)) {
+            ImageReader reader = readerFor(in);
+            try {
+                reader.setInput(in, true, true);
+                return new ImageBounds(reader.getWidth(0), reader.getHeight(0), ImageBounds.ORIENTATION_NORMAL);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    @Override
+    public BufferedImage decode(byte[] source, DecodePlan plan) throws IOException {
+        try (ImageInputStream in = open(source)) {
+            ImageReader reader = readerFor(in);
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(plan.getSampleSize(), plan.getSampleSize(), 0, 0);
+                if (!plan.isFullImage()) {
+                    param.setSourceRegion(new Rectangle(plan.getRegionLeft(), plan.getRegionTop(),
+                            plan.getRegionWidth(), plan.getRegionHeight()));
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageInputStream open(byte[] source) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(source));
+        if (in == null) {
+            throw new IOException("Cannot read the image");
+        }
+        return in;
+    }
+
+    private static ImageReader readerFor(ImageInputStream in) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            throw new IOException("Unknown image format");
+        }
+        return readers.next();
+    }
+}
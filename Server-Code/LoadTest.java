@@ -0,0 +1,230 @@
+package com.dktes.medileaf.server;
+
+import com.dktes.medileaf.InferenceEngine;
+import com.dktes.medileaf.LabelTable;
+import com.dktes.medileaf.LatencyHistogram;
+import com.dktes.medileaf.LeafCatalog;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class LoadTest {
+
+    /****
+     * * * * NOTE * * * *
+     * Sends the same image to POST /classify from a growing number of clients and reports, for every level,
+     * the throughput and the latency percentiles as the clients see them.
+     *
+     * Every client sends its next request as soon as the answer to the previous one arrives (a closed loop), so
+     * 'concurrency' is the number of requests in the server at any moment. With one client every batch holds one
+     * image and pays the full wait of the batcher. With more clients the batches fill up, the throughput grows with
+     * the batch size and the latency stays near one model run, until all interpreters are busy and the requests queue.
+     * The mean batch size the server reached is read from GET /stats after each level.
+     *
+     *   java com.dktes.medileaf.server.LoadTest --url http://host:8080 --image leaf.jpg
+     *   java com.dktes.medileaf.server.LoadTest --self     (starts a server with the synthetic model in this JVM)
+     *
+     * Options: --levels 1,2,4,8,16,32,64   --seconds 5 (per level)   --warmup 1 (seconds before each level)
+     * Without --image a random 1024x768 JPEG is generated.
+     * * * * * ** * * * *
+     * ****/
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = null;
+        File imageFile = null;
+        boolean self = false;
+        int[] levels = {1, 2, 4, 8, 16, 32, 64};
+        double seconds = 5, warmup = 1;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--url": url = args[++i]; break;
+                case "--image": imageFile = new File(args[++i]); break;
+                case "--self": self = true; break;
+                case "--levels": levels = parseLevels(args[++i]); break;
+                case "--seconds": seconds = Double.parseDouble(args[++i]); break;
+                case "--warmup": warmup = Double.parseDouble(args[++i]); break;
+                default:
+                    System.err.println("unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        if (url == null && !self) {
+            System.err.println("usage: LoadTest --url <http://host:port> | --self [--image <file>] [options]");
+            System.exit(2);
+        }
+        byte[] image = imageFile != null ? readFile(imageFile) : syntheticJpeg(1024, 768);
+
+        ClassificationServer server = null;
+        if (self) {
+            server = startSelf();
+            url = "http://localhost:" + server.getPort();
+        }
+        try {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            System.out.printf("%-8s %10s %10s %10s %10s %10s %8s %10s%n",
+                    "clients", "req/s", "p50 ms", "p95 ms", "p99 ms", "max ms", "errors", "batch");
+            for (int clients : levels) {
+                run(client, url, image, clients, warmup, null);
+                Level level = new Level();
+                long[] before = stats(client, url);
+                run(client, url, image, clients, seconds, level);
+                long[] after = stats(client, url);
+                long batches = after[1] - before[1];
+                double batchSize = batches == 0 ? 0 : (after[0] - before[0]) / (double) batches;
+                level.print(clients, seconds, batchSize);
+            }
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private static final class Level {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+
+        void print(int clients, double seconds, double batchSize) {
+            long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+            long total = latency.copyCounts(counts);
+            long max = latency.getMaxNanos();
+            System.out.printf("%-8d %10.1f %10.2f %10.2f %10.2f %10.2f %8d %10.2f%n", clients, total / seconds,
+                    millis(LatencyHistogram.percentile(counts, total, max, 0.50)),
+                    millis(LatencyHistogram.percentile(counts, total, max, 0.95)),
+                    millis(LatencyHistogram.percentile(counts, total, max, 0.99)),
+                    millis(max), errors.get(), batchSize);
+        }
+    }
+
+    // Runs 'clients' closed loops for 'seconds'. Latencies and errors go to 'level', nothing is kept when it is null
+    private static void run(HttpClient client, String url, byte[] image, int clients, double seconds, Level level)
+            throws InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/classify"))
+                .header("Content-Type", "image/jpeg")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(image))
+                .build();
+        long until = System.nanoTime() + (long) (seconds * 1e9);
+        List<Thread> threads = new ArrayList<>(clients);
+        for (int c = 0; c < clients; c++) {
+            Thread thread = new Thread(() -> {
+                while (System.nanoTime() < until) {
+                    long start = System.nanoTime();
+                    boolean ok;
+                    try {
+                        ok = client.send(request, HttpResponse.BodyHandlers.ofString()).statusCode() == 200;
+                    } catch (IOException e) {
+                        ok = false;
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (level != null) {
+                        if (ok) {
+                            level.latency.record(System.nanoTime() - start);
+                        } else {
+                            level.errors.incrementAndGet();
+                        }
+                    }
+                }
+            }, "client-" + c);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    // Returns {images, batches} from GET /stats
+    private static long[] stats(HttpClient client, String url) throws IOException, InterruptedException {
+        String json = client.send(HttpRequest.newBuilder(URI.create(url + "/stats")).build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+        return new long[]{longField(json, "images"), longField(json, "batches")};
+    }
+
+    private static long longField(String json, String name) {
+        int at = json.indexOf("\"" + name + "\":");
+        if (at < 0) {
+            return 0;
+        }
+        at += name.length() + 3;
+        while (at < json.length() && json.charAt(at) == ' ') {
+            at++;
+        }
+        int end = at;
+        while (end < json.length() && Character.isDigit(json.charAt(end))) {
+            end++;
+        }
+        return end == at ? 0 : Long.parseLong(json.substring(at, end));
+    }
+
+    private static ClassificationServer startSelf() throws IOException {
+        File assets = new File("Android-Code");
+        LabelTable labels;
+        try (InputStream in = new FileInputStream(new File(assets, "labels.txt"))) {
+            labels = LabelTable.load(in);
+        }
+        LeafCatalog catalog;
+        try (InputStream in = new FileInputStream(new File(assets, "data.json"))) {
+            catalog = LeafCatalog.fromJson(in);
+        }
+        InferenceEngine engine = ServerMain.synthetic(labels);
+        int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        MicroBatcher batcher = new MicroBatcher(engine, labels, 8, 5_000_000L, parallelism, 3);
+        ClassificationServer server = new ClassificationServer(new InetSocketAddress("localhost", 0), engine, labels,
+                catalog, batcher);
+        server.start();
+        return server;
+    }
+
+    private static byte[] syntheticJpeg(int width, int height) throws IOException {
+        // Smooth noise rather than white noise, so the JPEG has about the size of a real photo
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        int green = 120;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                green = Math.max(40, Math.min(220, green + random.nextInt(9) - 4));
+                image.setRGB(x, y, (green / 3) << 16 | green << 8 | (green / 4));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static int[] parseLevels(String text) {
+        String[] parts = text.split(",");
+        int[] levels = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            levels[i] = Integer.parseInt(parts[i].trim());
+        }
+        return levels;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,126 @@
+package com.dktes.medileaf.server;
+
+import com.dktes.medileaf.CalibrationSet;
+import com.dktes.medileaf.InferenceEngine;
+import com.dktes.medileaf.InterpreterPool;
+import com.dktes.medileaf.LabelTable;
+import com.dktes.medileaf.LeafCatalog;
+import com.dktes.medileaf.RejectionPolicy;
+import com.dktes.medileaf.TfliteInferenceEngine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public final class ServerMain {
+
+    /****
+     * * * * NOTE * * * *
+     * The MediLeaf classifier as a small HTTP service for the web intake portal, on a plain JVM.
+     * It uses the same classes as the app (preprocessing, labels, prediction and rejection, the leaf catalog),
+     * only the Android parts are replaced: ImageIO decodes the uploads and the HttpServer of the JDK serves them.
+     *
+     * Compile and run from the root of the repository (Java 11 or newer, Java 21 for virtual threads):
+     *   javac -d build/server Server-Code/*.java Android-Code/{ArgbPixelSource,BilinearPreprocessor,PixelSource,Preprocessor,TensorFormat,TopK,LabelTable,Prediction,RejectionPolicy,InferenceEngine,InferenceOptions,InterpreterPool,TfliteInferenceEngine,Metrics,LatencyHistogram,Leaf,LeafStore,LeafCatalog,LeafSearchIndex,JsonLeafSource,BinaryCatalog,CatalogCompiler,ImageBounds,ImageDecoder,DecodePlan,TargetSizeDecoder,ClassificationPipeline,CalibrationSet,TiledClassifier,LeafDetection,ResourceGovernor}.java -cp <tensorflow-lite.jar>
+     *   java -cp build/server:<tensorflow-lite.jar> com.dktes.medileaf.server.ServerMain --model medinet.tflite [options]
+     * The TensorFlow Lite Java API needs its native library for Linux (libtensorflowlite_jni.so) on java.library.path.
+     * Without it, --synthetic runs a stand-in model (see SyntheticEngine) to try the service and the load test.
+     *
+     * Options:
+     *   --assets <dir>        the directory with data.json and labels.txt (default Android-Code)
+     *   --calibration <file>  labelled images to fit the temperature of the rejection policy, like the app does
+     *                         (default calibration.bin of --assets when it exists, otherwise the temperature is 1)
+     *   --model <file>        the .tflite model
+     *   --synthetic           a stand-in model instead of --model
+     *   --port <port>         default 8080, 0 picks a free port
+     *   --max-batch <n>       the most images per model run (default 8)
+     *   --max-wait-ms <ms>    how long the first image of a batch waits for more (default 5)
+     *   --parallelism <n>     batches run at the same time, each on its own interpreter (default: cores / 2)
+     *   --k <n>               labels per answer (default 3)
+     * * * * * ** * * * *
+     * ****/
+
+    private ServerMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File assets = new File("Android-Code");
+        File model = null;
+        File calibration = null;
+        boolean synthetic = false;
+        int port = 8080, maxBatch = 8, k = 3;
+        int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        double maxWaitMillis = 5;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--assets": assets = new File(args[++i]); break;
+                case "--model": model = new File(args[++i]); break;
+                case "--calibration": calibration = new File(args[++i]); break;
+                case "--synthetic": synthetic = true; break;
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--max-batch": maxBatch = Integer.parseInt(args[++i]); break;
+                case "--max-wait-ms": maxWaitMillis = Double.parseDouble(args[++i]); break;
+                case "--parallelism": parallelism = Integer.parseInt(args[++i]); break;
+                case "--k": k = Integer.parseInt(args[++i]); break;
+                default:
+                    System.err.println("unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        if (model == null && !synthetic) {
+            System.err.println("usage: ServerMain --model <medinet.tflite> | --synthetic [options]");
+            System.exit(2);
+        }
+
+        LabelTable labels;
+        try (InputStream in = new FileInputStream(new File(assets, "labels.txt"))) {
+            labels = LabelTable.load(in);
+        }
+        LeafCatalog catalog;
+        try (InputStream in = new FileInputStream(new File(assets, "data.json"))) {
+            catalog = LeafCatalog.fromJson(in);
+        }
+        InferenceEngine engine = synthetic ? synthetic(labels) : tflite(model, parallelism);
+        labels.checkOutputShape(new int[]{1, engine.getClassCount()});
+        RejectionPolicy policy = policy(calibration != null ? calibration : new File(assets, "calibration.bin"), engine);
+
+        MicroBatcher batcher = new MicroBatcher(engine, labels, maxBatch, (long) (maxWaitMillis * 1e6), parallelism, k,
+                policy);
+        ClassificationServer server = new ClassificationServer(new InetSocketAddress(port), engine, labels, catalog,
+                batcher, policy);
+        server.start();
+        System.out.printf("MediLeaf server on port %d: %s model, batches of up to %d within %.1f ms, %d in parallel, %s, "
+                        + "temperature %.2f%n",
+                server.getPort(), synthetic ? "synthetic" : model.getName(), maxBatch, maxWaitMillis, parallelism,
+                server.usesVirtualThreads() ? "virtual threads" : "platform threads", policy.getTemperature());
+    }
+
+    private static RejectionPolicy policy(File calibration, InferenceEngine engine) throws IOException {
+        // The same calibration as in the app (see ModelRegistry.getRejectionPolicy()), fitted at every start
+        if (!calibration.isFile()) {
+            return RejectionPolicy.DEFAULT;
+        }
+        try (InputStream in = new FileInputStream(calibration)) {
+            CalibrationSet set = CalibrationSet.read(in);
+            return RejectionPolicy.DEFAULT.withTemperature(RejectionPolicy.fitTemperature(set, engine));
+        }
+    }
+
+    static InferenceEngine synthetic(LabelTable labels) {
+        return new SyntheticEngine(150, 150, labels.size(), 6_000_000L, 2_000_000L);
+    }
+
+    private static InferenceEngine tflite(File model, int parallelism) throws IOException {
+        // One interpreter per parallel batch, all over the same mapped model (see InterpreterPool)
+        MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(model, "r")) {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        return new TfliteInferenceEngine(new InterpreterPool(buffer, parallelism), true);
+    }
+}